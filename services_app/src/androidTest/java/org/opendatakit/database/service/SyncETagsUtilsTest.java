@@ -1,5 +1,6 @@
 package org.opendatakit.database.service;
 
+import android.database.Cursor;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
 import org.junit.Assert;
@@ -14,8 +15,14 @@ import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.provider.SyncETagColumns;
+import org.opendatakit.services.database.OdkConnectionFactorySingleton;
+import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.SyncETagsUtils;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
@@ -39,6 +46,14 @@ public class SyncETagsUtilsTest extends OdkDatabaseTestAbstractBase {
    private static final String DEFAULT_MD5 = "md5 goes here";
    public static final String EXPT_MSG = "threw an exception:";
 
+   private static final String OTHER_SCHEME_TID = "other_scheme";
+   private static final String OTHER_HOST_TID = "other_host";
+
+   // the server prefix column and derived schema version maintained by SyncETagsUtils
+   private static final String SERVER_PREFIX = "_server_prefix";
+   private static final String DERIVED_SCHEMA_VERSIONS_TABLE_NAME = "_derived_schema_versions";
+   private static final String SYNC_ETAGS_DERIVED_SCHEMA_NAME = "sync_etags_index";
+
    private UserDbInterface serviceInterface;
    private DbHandle dbHandle;
 
@@ -342,6 +357,144 @@ public class SyncETagsUtilsTest extends OdkDatabaseTestAbstractBase {
       }
    }
 
+   @Test public void testServerPrefixDeletes() {
+      try {
+         // the port, path and case of the url do not matter
+         insertManifestSyncETagWithUrl(TEA_HOUSES_TID, "http://url.here/abcd");
+         insertManifestSyncETagWithUrl(TEST_ID, "HTTP://URL.Here:8080/efgh");
+         serviceInterface
+             .updateFileSyncETag(APPNAME, dbHandle, "http://url.here:80/ijkl", TEST_ID,
+                 DEFAULT_TIMESTAMP, DEFAULT_MD5);
+         // but the scheme and the host do
+         insertManifestSyncETagWithUrl(OTHER_SCHEME_TID, "https://url.here/abcd");
+         insertManifestSyncETagWithUrl(OTHER_HOST_TID, "http://url.here.too/abcd");
+
+         serviceInterface.deleteAllSyncETagsUnderServer(APPNAME, dbHandle, "http://url.here:443/");
+         expectGone(TEA_HOUSES_TID, true);
+         expectGone(TEST_ID, true);
+         expectGone(TEST_ID, false);
+         expectPresent(OTHER_SCHEME_TID, true);
+         expectPresent(OTHER_HOST_TID, true);
+
+         insertManifestSyncETagWithUrl(TEA_HOUSES_TID, "http://url.here/abcd");
+         serviceInterface
+             .deleteAllSyncETagsExceptForServer(APPNAME, dbHandle, "HTTPS://URL.HERE/mnop");
+         expectGone(TEA_HOUSES_TID, true);
+         expectPresent(OTHER_SCHEME_TID, true);
+         expectGone(OTHER_HOST_TID, true);
+
+      } catch (ServicesAvailabilityException e) {
+         fail(EXPT_MSG + e.getMessage());
+      }  finally {
+         try {
+            serviceInterface.deleteAllSyncETagsForTableId(APPNAME, dbHandle, TEA_HOUSES_TID);
+            serviceInterface.deleteAllSyncETagsForTableId(APPNAME, dbHandle, TEST_ID);
+            serviceInterface.deleteAllSyncETagsForTableId(APPNAME, dbHandle, OTHER_SCHEME_TID);
+            serviceInterface.deleteAllSyncETagsForTableId(APPNAME, dbHandle, OTHER_HOST_TID);
+         } catch (ServicesAvailabilityException e) {
+            fail(EXPT_MSG + e.getMessage());
+         }
+      }
+   }
+
+   @Test public void testServerPrefixBackfill() {
+      OdkConnectionInterface db = null;
+      try {
+         insertManifestSyncETagWithUrl(TEA_HOUSES_TID, "HTTP://URL.Here:8080/abcd");
+         insertFileSyncETag(TEST_ID);
+
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(APPNAME, dbHandle);
+
+         // as if these ETags were recorded before the server prefix existed
+         db.execSQL("UPDATE " + DatabaseConstants.SYNC_ETAGS_TABLE_NAME + " SET "
+             + SERVER_PREFIX + " = NULL", new Object[0]);
+
+         // the backfill only runs once...
+         SyncETagsUtils.initializeSyncETagsIndex(db);
+         assertNull(getServerPrefix(db, TEA_HOUSES_TID));
+
+         // ...unless its version is not yet recorded
+         db.execSQL("DELETE FROM " + DERIVED_SCHEMA_VERSIONS_TABLE_NAME + " WHERE _name = ?",
+             new Object[] { SYNC_ETAGS_DERIVED_SCHEMA_NAME });
+         SyncETagsUtils.initializeSyncETagsIndex(db);
+         assertEquals("http://url.here", getServerPrefix(db, TEA_HOUSES_TID));
+         assertEquals("http://url.here", getServerPrefix(db, TEST_ID));
+
+         // and the backfilled ETags are found through the server prefix
+         serviceInterface.deleteAllSyncETagsUnderServer(APPNAME, dbHandle, DEFAULT_URL);
+         expectGone(TEA_HOUSES_TID, true);
+         expectGone(TEST_ID, false);
+
+      } catch (ServicesAvailabilityException e) {
+         fail(EXPT_MSG + e.getMessage());
+      }  finally {
+         if (db != null) {
+            db.releaseReference();
+         }
+         try {
+            serviceInterface.deleteAllSyncETagsForTableId(APPNAME, dbHandle, TEA_HOUSES_TID);
+            serviceInterface.deleteAllSyncETagsForTableId(APPNAME, dbHandle, TEST_ID);
+         } catch (ServicesAvailabilityException e) {
+            fail(EXPT_MSG + e.getMessage());
+         }
+      }
+   }
+
+   @Test public void testBulkFileSyncETags() {
+      OdkConnectionInterface db = null;
+      try {
+         // an older ETag that the bulk update replaces
+         serviceInterface.updateFileSyncETag(APPNAME, dbHandle, DEFAULT_URL + "/a", TEST_ID,
+             DEFAULT_TIMESTAMP, "old md5");
+
+         Map<String, SyncETagsUtils.FileSyncETag> eTags =
+             new LinkedHashMap<String, SyncETagsUtils.FileSyncETag>();
+         eTags.put(DEFAULT_URL + "/a", new SyncETagsUtils.FileSyncETag(DEFAULT_TIMESTAMP + 1,
+             DEFAULT_MD5));
+         eTags.put(DEFAULT_URL + "/b", new SyncETagsUtils.FileSyncETag(DEFAULT_TIMESTAMP + 2,
+             "other md5"));
+
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(APPNAME, dbHandle);
+         ArrayList<Object> bindArgs = new ArrayList<Object>();
+         String sql = SyncETagsUtils.getDeleteFileSyncETagsSql(TEST_ID,
+             new ArrayList<String>(eTags.keySet()), bindArgs);
+         db.execSQL(sql, bindArgs.toArray());
+         bindArgs.clear();
+         sql = SyncETagsUtils.getInsertFileSyncETagsSql(TEST_ID, eTags, bindArgs);
+         db.execSQL(sql, bindArgs.toArray());
+
+         assertEquals(DEFAULT_MD5, serviceInterface.getFileSyncETag(APPNAME, dbHandle,
+             DEFAULT_URL + "/a", TEST_ID, DEFAULT_TIMESTAMP + 1));
+         assertEquals("other md5", serviceInterface.getFileSyncETag(APPNAME, dbHandle,
+             DEFAULT_URL + "/b", TEST_ID, DEFAULT_TIMESTAMP + 2));
+
+         // the older ETag is gone, and the server prefix is filled in
+         bindArgs.clear();
+         sql = SyncETagsUtils.getFileSyncETagsSql(TEST_ID, bindArgs);
+         Cursor c = db.rawQuery(sql, bindArgs.toArray());
+         try {
+            assertEquals(2, c.getCount());
+         } finally {
+            c.close();
+         }
+         assertEquals("http://url.here", getServerPrefix(db, TEST_ID));
+
+      } catch (ServicesAvailabilityException e) {
+         fail(EXPT_MSG + e.getMessage());
+      }  finally {
+         if (db != null) {
+            db.releaseReference();
+         }
+         try {
+            serviceInterface.deleteAllSyncETagsForTableId(APPNAME, dbHandle, TEST_ID);
+         } catch (ServicesAvailabilityException e) {
+            fail(EXPT_MSG + e.getMessage());
+         }
+      }
+   }
+
    /////////////////////////////////////////////////////////////////////////
    ///////////////////     Private Helper Functions      ///////////////////
    /////////////////////////////////////////////////////////////////////////
@@ -379,6 +532,21 @@ public class SyncETagsUtilsTest extends OdkDatabaseTestAbstractBase {
       return result;
    }
 
+   private String getServerPrefix(OdkConnectionInterface db, String id) {
+      Cursor c = null;
+      try {
+         c = db.rawQuery("SELECT " + SERVER_PREFIX + " FROM "
+             + DatabaseConstants.SYNC_ETAGS_TABLE_NAME + " WHERE " + SyncETagColumns.TABLE_ID
+             + " = ?", new Object[] { id });
+         assertTrue(c.moveToFirst());
+         return c.isNull(0) ? null : c.getString(0);
+      } finally {
+         if (c != null && !c.isClosed()) {
+            c.close();
+         }
+      }
+   }
+
    private void expectGone(String id, boolean isManifest) throws ServicesAvailabilityException {
       UserTable c = get(id, isManifest);
       assertTrue(c.getNumberOfRows() == 0);
@@ -0,0 +1,137 @@
+package org.opendatakit.services.database;
+
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the reuse, expiry and eviction of the idle internal-use connections.
+ */
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class InternalUseDbHandlePoolTest {
+
+   private static final String APPNAME = "test-idlePool";
+
+   private OdkConnectionFactoryAbstractClass factory;
+
+   @Before
+   public void setUp() throws Exception {
+      AndroidConnectFactory.configure();
+      factory = (OdkConnectionFactoryAbstractClass)
+          OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface();
+
+      factory.removeAllConnections();
+      ODKFileUtils.deleteDirectory(new File(ODKFileUtils.getAppFolder(APPNAME)));
+      ODKFileUtils.verifyExternalStorageAvailability();
+      ODKFileUtils.assertDirectoryStructure(APPNAME);
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      factory.removeAllConnections();
+      // give a chance for GC to happen so that we
+      // release and close database handles in the
+      // C++ layer that were orphaned in Java
+      Thread.sleep(100L);
+      try {
+         ODKFileUtils.deleteDirectory(new File(ODKFileUtils.getAppFolder(APPNAME)));
+      } catch (Exception e) {
+         // ignore
+      }
+   }
+
+   /**
+    * Borrow a handle, open its connection, and give it back.
+    *
+    * @return the sessionQualifier of the handle
+    */
+   private String useInternalHandle() {
+      DbHandle dbHandleName = factory.acquireInternalUseDbHandle(APPNAME);
+      // +1 referenceCount if db is returned (non-null)
+      OdkConnectionInterface db = factory.getConnection(APPNAME, dbHandleName);
+      try {
+         assertTrue(db.isOpen());
+      } finally {
+         db.releaseReference();
+         factory.releaseInternalUseDbHandle(APPNAME, dbHandleName);
+      }
+      return dbHandleName.getDatabaseHandle();
+   }
+
+   @Test
+   public void testIdleConnectionIsReused_ExpectPass() {
+      String sessionQualifier = useInternalHandle();
+      assertTrue(factory.getAppNameSharedStateContainer(APPNAME).getAllSessionQualifiers()
+          .contains(sessionQualifier));
+
+      assertEquals(sessionQualifier, useInternalHandle());
+   }
+
+   @Test
+   public void testIdleConnectionExpires_ExpectPass() {
+      String sessionQualifier = useInternalHandle();
+      AppNameSharedStateContainer container = factory.getAppNameSharedStateContainer(APPNAME);
+      long expiredMillis = System.currentTimeMillis()
+          + AppNameSharedStateContainer.IDLE_INTERNAL_SESSION_TIMEOUT_MILLIS;
+
+      assertTrue(container.getMillisUntilIdleInternalSessionExpires(System.currentTimeMillis())
+          <= AppNameSharedStateContainer.IDLE_INTERNAL_SESSION_TIMEOUT_MILLIS);
+      // not lent out once it has expired
+      assertNull(container.pollIdleInternalSession(expiredMillis));
+
+      List<String> expired = container.removeExpiredIdleInternalSessions(expiredMillis);
+      assertEquals(1, expired.size());
+      assertEquals(sessionQualifier, expired.get(0));
+      assertEquals(-1L, container.getMillisUntilIdleInternalSessionExpires(expiredMillis));
+
+      // as the expiry does
+      factory.removeConnection(APPNAME, new DbHandle(sessionQualifier));
+      assertFalse(container.getAllSessionQualifiers().contains(sessionQualifier));
+      assertNotEquals(sessionQualifier, useInternalHandle());
+   }
+
+   @Test
+   public void testIdleConnectionEvictedWhenDatabaseDeleted_ExpectPass() {
+      String sessionQualifier = useInternalHandle();
+
+      // the database is deleted out from under the idle connection
+      File dbFile = new File(ODKFileUtils.getWebDbFolder(APPNAME),
+          ODKFileUtils.getNameOfSQLiteDatabase());
+      assertTrue(dbFile.delete());
+      new File(dbFile.getAbsolutePath() + "-wal").delete();
+      new File(dbFile.getAbsolutePath() + "-shm").delete();
+
+      String newSessionQualifier = useInternalHandle();
+      assertNotEquals(sessionQualifier, newSessionQualifier);
+      assertTrue(dbFile.exists());
+      assertFalse(factory.getAppNameSharedStateContainer(APPNAME).getAllSessionQualifiers()
+          .contains(sessionQualifier));
+   }
+
+   @Test
+   public void testIdleConnectionEvictedOnReset_ExpectPass() {
+      String sessionQualifier = useInternalHandle();
+
+      factory.removeAllConnections();
+      assertTrue(factory.getAppNameSharedStateContainer(APPNAME).getAllSessionQualifiers()
+          .isEmpty());
+
+      assertNotEquals(sessionQualifier, useInternalHandle());
+   }
+}
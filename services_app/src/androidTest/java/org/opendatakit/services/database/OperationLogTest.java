@@ -0,0 +1,168 @@
+package org.opendatakit.services.database;
+
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the lock-free operation tracking and the per-kind tallies of OperationLog.
+ */
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class OperationLogTest {
+
+   private static final String APPNAME = "default";
+   private static final String SESSION_QUALIFIER = "operationLogTest";
+
+   // more than the 256 slots of the operation ring
+   private static final int RING_OVERFLOW = 300;
+
+   @Test
+   public void testClassify_ExpectPass() {
+      assertEquals(OperationStatistics.Kind.QUERY,
+          OperationStatistics.Kind.classify("rawQuery(\"SELECT 1\",null)"));
+      assertEquals(OperationStatistics.Kind.QUERY,
+          OperationStatistics.Kind.classify("queryDistinct(\"t\",...)"));
+      assertEquals(OperationStatistics.Kind.EXECUTE,
+          OperationStatistics.Kind.classify("update(\"t\",...,null,null)"));
+      assertEquals(OperationStatistics.Kind.EXECUTE,
+          OperationStatistics.Kind.classify("insertOrThrow(\"t\",null,...)"));
+      assertEquals(OperationStatistics.Kind.TRANSACTION,
+          OperationStatistics.Kind.classify("beginTransactionExclusive()"));
+      assertEquals(OperationStatistics.Kind.OTHER,
+          OperationStatistics.Kind.classify("getVersion()"));
+
+      // operations nested within an AndroidOdkConnection call are not tallied
+      assertNull(OperationStatistics.Kind.classify("executeForCursor"));
+      assertNull(OperationStatistics.Kind.classify("executeForLongImpl"));
+      assertNull(OperationStatistics.Kind.classify("executeForChangedRowCountImpl"));
+      assertNull(OperationStatistics.Kind.classify("close"));
+      assertNull(OperationStatistics.Kind.classify("commonWrapUpConnection(\"x\") -- close"));
+   }
+
+   @Test
+   public void testNestedOperationIsTalliedOnce_ExpectPass() {
+      OperationLog log = new OperationLog(APPNAME);
+
+      int outer = log.beginOperation(SESSION_QUALIFIER, "rawQuery(\"SELECT 1\",null)",
+          null, null);
+      int inner = log.beginOperation(SESSION_QUALIFIER, "executeForCursor", "SELECT 1", null);
+      log.endOperation(inner);
+      log.endOperation(outer);
+
+      assertEquals(1L, log.getCount(OperationStatistics.Kind.QUERY));
+      assertEquals(0L, log.getCount(OperationStatistics.Kind.EXECUTE));
+      assertEquals(0L, log.getCount(OperationStatistics.Kind.OTHER));
+   }
+
+   @Test
+   public void testDisplacedOperationIsFoundAndTallied_ExpectPass() {
+      OperationLog log = new OperationLog(APPNAME);
+
+      int running = log.beginOperation(SESSION_QUALIFIER, "rawQuery(\"SELECT 1\",null)",
+          null, null);
+      for (int i = 0; i < RING_OVERFLOW; ++i) {
+         int cookie = log.beginOperation(SESSION_QUALIFIER, "execSQL(\"DELETE\",null)",
+             null, null);
+         log.endOperation(cookie);
+      }
+
+      // its ring slot has been reused, but it is still running
+      OperationLogEntry operation = log.getOperation(running);
+      assertNotNull(operation);
+      assertEquals(running, operation.mCookie);
+      assertTrue(!operation.mFinished);
+
+      log.failOperation(running, new IllegalStateException("test"));
+      log.endOperation(running);
+
+      assertTrue(operation.mFinished);
+      assertNull(log.getOperation(running));
+      assertEquals(1L, log.getCount(OperationStatistics.Kind.QUERY));
+      assertEquals(RING_OVERFLOW, log.getCount(OperationStatistics.Kind.EXECUTE));
+
+      // ending it again does not tally it twice
+      log.endOperation(running);
+      assertEquals(1L, log.getCount(OperationStatistics.Kind.QUERY));
+   }
+
+   @Test
+   public void testFinishedOperationIsNotDisplaced_ExpectPass() {
+      OperationLog log = new OperationLog(APPNAME);
+
+      int first = log.beginOperation(SESSION_QUALIFIER, "getVersion()", null, null);
+      log.endOperation(first);
+      for (int i = 0; i < RING_OVERFLOW; ++i) {
+         int cookie = log.beginOperation(SESSION_QUALIFIER, "getVersion()", null, null);
+         log.endOperation(cookie);
+      }
+
+      assertNull(log.getOperation(first));
+      assertEquals(RING_OVERFLOW + 1, log.getCount(OperationStatistics.Kind.OTHER));
+   }
+
+   @Test
+   public void testConcurrentDisplacedOperations_ExpectPass() throws InterruptedException {
+      final OperationLog log = new OperationLog(APPNAME);
+      final int threadCount = 4;
+      final CountDownLatch start = new CountDownLatch(1);
+      final int[] runningCookies = new int[threadCount];
+      final Throwable[] failures = new Throwable[threadCount];
+      List<Thread> threads = new ArrayList<Thread>();
+
+      for (int t = 0; t < threadCount; ++t) {
+         final int idx = t;
+         Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  start.await();
+                  // hold one operation open while the ring wraps several times
+                  runningCookies[idx] = log.beginOperation(SESSION_QUALIFIER + idx,
+                      "rawQuery(\"SELECT " + idx + "\",null)", null, null);
+                  for (int i = 0; i < RING_OVERFLOW * 4; ++i) {
+                     int cookie = log.beginOperation(SESSION_QUALIFIER + idx,
+                         "execSQL(\"DELETE\",null)", null, null);
+                     int inner = log.beginOperation(SESSION_QUALIFIER + idx,
+                         "executeForChangedRowCountImpl", "DELETE", null);
+                     log.endOperation(inner);
+                     log.endOperation(cookie);
+                  }
+               } catch (Throwable e) {
+                  failures[idx] = e;
+               }
+            }
+         });
+         threads.add(thread);
+         thread.start();
+      }
+      start.countDown();
+      for (Thread thread : threads) {
+         thread.join();
+      }
+
+      for (int t = 0; t < threadCount; ++t) {
+         assertNull(failures[t]);
+         OperationLogEntry operation = log.getOperation(runningCookies[t]);
+         assertNotNull(operation);
+         assertTrue(!operation.mFinished);
+         log.endOperation(runningCookies[t]);
+         assertNull(log.getOperation(runningCookies[t]));
+      }
+
+      assertEquals(threadCount, log.getCount(OperationStatistics.Kind.QUERY));
+      assertEquals(threadCount * RING_OVERFLOW * 4,
+          log.getCount(OperationStatistics.Kind.EXECUTE));
+   }
+}
@@ -0,0 +1,145 @@
+package org.opendatakit.services.database;
+
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.opendatakit.TestConsts;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.sqlite.database.sqlite.SQLiteGlobal;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the size-triggered and the on-close checkpoints of the WalCheckpointScheduler.
+ */
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class WalCheckpointSchedulerTest {
+
+   private static final String APPNAME = TestConsts.APPNAME;
+   private static final DbHandle uniqueKey = new DbHandle(
+       WalCheckpointSchedulerTest.class.getSimpleName() + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
+
+   private static final String TABLE_ID = "L_wal_checkpoint_test";
+
+   // 1000 rows of 4000 bytes is more than the journal size limit
+   private static final int ROW_COUNT = 1000;
+
+   private static final long TRUNCATE_TIMEOUT_MILLIS = 20000L;
+
+   private OdkConnectionInterface db;
+
+   @Before
+   public void setUp() throws Exception {
+      ODKFileUtils.verifyExternalStorageAvailability();
+      ODKFileUtils.assertDirectoryStructure(APPNAME);
+      AndroidConnectFactory.configure();
+
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .getConnection(APPNAME, uniqueKey);
+      db.execSQL("DROP TABLE IF EXISTS " + TABLE_ID, null);
+      db.execSQL("CREATE TABLE " + TABLE_ID + " (v BLOB)", null);
+   }
+
+   @After
+   public void tearDown() throws Exception {
+      if (db != null) {
+         db.execSQL("DROP TABLE IF EXISTS " + TABLE_ID, null);
+         db.releaseReference();
+         OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .removeConnection(APPNAME, uniqueKey);
+      }
+   }
+
+   private void checkpointNow(String mode) {
+      Cursor c = null;
+      try {
+         c = db.rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+         c.moveToFirst();
+      } finally {
+         if (c != null && !c.isClosed()) {
+            c.close();
+         }
+      }
+   }
+
+   private void growWal() {
+      boolean dbWithinTransaction = db.inTransaction();
+      try {
+         if (!dbWithinTransaction) {
+            db.beginTransactionNonExclusive();
+         }
+         for (int i = 0; i < ROW_COUNT; ++i) {
+            db.execSQL("INSERT INTO " + TABLE_ID + " (v) VALUES (randomblob(4000))", null);
+         }
+         if (!dbWithinTransaction) {
+            db.setTransactionSuccessful();
+         }
+      } finally {
+         if (!dbWithinTransaction) {
+            db.endTransaction();
+         }
+      }
+   }
+
+   @Test
+   public void testSizeTriggeredCheckpoint_ExpectPass() {
+      File walFile = WalCheckpointScheduler.getWalFile(APPNAME);
+      WalCheckpointScheduler scheduler = new WalCheckpointScheduler(
+          OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface());
+      AppNameSharedStateContainer container = new AppNameSharedStateContainer(APPNAME);
+      // an operation that never finishes: the database is never idle
+      int cookie = container.getOperationLog().beginOperation("writer",
+          "execSQL(\"INSERT\",null)", null, null);
+      try {
+         checkpointNow(WalCheckpointScheduler.MODE_TRUNCATE);
+         assertTrue(walFile.length() <= SQLiteGlobal.getJournalSizeLimit());
+
+         // busy, with a small WAL: nothing to do
+         assertFalse(scheduler.checkpointIfNeeded(container));
+
+         growWal();
+         assertTrue(walFile.length() > SQLiteGlobal.getJournalSizeLimit());
+
+         // still busy, but the WAL has outgrown the journal size limit
+         assertTrue(scheduler.checkpointIfNeeded(container));
+         StringBuilder b = new StringBuilder();
+         container.getWalCheckpointStatistics().dump(b);
+         assertTrue(b.toString().contains("last: " + WalCheckpointScheduler.MODE_PASSIVE));
+
+         // nothing has happened since that checkpoint
+         assertFalse(scheduler.checkpointIfNeeded(container));
+      } finally {
+         container.getOperationLog().endOperation(cookie);
+      }
+   }
+
+   @Test
+   public void testTruncateCheckpointOnClose_ExpectPass() throws InterruptedException {
+      File walFile = WalCheckpointScheduler.getWalFile(APPNAME);
+
+      growWal();
+      assertTrue(walFile.length() > SQLiteGlobal.getJournalSizeLimit());
+
+      // as when a client closes its database handle
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .requestWalCheckpoint(APPNAME);
+
+      long deadline = System.currentTimeMillis() + TRUNCATE_TIMEOUT_MILLIS;
+      while (walFile.length() != 0L && System.currentTimeMillis() < deadline) {
+         Thread.sleep(250L);
+      }
+      assertEquals(0L, walFile.length());
+   }
+}
@@ -0,0 +1,52 @@
+package org.opendatakit.services.legacy.tasks;
+
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.opendatakit.httpclientandroidlib.Header;
+import org.opendatakit.httpclientandroidlib.message.BasicHeader;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of how the response to the OpenRosa HEAD request determines where submissions are sent.
+ */
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class InstanceUploaderTaskTest {
+
+   private static final String SUBMISSION_URL = "http://example.org/odktables/submission";
+
+   @Test
+   public void testNoLocationKeepsUrl_ExpectPass() throws Exception {
+      URI u = new URI(SUBMISSION_URL);
+
+      // a 204 without a Location header: u is the submission url, and is remembered as such
+      assertEquals(u, InstanceUploaderTask.getSubmissionUri(u, new Header[0]));
+      assertEquals(u, InstanceUploaderTask.getSubmissionUri(u, null));
+   }
+
+   @Test
+   public void testSeveralLocationsKeepsUrl_ExpectPass() throws Exception {
+      URI u = new URI(SUBMISSION_URL);
+      Header[] locations = new Header[] {
+          new BasicHeader("Location", "https://example.org/odktables/submission"),
+          new BasicHeader("Location", "https://example.org/other/submission") };
+
+      assertEquals(u, InstanceUploaderTask.getSubmissionUri(u, locations));
+   }
+
+   @Test
+   public void testLocationRedirects_ExpectPass() throws Exception {
+      URI u = new URI(SUBMISSION_URL);
+      Header[] locations = new Header[] {
+          new BasicHeader("Location", "https://example.org/odktables/submission") };
+
+      assertEquals(new URI("https://example.org/odktables/submission"),
+          InstanceUploaderTask.getSubmissionUri(u, locations));
+   }
+}
@@ -0,0 +1,203 @@
+package org.opendatakit.services.submissions.provider;
+
+import android.support.test.runner.AndroidJUnit4;
+import org.apache.commons.lang3.CharEncoding;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.opendatakit.logging.WebLogger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the streamed XML submission matches the one formerly built as a DOM document.
+ */
+@RunWith(AndroidJUnit4.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class XmlSubmissionWriterTest {
+
+   private static final String APPNAME = "default";
+   private static final String XML_OPENROSA_NAMESPACE = "http://openrosa.org/xforms";
+   private static final String ROOT_ELEMENT_NAME = "data";
+   private static final String TABLE_ID = "xmlSubmissionTest";
+
+   private LinkedHashMap<String, String> getOpenRosaMeta() {
+      LinkedHashMap<String, String> openRosaMeta = new LinkedHashMap<String, String>();
+      openRosaMeta.put("instanceID", "uuid:6f5e8a3c-0f0e-4d3e-9d7c-2b1f7c2c9a11");
+      openRosaMeta.put("deviceID", "imei:123456789012345");
+      openRosaMeta.put("userID", "username:tester");
+      openRosaMeta.put("timeEnd", "2016-04-01T10:11:12-0700");
+      return openRosaMeta;
+   }
+
+   private LinkedHashMap<String, String> getExtraMeta() {
+      LinkedHashMap<String, String> extraMeta = new LinkedHashMap<String, String>();
+      extraMeta.put("instanceName", "A & <B>");
+      extraMeta.put("rowID", "uuid:b0f1c7a6-4a0b-4a61-8a2a-4f6d3c1e2d10");
+      extraMeta.put("rowETag", null);
+      extraMeta.put("defaultAccess", "FULL");
+      extraMeta.put("owner", "username:tester");
+      extraMeta.put("groupReadOnly", null);
+      extraMeta.put("groupModify", null);
+      extraMeta.put("groupPrivileged", null);
+      extraMeta.put("formID", TABLE_ID);
+      extraMeta.put("locale", "en_US");
+      extraMeta.put("savepointType", "COMPLETE");
+      extraMeta.put("savepointCreator", null);
+      extraMeta.put("savepointTimestamp", "2016-04-01T10:11:12.000000000");
+      return extraMeta;
+   }
+
+   private Map<String, Object> getValues() {
+      HashMap<String, Object> geopoint = new HashMap<String, Object>();
+      geopoint.put("latitude", 47.6062);
+      geopoint.put("longitude", -122.3321);
+      geopoint.put("altitude", 56);
+
+      HashMap<String, Object> values = new HashMap<String, Object>();
+      values.put("name", "O'Brien \"quoted\"");
+      values.put("age", 42);
+      values.put("married", Boolean.TRUE);
+      values.put("choices", Arrays.asList((Object) "a", "b", "c"));
+      values.put("location", geopoint);
+      return values;
+   }
+
+   private void appendText(Document d, Element e, String value) {
+      if (value != null) {
+         e.appendChild(d.createTextNode(value));
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private void appendValue(Document d, Element parent, String key, Object o) {
+      Element e = d.createElement(key);
+      if (o instanceof Map) {
+         Map<String, Object> m = (Map<String, Object>) o;
+         String[] names = m.keySet().toArray(new String[m.size()]);
+         Arrays.sort(names);
+         for (String name : names) {
+            appendValue(d, e, name, m.get(name));
+         }
+      } else if (o instanceof Iterable) {
+         StringBuilder b = new StringBuilder();
+         for (Object ob : (Iterable<Object>) o) {
+            b.append(ob.toString()).append(" ");
+         }
+         appendText(d, e, b.toString().trim());
+      } else {
+         appendText(d, e, o.toString());
+      }
+      parent.appendChild(e);
+   }
+
+   /**
+    * Render the submission the way it was rendered before it was streamed:
+    * as a DOM document written out by an identity Transformer.
+    */
+   private String renderAsDomDocument(Map<String, String> openRosaMeta,
+       Map<String, String> extraMeta, Map<String, Object> values) throws Exception {
+      DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+      Document d = docBuilder.newDocument();
+      d.setXmlStandalone(true);
+
+      Element e = d.createElement(ROOT_ELEMENT_NAME);
+      d.appendChild(e);
+      e.setAttribute("id", TABLE_ID);
+
+      Element meta = d.createElementNS(XML_OPENROSA_NAMESPACE, "meta");
+      meta.setPrefix("jr");
+      for (Map.Entry<String, String> entry : openRosaMeta.entrySet()) {
+         Element v = d.createElementNS(XML_OPENROSA_NAMESPACE, entry.getKey());
+         appendText(d, v, entry.getValue());
+         meta.appendChild(v);
+      }
+      for (Map.Entry<String, String> entry : extraMeta.entrySet()) {
+         Element v = d.createElement(entry.getKey());
+         appendText(d, v, entry.getValue());
+         meta.appendChild(v);
+      }
+      e.appendChild(meta);
+
+      String[] names = values.keySet().toArray(new String[values.size()]);
+      Arrays.sort(names);
+      for (String name : names) {
+         appendValue(d, e, name, values.get(name));
+      }
+
+      Transformer transformer = TransformerFactory.newInstance().newTransformer();
+      Properties outFormat = new Properties();
+      outFormat.setProperty( OutputKeys.INDENT, "no" );
+      outFormat.setProperty( OutputKeys.METHOD, "xml" );
+      outFormat.setProperty( OutputKeys.OMIT_XML_DECLARATION, "yes" );
+      outFormat.setProperty( OutputKeys.VERSION, "1.0" );
+      outFormat.setProperty( OutputKeys.ENCODING, "UTF-8" );
+      transformer.setOutputProperties( outFormat );
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      transformer.transform(new DOMSource(d.getDocumentElement()), new StreamResult(out));
+      out.close();
+      return out.toString(CharEncoding.UTF_8);
+   }
+
+   private String renderAsStream(Map<String, String> openRosaMeta,
+       Map<String, String> extraMeta, Map<String, Object> values) throws Exception {
+      SubmissionProvider.XmlSubmissionWriter writer = new SubmissionProvider.XmlSubmissionWriter(
+          ROOT_ELEMENT_NAME, TABLE_ID, openRosaMeta, extraMeta, values,
+          WebLogger.getLogger(APPNAME));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writer.writeTo(out);
+      out.close();
+      return out.toString(CharEncoding.UTF_8);
+   }
+
+   private Document parse(String xml) throws Exception {
+      DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+      // keep the namespace declarations as attributes so that they are compared
+      dbf.setNamespaceAware(true);
+      Document d = dbf.newDocumentBuilder().parse(
+          new ByteArrayInputStream(xml.getBytes(CharEncoding.UTF_8)));
+      d.normalizeDocument();
+      return d;
+   }
+
+   @Test
+   public void testMatchesDomDocument_ExpectPass() throws Exception {
+      String expected = renderAsDomDocument(getOpenRosaMeta(), getExtraMeta(), getValues());
+      String actual = renderAsStream(getOpenRosaMeta(), getExtraMeta(), getValues());
+
+      assertTrue("expected: " + expected + " actual: " + actual,
+          parse(expected).getDocumentElement().isEqualNode(parse(actual).getDocumentElement()));
+   }
+
+   @Test
+   public void testOpenRosaMetaNamespaceForm_ExpectPass() throws Exception {
+      String actual = renderAsStream(getOpenRosaMeta(), getExtraMeta(), getValues());
+
+      assertFalse(actual.startsWith("<?xml"));
+      assertTrue(actual.contains("<jr:meta xmlns:jr=\"" + XML_OPENROSA_NAMESPACE + "\">"));
+      assertTrue(actual.contains("<instanceID xmlns=\"" + XML_OPENROSA_NAMESPACE + "\">"));
+      assertTrue(actual.contains("<timeEnd xmlns=\"" + XML_OPENROSA_NAMESPACE + "\">"));
+      assertFalse(actual.contains("jr:instanceID"));
+      assertTrue(actual.contains("<instanceName>A &amp; &lt;B&gt;</instanceName>"));
+   }
+}
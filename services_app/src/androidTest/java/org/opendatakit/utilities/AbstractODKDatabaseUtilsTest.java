@@ -52,11 +52,13 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.provider.ChoiceListColumns;
 import org.opendatakit.provider.ColumnDefinitionsColumns;
 import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.provider.InstanceColumns;
 import org.opendatakit.provider.KeyValueStoreColumns;
 import org.opendatakit.provider.TableDefinitionsColumns;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
+import org.opendatakit.services.database.utilities.ChangeJournalUtils;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 
 import java.io.File;
@@ -83,6 +85,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -107,6 +110,11 @@ public abstract class AbstractODKDatabaseUtilsTest {
   private static final String activeUser = "anonymous";
   private static final String currentLocale = "en_US";
 
+  // the trigger and derived schema version maintained by UploadsIndexUtils
+  private static final String uploadsIndexTriggerSuffix = "_uploads_ins";
+  private static final String derivedSchemaVersionsTableName = "_derived_schema_versions";
+  private static final String uploadsIndexDerivedSchemaName = "uploads_index";
+
   protected OdkConnectionInterface db;
 
   protected abstract String getAppName();
@@ -5464,6 +5472,561 @@ public abstract class AbstractODKDatabaseUtilsTest {
     ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
   }
 
+  /*
+   * Test the batched update of row eTags and sync states issued by the sync
+   */
+  @Test
+  public void testBuildPrivilegedUpdateRowETagsAndSyncState_ExpectPass()
+      throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testColType = ElementDataType.integer.name();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    List<String> rowIds = new ArrayList<String>();
+    List<String> rowETags = new ArrayList<String>();
+    for (int i = 0; i < 3; ++i) {
+      ContentValues cvValues = new ContentValues();
+      String rowId = LocalizationUtils.genUUID();
+      cvValues.put(testCol, i);
+      ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+          activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+      rowIds.add(rowId);
+      rowETags.add(LocalizationUtils.genUUID());
+    }
+    // a row that is not in the table
+    rowIds.add(LocalizationUtils.genUUID());
+    rowETags.add(LocalizationUtils.genUUID());
+
+    // the user saves a checkpoint on the second row mid-sync
+    ContentValues checkpointValues = new ContentValues();
+    checkpointValues.put(testCol, 10);
+    ODKDatabaseImplUtils.get().insertCheckpointRowWithId(db, tableId, orderedColumns,
+        checkpointValues, rowIds.get(1), activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+
+    // only the first and third rows have exactly one record
+    List<Object> bindArgs = new ArrayList<Object>();
+    String sql = ODKDatabaseImplUtils.get().buildSingleRecordRowIdsQuery(tableId, rowIds,
+        bindArgs);
+    Cursor cursor = db.rawQuery(sql, bindArgs.toArray());
+    List<String> singleRecordRowIds = new ArrayList<String>();
+    while (cursor.moveToNext()) {
+      singleRecordRowIds.add(cursor.getString(0));
+    }
+    cursor.close();
+    assertEquals(2, singleRecordRowIds.size());
+    assertTrue(singleRecordRowIds.contains(rowIds.get(0)));
+    assertTrue(singleRecordRowIds.contains(rowIds.get(2)));
+
+    // the update skips the other rows rather than failing
+    bindArgs.clear();
+    sql = ODKDatabaseImplUtils.get().buildPrivilegedUpdateRowETagsAndSyncState(tableId, rowIds,
+        rowETags, SyncState.synced_pending_files, bindArgs);
+    ODKDatabaseImplUtils.get().privilegedExecute(db, sql, bindArgs.toArray());
+
+    String sel = "SELECT * FROM " + tableId + " WHERE " + DataTableColumns.ID + " = ?";
+    for (int i = 0; i < 3; ++i) {
+      cursor = db.rawQuery(sel, new Object[] { rowIds.get(i) });
+      int indETag = cursor.getColumnIndex(DataTableColumns.ROW_ETAG);
+      int indSyncState = cursor.getColumnIndex(DataTableColumns.SYNC_STATE);
+      while (cursor.moveToNext()) {
+        if (i == 1) {
+          assertTrue(cursor.isNull(indETag));
+          assertEquals(SyncState.new_row.name(), cursor.getString(indSyncState));
+        } else {
+          assertEquals(rowETags.get(i), cursor.getString(indETag));
+          assertEquals(SyncState.synced_pending_files.name(), cursor.getString(indSyncState));
+        }
+      }
+      assertEquals((i == 1) ? 2 : 1, cursor.getCount());
+      cursor.close();
+    }
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
+  private List<Object> stagedServerRow(List<String> columns, String rowId, boolean deleted,
+      Integer testVal, String attachment) {
+    String timeStamp = TableConstants.nanoSecondsFromMillis(System.currentTimeMillis(),
+        TableConstants.TIMESTAMP_LOCALE);
+    List<Object> values = new ArrayList<Object>();
+    for (String column : columns) {
+      if (DataTableColumns.ID.equals(column)) {
+        values.add(rowId);
+      } else if (DataTableColumns.ROW_ETAG.equals(column)) {
+        values.add(LocalizationUtils.genUUID());
+      } else if (DataTableColumns.SYNC_STATE.equals(column)) {
+        values.add(deleted ? SyncState.deleted.name() : SyncState.changed.name());
+      } else if (DataTableColumns.DEFAULT_ACCESS.equals(column)) {
+        values.add(RowFilterScope.Access.FULL.name());
+      } else if (DataTableColumns.ROW_OWNER.equals(column) ||
+          DataTableColumns.SAVEPOINT_CREATOR.equals(column)) {
+        values.add(activeUser);
+      } else if (DataTableColumns.LOCALE.equals(column)) {
+        values.add(currentLocale);
+      } else if (DataTableColumns.SAVEPOINT_TIMESTAMP.equals(column)) {
+        values.add(timeStamp);
+      } else if (DataTableColumns.SAVEPOINT_TYPE.equals(column)) {
+        values.add(SavepointTypeManipulator.complete());
+      } else if ("testColumn".equals(column)) {
+        values.add(testVal);
+      } else if ("testAttachment".equals(column)) {
+        values.add(attachment);
+      } else {
+        values.add(null);
+      }
+    }
+    return values;
+  }
+
+  /*
+   * Test the set-based classification and application of a page of server rows
+   * issued by the sync pull
+   */
+  @Test
+  public void testApplyServerRows_ExpectPass() throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testAttachment = "testAttachment";
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(testCol, testCol, ElementDataType.integer.name(), "[]"));
+    columns.add(new Column(testAttachment, testAttachment, ElementDataType.rowpath.name(), "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    // synced rows: taking an update, taking an attachment change, and deleted on the server
+    String updatedRowId = LocalizationUtils.genUUID();
+    String attachmentRowId = LocalizationUtils.genUUID();
+    String deletedRowId = LocalizationUtils.genUUID();
+    // a row with local changes
+    String conflictRowId = LocalizationUtils.genUUID();
+    // rows that are not present locally
+    String insertedRowId = LocalizationUtils.genUUID();
+    String absentRowId = LocalizationUtils.genUUID();
+
+    String[] localRowIds = { updatedRowId, attachmentRowId, deletedRowId, conflictRowId };
+    for (int i = 0; i < localRowIds.length; ++i) {
+      ContentValues cvValues = new ContentValues();
+      cvValues.put(testCol, i);
+      ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues,
+          localRowIds[i], activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+      if (!localRowIds[i].equals(conflictRowId)) {
+        ODKDatabaseImplUtils.get().privilegedUpdateRowETagAndSyncState(db, tableId,
+            localRowIds[i], LocalizationUtils.genUUID(), SyncState.synced, activeUser);
+      }
+    }
+
+    ODKDatabaseImplUtils dbUtils = ODKDatabaseImplUtils.get();
+    List<String> stagingColumns = dbUtils.getServerRowStagingColumns(orderedColumns);
+    List<Object> bindArgs = new ArrayList<Object>();
+    bindArgs.addAll(stagedServerRow(stagingColumns, updatedRowId, false, 10, null));
+    bindArgs.addAll(stagedServerRow(stagingColumns, attachmentRowId, false, 11, "a.jpg"));
+    bindArgs.addAll(stagedServerRow(stagingColumns, deletedRowId, true, 12, null));
+    bindArgs.addAll(stagedServerRow(stagingColumns, conflictRowId, false, 13, null));
+    bindArgs.addAll(stagedServerRow(stagingColumns, insertedRowId, false, 14, "b.jpg"));
+    bindArgs.addAll(stagedServerRow(stagingColumns, absentRowId, true, 15, null));
+
+    dbUtils.privilegedExecute(db, dbUtils.buildDropServerRowStagingTable(tableId), null);
+    dbUtils.privilegedExecute(db, dbUtils.buildCreateServerRowStagingTable(tableId), null);
+    dbUtils.privilegedExecute(db, dbUtils.buildCreateServerRowStagingIndex(tableId), null);
+    dbUtils.privilegedExecute(db, dbUtils.buildInsertServerRowsIntoStaging(tableId,
+        stagingColumns, 6), bindArgs.toArray());
+
+    // there are no checkpoints
+    Cursor cursor = db.rawQuery(dbUtils.buildCountServerRowCheckpoints(tableId), null);
+    assertTrue(cursor.moveToFirst());
+    assertEquals(0, cursor.getInt(0));
+    cursor.close();
+
+    bindArgs.clear();
+    dbUtils.privilegedExecute(db, dbUtils.buildClassifyServerRows(tableId, bindArgs),
+        bindArgs.toArray());
+    bindArgs.clear();
+    dbUtils.privilegedExecute(db,
+        dbUtils.buildSetServerRowSyncStates(tableId, orderedColumns, bindArgs),
+        bindArgs.toArray());
+
+    Map<String, String> actions = new TreeMap<String, String>();
+    cursor = db.rawQuery(dbUtils.buildSelectServerRowActions(tableId), null);
+    while (cursor.moveToNext()) {
+      actions.put(cursor.getString(0), cursor.getString(1));
+    }
+    cursor.close();
+    assertEquals(6, actions.size());
+    assertEquals(ODKDatabaseImplUtils.ServerRowAction.UPDATE.name(), actions.get(updatedRowId));
+    assertEquals(ODKDatabaseImplUtils.ServerRowAction.UPDATE.name(),
+        actions.get(attachmentRowId));
+    assertEquals(ODKDatabaseImplUtils.ServerRowAction.DELETE.name(), actions.get(deletedRowId));
+    assertEquals(ODKDatabaseImplUtils.ServerRowAction.CONFLICT.name(),
+        actions.get(conflictRowId));
+    assertEquals(ODKDatabaseImplUtils.ServerRowAction.INSERT.name(), actions.get(insertedRowId));
+    assertEquals(ODKDatabaseImplUtils.ServerRowAction.NONE.name(), actions.get(absentRowId));
+
+    // applying the page twice has the same outcome as applying it once
+    for (int pass = 0; pass < 2; ++pass) {
+      bindArgs.clear();
+      dbUtils.privilegedExecute(db, dbUtils.buildApplyServerRowDeletes(tableId, bindArgs),
+          bindArgs.toArray());
+      bindArgs.clear();
+      dbUtils.privilegedExecute(db,
+          dbUtils.buildApplyServerRowUpdates(tableId, orderedColumns, bindArgs),
+          bindArgs.toArray());
+      bindArgs.clear();
+      dbUtils.privilegedExecute(db,
+          dbUtils.buildApplyServerRowInserts(tableId, orderedColumns, bindArgs),
+          bindArgs.toArray());
+    }
+    dbUtils.privilegedExecute(db, dbUtils.buildDropServerRowStagingTable(tableId), null);
+
+    String sel = "SELECT * FROM " + tableId + " WHERE " + DataTableColumns.ID + " = ?";
+    String[] expectedRowIds = { updatedRowId, attachmentRowId, conflictRowId, insertedRowId };
+    int[] expectedValues = { 10, 11, 3, 14 };
+    SyncState[] expectedStates = { SyncState.synced, SyncState.synced_pending_files,
+        SyncState.new_row, SyncState.synced_pending_files };
+    for (int i = 0; i < expectedRowIds.length; ++i) {
+      cursor = db.rawQuery(sel, new Object[] { expectedRowIds[i] });
+      assertEquals(1, cursor.getCount());
+      assertTrue(cursor.moveToFirst());
+      assertEquals(expectedValues[i], cursor.getInt(cursor.getColumnIndex(testCol)));
+      assertEquals(expectedStates[i].name(),
+          cursor.getString(cursor.getColumnIndex(DataTableColumns.SYNC_STATE)));
+      assertTrue(cursor.isNull(cursor.getColumnIndex(DataTableColumns.CONFLICT_TYPE)));
+      cursor.close();
+    }
+    for (String rowId : new String[] { deletedRowId, absentRowId }) {
+      cursor = db.rawQuery(sel, new Object[] { rowId });
+      assertEquals(0, cursor.getCount());
+      cursor.close();
+    }
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
+  private int countJournalRecords(String tableId, String rowId) {
+    String sql = "SELECT COUNT(*) FROM " + ChangeJournalUtils.CHANGE_JOURNAL_TABLE_NAME
+        + " WHERE " + ChangeJournalUtils.TABLE_ID + " = ? AND "
+        + ChangeJournalUtils.ROW_ID + " = ?";
+    Cursor cursor = db.rawQuery(sql, new Object[] { tableId, rowId });
+    assertTrue(cursor.moveToFirst());
+    int count = cursor.getInt(0);
+    cursor.close();
+    return count;
+  }
+
+  private Long[] getJournalPosition(String tableId) {
+    Cursor cursor = db.rawQuery(ChangeJournalUtils.getJournalPositionSql(),
+        new Object[] { tableId, ChangeJournalUtils.CONSUMER_SYNC_PUSH, tableId });
+    assertTrue(cursor.moveToFirst());
+    Long[] position = new Long[] { cursor.isNull(0) ? null : cursor.getLong(0),
+        cursor.getLong(1) };
+    cursor.close();
+    return position;
+  }
+
+  /*
+   * Test that local changes are journaled and sync-originated writes are not
+   */
+  @Test
+  public void testChangeJournalTriggers_ExpectPass() throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testColType = ElementDataType.integer.name();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    // a new row is journaled
+    ContentValues cvValues = new ContentValues();
+    String rowId = LocalizationUtils.genUUID();
+    cvValues.put(testCol, 5);
+    ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    assertEquals(1, countJournalRecords(tableId, rowId));
+
+    // adopting the server's rowETag is not
+    ODKDatabaseImplUtils.get().privilegedUpdateRowETagAndSyncState(db, tableId, rowId,
+        LocalizationUtils.genUUID(), SyncState.synced, activeUser);
+    assertEquals(1, countJournalRecords(tableId, rowId));
+
+    // a local edit of the synced row is
+    cvValues = new ContentValues();
+    cvValues.put(testCol, 6);
+    ODKDatabaseImplUtils.get().updateRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    assertEquals(2, countJournalRecords(tableId, rowId));
+
+    // removing the row after the server confirms its deletion is not
+    ODKDatabaseImplUtils.get().privilegedDeleteRowWithId(db, tableId, rowId, activeUser);
+    assertEquals(2, countJournalRecords(tableId, rowId));
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+
+    // and its journal is gone
+    assertEquals(0, countJournalRecords(tableId, rowId));
+  }
+
+  /*
+   * Test the push checkpoint and the compaction of the journal
+   */
+  @Test
+  public void testChangeJournalCheckpoint_ExpectPass() throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testColType = ElementDataType.integer.name();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    ContentValues cvValues = new ContentValues();
+    String rowId = LocalizationUtils.genUUID();
+    cvValues.put(testCol, 5);
+    ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+
+    // no checkpoint yet -- a full scan is needed
+    Long[] position = getJournalPosition(tableId);
+    assertNull(position[0]);
+    long latest = position[1];
+    assertTrue(latest > 0L);
+
+    // the push completes: record the checkpoint and compact the journal
+    db.execSQL(ChangeJournalUtils.getUpdateCheckpointSql(),
+        new Object[] { tableId, ChangeJournalUtils.CONSUMER_SYNC_PUSH, latest });
+    db.execSQL(ChangeJournalUtils.getCompactJournalSql(), new Object[] { tableId, tableId });
+    assertEquals(0, countJournalRecords(tableId, rowId));
+    ODKDatabaseImplUtils.get().privilegedUpdateRowETagAndSyncState(db, tableId, rowId,
+        LocalizationUtils.genUUID(), SyncState.synced, activeUser);
+
+    // nothing to push, even though the journal is now empty
+    position = getJournalPosition(tableId);
+    assertEquals(Long.valueOf(latest), position[0]);
+    assertEquals(latest, position[1].longValue());
+
+    // a local edit moves the journal past the checkpoint
+    cvValues = new ContentValues();
+    cvValues.put(testCol, 6);
+    ODKDatabaseImplUtils.get().updateRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    position = getJournalPosition(tableId);
+    assertEquals(Long.valueOf(latest), position[0]);
+    assertTrue(position[1] > latest);
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+
+    // and its checkpoint is gone
+    position = getJournalPosition(tableId);
+    assertNull(position[0]);
+  }
+
+  private int countJournalRecordsSince(String tableId, String rowId, long sequence) {
+    String sql = "SELECT COUNT(*) FROM " + ChangeJournalUtils.CHANGE_JOURNAL_TABLE_NAME
+        + " WHERE " + ChangeJournalUtils.TABLE_ID + " = ? AND "
+        + ChangeJournalUtils.ROW_ID + " = ? AND " + ChangeJournalUtils.SEQUENCE + " > ?";
+    Cursor cursor = db.rawQuery(sql, new Object[] { tableId, rowId, sequence });
+    assertTrue(cursor.moveToFirst());
+    int count = cursor.getInt(0);
+    cursor.close();
+    return count;
+  }
+
+  /*
+   * Test that a local edit held back by a checkpoint during a push is journaled
+   * again when that checkpoint is discarded, so the next push still sends it
+   */
+  @Test
+  public void testChangeJournalDiscardCheckpoint_ExpectPass() throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testColType = ElementDataType.integer.name();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    ContentValues cvValues = new ContentValues();
+    String rowId = LocalizationUtils.genUUID();
+    cvValues.put(testCol, 5);
+    ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    ODKDatabaseImplUtils.get().privilegedUpdateRowETagAndSyncState(db, tableId, rowId,
+        LocalizationUtils.genUUID(), SyncState.synced, activeUser);
+
+    // edit the row, then start another edit that leaves a checkpoint
+    cvValues = new ContentValues();
+    cvValues.put(testCol, 6);
+    ODKDatabaseImplUtils.get().updateRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    cvValues = new ContentValues();
+    cvValues.put(testCol, 7);
+    ODKDatabaseImplUtils.get().insertCheckpointRowWithId(db, tableId, orderedColumns, cvValues,
+        rowId, activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+
+    // the sync skips the row because of its checkpoint, but still completes
+    // and advances its checkpoint past everything journaled so far
+    long pushed = getJournalPosition(tableId)[1];
+    db.execSQL(ChangeJournalUtils.getUpdateCheckpointSql(),
+        new Object[] { tableId, ChangeJournalUtils.CONSUMER_SYNC_PUSH, pushed });
+    db.execSQL(ChangeJournalUtils.getCompactJournalSql(), new Object[] { tableId, tableId });
+    assertEquals(0, countJournalRecords(tableId, rowId));
+
+    // discarding the checkpoint leaves the changed row and journals it again
+    ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithId(db, tableId, rowId, activeUser,
+        RoleConsts.ADMIN_ROLES_LIST);
+    Cursor cursor = db.rawQuery("SELECT * FROM " + tableId + " WHERE " + DataTableColumns.ID
+        + " = ?", new Object[] { rowId });
+    assertEquals(1, cursor.getCount());
+    assertTrue(cursor.moveToFirst());
+    assertEquals(SyncState.changed.name(),
+        cursor.getString(cursor.getColumnIndex(DataTableColumns.SYNC_STATE)));
+    cursor.close();
+
+    // so the next sync does not take the fast path and pushes the row
+    Long[] position = getJournalPosition(tableId);
+    assertEquals(Long.valueOf(pushed), position[0]);
+    assertTrue(position[1] > pushed);
+    assertEquals(1, countJournalRecordsSince(tableId, rowId, pushed));
+
+    // the sync removing a row entirely is not journaled
+    ODKDatabaseImplUtils.get().privilegedDeleteRowWithId(db, tableId, rowId, activeUser);
+    assertEquals(1, countJournalRecordsSince(tableId, rowId, pushed));
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
+  /*
+   * Test the conflicts and checkpoints probe across more tables than one probe query handles
+   */
+  @Test
+  public void testGetTablesWithConflictsOrCheckpoints_ExpectPass()
+      throws ActionNotAuthorizedException {
+    String testCol = "testColumn";
+    String testColType = ElementDataType.integer.name();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+
+    // enough tables that the probe spans two queries
+    List<String> tableIds = new ArrayList<String>();
+    for (int i = 0; i <= 100; ++i) {
+      tableIds.add(String.format(Locale.US, "testHealthTable%03d", i));
+    }
+    List<OrderedColumns> orderedColumnsList = new ArrayList<OrderedColumns>();
+    for (String tableId : tableIds) {
+      OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+          .createOrOpenTableWithColumns(db, tableId, columns);
+      orderedColumnsList.add(orderedColumns);
+
+      ContentValues cvValues = new ContentValues();
+      cvValues.put(testCol, 5);
+      ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues,
+          LocalizationUtils.genUUID(), activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    }
+
+    // no conflicts or checkpoints anywhere
+    TreeMap<String, Integer> healthMap =
+        ODKDatabaseImplUtils.get().getTablesWithConflictsOrCheckpoints(db);
+    for (String tableId : tableIds) {
+      assertFalse(healthMap.containsKey(tableId));
+    }
+
+    // a conflict in the first table
+    String conflictTableId = tableIds.get(0);
+    OrderedColumns orderedColumns = orderedColumnsList.get(0);
+    String rowId = LocalizationUtils.genUUID();
+    ContentValues cvValues = new ContentValues();
+    cvValues.put(testCol, 5);
+    cvValues.put(DataTableColumns.ROW_ETAG, LocalizationUtils.genUUID());
+    cvValues.put(DataTableColumns.SYNC_STATE, SyncState.deleted.name());
+    ODKDatabaseImplUtils.get().insertRowWithId(db, conflictTableId, orderedColumns, cvValues,
+        rowId, activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+
+    ContentValues updates = new ContentValues();
+    updates.put(testCol, 11);
+    updates.put(DataTableColumns.CONFLICT_TYPE, ConflictType.SERVER_UPDATED_UPDATED_VALUES);
+    updates.put(DataTableColumns.SYNC_STATE, SyncState.in_conflict.name());
+    updates.put(DataTableColumns.ROW_ETAG, LocalizationUtils.genUUID());
+    updates.put(DataTableColumns.FORM_ID, "serverForm");
+    updates.put(DataTableColumns.LOCALE, currentLocale);
+    updates.put(DataTableColumns.SAVEPOINT_TIMESTAMP,
+        TableConstants.nanoSecondsFromMillis(System.currentTimeMillis(), Locale.ROOT));
+    updates.put(DataTableColumns.SAVEPOINT_TYPE, SavepointTypeManipulator.complete());
+    updates.put(DataTableColumns.SAVEPOINT_CREATOR, "mailto:server@gmail.com");
+    updates.put(DataTableColumns.DEFAULT_ACCESS, RowFilterScope.Access.FULL.name());
+    updates.put(DataTableColumns.ROW_OWNER, "mailto:server@gmail.com");
+    updates.putNull(DataTableColumns.GROUP_READ_ONLY);
+    updates.putNull(DataTableColumns.GROUP_MODIFY);
+    updates.putNull(DataTableColumns.GROUP_PRIVILEGED);
+    ODKDatabaseImplUtils.get().privilegedPlaceRowIntoConflictWithId(db, conflictTableId,
+        orderedColumns, updates, rowId, ConflictType.LOCAL_DELETED_OLD_VALUES, activeUser,
+        currentLocale);
+
+    // a checkpoint in the last table, which is probed by the second query
+    String checkpointTableId = tableIds.get(tableIds.size() - 1);
+    cvValues = new ContentValues();
+    cvValues.put(testCol, 7);
+    ODKDatabaseImplUtils.get().insertCheckpointRowWithId(db, checkpointTableId,
+        orderedColumnsList.get(tableIds.size() - 1), cvValues, LocalizationUtils.genUUID(),
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+
+    healthMap = ODKDatabaseImplUtils.get().getTablesWithConflictsOrCheckpoints(db);
+    for (String tableId : tableIds) {
+      if (tableId.equals(conflictTableId)) {
+        int health = healthMap.get(tableId);
+        assertTrue(CursorUtils.getTableHealthHasConflicts(health));
+        assertFalse(CursorUtils.getTableHealthHasCheckpoints(health));
+      } else if (tableId.equals(checkpointTableId)) {
+        int health = healthMap.get(tableId);
+        assertFalse(CursorUtils.getTableHealthHasConflicts(health));
+        assertTrue(CursorUtils.getTableHealthHasCheckpoints(health));
+      } else {
+        assertFalse(healthMap.containsKey(tableId));
+      }
+    }
+
+    // Drop the tables now that the test is done
+    for (String tableId : tableIds) {
+      ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+    }
+  }
+
+  @Test
+  public void testWarmPreparedStatements_ExpectPass() throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testColType = ElementDataType.integer.name();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    // all of the per-row sync statements are newly prepared
+    assertEquals(3, ODKDatabaseImplUtils.get().warmPreparedStatements(db, tableId));
+    // and are found in the cache the next time
+    assertEquals(0, ODKDatabaseImplUtils.get().warmPreparedStatements(db, tableId));
+
+    ContentValues cvValues = new ContentValues();
+    String rowId = LocalizationUtils.genUUID();
+    cvValues.put(testCol, 5);
+    ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+
+    // the warmed statements remain usable
+    assertTrue(ODKDatabaseImplUtils.get().privilegedUpdateRowETagAndSyncState(db, tableId, rowId,
+        LocalizationUtils.genUUID(), SyncState.synced, activeUser));
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+  }
+
   /**
    * Generates sequential unique IDs starting with 1, 2, 3, and so on.
    * <p>
@@ -5739,6 +6302,118 @@ public abstract class AbstractODKDatabaseUtilsTest {
     ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
   }
 
+  private int countUploadsRecords(String tableId, String rowId) {
+    String sql = "SELECT COUNT(*) FROM " + DatabaseConstants.UPLOADS_TABLE_NAME
+        + " WHERE " + InstanceColumns.DATA_TABLE_TABLE_ID + " = ? AND "
+        + InstanceColumns.DATA_INSTANCE_ID + " = ?";
+    Cursor cursor = db.rawQuery(sql, new Object[] { tableId, rowId });
+    assertTrue(cursor.moveToFirst());
+    int count = cursor.getInt(0);
+    cursor.close();
+    return count;
+  }
+
+  private boolean uploadsIndexTriggerExists(String tableId) {
+    Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'trigger' AND "
+        + "name = ?", new Object[] { tableId + uploadsIndexTriggerSuffix });
+    int count = cursor.getCount();
+    cursor.close();
+    return count == 1;
+  }
+
+  /**
+   * Close every connection to the database and open it again, as a new process
+   * would. The first connection runs initDatabase, which upgrades the derived
+   * schema within an exclusive transaction.
+   */
+  private void reopenDatabase() {
+    DbHandle dbHandleName = new DbHandle(db.getSessionQualifier());
+    db.releaseReference();
+    db = null;
+    OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeAllConnections();
+    // +1 referenceCount if db is returned (non-null)
+    db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(getAppName(), dbHandleName);
+  }
+
+  /*
+   * Test that the uploads index trigger records new rows, and that the backfill
+   * of the data tables runs once, when its derived schema version is not yet recorded
+   */
+  @Test
+  public void testUploadsIndexTriggerAndBackfill_ExpectPass() throws ActionNotAuthorizedException {
+    String tableId = testTable;
+    String testCol = "testColumn";
+    String testColType = ElementDataType.integer.name();
+    List<Column> columns = new ArrayList<Column>();
+    columns.add(new Column(testCol, testCol, testColType, "[]"));
+    OrderedColumns orderedColumns = ODKDatabaseImplUtils.get()
+        .createOrOpenTableWithColumns(db, tableId, columns);
+
+    // a new row is indexed by the trigger
+    ContentValues cvValues = new ContentValues();
+    String rowId1 = LocalizationUtils.genUUID();
+    cvValues.put(testCol, 5);
+    ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId1,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    assertTrue(uploadsIndexTriggerExists(tableId));
+    assertEquals(1, countUploadsRecords(tableId, rowId1));
+
+    // as if the rows were written before the trigger existed
+    db.execSQL("DROP TRIGGER IF EXISTS " + tableId + uploadsIndexTriggerSuffix, null);
+    db.execSQL("DELETE FROM " + DatabaseConstants.UPLOADS_TABLE_NAME + " WHERE "
+        + InstanceColumns.DATA_TABLE_TABLE_ID + " = ?", new Object[] { tableId });
+    cvValues = new ContentValues();
+    String rowId2 = LocalizationUtils.genUUID();
+    cvValues.put(testCol, 6);
+    ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId2,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    assertEquals(0, countUploadsRecords(tableId, rowId1));
+    assertEquals(0, countUploadsRecords(tableId, rowId2));
+
+    // the installed version is recorded, so reopening skips the backfill
+    reopenDatabase();
+    assertFalse(uploadsIndexTriggerExists(tableId));
+    assertEquals(0, countUploadsRecords(tableId, rowId1));
+    assertEquals(0, countUploadsRecords(tableId, rowId2));
+
+    // once the version is not recorded, reopening runs it
+    db.execSQL("DELETE FROM " + derivedSchemaVersionsTableName + " WHERE _name = ?",
+        new Object[] { uploadsIndexDerivedSchemaName });
+    reopenDatabase();
+    assertTrue(uploadsIndexTriggerExists(tableId));
+    assertEquals(1, countUploadsRecords(tableId, rowId1));
+    assertEquals(1, countUploadsRecords(tableId, rowId2));
+
+    // new rows are indexed again, and only once per instance
+    cvValues = new ContentValues();
+    String rowId3 = LocalizationUtils.genUUID();
+    cvValues.put(testCol, 7);
+    ODKDatabaseImplUtils.get().insertRowWithId(db, tableId, orderedColumns, cvValues, rowId3,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    cvValues = new ContentValues();
+    cvValues.put(testCol, 8);
+    ODKDatabaseImplUtils.get().insertCheckpointRowWithId(db, tableId, orderedColumns, cvValues,
+        rowId3, activeUser, RoleConsts.ADMIN_ROLES_LIST, currentLocale);
+    assertEquals(1, countUploadsRecords(tableId, rowId3));
+
+    // and the backfill does not run again
+    reopenDatabase();
+    assertEquals(1, countUploadsRecords(tableId, rowId1));
+    assertEquals(1, countUploadsRecords(tableId, rowId2));
+    assertEquals(1, countUploadsRecords(tableId, rowId3));
+
+    ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithId(db, tableId, rowId3, activeUser,
+        RoleConsts.ADMIN_ROLES_LIST);
+
+    // Drop the table now that the test is done
+    ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+
+    // and its uploads records are gone
+    assertEquals(0, countUploadsRecords(tableId, rowId1));
+    assertEquals(0, countUploadsRecords(tableId, rowId3));
+  }
+
   /*
  * Test multi-threaded test for inserting data into the database
  */
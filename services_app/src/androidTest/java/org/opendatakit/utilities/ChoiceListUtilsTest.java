@@ -32,7 +32,10 @@ import static org.junit.Assert.assertEquals;
 public class ChoiceListUtilsTest {
 
   private static final String key = "key that's unlikely to be in use";
+  private static final String otherKey = "other key that's unlikely to be in use";
 
+  private final DbHandle uniqueKey = new DbHandle(
+      getClass().getSimpleName() + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
   private OdkConnectionInterface db;
   private static boolean initialized = false;
 
@@ -49,23 +52,31 @@ public class ChoiceListUtilsTest {
       initialized = true;
       AndroidConnectFactory.configure();
     }
-    DbHandle uniqueKey = new DbHandle(
-        getClass().getSimpleName() + AndroidConnectFactory.INTERNAL_TYPE_SUFFIX);
     db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
         .getConnection(getAppName(), uniqueKey);
 
     Collection<String> bindArgs = new ArrayList<>();
     String query = "DELETE FROM " + "\"" + DatabaseConstants.CHOICE_LIST_TABLE_NAME + "\" WHERE "
-        + ChoiceListColumns.CHOICE_LIST_ID + "=?";
+        + ChoiceListColumns.CHOICE_LIST_ID + " IN (?,?)";
     bindArgs.add(key);
+    bindArgs.add(otherKey);
     boolean inTransaction = db.inTransaction();
-    if (!inTransaction) {
-      db.beginTransactionNonExclusive();
-    }
-    db.execSQL(query, bindArgs.toArray(new String[bindArgs.size()]));
-    if (!inTransaction) {
-      db.setTransactionSuccessful();
+    try {
+      if (!inTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+      db.execSQL(query, bindArgs.toArray(new String[bindArgs.size()]));
+      if (!inTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      // the caching tests need to run outside of a transaction
+      if (!inTransaction) {
+        db.endTransaction();
+      }
     }
+    // the rows were deleted behind the cache's back
+    ChoiceListUtils.invalidateChoiceListCache(getAppName());
   }
 
   private static String getAppName() {
@@ -83,6 +94,49 @@ public class ChoiceListUtilsTest {
     assertEquals(ChoiceListUtils.getChoiceList(db, key), null);
   }
 
+  @Test
+  public void testSetChoiceListReplacesCachedValue() throws Throwable {
+    ChoiceListUtils.setChoiceList(db, key, "my json");
+    // cache the first value, then replace it
+    assertEquals(ChoiceListUtils.getChoiceList(db, key), "my json");
+    ChoiceListUtils.setChoiceList(db, key, "my new json");
+    assertEquals(ChoiceListUtils.getChoiceList(db, key), "my new json");
+  }
+
+  @Test
+  public void testResetDropsCachedValues() throws Throwable {
+    ChoiceListUtils.setChoiceList(db, key, "my json");
+    assertEquals(ChoiceListUtils.getChoiceList(db, key), "my json");
+
+    // change the row behind the cache's back
+    String query = "UPDATE " + "\"" + DatabaseConstants.CHOICE_LIST_TABLE_NAME + "\" SET "
+        + ChoiceListColumns.CHOICE_LIST_JSON + "=? WHERE " + ChoiceListColumns.CHOICE_LIST_ID
+        + "=?";
+    db.execSQL(query, new String[] { "replaced json", key });
+    assertEquals(ChoiceListUtils.getChoiceList(db, key), "my json");
+
+    // as when the database is reset
+    db.releaseReference();
+    db = null;
+    OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeAllConnections();
+    db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .getConnection(getAppName(), uniqueKey);
+    assertEquals(ChoiceListUtils.getChoiceList(db, key), "replaced json");
+  }
+
+  @Test
+  public void testGetChoiceListInRolledBackTransaction() throws Throwable {
+    db.beginTransactionNonExclusive();
+    try {
+      ChoiceListUtils.setChoiceList(db, key, "my json");
+      assertEquals(ChoiceListUtils.getChoiceList(db, key), "my json");
+    } finally {
+      // roll back -- the value read within the transaction must not be cached
+      db.endTransaction();
+    }
+    assertEquals(ChoiceListUtils.getChoiceList(db, key), null);
+  }
+
   @After
   public void tearDown() throws Exception {
     if (db != null) {
@@ -27,7 +27,10 @@ import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -217,6 +220,110 @@ public class ODKDatabaseUtilsConflictInteractionsPermissionsTest extends Abstrac
     }
   }
 
+  private void base_Type_ResolveAllLocalRows_Table(boolean isLocked, boolean canAnonCreate,
+      RowFilterScope.Access access) throws ActionNotAuthorizedException {
+
+    String tableId;
+    if ( isLocked ) {
+      if ( canAnonCreate ) {
+        tableId = testTableLockedYesAnonCreate;
+      } else {
+        tableId = testTableLockedNoAnonCreate;
+      }
+    } else {
+      if ( canAnonCreate ) {
+        tableId = testTableUnlockedYesAnonCreate;
+      } else {
+        tableId = testTableUnlockedNoAnonCreate;
+      }
+    }
+
+    ArrayList<AuthParamAndOutcome> cases = buildOutcomesListResolveTakeLocal(tableId, isLocked);
+
+    // the bulk resolution acts on every conflict in the table, so each user
+    // resolves a freshly populated table.
+    LinkedHashMap<String,String> users = new LinkedHashMap<String,String>();
+    for ( AuthParamAndOutcome ap : cases ) {
+      users.put(ap.username, ap.roles);
+    }
+
+    for ( Map.Entry<String,String> user : users.entrySet() ) {
+      OrderedColumns oc = assertConflictPopulatedTestTable(tableId,
+          isLocked, canAnonCreate, access.name());
+
+      Map<String,String> skipped = ODKDatabaseImplUtils.get()
+          .resolveAllServerConflictsTakeLocalRows(db, tableId, user.getKey(), user.getValue(),
+              currentLocale);
+
+      for ( AuthParamAndOutcome ap : cases ) {
+        if ( !ap.username.equals(user.getKey()) ) {
+          continue;
+        }
+
+        assertEquals("Expecting skipped row to be reported: " + ap.toString(),
+            ap.throwsAccessException, skipped.containsKey(ap.rowId));
+
+        if ( ap.throwsAccessException ) {
+          assertTrue("Expected row to remain in conflict: " + ap.toString(),
+              verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 2,
+                  FirstSavepointTimestampType.IN_CONFLICT, ap.toString()));
+        } else if (ap.rowId.contains("" + ConflictType.LOCAL_DELETED_OLD_VALUES)) {
+          assertTrue("Expected row to be marked as deleted: " + ap.toString(),
+              verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 1,
+                  FirstSavepointTimestampType.DELETED, ap.toString()));
+        } else {
+          assertTrue("Expected row to be marked as changed: " + ap.toString(),
+              verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 1,
+                  FirstSavepointTimestampType.CHANGED, ap.toString()));
+        }
+      }
+
+      ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+    }
+  }
+
+  private void base_Type_ResolveAllServerRows_Table(boolean isLocked, boolean canAnonCreate,
+      RowFilterScope.Access access) throws ActionNotAuthorizedException {
+
+    String tableId;
+    if ( isLocked ) {
+      if ( canAnonCreate ) {
+        tableId = testTableLockedYesAnonCreate;
+      } else {
+        tableId = testTableLockedNoAnonCreate;
+      }
+    } else {
+      if ( canAnonCreate ) {
+        tableId = testTableUnlockedYesAnonCreate;
+      } else {
+        tableId = testTableUnlockedNoAnonCreate;
+      }
+    }
+
+    OrderedColumns oc = assertConflictPopulatedTestTable(tableId,
+        isLocked, canAnonCreate, access.name());
+
+    ArrayList<AuthParamAndOutcome> cases = buildOutcomesListResolveTakeServer(tableId);
+
+    // taking the server changes is always allowed
+    Map<String,String> skipped = ODKDatabaseImplUtils.get()
+        .resolveAllServerConflictsTakeServerRows(db, tableId, commonUser, currentLocale);
+    assertTrue("Expected no rows to be skipped: " + skipped.keySet(), skipped.isEmpty());
+
+    for ( AuthParamAndOutcome ap : cases ) {
+      if ( ap.rowId.contains("" + ConflictType.SERVER_DELETED_OLD_VALUES) ) {
+        assertTrue("Expected no rows to remain: " + ap.toString(),
+            verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 0, FirstSavepointTimestampType.NEW_ROW,
+                ap.toString()));
+      } else {
+        assertTrue("Expected row to be marked as synced_pending_files: " + ap.toString(),
+            verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 1,
+                FirstSavepointTimestampType.SYNCED_PENDING_FILES,
+                ap.toString()));
+      }
+    }
+  }
+
   @Test
   public void testResolveLocalRowUnlockedNoAnonCreate() throws ActionNotAuthorizedException {
 
@@ -293,4 +400,56 @@ public class ODKDatabaseUtilsConflictInteractionsPermissionsTest extends Abstrac
 
     base_Type_ResolveServerRow_Table(true, true, RowFilterScope.Access.FULL);
   }
+
+  ///////////////////
+
+  @Test
+  public void testResolveAllLocalRowsUnlockedNoAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllLocalRows_Table(false, false, RowFilterScope.Access.FULL);
+  }
+
+  @Test
+  public void testResolveAllLocalRowsUnlockedYesAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllLocalRows_Table(false, true, RowFilterScope.Access.FULL);
+  }
+
+  @Test
+  public void testResolveAllLocalRowsLockedNoAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllLocalRows_Table(true, false, RowFilterScope.Access.FULL);
+  }
+
+  @Test
+  public void testResolveAllLocalRowsLockedYesAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllLocalRows_Table(true, true, RowFilterScope.Access.FULL);
+  }
+
+  ///////////////////
+
+  @Test
+  public void testResolveAllServerRowsUnlockedNoAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllServerRows_Table(false, false, RowFilterScope.Access.FULL);
+  }
+
+  @Test
+  public void testResolveAllServerRowsUnlockedYesAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllServerRows_Table(false, true, RowFilterScope.Access.FULL);
+  }
+
+  @Test
+  public void testResolveAllServerRowsLockedNoAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllServerRows_Table(true, false, RowFilterScope.Access.FULL);
+  }
+
+  @Test
+  public void testResolveAllServerRowsLockedYesAnonCreate() throws ActionNotAuthorizedException {
+
+    base_Type_ResolveAllServerRows_Table(true, true, RowFilterScope.Access.FULL);
+  }
 }
@@ -25,7 +25,10 @@ import org.opendatakit.exception.ActionNotAuthorizedException;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -1202,4 +1205,104 @@ public class ODKDatabaseUtilsDeletePermissionsTest extends AbstractPermissionsTe
     }
   }
 
+  private void base_Type_DeleteAllCheckpointRows_Table(String tableId, boolean isLocked,
+      boolean canAnonCreate, ArrayList<AuthParamAndOutcome> cases)
+      throws ActionNotAuthorizedException {
+
+    // the bulk delete acts on every checkpoint in the table, so each user
+    // deletes from a freshly populated table.
+    LinkedHashMap<String,String> users = new LinkedHashMap<String,String>();
+    for ( AuthParamAndOutcome ap : cases ) {
+      users.put(ap.username, ap.roles);
+    }
+
+    for ( Map.Entry<String,String> user : users.entrySet() ) {
+      OrderedColumns oc = assertTwoCheckpointAsUpdatePopulatedTestTable(tableId,
+          isLocked, canAnonCreate, RowFilterScope.Access.FULL.name());
+
+      Map<String,String> skipped = ODKDatabaseImplUtils.get()
+          .deleteAllCheckpointRows(db, tableId, user.getKey(), user.getValue());
+
+      for ( AuthParamAndOutcome ap : cases ) {
+        if ( !ap.username.equals(user.getKey()) ) {
+          continue;
+        }
+
+        assertEquals("Expecting skipped row to be reported: " + ap.toString(),
+            ap.throwsAccessException, skipped.containsKey(ap.rowId));
+
+        // skipped rows retain their two checkpoints
+        int expectedRowCount = ap.throwsAccessException ? 3 : 1;
+        if ( ap.rowId.contains("New") ) {
+          assertTrue("Unexpected rows remaining: " + ap.toString(),
+              verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, expectedRowCount,
+                  FirstSavepointTimestampType.NEW_ROW, ap.toString()));
+        } else {
+          assertTrue("Unexpected rows remaining: " + ap.toString(),
+              verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, expectedRowCount,
+                  FirstSavepointTimestampType.SYNCED, ap.toString()));
+        }
+      }
+
+      ODKDatabaseImplUtils.get().deleteTableAndAllData(db, tableId);
+    }
+  }
+
+  @Test
+  public void testDeleteAllCheckpointRowsUnlockedNoAnonCreate()
+      throws  ActionNotAuthorizedException {
+
+    base_Type_DeleteAllCheckpointRows_Table(testTableUnlockedNoAnonCreate, false, false,
+        buildCheckpointOutcomesListDeleteUnlockedNoAnonCreate());
+  }
+
+  @Test
+  public void testDeleteAllCheckpointRowsUnlockedYesAnonCreate()
+      throws  ActionNotAuthorizedException {
+
+    base_Type_DeleteAllCheckpointRows_Table(testTableUnlockedYesAnonCreate, false, true,
+        buildCheckpointOutcomesListDeleteUnlockedYesAnonCreate());
+  }
+
+  @Test
+  public void testDeleteAllCheckpointRowsLockedNoAnonCreate()
+      throws  ActionNotAuthorizedException {
+
+    base_Type_DeleteAllCheckpointRows_Table(testTableLockedNoAnonCreate, true, false,
+        buildCheckpointOutcomesListDeleteLockedNoAnonCreate());
+  }
+
+  @Test
+  public void testDeleteAllCheckpointRowsLockedYesAnonCreate()
+      throws  ActionNotAuthorizedException {
+
+    base_Type_DeleteAllCheckpointRows_Table(testTableLockedYesAnonCreate, true, true,
+        buildCheckpointOutcomesListDeleteLockedYesAnonCreate());
+  }
+
+  @Test
+  public void testSaveAsCompleteMostRecentCheckpointRows()
+      throws  ActionNotAuthorizedException {
+
+    String tableId = testTableUnlockedNoAnonCreate;
+    OrderedColumns oc = assertTwoCheckpointAsUpdatePopulatedTestTable(tableId,
+        false, false, RowFilterScope.Access.FULL.name());
+
+    ODKDatabaseImplUtils.get().saveAsCompleteMostRecentCheckpointRows(db, tableId);
+
+    // every rowId is left with only its most recent checkpoint, now complete
+    ArrayList<AuthParamAndOutcome> cases = buildCheckpointOutcomesListDeleteUnlockedNoAnonCreate();
+    for ( AuthParamAndOutcome ap : cases ) {
+      if ( ap.rowId.contains("New") ) {
+        assertTrue("Expected one complete new row: " + ap.toString(),
+            verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 1,
+                FirstSavepointTimestampType.NEW_ROW, ap.toString()));
+      } else {
+        assertTrue("Expected one complete changed row: " + ap.toString(),
+            verifyRowSyncStateAndCheckpoints(ap.tableId, ap.rowId, 1,
+                FirstSavepointTimestampType.CHANGED, ap.toString()));
+      }
+    }
+  }
+
 }
@@ -86,6 +86,12 @@ import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -313,8 +319,19 @@ public abstract class NanoHTTPD {
                 outputStream = this.acceptSocket.getOutputStream();
                 TempFileManager tempFileManager = NanoHTTPD.this.tempFileManagerFactory.create();
                 HTTPSession session = new HTTPSession(tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
+                int readTimeout = this.acceptSocket.getSoTimeout();
                 while (!this.acceptSocket.isClosed()) {
                     session.execute();
+                    // between requests, an idle keep-alive connection
+                    // only holds its worker for the keep-alive timeout
+                    int keepAliveTimeout = NanoHTTPD.this.keepAliveTimeout;
+                    if (keepAliveTimeout > 0 && !this.acceptSocket.isClosed()) {
+                        this.acceptSocket.setSoTimeout(keepAliveTimeout);
+                        session.awaitNextRequest();
+                        // the request itself (e.g., an upload) is read
+                        // with the usual timeout
+                        this.acceptSocket.setSoTimeout(readTimeout);
+                    }
                 }
             } catch (Exception e) {
                 // When the socket is closed by the client,
@@ -502,6 +519,142 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Threading strategy backed by a bounded pool of worker threads.
+     * <p/>
+     * <p>
+     * Accepted connections are queued until a worker is free instead of
+     * each being given its own thread. Connections beyond maxConnections
+     * (running plus queued) are closed immediately. Idle workers exit after
+     * a short time, so an idle server holds no threads.
+     * </p>
+     */
+    public static class BoundedAsyncRunner implements AsyncRunner {
+
+        private static final long IDLE_WORKER_TIMEOUT_MS = 30000L;
+
+        private final int maxConnections;
+
+        private final ThreadPoolExecutor executor;
+
+        private final AtomicLong requestCount = new AtomicLong(0);
+
+        private final AtomicLong rejectedCount = new AtomicLong(0);
+
+        private final List<ClientHandler> running = Collections.synchronizedList(new ArrayList<NanoHTTPD.ClientHandler>());
+
+        public BoundedAsyncRunner(int maxThreads, int maxConnections) {
+            this.maxConnections = maxConnections;
+            this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_WORKER_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(maxConnections), new ThreadFactory() {
+
+                        private final AtomicLong threadCount = new AtomicLong(0);
+
+                        @Override
+                        public Thread newThread(@NonNull Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setDaemon(true);
+                            t.setName("NanoHttpd Request Processor (#" + this.threadCount.incrementAndGet() + ")");
+                            return t;
+                        }
+                    });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * @return a list with currently running or queued clients.
+         */
+        public List<ClientHandler> getRunning() {
+            return running;
+        }
+
+        /**
+         * @return the number of connections accepted.
+         */
+        public long getRequestCount() {
+            return this.requestCount.get();
+        }
+
+        /**
+         * @return the number of connections closed because the server was at
+         *         capacity.
+         */
+        public long getRejectedCount() {
+            return this.rejectedCount.get();
+        }
+
+        /**
+         * @return the number of connections waiting for a worker.
+         */
+        public int getQueueDepth() {
+            return this.executor.getQueue().size();
+        }
+
+        /**
+         * @return the number of workers currently serving a connection.
+         */
+        public int getActiveCount() {
+            return this.executor.getActiveCount();
+        }
+
+        /**
+         * @return the largest number of workers that have existed at once.
+         */
+        public int getLargestPoolSize() {
+            return this.executor.getLargestPoolSize();
+        }
+
+        @Override
+        public void closeAll() {
+            // copy of the list for concurrency
+            for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
+                clientHandler.close();
+            }
+        }
+
+        @Override
+        public void closed(ClientHandler clientHandler) {
+            this.running.remove(clientHandler);
+        }
+
+        @Override
+        public void exec(ClientHandler clientHandler) {
+            this.requestCount.incrementAndGet();
+            if (this.running.size() >= this.maxConnections) {
+                reject(clientHandler);
+                return;
+            }
+            this.running.add(clientHandler);
+            try {
+                this.executor.execute(clientHandler);
+            } catch (RejectedExecutionException e) {
+                this.running.remove(clientHandler);
+                reject(clientHandler);
+            }
+        }
+
+        private void reject(ClientHandler clientHandler) {
+            this.rejectedCount.incrementAndGet();
+            NanoHTTPD.LOG.log(Level.WARNING, "Too many connections -- closing new connection");
+            clientHandler.close();
+        }
+
+        /**
+         * Close all connections and stop the worker threads. The runner
+         * cannot be used afterwards.
+         */
+        public void shutdown() {
+            closeAll();
+            this.executor.shutdownNow();
+        }
+
+        @Override
+        public String toString() {
+            return "requests: " + getRequestCount() + " rejected: " + getRejectedCount() + " active: " + getActiveCount()
+                    + " queued: " + getQueueDepth() + " largest pool: " + getLargestPoolSize();
+        }
+    }
+
     /**
      * Default strategy for creating and cleaning up temporary files.
      * <p/>
@@ -771,6 +924,26 @@ public abstract class NanoHTTPD {
             this.headers = new HashMap<String, String>();
         }
 
+        /**
+         * Waits for the start of the next request on a keep-alive connection,
+         * without consuming any of it.
+         *
+         * @throws SocketTimeoutException
+         *             if it does not start within the socket timeout.
+         * @throws SocketException
+         *             if the client closed the connection.
+         */
+        void awaitNextRequest() throws IOException {
+            this.inputStream.mark(1);
+            if (this.inputStream.read() == -1) {
+                // socket was been closed
+                safeClose(this.inputStream);
+                safeClose(this.outputStream);
+                throw new SocketException("NanoHttpd Shutdown");
+            }
+            this.inputStream.reset();
+        }
+
         /**
          * Decodes the sent headers and loads the data into Key/value pairs
          */
@@ -2220,6 +2393,13 @@ public abstract class NanoHTTPD {
      */
     private TempFileManagerFactory tempFileManagerFactory;
 
+    /**
+     * Read timeout applied to a keep-alive connection while it waits for its
+     * next request to start (in milliseconds). 0 to keep using the start()
+     * timeout.
+     */
+    private volatile int keepAliveTimeout = 0;
+
     /**
      * Constructs an HTTP server on given port.
      */
@@ -2489,6 +2669,16 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
+    /**
+     * Read timeout for an idle keep-alive connection, between requests.
+     * 
+     * @param keepAliveTimeout
+     *            timeout in milliseconds; 0 to use the start() timeout.
+     */
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
     /**
      * Pluggable strategy for creating and cleaning up temporary files.
      * 
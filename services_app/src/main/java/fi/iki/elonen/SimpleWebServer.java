@@ -35,6 +35,7 @@ package fi.iki.elonen;
 
 import org.opendatakit.utilities.ODKFileUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -47,9 +48,16 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
 
 import fi.iki.elonen.NanoHTTPD.Response.IStatus;
 
@@ -92,6 +100,67 @@ public class SimpleWebServer extends NanoHTTPD {
     LICENCE = text;
   }
 
+  /**
+   * Static assets (by file extension) that are kept in the hot-asset cache.
+   */
+  private static final Set<String> CACHEABLE_EXTENSIONS = new HashSet<String>(Arrays.asList(
+      "html", "htm", "js", "css", "json", "svg", "woff", "woff2", "ttf", "otf", "eot"));
+
+  /**
+   * Largest single file held in the hot-asset cache.
+   */
+  private static final long MAX_CACHED_FILE_BYTES = 2L * 1024L * 1024L;
+
+  /**
+   * Bound on the raw plus gzipped bytes held in the hot-asset cache.
+   */
+  private static final long MAX_CACHE_BYTES = 12L * 1024L * 1024L;
+
+  /**
+   * How long the storage and debug-file checks in serve() are trusted.
+   */
+  private static final long ENVIRONMENT_RECHECK_INTERVAL_MS = 5000L;
+
+  /**
+   * The raw and (for compressible types) pre-gzipped bytes of a file, along
+   * with the lastModified and length they were read at.
+   */
+  private static final class CachedAsset {
+    final long lastModified;
+    final long length;
+    final String etag;
+    final byte[] raw;
+    final byte[] gzipped;
+
+    CachedAsset(long lastModified, long length, String etag, byte[] raw, byte[] gzipped) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.etag = etag;
+      this.raw = raw;
+      this.gzipped = gzipped;
+    }
+
+    long size() {
+      return raw.length + (gzipped == null ? 0 : gzipped.length);
+    }
+  }
+
+  /**
+   * LRU cache of hot static assets keyed by absolute path. An entry is only
+   * used while the file's lastModified and length still match it.
+   */
+  private final LinkedHashMap<String, CachedAsset> assetCache =
+      new LinkedHashMap<String, CachedAsset>(64, 0.75f, true);
+
+  private long assetCacheBytes = 0L;
+
+  /**
+   * appName -> time at which the presence of its debug file was last checked
+   */
+  private final Map<String, Long> debugFileLastChecked = new ConcurrentHashMap<String, Long>();
+
+  private volatile long storageLastVerified = 0L;
+
   private final boolean quiet;
 
   private boolean shouldCreateLogFile;
@@ -354,23 +423,34 @@ public class SimpleWebServer extends NanoHTTPD {
 
       // Given the app name check if the output file to begin
       // Check if there is a debug file that would enable logging
-      String debugOutputDir = ODKFileUtils.getTablesDebugObjectFolder(appName);
-      File httpDebugFile = new File(debugOutputDir + File.separator + DEBUG_HTTP_FILE_NAME);
-      if (httpDebugFile.exists()) {
-        this.setEnableLog(appName, true);
+      // (at most once every few seconds per appName)
+      long now = System.currentTimeMillis();
+      Long lastChecked = debugFileLastChecked.get(appName);
+      if (lastChecked == null || now - lastChecked > ENVIRONMENT_RECHECK_INTERVAL_MS) {
+        debugFileLastChecked.put(appName, now);
+        String debugOutputDir = ODKFileUtils.getTablesDebugObjectFolder(appName);
+        File httpDebugFile = new File(debugOutputDir + File.separator + DEBUG_HTTP_FILE_NAME);
+        if (httpDebugFile.exists()) {
+          this.setEnableLog(appName, true);
+        }
       }
     }
 
 
     // Make sure we won't die of an exception later
-    File root = new File(ODKFileUtils.getOdkFolder());
-    try {
-      ODKFileUtils.verifyExternalStorageAvailability();
-      if ( !root.exists() || !root.isDirectory()) {
-        return getInternalErrorResponse("given path is not a directory (" + root.getAbsolutePath() + ").");
+    // (the storage is re-verified at most once every few seconds)
+    long now = System.currentTimeMillis();
+    if (now - storageLastVerified > ENVIRONMENT_RECHECK_INTERVAL_MS) {
+      File root = new File(ODKFileUtils.getOdkFolder());
+      try {
+        ODKFileUtils.verifyExternalStorageAvailability();
+        if ( !root.exists() || !root.isDirectory()) {
+          return getInternalErrorResponse("given path is not a directory (" + root.getAbsolutePath() + ").");
+        }
+      } catch ( Exception e) {
+        return getInternalErrorResponse("exception " + e.toString() + " accessing directory (" + root.getAbsolutePath() + ").");
       }
-    } catch ( Exception e) {
-      return getInternalErrorResponse("exception " + e.toString() + " accessing directory (" + root.getAbsolutePath() + ").");
+      storageLastVerified = now;
     }
 
     Response res = respond(Collections.unmodifiableMap(header), session, uri);
@@ -387,6 +467,14 @@ public class SimpleWebServer extends NanoHTTPD {
   Response serveFile(String uri, Map<String, String> header, File file, String mime) {
     Response res;
     try {
+      if (header.get("range") == null && isCacheable(file)) {
+        // full-file fetch of a static asset -- answer from the hot-asset cache
+        CachedAsset asset = getCachedAsset(file);
+        if (asset != null) {
+          return serveCachedAsset(header, asset, mime);
+        }
+      }
+
       // Calculate etag
       String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
 
@@ -483,6 +571,147 @@ public class SimpleWebServer extends NanoHTTPD {
     return res;
   }
 
+  private static boolean isCacheable(File file) {
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    if (dot < 0) {
+      return false;
+    }
+    return CACHEABLE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+  }
+
+  private static boolean isCompressible(File file, String mime) {
+    if (mime == null) {
+      return false;
+    }
+    String m = mime.toLowerCase(Locale.US);
+    return m.contains("text/") || m.contains("/json") || m.contains("javascript")
+        || m.contains("svg") || file.getName().toLowerCase(Locale.US).endsWith(".ttf");
+  }
+
+  private static String computeEtag(File file, long lastModified, long length) {
+    return Integer.toHexString((file.getAbsolutePath() + lastModified + "" + length).hashCode());
+  }
+
+  /**
+   * Return the cached content of the file, loading it if it is not cached or
+   * if the cached copy is stale.
+   *
+   * @param file
+   * @return null if the file is too large to cache or could not be read
+   */
+  private CachedAsset getCachedAsset(File file) {
+    String key = file.getAbsolutePath();
+    long lastModified = file.lastModified();
+    long length = file.length();
+
+    synchronized (assetCache) {
+      CachedAsset asset = assetCache.get(key);
+      if (asset != null) {
+        if (asset.lastModified == lastModified && asset.length == length) {
+          return asset;
+        }
+        assetCache.remove(key);
+        assetCacheBytes -= asset.size();
+      }
+    }
+
+    if (length > MAX_CACHED_FILE_BYTES) {
+      return null;
+    }
+
+    CachedAsset asset;
+    try {
+      byte[] raw = readFully(file, length);
+      if (raw == null || file.lastModified() != lastModified) {
+        // changed while we were reading it
+        return null;
+      }
+      byte[] gzipped = null;
+      if (isCompressible(file, getMimeTypeForFile(file.getName()))) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 2 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(raw);
+        gzip.close();
+        gzipped = bytes.toByteArray();
+      }
+      asset = new CachedAsset(lastModified, length, computeEtag(file, lastModified, length), raw,
+          gzipped);
+    } catch (IOException e) {
+      return null;
+    }
+
+    synchronized (assetCache) {
+      CachedAsset prior = assetCache.put(key, asset);
+      if (prior != null) {
+        assetCacheBytes -= prior.size();
+      }
+      assetCacheBytes += asset.size();
+      // evict least-recently-used entries
+      Iterator<Map.Entry<String, CachedAsset>> it = assetCache.entrySet().iterator();
+      while (assetCacheBytes > MAX_CACHE_BYTES && it.hasNext()) {
+        Map.Entry<String, CachedAsset> eldest = it.next();
+        if (eldest.getValue() == asset) {
+          continue;
+        }
+        assetCacheBytes -= eldest.getValue().size();
+        it.remove();
+      }
+    }
+    return asset;
+  }
+
+  /**
+   * @return the content of the file, or null if it was not length bytes long
+   */
+  private static byte[] readFully(File file, long length) throws IOException {
+    byte[] content = new byte[(int) length];
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < content.length) {
+        int read = fis.read(content, offset, content.length - offset);
+        if (read < 0) {
+          return null;
+        }
+        offset += read;
+      }
+      if (fis.read() != -1) {
+        return null;
+      }
+    } finally {
+      fis.close();
+    }
+    return content;
+  }
+
+  private Response serveCachedAsset(Map<String, String> header, CachedAsset asset, String mime) {
+    Response res;
+    String ifNoneMatch = header.get("if-none-match");
+    if (ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(asset.etag))) {
+      res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+      res.addHeader("ETag", asset.etag);
+      return res;
+    }
+
+    String acceptEncoding = header.get("accept-encoding");
+    boolean useGzip = asset.gzipped != null && acceptEncoding != null && acceptEncoding.contains("gzip");
+    byte[] content = useGzip ? asset.gzipped : asset.raw;
+
+    // the explicit Content-Length keeps NanoHTTPD from gzipping this again
+    res = newFixedLengthResponse(Response.Status.OK, mime, new ByteArrayInputStream(content), content.length);
+    res.addHeader("Accept-Ranges", "bytes");
+    res.addHeader("Content-Length", "" + content.length);
+    res.addHeader("ETag", asset.etag);
+    if (asset.gzipped != null) {
+      res.addHeader("Vary", "Accept-Encoding");
+    }
+    if (useGzip) {
+      res.addHeader("Content-Encoding", "gzip");
+    }
+    return res;
+  }
+
   private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
     Response res;
     res = newFixedLengthResponse(Response.Status.OK, mime, new FileInputStream(file), (int) file.length());
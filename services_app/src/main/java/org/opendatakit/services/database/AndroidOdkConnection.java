@@ -23,6 +23,7 @@ import org.sqlite.database.sqlite.SQLiteDatabaseConfiguration;
 import org.sqlite.database.sqlite.SQLiteException;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.Map;
 
 public final class AndroidOdkConnection implements OdkConnectionInterface {
@@ -59,6 +60,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
         SQLiteConnectionBase.ENABLE_WRITE_AHEAD_LOGGING |
             SQLiteConnectionBase.OPEN_READWRITE | SQLiteConnectionBase.CREATE_IF_NECESSARY |
             SQLiteConnectionBase.NO_LOCALIZED_COLLATORS, sessionQualifier);
+    configuration.setMaxSqlCacheSize(appNameSharedStateContainer.getPreparedStatementCacheSize());
 
     boolean success = false;
     SQLiteConnectionBase db = null;
@@ -526,7 +528,7 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
   public int update(String table, Map<String, Object> values, String whereClause,
       Object[] whereArgs) {
     StringBuilder b = new StringBuilder();
-    b.append("delete(\"").append(table).append("\",...,");
+    b.append("update(\"").append(table).append("\",...,");
     if (whereClause == null) {
       b.append("null,");
     } else {
@@ -882,4 +884,35 @@ public final class AndroidOdkConnection implements OdkConnectionInterface {
     }
   }
 
+  /**
+   * Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+   * @return
+   */
+  private int internalWarmPreparedStatements(Collection<String> sqlStatements) {
+    synchronized (mutex) {
+      return db.warmPreparedStatements(sqlStatements);
+    }
+  }
+
+  public int warmPreparedStatements(Collection<String> sqlStatements) throws SQLException {
+    StringBuilder b = new StringBuilder();
+    b.append("warmPreparedStatements(").append(sqlStatements.size()).append(")");
+    final int cookie = operationLog.beginOperation(sessionQualifier, b.toString(), null, null);
+
+    try {
+      // invoke method
+      // Work-around for jacoco ART issue https://code.google.com/p/android/issues/detail?id=80961
+      return internalWarmPreparedStatements(sqlStatements);
+    } catch (Throwable t) {
+      operationLog.failOperation(cookie, t);
+      if (t instanceof SQLiteException) {
+        throw t;
+      } else {
+        throw new SQLiteException("unexpected", t);
+      }
+    } finally {
+      operationLog.endOperation(cookie);
+    }
+  }
+
 }
@@ -15,7 +15,12 @@
 package org.opendatakit.services.database;
 
 import org.opendatakit.database.service.DbHandle;
+import org.sqlite.database.sqlite.SQLiteDatabaseConfiguration;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -52,8 +57,58 @@ public final class AppNameSharedStateContainer {
    private final WeakHashMap<OdkConnectionInterface, Long>
        pendingDestruction = new WeakHashMap<OdkConnectionInterface, Long>();
 
+   /**
+    * Maximum number of idle internal-use connections retained for reuse.
+    */
+   private static final int MAX_IDLE_INTERNAL_SESSIONS = 3;
+
+   /**
+    * How long an idle internal-use connection is retained before it is closed.
+    */
+   static final long IDLE_INTERNAL_SESSION_TIMEOUT_MILLIS = 30000L;
+
+   private static final class IdleInternalSession {
+      final String sessionQualifier;
+      final long idleSinceMillis;
+
+      IdleInternalSession(String sessionQualifier, long idleSinceMillis) {
+         this.sessionQualifier = sessionQualifier;
+         this.idleSinceMillis = idleSinceMillis;
+      }
+   }
+
+   /**
+    * Access only within appNameMutex
+    *
+    * Holds the internal-use connections that remain open in the
+    * sessionQualifierConnectionMap but are not currently lent out,
+    * most-recently-idled first.
+    */
+   private final LinkedList<IdleInternalSession> idleInternalSessions =
+       new LinkedList<IdleInternalSession>();
+
+   /**
+    * Guards the creation and initialization of the database
+    * (and the opening of connections until that has happened).
+    */
+   private final Object databaseCreationMutex = new Object();
+
+   /**
+    * True once a connection has been opened under the db lock file,
+    * i.e., the database has been created and initialized.
+    */
+   private volatile boolean databaseInitialized = false;
+
    private final OperationLog operationLog;
 
+   private final WalCheckpointStatistics walCheckpointStatistics = new WalCheckpointStatistics();
+
+   /**
+    * Size of the prepared-statement cache given to connections opened from now on.
+    */
+   private volatile int preparedStatementCacheSize =
+       SQLiteDatabaseConfiguration.DEFAULT_SQL_CACHE_SIZE;
+
    private String beginTransactionSessionQualifier = null;
    private Long beginTransactionThreadId = null;
 
@@ -142,6 +197,8 @@ public final class AppNameSharedStateContainer {
          pendingDestruction.put(dbConnection, System.currentTimeMillis());
          // remove it from the sessionQualifierConnectionMap if it is there.
          reference = sessionQualifierConnectionMap.remove(dbConnection.getSessionQualifier());
+         // and it can no longer be lent out
+         removeIdleInternalSession(dbConnection.getSessionQualifier());
 
          if ( sessionQualifierConnectionMap.isEmpty() ) {
             operationLog.clearOperations();
@@ -151,6 +208,124 @@ public final class AppNameSharedStateContainer {
       return ( reference != null );
    }
 
+   Object getDatabaseCreationMutex() {
+      return databaseCreationMutex;
+   }
+
+   boolean isDatabaseInitialized() {
+      return databaseInitialized;
+   }
+
+   void setDatabaseInitialized(boolean databaseInitialized) {
+      this.databaseInitialized = databaseInitialized;
+   }
+
+   /**
+    * Access only within appNameMutex
+    */
+   private void removeIdleInternalSession(String sessionQualifier) {
+      Iterator<IdleInternalSession> iterator = idleInternalSessions.iterator();
+      while (iterator.hasNext()) {
+         if (iterator.next().sessionQualifier.equals(sessionQualifier)) {
+            iterator.remove();
+         }
+      }
+   }
+
+   /**
+    * Remove and return the most-recently-idled internal-use sessionQualifier,
+    * unless it has been idle for longer than IDLE_INTERNAL_SESSION_TIMEOUT_MILLIS.
+    *
+    * @param nowMillis
+    * @return null if there are no unexpired idle internal-use sessions.
+    */
+   String pollIdleInternalSession(long nowMillis) {
+      synchronized (appNameMutex) {
+         IdleInternalSession idle = idleInternalSessions.peekFirst();
+         if (idle == null ||
+             nowMillis - idle.idleSinceMillis >= IDLE_INTERNAL_SESSION_TIMEOUT_MILLIS) {
+            return null;
+         }
+         idleInternalSessions.removeFirst();
+         return idle.sessionQualifier;
+      }
+   }
+
+   /**
+    * Return an internal-use sessionQualifier to the idle list.
+    *
+    * @param sessionQualifier
+    * @param nowMillis
+    * @return true if it was retained. false if the idle list is full or the
+    * sessionQualifier no longer has a connection; the caller should then
+    * remove the connection.
+    */
+   boolean offerIdleInternalSession(String sessionQualifier, long nowMillis) {
+      synchronized (appNameMutex) {
+         if ( !sessionQualifierConnectionMap.containsKey(sessionQualifier) ) {
+            return false;
+         }
+         removeIdleInternalSession(sessionQualifier);
+         if ( idleInternalSessions.size() >= MAX_IDLE_INTERNAL_SESSIONS ) {
+            return false;
+         }
+         idleInternalSessions.addFirst(new IdleInternalSession(sessionQualifier, nowMillis));
+         return true;
+      }
+   }
+
+   /**
+    * @param nowMillis
+    * @return milliseconds until the least-recently-idled internal-use session
+    * expires, or -1 if there are no idle internal-use sessions.
+    */
+   long getMillisUntilIdleInternalSessionExpires(long nowMillis) {
+      synchronized (appNameMutex) {
+         IdleInternalSession idle = idleInternalSessions.peekLast();
+         if (idle == null) {
+            return -1L;
+         }
+         return Math.max(0L,
+             idle.idleSinceMillis + IDLE_INTERNAL_SESSION_TIMEOUT_MILLIS - nowMillis);
+      }
+   }
+
+   /**
+    * Forget the internal-use sessions that have been idle for at least
+    * IDLE_INTERNAL_SESSION_TIMEOUT_MILLIS. The caller must close their
+    * connections via the normal removeConnection() path.
+    *
+    * @param nowMillis
+    * @return the sessionQualifiers of the expired sessions.
+    */
+   List<String> removeExpiredIdleInternalSessions(long nowMillis) {
+      List<String> expired = new ArrayList<String>();
+      synchronized (appNameMutex) {
+         while (!idleInternalSessions.isEmpty() && nowMillis -
+             idleInternalSessions.peekLast().idleSinceMillis >= IDLE_INTERNAL_SESSION_TIMEOUT_MILLIS) {
+            expired.add(idleInternalSessions.removeLast().sessionQualifier);
+         }
+      }
+      return expired;
+   }
+
+   /**
+    * Forget all idle internal-use sessions. The caller must close their
+    * connections via the normal removeConnection() path.
+    *
+    * @return the sessionQualifiers of the forgotten sessions.
+    */
+   List<String> clearIdleInternalSessions() {
+      List<String> idle = new ArrayList<String>();
+      synchronized (appNameMutex) {
+         for (IdleInternalSession session : idleInternalSessions) {
+            idle.add(session.sessionQualifier);
+         }
+         idleInternalSessions.clear();
+      }
+      return idle;
+   }
+
    TreeSet<String> getAllSessionQualifiers() {
       TreeSet<String> sessionQualifiers = new TreeSet<String>();
       synchronized (appNameMutex) {
@@ -163,6 +338,7 @@ public final class AppNameSharedStateContainer {
       synchronized (appNameMutex) {
          b.append("\n---------------- ").append(appName).append(" ---------------------\n\n");
          operationLog.dump(b, true);
+         walCheckpointStatistics.dump(b);
 
          b.append("beginTransactionSessionQualifier ")
              .append(beginTransactionSessionQualifier)
@@ -178,6 +354,9 @@ public final class AppNameSharedStateContainer {
             b.append("\n-------\n");
          }
 
+         b.append("\n-----idleInternal: ").append(idleInternalSessions.size())
+             .append("\n");
+
          b.append("\n-----pendingDestruction------------\n\n");
 
          for (Map.Entry<OdkConnectionInterface, Long> dbconnectionPD : pendingDestruction.entrySet()) {
@@ -204,6 +383,22 @@ public final class AppNameSharedStateContainer {
       return operationLog;
    }
 
+   WalCheckpointStatistics getWalCheckpointStatistics() {
+      return walCheckpointStatistics;
+   }
+
+   int getPreparedStatementCacheSize() {
+      return preparedStatementCacheSize;
+   }
+
+   void setPreparedStatementCacheSize(int cacheSize) {
+      if (cacheSize < 1 || cacheSize > SQLiteDatabaseConfiguration.MAX_SQL_CACHE_SIZE) {
+         throw new IllegalArgumentException("expected value between 1 and "
+             + SQLiteDatabaseConfiguration.MAX_SQL_CACHE_SIZE);
+      }
+      preparedStatementCacheSize = cacheSize;
+   }
+
    void setBeginTransactionSession(String sessionQualifier) {
       synchronized (appNameMutex) {
          beginTransactionSessionQualifier = sessionQualifier;
@@ -15,6 +15,7 @@
 package org.opendatakit.services.database;
 
 import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.services.database.utilities.ChoiceListUtils;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.utilities.LocalizationUtils;
 import org.opendatakit.utilities.ODKFileUtils;
@@ -31,9 +32,15 @@ import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Factory interface that provides database connections and manages them.
@@ -71,6 +78,31 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
    */
   private final Map<String, AppNameSharedStateContainer> appNameSharedStateMap = new TreeMap<String, AppNameSharedStateContainer>();
 
+  /**
+   * Runs the WAL checkpoints of every appName in appNameSharedStateMap
+   * while it is in use.
+   */
+  private final WalCheckpointScheduler walCheckpointScheduler = new WalCheckpointScheduler(this);
+
+  /**
+   * Closes the idle internal-use connections of every appName once they expire.
+   */
+  private final ScheduledExecutorService idleSessionExecutor =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "IdleInternalSessions");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /**
+   * map of appName -TO- TRUE if the expiry of its idle internal-use connections is scheduled
+   */
+  private final ConcurrentHashMap<String, Boolean> idleSessionExpiries =
+      new ConcurrentHashMap<String, Boolean>();
+
   /**
    * Log the given Info message for the specified appName
    *
@@ -133,19 +165,145 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
   }
 
   /**
-   * Dump the state and history of the database layer.
-   * Useful for debugging and understanding
-   * cross-thread interactions.
+   * Get (or create) the shared state container for the given appName.
+   *
+   * @param appName
+   * @return
    */
-  public final void dumpInfo(boolean asError) {
-    ArrayList<AppNameSharedStateContainer> containers = new ArrayList<AppNameSharedStateContainer>();
+  AppNameSharedStateContainer getAppNameSharedStateContainer(String appName) {
     synchronized (mutex) {
-      for (String appName : appNameSharedStateMap.keySet()) {
-        containers.add(appNameSharedStateMap.get(appName));
+      AppNameSharedStateContainer appNameSharedStateContainer = appNameSharedStateMap.get(appName);
+      if (appNameSharedStateContainer == null) {
+        appNameSharedStateContainer = new AppNameSharedStateContainer(appName);
+        appNameSharedStateMap.put(appName, appNameSharedStateContainer);
       }
+      return appNameSharedStateContainer;
     }
+  }
 
-    for (AppNameSharedStateContainer container : containers) {
+  @Override
+  public final DbHandle acquireInternalUseDbHandle(String appName) {
+    if (appName == null) {
+      throw new IllegalArgumentException("appName cannot be null!");
+    }
+    AppNameSharedStateContainer appNameSharedStateContainer =
+        getAppNameSharedStateContainer(appName);
+    if (!new File(getDbFilePath(appName)).exists()) {
+      // the idle connections are to the old database
+      discardStateOfDeletedDatabase(appNameSharedStateContainer);
+    } else {
+      String sessionQualifier =
+          appNameSharedStateContainer.pollIdleInternalSession(System.currentTimeMillis());
+      if (sessionQualifier != null) {
+        return new DbHandle(sessionQualifier);
+      }
+    }
+    return generateInternalUseDbHandle();
+  }
+
+  @Override
+  public final void releaseInternalUseDbHandle(String appName, DbHandle dbHandleName) {
+    if (appName == null) {
+      throw new IllegalArgumentException("appName cannot be null!");
+    }
+    String sessionQualifier = dbHandleName.getDatabaseHandle();
+    if (!sessionQualifier.endsWith(INTERNAL_TYPE_SUFFIX)) {
+      throw new IllegalArgumentException("not an internal-use handle: " + sessionQualifier);
+    }
+    AppNameSharedStateContainer appNameSharedStateContainer =
+        getAppNameSharedStateContainer(appName);
+    walCheckpointScheduler.noteActivity(appNameSharedStateContainer);
+
+    boolean reusable = false;
+    // +1 reference count (or null)
+    OdkConnectionInterface dbConnection = appNameSharedStateContainer.getExisting(sessionQualifier);
+    if (dbConnection != null) {
+      try {
+        reusable = dbConnection.isOpen() && !dbConnection.inTransaction();
+      } catch (Exception e) {
+        logWarn(appName, "releaseInternalUseDbHandle -- " + sessionQualifier +
+            " -- unable to verify connection state");
+        printStackTrace(appName, e);
+      } finally {
+        // -1 for getExisting
+        dbConnection.releaseReference();
+      }
+    }
+
+    if (!reusable || !appNameSharedStateContainer.offerIdleInternalSession(sessionQualifier,
+        System.currentTimeMillis())) {
+      removeConnectionImpl(appName, sessionQualifier);
+    } else {
+      scheduleIdleSessionExpiry(appNameSharedStateContainer);
+    }
+  }
+
+  /**
+   * The database of this appName was deleted or reset. Close the idle internal-use
+   * connections to it and drop the choice lists cached from it.
+   *
+   * @param appNameSharedStateContainer
+   */
+  private void discardStateOfDeletedDatabase(
+      AppNameSharedStateContainer appNameSharedStateContainer) {
+    String appName = appNameSharedStateContainer.getAppName();
+    removeIdleInternalSessions(appName, appNameSharedStateContainer.clearIdleInternalSessions());
+    ChoiceListUtils.invalidateChoiceListCache(appName);
+  }
+
+  /**
+   * Close the connections of the given idle internal-use sessions.
+   *
+   * @param appName
+   * @param sessionQualifiers
+   */
+  private void removeIdleInternalSessions(String appName, List<String> sessionQualifiers) {
+    for (String sessionQualifier : sessionQualifiers) {
+      try {
+        removeConnectionImpl(appName, sessionQualifier);
+      } catch (Exception e) {
+        logError(appName, "removeIdleInternalSessions when releasing " + sessionQualifier);
+        printStackTrace(appName, e);
+      }
+    }
+  }
+
+  /**
+   * Close the idle internal-use connections of this appName as they expire.
+   * Requests made while an expiry is already scheduled are coalesced with it.
+   *
+   * @param appNameSharedStateContainer
+   */
+  private void scheduleIdleSessionExpiry(
+      final AppNameSharedStateContainer appNameSharedStateContainer) {
+    final String appName = appNameSharedStateContainer.getAppName();
+    long delayMillis = appNameSharedStateContainer
+        .getMillisUntilIdleInternalSessionExpires(System.currentTimeMillis());
+    if (delayMillis < 0L || idleSessionExpiries.putIfAbsent(appName, Boolean.TRUE) != null) {
+      return;
+    }
+    idleSessionExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        idleSessionExpiries.remove(appName);
+        try {
+          removeIdleInternalSessions(appName, appNameSharedStateContainer
+              .removeExpiredIdleInternalSessions(System.currentTimeMillis()));
+        } finally {
+          // the sessions idled after this one was scheduled
+          scheduleIdleSessionExpiry(appNameSharedStateContainer);
+        }
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Dump the state and history of the database layer.
+   * Useful for debugging and understanding
+   * cross-thread interactions.
+   */
+  public final void dumpInfo(boolean asError) {
+    for (AppNameSharedStateContainer container : getAllAppNameSharedStateContainers()) {
       StringBuilder b = new StringBuilder();
       container.dumpInfo(b);
       if ( asError ) {
@@ -156,6 +314,39 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     }
   }
 
+  @Override
+  public final void dumpInfo(StringBuilder b) {
+    for (AppNameSharedStateContainer container : getAllAppNameSharedStateContainers()) {
+      container.dumpInfo(b);
+    }
+  }
+
+  private ArrayList<AppNameSharedStateContainer> getAllAppNameSharedStateContainers() {
+    ArrayList<AppNameSharedStateContainer> containers = new ArrayList<AppNameSharedStateContainer>();
+    synchronized (mutex) {
+      for (String appName : appNameSharedStateMap.keySet()) {
+        containers.add(appNameSharedStateMap.get(appName));
+      }
+    }
+    return containers;
+  }
+
+  @Override
+  public final void requestWalCheckpoint(String appName) {
+    if (appName == null) {
+      throw new IllegalArgumentException("appName cannot be null!");
+    }
+    walCheckpointScheduler.requestTruncateCheckpoint(getAppNameSharedStateContainer(appName));
+  }
+
+  @Override
+  public final void setPreparedStatementCacheSize(String appName, int cacheSize) {
+    if (appName == null) {
+      throw new IllegalArgumentException("appName cannot be null!");
+    }
+    getAppNameSharedStateContainer(appName).setPreparedStatementCacheSize(cacheSize);
+  }
+
   private static String getDbFilePath(String appName) {
     File dbFile = new File(ODKFileUtils.getWebDbFolder(appName),
             ODKFileUtils.getNameOfSQLiteDatabase());
@@ -176,12 +367,17 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
    * execute it. Otherwise, simply +1 reference count the connection
    * and return it.
    *
+   * Once the appName's database is known to be initialized within this
+   * process, the connection is opened directly. Otherwise, the open is
+   * serialized (per appName) and performed under the db lock file so
+   * that only one thread or process creates and initializes the database.
+   *
    * @param appNameSharedStateContainer
    * @param sessionQualifier
    * @return
    * @throws SQLiteException
    */
-  private synchronized final OdkConnectionInterface getNewConnectionImpl(
+  private final OdkConnectionInterface getNewConnectionImpl(
           AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier)
           throws SQLiteException, IllegalAccessException {
 
@@ -190,6 +386,89 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
               "getNewConnectionImpl: null sessionQualifier");
     }
 
+    OdkConnectionInterface dbConnection = getNewConnectionFastPath(appNameSharedStateContainer,
+        sessionQualifier);
+    if (dbConnection != null) {
+      return dbConnection;
+    }
+
+    synchronized (appNameSharedStateContainer.getDatabaseCreationMutex()) {
+      // another thread may have initialized the database while we waited
+      dbConnection = getNewConnectionFastPath(appNameSharedStateContainer, sessionQualifier);
+      if (dbConnection != null) {
+        return dbConnection;
+      }
+      dbConnection = getNewConnectionUnderFileLock(appNameSharedStateContainer, sessionQualifier);
+      if (dbConnection != null) {
+        appNameSharedStateContainer.setDatabaseInitialized(true);
+      }
+      return dbConnection;
+    }
+  }
+
+  /**
+   * If the appName's database has already been initialized within this process
+   * (and still exists), open the connection and insert it into the connection-map.
+   *
+   * @param appNameSharedStateContainer
+   * @param sessionQualifier
+   * @return null if the slow path must be taken, otherwise the new connection.
+   * @throws SQLiteException
+   */
+  private OdkConnectionInterface getNewConnectionFastPath(
+          AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier)
+          throws SQLiteException, IllegalAccessException {
+
+    if (!appNameSharedStateContainer.isDatabaseInitialized()) {
+      return null;
+    }
+
+    String appName = appNameSharedStateContainer.getAppName();
+    if (!new File(getDbFilePath(appName)).exists()) {
+      // database was removed out from under us -- it must be re-created
+      appNameSharedStateContainer.setDatabaseInitialized(false);
+      discardStateOfDeletedDatabase(appNameSharedStateContainer);
+      return null;
+    }
+
+    OdkConnectionInterface dbConnection = attemptToOpenDb(appNameSharedStateContainer,
+        sessionQualifier);
+    insertNewConnection(appNameSharedStateContainer, sessionQualifier, dbConnection);
+    return dbConnection;
+  }
+
+  /**
+   * Insert a newly-opened connection into the connection-map.
+   *
+   * @param appNameSharedStateContainer
+   * @param sessionQualifier
+   * @param dbConnection
+   * @throws IllegalAccessException if a connection already exists for this sessionQualifier
+   */
+  private void insertNewConnection(AppNameSharedStateContainer appNameSharedStateContainer,
+      String sessionQualifier, OdkConnectionInterface dbConnection) throws IllegalAccessException {
+    OdkConnectionInterface dbConnectionExisting = null;
+    dbConnectionExisting = appNameSharedStateContainer.atomicSetOrGetExisting(sessionQualifier, dbConnection);
+
+    if (dbConnectionExisting != null) {
+      throw new IllegalAccessException("An exising db connection should not be found in getNewConnectionImpl");
+    }
+  }
+
+  /**
+   * Open a new connection while holding the db lock file, creating and
+   * initializing the database if it does not exist. Must be called within
+   * the appName's database creation mutex.
+   *
+   * @param appNameSharedStateContainer
+   * @param sessionQualifier
+   * @return null if the lock could not be obtained
+   * @throws SQLiteException
+   */
+  private OdkConnectionInterface getNewConnectionUnderFileLock(
+          AppNameSharedStateContainer appNameSharedStateContainer, String sessionQualifier)
+          throws SQLiteException, IllegalAccessException {
+
     OdkConnectionInterface dbConnection = null;
     String appName = appNameSharedStateContainer.getAppName();
 
@@ -227,24 +506,25 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
           // If it doesn't exist, then we need to
           // create it and initialize it!!
           if (!dbFile.exists()) {
+            // nothing cached from a previous database may be used
+            ChoiceListUtils.invalidateChoiceListCache(appName);
+
             // Attempt to open the database
             dbConnection = attemptToOpenDb(appNameSharedStateContainer, sessionQualifier);
 
             // Now run initialization
-            dbConnection = initDatabase(dbConnection, appName);
+            dbConnection = initDatabase(dbConnection, appName, true);
           } else {
-            // We add connection to map and are done with it
             dbConnection = attemptToOpenDb(appNameSharedStateContainer, sessionQualifier);
+
+            // This is the first connection to this existing database within
+            // this process. Bring its derived structures up to date.
+            dbConnection = initDatabase(dbConnection, appName, false);
           }
         }
 
       if (dbConnection != null) {
-        OdkConnectionInterface dbConnectionExisting = null;
-        dbConnectionExisting = appNameSharedStateContainer.atomicSetOrGetExisting(sessionQualifier, dbConnection);
-
-        if (dbConnectionExisting != null) {
-          throw new IllegalAccessException("An exising db connection should not be found in getNewConnectionImpl");
-        }
+        insertNewConnection(appNameSharedStateContainer, sessionQualifier, dbConnection);
       }
     } catch (FileNotFoundException fnfe) {
       fnfe.printStackTrace();
@@ -274,12 +554,13 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
     return dbConnection;
   }
 
-  private OdkConnectionInterface initDatabase(OdkConnectionInterface dbConnection, String appName) {
+  private OdkConnectionInterface initDatabase(OdkConnectionInterface dbConnection, String appName,
+                                              boolean isNewDatabase) {
     boolean initSuccessful = false;
     try {
       dbConnection.beginTransactionExclusive();
       try {
-        logInfo(appName, "initDatabase -- for " + appName);
+        logInfo(appName, "initDatabase -- for " + appName + " new: " + isNewDatabase);
         int version = dbConnection.getVersion();
         if (version != AndroidConnectFactory.getDbVersion()) {
           if (version == 0) {
@@ -290,7 +571,11 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
                 "Database version does not match expected custom / native database layer");
           }
         }
-        ODKDatabaseImplUtils.initializeDatabase(dbConnection);
+        if (isNewDatabase) {
+          ODKDatabaseImplUtils.initializeDatabase(dbConnection);
+        } else {
+          ODKDatabaseImplUtils.upgradeDatabase(dbConnection);
+        }
         dbConnection.setTransactionSuccessful();
       } finally {
         dbConnection.endTransaction();
@@ -397,13 +682,8 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
 
     AppNameSharedStateContainer appNameSharedStateContainer = null;
     {
-      synchronized (mutex) {
-        appNameSharedStateContainer = appNameSharedStateMap.get(appName);
-        if (appNameSharedStateContainer == null) {
-          appNameSharedStateContainer = new AppNameSharedStateContainer(appName);
-          appNameSharedStateMap.put(appName, appNameSharedStateContainer);
-        }
-      }
+      appNameSharedStateContainer = getAppNameSharedStateContainer(appName);
+      walCheckpointScheduler.noteActivity(appNameSharedStateContainer);
 
       dbConnection = appNameSharedStateContainer.getExisting(sessionQualifier);
 
@@ -477,6 +757,7 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
         // nothing to do...
         return;
       }
+      walCheckpointScheduler.noteActivity(appNameSharedStateContainer);
       // +1 reference count (or null)
       dbConnection = appNameSharedStateContainer.getExisting(sessionQualifier);
       if (dbConnection != null) {
@@ -555,6 +836,9 @@ public abstract class OdkConnectionFactoryAbstractClass implements OdkConnection
       // nothing to do...
       return false;
     }
+    appNameSharedStateContainer.clearIdleInternalSessions();
+    // the database may now be deleted or replaced
+    ChoiceListUtils.invalidateChoiceListCache(appName);
     TreeSet<String> sessionQualifiers = appNameSharedStateContainer.getAllSessionQualifiers();
     if ( sessionQualifiers.isEmpty() ) {
       // nothing to do...
@@ -29,6 +29,34 @@ public interface OdkConnectionFactoryInterface {
     */
    DbHandle generateInternalUseDbHandle();
 
+   /**
+    * Borrow an internal-use database handle for the given appName.
+    * If a previously-released handle is idle, it is returned and its
+    * connection is already open. Otherwise a new handle is generated
+    * (see {generateInternalUseDbHandle()}).
+    *
+    * Callers must give the handle back via
+    * {releaseInternalUseDbHandle(String, DbHandle)} exactly once,
+    * instead of calling {removeConnection(String, DbHandle)}.
+    *
+    * @param appName
+    * @return sessionQualifier appropriate for 'internal uses'
+    */
+   DbHandle acquireInternalUseDbHandle(String appName);
+
+   /**
+    * Give back a handle obtained from {acquireInternalUseDbHandle(String)}.
+    * The connection stays open for the next borrower unless it is closed,
+    * still within a transaction, or there are already enough idle
+    * connections, in which case the connection is removed. Idle connections
+    * are closed once they have not been borrowed for a while, or when the
+    * database file is found to have been deleted.
+    *
+    * @param appName
+    * @param dbHandleName
+    */
+   void releaseInternalUseDbHandle(String appName, DbHandle dbHandleName);
+
    /**
     * This handle is suitable for database service use.
     *
@@ -45,6 +73,33 @@ public interface OdkConnectionFactoryInterface {
     */
    void dumpInfo(boolean asError);
 
+   /**
+    * Append the state, history and cumulative operation statistics
+    * of the database layer of every appName.
+    *
+    * @param b
+    */
+   void dumpInfo(StringBuilder b);
+
+   /**
+    * Set the size of the prepared-statement cache of the connections
+    * subsequently opened for the given appName. Existing connections
+    * keep their current cache.
+    *
+    * @param appName
+    * @param cacheSize between 1 and {SQLiteDatabaseConfiguration.MAX_SQL_CACHE_SIZE}
+    */
+   void setPreparedStatementCacheSize(String appName, int cacheSize);
+
+   /**
+    * Schedule a TRUNCATE checkpoint of the write-ahead log for the given appName
+    * if it has grown past the journal size limit (e.g., after a sync).
+    * Otherwise, this does nothing.
+    *
+    * @param appName
+    */
+   void requestWalCheckpoint(String appName);
+
    /**
     * Get a connection to the database for the given dbHandleName.
     * If no connection exists, this will create a new connection for that dbHandleName
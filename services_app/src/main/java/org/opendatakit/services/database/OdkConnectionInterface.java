@@ -3,6 +3,7 @@ package org.opendatakit.services.database;
 import android.database.Cursor;
 import org.sqlite.database.SQLException;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -138,4 +139,14 @@ public interface OdkConnectionInterface {
 
     Cursor queryDistinct(String table, String[] columns, String selection,
         Object[] selectionArgs, String groupBy, String having, String orderBy, String limit) throws SQLException;
+
+   /**
+    * Prepare the given statements ahead of their first use and hold them in
+    * this connection's prepared-statement cache.
+    *
+    * @param sqlStatements
+    * @return the number of statements that were newly prepared
+    * @throws SQLException
+    */
+    int warmPreparedStatements(Collection<String> sqlStatements) throws SQLException;
 }
@@ -18,29 +18,82 @@ import org.opendatakit.logging.WebLogger;
 import org.sqlite.database.sqlite.SQLiteDebug;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Extracted from the SQLiteDatabase class.
  * Thread-safe.
+ * <p>
+ * Recording an operation does not take a lock. Operations are held in a ring
+ * of slots indexed by their cookie; an operation that is still running when its
+ * slot is reused is moved to a side map so that its completion is still tallied.
+ * In addition to the most recent operations, cumulative per-kind counts and latency
+ * histograms and a list of the slowest operations are kept for the life of the process.
  *
  * @author mitchellsundt@gmail.com
  */
 public final class OperationLog {
 
    private static final int MAX_RECENT_OPERATIONS = 60;
-   private static final int COOKIE_GENERATION_SHIFT = 8;
    private static final int COOKIE_INDEX_MASK = 0xff;
+   private static final int OPERATION_SLOTS = COOKIE_INDEX_MASK + 1;
+   private static final int MAX_SLOWEST_OPERATIONS = 20;
    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
 
+   /**
+    * A finished operation retained in the slowest-operations list.
+    */
+   private static final class SlowOperation {
+      final long elapsedMicros;
+      final String description;
+
+      SlowOperation(long elapsedMicros, String description) {
+         this.elapsedMicros = elapsedMicros;
+         this.description = description;
+      }
+   }
 
-   private final OperationLogEntry[] mOperations = new OperationLogEntry[MAX_RECENT_OPERATIONS];
+   private final AtomicReferenceArray<OperationLogEntry> mOperations =
+       new AtomicReferenceArray<OperationLogEntry>(OPERATION_SLOTS);
+
+   /**
+    * The cookie of the most recently begun operation. Its low bits index mOperations.
+    */
+   private final AtomicInteger mLastCookie = new AtomicInteger(-1);
+
+   /**
+    * Operations that were still running when their slot in mOperations was reused.
+    */
+   private final Map<Integer, OperationLogEntry> mDisplacedOperations =
+       new ConcurrentHashMap<Integer, OperationLogEntry>();
+
+   private final EnumMap<OperationStatistics.Kind, OperationStatistics> mStatistics =
+       new EnumMap<OperationStatistics.Kind, OperationStatistics>(OperationStatistics.Kind.class);
+
+   /**
+    * Access only within synchronized mSlowest. Ordered slowest first.
+    */
+   private final ArrayList<SlowOperation> mSlowest = new ArrayList<SlowOperation>();
+
+   /**
+    * Operations faster than this cannot enter mSlowest; avoids taking its lock.
+    */
+   private volatile long mSlowestThresholdMicros = 0L;
 
    private final String appName;
-   private int mIndex;
-   private int mGeneration;
+
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized mTicks
+   */
+  private final Object mTicks = new Object();
+
+  /**
+   * Access only within synchronized mTicks
    *
    * tracks the number of opens in the last 65 seconds
    */
@@ -49,7 +102,7 @@ public final class OperationLog {
   private int lastOpenIdx = 0;
 
   /**
-   * Access only within synchronized mOperations
+   * Access only within synchronized mTicks
    *
    * tracks the number of closes in the last 65 seconds
    */
@@ -59,66 +112,88 @@ public final class OperationLog {
 
    public OperationLog(String appName) {
       this.appName = appName;
+      for (OperationStatistics.Kind kind : OperationStatistics.Kind.values()) {
+         mStatistics.put(kind, new OperationStatistics(kind));
+      }
    }
 
    /**
-    * Invoked when AppNameSharedStateContainer becomes empty
+    * Invoked when the last connection of this appName is removed
+    * (e.g., once its idle connections expire or the database is reset).
+    * The cumulative statistics are retained.
     */
    public void clearOperations() {
-      synchronized (mOperations) {
-         for ( int i = 0 ; i < mOperations.length ; ++i ) {
-            mOperations[i] = null;
-         }
+      for ( int i = 0 ; i < OPERATION_SLOTS ; ++i ) {
+         mOperations.set(i, null);
       }
+      mDisplacedOperations.clear();
    }
 
    public int beginOperation(String sessionQualifier, String kind, String sql, Object[] bindArgs) {
-      synchronized (mOperations) {
-         final int index = (mIndex + 1) % MAX_RECENT_OPERATIONS;
-         OperationLogEntry operation = mOperations[index];
-         if (operation == null) {
-            operation = new OperationLogEntry();
-            mOperations[index] = operation;
-         } else {
-            operation.mFinished = false;
-            operation.mThrowable = null;
-            if (operation.mBindArgs != null) {
-               operation.mBindArgs.clear();
-            }
-         }
-         operation.mSessionQualifier = sessionQualifier;
-         operation.mStartTime = System.currentTimeMillis();
-         operation.mKind = kind;
-         operation.mThreadId = Thread.currentThread().getId();
-         operation.mSql = sql;
-         if (bindArgs != null) {
-            if (operation.mBindArgs == null) {
-               operation.mBindArgs = new ArrayList<Object>();
+      OperationLogEntry operation = new OperationLogEntry();
+      operation.mSessionQualifier = sessionQualifier;
+      operation.mStartTime = System.currentTimeMillis();
+      operation.mStartNanos = System.nanoTime();
+      operation.mKind = kind;
+      operation.mCategory = OperationStatistics.Kind.classify(kind);
+      operation.mThreadId = Thread.currentThread().getId();
+      operation.mSql = sql;
+      if (bindArgs != null) {
+         operation.mBindArgs = new ArrayList<Object>(bindArgs.length);
+         for (int i = 0; i < bindArgs.length; i++) {
+            final Object arg = bindArgs[i];
+            if (arg != null && arg instanceof byte[]) {
+               // Don't hold onto the real byte array longer than necessary.
+               operation.mBindArgs.add(EMPTY_BYTE_ARRAY);
             } else {
-               operation.mBindArgs.clear();
+               operation.mBindArgs.add(arg);
             }
-            for (int i = 0; i < bindArgs.length; i++) {
-               final Object arg = bindArgs[i];
-               if (arg != null && arg instanceof byte[]) {
-                  // Don't hold onto the real byte array longer than necessary.
-                  operation.mBindArgs.add(EMPTY_BYTE_ARRAY);
-               } else {
-                  operation.mBindArgs.add(arg);
-               }
+         }
+      }
+      final int cookie = mLastCookie.incrementAndGet();
+      operation.mCookie = cookie;
+
+      final int index = cookie & COOKIE_INDEX_MASK;
+      for (;;) {
+         OperationLogEntry displaced = mOperations.get(index);
+         if (displaced != null && displaced.mCookie - cookie > 0) {
+            // a later operation already took this slot; keep this one findable by its cookie.
+            mDisplacedOperations.put(cookie, operation);
+            break;
+         }
+         if (displaced != null && !displaced.mFinished) {
+            // still running; keep it findable by its cookie.
+            mDisplacedOperations.put(displaced.mCookie, displaced);
+            if (displaced.mFinished) {
+               // it finished while we were displacing it
+               mDisplacedOperations.remove(displaced.mCookie);
             }
          }
-         operation.mCookie = newOperationCookieLocked(index);
-         mIndex = index;
-         return operation.mCookie;
+         if (mOperations.compareAndSet(index, displaced, operation)) {
+            break;
+         }
+         // another thread replaced the slot; displaced is out of the ring either way.
       }
+      return cookie;
+   }
+
+   /**
+    * Record the time spent preparing a statement that was not found in the
+    * prepared-statement cache. Not recorded in the recent operations.
+    *
+    * @param startNanos System.nanoTime() before the statement was prepared
+    */
+   public void recordPrepare(long startNanos) {
+      mStatistics.get(OperationStatistics.Kind.PREPARE)
+          .record((System.nanoTime() - startNanos) / 1000L, false);
    }
 
    public void failOperation(int cookie, Throwable t) {
       String logString = null;
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       if (operation != null) {
          operation.mThrowable = t;
-         logString = logOperationLocked(operation, null);
+         logString = logOperation(operation, null);
       }
       if (logString != null) {
          WebLogger.getLogger(appName).i("operationLog",
@@ -129,10 +204,10 @@ public final class OperationLog {
 
    public void endOperation(int cookie) {
       String logString = null;
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       if (operation != null) {
-         if (endOperationDeferLogLocked(operation)) {
-            logString = logOperationLocked(operation, null);
+         if (endOperationDeferLog(operation)) {
+            logString = logOperation(operation, null);
          }
       }
       if ( logString != null ) {
@@ -143,10 +218,10 @@ public final class OperationLog {
    }
 
    public void endOperationDeferLogAdditional(int cookie, String logString) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       boolean shouldLog = false;
       if (operation != null) {
-         shouldLog = endOperationDeferLogLocked(operation);
+         shouldLog = endOperationDeferLog(operation);
       }
       if ( logString != null && shouldLog ) {
          WebLogger.getLogger(appName).i("operationLog",
@@ -159,7 +234,7 @@ public final class OperationLog {
    * Function to track the number of new connection opens within the last 65 seconds
    */
   public void tickOpen() {
-    synchronized (mOperations) {
+    synchronized (mTicks) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -176,7 +251,7 @@ public final class OperationLog {
    * Function to track the number of connection closes within the last 65 seconds
    */
   public void tickClose() {
-    synchronized (mOperations) {
+    synchronized (mTicks) {
       long now = System.currentTimeMillis();
       int idx = (int) ((now & 0xE000L) >> 13);
 
@@ -190,10 +265,10 @@ public final class OperationLog {
   }
 
    public void logOperation(int cookie, String detail) {
-      final OperationLogEntry operation = getOperationLocked(cookie);
+      final OperationLogEntry operation = getOperation(cookie);
       String logString = null;
       if (operation != null) {
-         logString = logOperationLocked(operation, detail);
+         logString = logOperation(operation, detail);
       }
       if (logString != null) {
          WebLogger.getLogger(appName).i("operationLog", logString);
@@ -201,20 +276,42 @@ public final class OperationLog {
       // silently ignore if not found -- we are processing requests too fast!
    }
 
+   /**
+    * @return the cookie of the most recently begun operation.
+    */
+   public int getLastCookie() {
+      return mLastCookie.get();
+   }
+
+   /**
+    * @return milliseconds since the most recently begun operation finished,
+    * 0 if it is still running, or Long.MAX_VALUE if there have been no operations.
+    */
+   public long getMillisSinceLastActivity() {
+      final OperationLogEntry operation =
+          mOperations.get(mLastCookie.get() & COOKIE_INDEX_MASK);
+      if (operation == null) {
+         return Long.MAX_VALUE;
+      }
+      if (!operation.mFinished) {
+         return 0L;
+      }
+      return System.currentTimeMillis() - operation.mEndTime;
+   }
+
    public String describeCurrentOperation() {
-      synchronized (mOperations) {
-         final OperationLogEntry operation = mOperations[mIndex];
-         if (operation != null && !operation.mFinished) {
-            StringBuilder msg = new StringBuilder();
-            operation.describe(msg, false);
-            return msg.toString();
-         }
-         return null;
+      final OperationLogEntry operation =
+          mOperations.get(mLastCookie.get() & COOKIE_INDEX_MASK);
+      if (operation != null && !operation.mFinished) {
+         StringBuilder msg = new StringBuilder();
+         operation.describe(msg, false);
+         return msg.toString();
       }
+      return null;
    }
 
    public void dump(StringBuilder b, boolean verbose) {
-      synchronized (mOperations) {
+      synchronized (mTicks) {
         //////////////////////////////////////////////////////
         // Display a time histogram of the number of opens and closes
         // in the last 65 seconds.
@@ -245,54 +342,108 @@ public final class OperationLog {
 
         b.append("Total opens: ").append(totalOpens).append(" closes: ").append(totalCloses)
             .append(" currently active: ").append(totalOpens-totalCloses).append("\n\n");
+      }
 
-        b.append("  Most recently executed operations:\n");
-         int index = mIndex;
-         OperationLogEntry operation = mOperations[index];
-         if (operation != null) {
-            int n = 0;
-            do {
-               b.append(" ").append(n).append(": ");
-               operation.describe(b, verbose);
-               b.append("\n");
-               if (index > 0) {
-                  index -= 1;
-               } else {
-                  index = MAX_RECENT_OPERATIONS - 1;
-               }
-               n += 1;
-               operation = mOperations[index];
-            } while (operation != null && n < MAX_RECENT_OPERATIONS);
-         } else {
+      dumpStatistics(b);
+
+      b.append("  Most recently executed operations:\n");
+      int cookie = mLastCookie.get();
+      int n = 0;
+      while (n < MAX_RECENT_OPERATIONS) {
+         OperationLogEntry operation = mOperations.get(cookie & COOKIE_INDEX_MASK);
+         if (operation == null) {
+            break;
+         }
+         b.append(" ").append(n).append(": ");
+         operation.describe(b, verbose);
+         b.append("\n");
+         cookie -= 1;
+         n += 1;
+      }
+      if (n == 0) {
+         b.append("    <none>\n");
+      }
+   }
+
+   /**
+    * Dump the cumulative per-kind counts and latency histograms
+    * and the slowest operations.
+    *
+    * @param b
+    */
+   public void dumpStatistics(StringBuilder b) {
+      b.append("  Cumulative operation statistics on this appName\n");
+      for (OperationStatistics statistics : mStatistics.values()) {
+         statistics.dump(b);
+      }
+      b.append("\n  Slowest operations:\n");
+      synchronized (mSlowest) {
+         if (mSlowest.isEmpty()) {
             b.append("    <none>\n");
          }
+         for (int i = 0; i < mSlowest.size(); ++i) {
+            SlowOperation slow = mSlowest.get(i);
+            b.append(" ").append(i).append(": ").append(slow.elapsedMicros).append("us ")
+                .append(slow.description).append("\n");
+         }
       }
+      b.append("\n");
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
+    * Mark the operation as finished and tally it.
     *
     * @param operation
-    * @return
+    * @return true if it ran long enough that it should be logged
     */
-   private boolean endOperationDeferLogLocked(OperationLogEntry operation) {
+   private boolean endOperationDeferLog(OperationLogEntry operation) {
       if (operation != null) {
          if ( !operation.mFinished ) {
+            long elapsedMicros = (System.nanoTime() - operation.mStartNanos) / 1000L;
             operation.mEndTime = System.currentTimeMillis();
             operation.mFinished = true;
+            mDisplacedOperations.remove(operation.mCookie);
+
+            if (operation.mCategory != null) {
+               mStatistics.get(operation.mCategory)
+                   .record(elapsedMicros, operation.mThrowable != null);
+               if (elapsedMicros > mSlowestThresholdMicros) {
+                  recordSlowOperation(operation, elapsedMicros);
+               }
+            }
          }
          return SQLiteDebug.shouldLogSlowQuery(operation.mEndTime - operation.mStartTime);
       }
       return false;
    }
 
+   private void recordSlowOperation(OperationLogEntry operation, long elapsedMicros) {
+      synchronized (mSlowest) {
+         if (mSlowest.size() == MAX_SLOWEST_OPERATIONS &&
+             elapsedMicros <= mSlowest.get(MAX_SLOWEST_OPERATIONS - 1).elapsedMicros) {
+            return;
+         }
+         StringBuilder msg = new StringBuilder();
+         operation.describe(msg, false);
+         int i = 0;
+         while (i < mSlowest.size() && mSlowest.get(i).elapsedMicros >= elapsedMicros) {
+            ++i;
+         }
+         mSlowest.add(i, new SlowOperation(elapsedMicros, msg.toString()));
+         if (mSlowest.size() > MAX_SLOWEST_OPERATIONS) {
+            mSlowest.remove(MAX_SLOWEST_OPERATIONS);
+         }
+         if (mSlowest.size() == MAX_SLOWEST_OPERATIONS) {
+            mSlowestThresholdMicros = mSlowest.get(MAX_SLOWEST_OPERATIONS - 1).elapsedMicros;
+         }
+      }
+   }
+
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
-    *
     * @param operation
     * @param detail
     */
-   private String logOperationLocked(OperationLogEntry operation, String detail) {
+   private String logOperation(OperationLogEntry operation, String detail) {
       StringBuilder msg = new StringBuilder();
       operation.describe(msg, false);
       if (detail != null) {
@@ -302,33 +453,26 @@ public final class OperationLog {
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
+    * Package-private for testing.
     *
-    * @param index
-    * @return
+    * @param kind
+    * @return the number of operations tallied under this kind
     */
-   private int newOperationCookieLocked(int index) {
-      final int generation = mGeneration++;
-      return generation << COOKIE_GENERATION_SHIFT | index;
+   long getCount(OperationStatistics.Kind kind) {
+      return mStatistics.get(kind).getCount();
    }
 
    /**
-    * This is ONLY called within a synchronized(mOperations){} block.
+    * Package-private for testing.
     *
     * @param cookie
-    * @return
+    * @return the operation, or null if it is no longer tracked.
     */
-   private OperationLogEntry getOperationLocked(int cookie) {
-     final int index = cookie & COOKIE_INDEX_MASK;
-     synchronized (mOperations) {
-       if (index >= mOperations.length) {
-         return null;
-       }
-       final OperationLogEntry operation = mOperations[index];
-       if (operation == null) {
-         return null;
-       }
-       return operation.mCookie == cookie ? operation : null;
-     }
+   OperationLogEntry getOperation(int cookie) {
+      final OperationLogEntry operation = mOperations.get(cookie & COOKIE_INDEX_MASK);
+      if (operation != null && operation.mCookie == cookie) {
+         return operation;
+      }
+      return mDisplacedOperations.get(cookie);
    }
 }
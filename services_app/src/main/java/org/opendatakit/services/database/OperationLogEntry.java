@@ -44,11 +44,13 @@ final class OperationLogEntry {
    public String mSessionQualifier;
    public long mStartTime;
    public long mEndTime;
+   public long mStartNanos;
    public String mKind;
+   public OperationStatistics.Kind mCategory;
    public String mSql;
    public ArrayList<Object> mBindArgs;
-   public boolean mFinished;
-   public Throwable mThrowable;
+   public volatile boolean mFinished;
+   public volatile Throwable mThrowable;
    public int mCookie;
 
    public void describe(StringBuilder msg, boolean verbose) {
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cumulative counts and a latency histogram for one kind of database operation.
+ * Lock-free; safe to update from any number of threads.
+ */
+final class OperationStatistics {
+
+   /**
+    * The kinds of operations that are tallied separately.
+    */
+   enum Kind {
+      QUERY, EXECUTE, TRANSACTION, PREPARE, OTHER;
+
+      /**
+       * Classify the kind string passed to OperationLog.beginOperation()
+       *
+       * Only the AndroidOdkConnection entry points, whose kinds are written as
+       * method calls (e.g., "rawQuery(...)"), are tallied. The SQLiteConnection
+       * operations nested within them (e.g., "executeForCursor") and the nested
+       * " -- " steps share the same OperationLog and return null so that each
+       * statement is counted once. PREPARE is tallied via recordPrepare().
+       *
+       * @param kind
+       * @return the kind to tally under, or null if the operation is not tallied
+       */
+      static Kind classify(String kind) {
+         if (kind == null) {
+            return OTHER;
+         } else if (kind.indexOf('(') == -1 || kind.contains(" -- ")) {
+            return null;
+         } else if (kind.startsWith("rawQuery(") || kind.startsWith("query(") ||
+             kind.startsWith("queryDistinct(")) {
+            return QUERY;
+         } else if (kind.startsWith("execSQL(") || kind.startsWith("delete(") ||
+             kind.startsWith("update(") || kind.startsWith("insertOrThrow(") ||
+             kind.startsWith("replaceOrThrow(")) {
+            return EXECUTE;
+         } else if (kind.contains("Transaction")) {
+            return TRANSACTION;
+         }
+         return OTHER;
+      }
+   }
+
+   /**
+    * Upper bounds (inclusive, in microseconds) of the histogram buckets.
+    * The last bucket holds everything slower than the final bound.
+    */
+   private static final long[] BUCKET_UPPER_BOUNDS_MICROS = { 100L, 250L, 500L, 1000L, 2500L,
+       5000L, 10000L, 25000L, 50000L, 100000L, 250000L, 500000L, 1000000L, 2500000L };
+
+   private final Kind kind;
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+   private final AtomicLong totalMicros = new AtomicLong();
+   private final AtomicLong maxMicros = new AtomicLong();
+   private final AtomicLongArray buckets =
+       new AtomicLongArray(BUCKET_UPPER_BOUNDS_MICROS.length + 1);
+
+   OperationStatistics(Kind kind) {
+      this.kind = kind;
+   }
+
+   void record(long elapsedMicros, boolean failed) {
+      count.incrementAndGet();
+      if (failed) {
+         failures.incrementAndGet();
+      }
+      totalMicros.addAndGet(elapsedMicros);
+      long max = maxMicros.get();
+      while (elapsedMicros > max && !maxMicros.compareAndSet(max, elapsedMicros)) {
+         max = maxMicros.get();
+      }
+      int i = 0;
+      while (i < BUCKET_UPPER_BOUNDS_MICROS.length && elapsedMicros > BUCKET_UPPER_BOUNDS_MICROS[i]) {
+         ++i;
+      }
+      buckets.incrementAndGet(i);
+   }
+
+   long getCount() {
+      return count.get();
+   }
+
+   void dump(StringBuilder b) {
+      long n = count.get();
+      b.append(String.format(Locale.US, "  %1$-11s count: %2$d failures: %3$d mean: %4$dus max: %5$dus\n",
+          kind.name(), n, failures.get(), (n == 0) ? 0L : totalMicros.get() / n, maxMicros.get()));
+      if (n == 0) {
+         return;
+      }
+      for (int i = 0; i < buckets.length(); ++i) {
+         long bucketCount = buckets.get(i);
+         if (bucketCount == 0) {
+            continue;
+         }
+         if (i < BUCKET_UPPER_BOUNDS_MICROS.length) {
+            b.append(String.format(Locale.US, "     <= %1$8dus %2$10d\n",
+                BUCKET_UPPER_BOUNDS_MICROS[i], bucketCount));
+         } else {
+            b.append(String.format(Locale.US, "      > %1$8dus %2$10d\n",
+                BUCKET_UPPER_BOUNDS_MICROS[i - 1], bucketCount));
+         }
+      }
+   }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import android.database.Cursor;
+import org.opendatakit.database.service.DbHandle;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.utilities.ODKFileUtils;
+import org.sqlite.database.sqlite.SQLiteGlobal;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs WAL checkpoints on a background thread so that foreground writers do not
+ * absorb them when they commit past the wal_autocheckpoint threshold.
+ * <p>
+ * While an appName is in use, it is checked every few seconds. If there has been
+ * database activity since its last checkpoint, a PASSIVE checkpoint is run when
+ * either the -wal file has grown past the journal size limit or the database has
+ * been idle for a while. PASSIVE never blocks writers, so the size-triggered
+ * checkpoints keep up with a long sync while it is still writing. The checks stop
+ * once nothing has happened since the last checkpoint, and resume when a connection
+ * is next obtained or released.
+ * <p>
+ * Each checkpoint runs on its own short-lived connection, which is closed afterward.
+ * <p>
+ * When a client closes its database handle and the -wal file is still over the
+ * journal size limit (e.g., after a sync), a TRUNCATE checkpoint is run to fold
+ * the WAL back into the database and reset its size.
+ * <p>
+ * wal_autocheckpoint remains in force as a backstop.
+ */
+final class WalCheckpointScheduler {
+
+   private static final String TAG = "WalCheckpointScheduler";
+
+   static final String MODE_PASSIVE = "PASSIVE";
+   static final String MODE_TRUNCATE = "TRUNCATE";
+
+   /**
+    * How often each appName is checked for a large -wal file or an idle database.
+    */
+   private static final long CHECK_INTERVAL_MILLIS = 2000L;
+
+   /**
+    * How long the database must have been idle before a PASSIVE checkpoint is run.
+    */
+   private static final long IDLE_THRESHOLD_MILLIS = 5000L;
+
+   /**
+    * Delay before running a requested TRUNCATE checkpoint.
+    * Lets the requester release its connections first.
+    */
+   private static final long TRUNCATE_DELAY_MILLIS = 2000L;
+
+   private final OdkConnectionFactoryInterface factory;
+
+   private final ScheduledExecutorService executor =
+       Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+             Thread t = new Thread(r, TAG);
+             t.setDaemon(true);
+             return t;
+          }
+       });
+
+   /**
+    * map of appName -TO- OperationLog cookie as of the end of the last checkpoint
+    */
+   private final Map<String, Integer> lastCheckpointCookies =
+       new ConcurrentHashMap<String, Integer>();
+
+   /**
+    * map of appName -TO- TRUE if its periodic checks are scheduled
+    */
+   private final ConcurrentHashMap<String, Boolean> scheduledChecks =
+       new ConcurrentHashMap<String, Boolean>();
+
+   /**
+    * map of appName -TO- TRUE if a TRUNCATE checkpoint is scheduled but has not yet begun
+    */
+   private final ConcurrentHashMap<String, Boolean> pendingTruncates =
+       new ConcurrentHashMap<String, Boolean>();
+
+   WalCheckpointScheduler(OdkConnectionFactoryInterface factory) {
+      this.factory = factory;
+   }
+
+   /**
+    * Begin the periodic checks for this appName if they are not already running.
+    * Called whenever a connection is obtained or released.
+    *
+    * @param container
+    */
+   void noteActivity(final AppNameSharedStateContainer container) {
+      if (scheduledChecks.putIfAbsent(container.getAppName(), Boolean.TRUE) == null) {
+         scheduleCheck(container);
+      }
+   }
+
+   private void scheduleCheck(final AppNameSharedStateContainer container) {
+      executor.schedule(new Runnable() {
+         @Override
+         public void run() {
+            String appName = container.getAppName();
+            try {
+               checkpointIfNeeded(container);
+            } catch (Throwable t) {
+               WebLogger.getLogger(appName).printStackTrace(t);
+            }
+            if (hasActivitySinceCheckpoint(container)) {
+               scheduleCheck(container);
+               return;
+            }
+            scheduledChecks.remove(appName);
+            // activity that began after the test above would otherwise go unnoticed
+            if (hasActivitySinceCheckpoint(container)) {
+               noteActivity(container);
+            }
+         }
+      }, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Run a TRUNCATE checkpoint for this appName once the database is briefly idle,
+    * if its -wal file has grown past the journal size limit.
+    * Requests made while one is already pending are coalesced with it.
+    *
+    * @param container
+    */
+   void requestTruncateCheckpoint(final AppNameSharedStateContainer container) {
+      final String appName = container.getAppName();
+      if (getWalFile(appName).length() <= SQLiteGlobal.getJournalSizeLimit()) {
+         // routine use; the PASSIVE checkpoints keep the WAL in check
+         return;
+      }
+      if (pendingTruncates.putIfAbsent(appName, Boolean.TRUE) != null) {
+         return;
+      }
+      executor.schedule(new Runnable() {
+         @Override
+         public void run() {
+            pendingTruncates.remove(appName);
+            if (container.getOperationLog().getMillisSinceLastActivity() < TRUNCATE_DELAY_MILLIS) {
+               // TRUNCATE holds off writers while it waits for readers; wait for a lull.
+               requestTruncateCheckpoint(container);
+               return;
+            }
+            try {
+               checkpoint(container, MODE_TRUNCATE);
+            } catch (Throwable t) {
+               WebLogger.getLogger(appName).printStackTrace(t);
+            }
+         }
+      }, TRUNCATE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private boolean hasActivitySinceCheckpoint(AppNameSharedStateContainer container) {
+      Integer lastCheckpointCookie = lastCheckpointCookies.get(container.getAppName());
+      return lastCheckpointCookie == null ||
+          lastCheckpointCookie != container.getOperationLog().getLastCookie();
+   }
+
+   /**
+    * Run a PASSIVE checkpoint if there has been activity since the last checkpoint
+    * and either the -wal file has outgrown the journal size limit or the database
+    * has been idle for a while.
+    *
+    * @param container
+    * @return true if a checkpoint was run.
+    */
+   boolean checkpointIfNeeded(AppNameSharedStateContainer container) {
+      if (!hasActivitySinceCheckpoint(container)) {
+         return false;
+      }
+      // the WAL is truncated to the journal size limit when it restarts,
+      // so it is only larger than that if the current log has outgrown it.
+      if (getWalFile(container.getAppName()).length() <= SQLiteGlobal.getJournalSizeLimit() &&
+          container.getOperationLog().getMillisSinceLastActivity() < IDLE_THRESHOLD_MILLIS) {
+         return false;
+      }
+      return checkpoint(container, MODE_PASSIVE);
+   }
+
+   static File getWalFile(String appName) {
+      return new File(ODKFileUtils.getWebDbFolder(appName),
+          ODKFileUtils.getNameOfSQLiteDatabase() + "-wal");
+   }
+
+   /**
+    * @return false if there was nothing to checkpoint.
+    */
+   private boolean checkpoint(AppNameSharedStateContainer container, String mode) {
+      String appName = container.getAppName();
+      File walFile = getWalFile(appName);
+      if (walFile.length() == 0L) {
+         // nothing to checkpoint (or no -wal file)
+         lastCheckpointCookies.put(appName, container.getOperationLog().getLastCookie());
+         return false;
+      }
+
+      boolean failed = true;
+      boolean busy = false;
+      long walBytesBefore = walFile.length();
+      long startNanos = System.nanoTime();
+      DbHandle dbHandleName = null;
+      OdkConnectionInterface db = null;
+      Cursor c = null;
+      try {
+         // not a pooled handle; the connection is closed once the checkpoint is done
+         dbHandleName = factory.generateInternalUseDbHandle();
+         // +1 referenceCount if db is returned (non-null)
+         db = factory.getConnection(appName, dbHandleName);
+         c = db.rawQuery("PRAGMA wal_checkpoint(" + mode + ")", null);
+         if (c.moveToFirst()) {
+            busy = (c.getInt(0) != 0);
+         }
+         failed = false;
+      } catch (Exception e) {
+         WebLogger.getLogger(appName).w(TAG, mode + " checkpoint failed");
+         WebLogger.getLogger(appName).printStackTrace(e);
+      } finally {
+         if (c != null && !c.isClosed()) {
+            c.close();
+         }
+         long elapsedMillis = (System.nanoTime() - startNanos) / 1000000L;
+         long walBytesAfter = walFile.length();
+         container.getWalCheckpointStatistics()
+             .record(mode, failed, busy, walBytesBefore, walBytesAfter, elapsedMillis);
+         if (!failed) {
+            WebLogger.getLogger(appName).i(TAG, mode + " checkpoint took " + elapsedMillis
+                + "ms" + (busy ? " (busy)" : "") + " wal bytes before: " + walBytesBefore
+                + " after: " + walBytesAfter);
+         }
+
+         if (db != null) {
+            // release the reference...
+            db.releaseReference();
+         }
+         if (dbHandleName != null) {
+            factory.removeConnection(appName, dbHandleName);
+         }
+         lastCheckpointCookies.put(appName, container.getOperationLog().getLastCookie());
+      }
+      return true;
+   }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.services.database;
+
+import java.util.Locale;
+
+/**
+ * The outcomes of the WAL checkpoints run by the {@link WalCheckpointScheduler}
+ * for one appName. Thread-safe.
+ */
+final class WalCheckpointStatistics {
+
+   private int count = 0;
+   private int failures = 0;
+   private int busy = 0;
+   private long totalMillis = 0L;
+   private long maxMillis = 0L;
+
+   private String lastMode = null;
+   private long lastTime = 0L;
+   private long lastMillis = 0L;
+   private long lastWalBytesBefore = 0L;
+   private long lastWalBytesAfter = 0L;
+   private boolean lastFailed = false;
+
+   /**
+    * @param mode              PASSIVE or TRUNCATE
+    * @param failed            true if the checkpoint threw an exception
+    * @param wasBusy           true if the checkpoint could not complete (readers or writers)
+    * @param walBytesBefore    size of the -wal file before the checkpoint
+    * @param walBytesAfter     size of the -wal file after the checkpoint
+    * @param elapsedMillis     duration of the checkpoint
+    */
+   synchronized void record(String mode, boolean failed, boolean wasBusy, long walBytesBefore,
+       long walBytesAfter, long elapsedMillis) {
+      ++count;
+      if (failed) {
+         ++failures;
+      }
+      if (wasBusy) {
+         ++busy;
+      }
+      totalMillis += elapsedMillis;
+      maxMillis = Math.max(maxMillis, elapsedMillis);
+
+      lastMode = mode;
+      lastTime = System.currentTimeMillis();
+      lastMillis = elapsedMillis;
+      lastWalBytesBefore = walBytesBefore;
+      lastWalBytesAfter = walBytesAfter;
+      lastFailed = failed;
+   }
+
+   synchronized void dump(StringBuilder b) {
+      b.append("  WAL checkpoints on this appName\n");
+      if (count == 0) {
+         b.append("    <none>\n\n");
+         return;
+      }
+      b.append(String.format(Locale.US,
+          "    count: %1$d failures: %2$d busy: %3$d mean: %4$dms max: %5$dms\n",
+          count, failures, busy, totalMillis / count, maxMillis));
+      b.append("    last: ").append(lastMode).append(lastFailed ? " FAILED" : "")
+          .append(" took ").append(lastMillis).append("ms wal bytes before: ")
+          .append(lastWalBytesBefore).append(" after: ").append(lastWalBytesAfter)
+          .append(" at: ");
+      OperationLogEntry.getFormattedStartTime(b, lastTime);
+      b.append("\n\n");
+   }
+}
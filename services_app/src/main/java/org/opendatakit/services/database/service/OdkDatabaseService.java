@@ -23,6 +23,8 @@ import org.opendatakit.logging.WebLogger;
 import org.opendatakit.services.database.AndroidConnectFactory;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -95,6 +97,19 @@ public final class OdkDatabaseService extends Service {
     parceledChunks = null;
   }
 
+  /**
+   * Report the state of the database layer, including the cumulative
+   * operation statistics of each appName, via
+   * adb shell dumpsys activity service org.opendatakit.services/.database.service.OdkDatabaseService
+   */
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    StringBuilder b = new StringBuilder();
+    OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().dumpInfo(b);
+    writer.print(b.toString());
+    writer.flush();
+  }
+
   /**
    * Cache the extra data for a return value that exceeds the 1MB limit of an AIDL call.
    *
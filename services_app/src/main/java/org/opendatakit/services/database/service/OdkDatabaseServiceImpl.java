@@ -16,6 +16,8 @@ package org.opendatakit.services.database.service;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.os.Binder;
+import android.os.Process;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.database.RoleConsts;
 import org.opendatakit.database.data.BaseTable;
@@ -41,6 +43,7 @@ import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.services.database.utilities.ProviderUtils;
 import org.opendatakit.services.database.utilities.SyncETagsUtils;
 import org.opendatakit.services.utilities.ODKServicesPropertyUtils;
+import org.sqlite.database.sqlite.SQLiteDatabaseConfiguration;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -161,12 +164,25 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
 
       OdkConnectionInterface db = null;
 
+      // the sync runs in another process of this application. Size the statement
+      // cache of its connection for the tables it will sync, and prepare their
+      // per-row statements before the first row is processed.
+      List<String> tableIdsToWarm = null;
+      if (Binder.getCallingUid() == Process.myUid()) {
+         tableIdsToWarm = sizePreparedStatementCache(appName);
+      }
+
       DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
           .generateDatabaseServiceDbHandle();
       try {
          // +1 referenceCount if db is returned (non-null)
          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
              .getConnection(appName, dbHandleName);
+         if (tableIdsToWarm != null) {
+            for (String tableId : tableIdsToWarm) {
+               ODKDatabaseImplUtils.get().warmPreparedStatements(db, tableId);
+            }
+         }
          return dbHandleName;
       } finally {
          if (db != null) {
@@ -178,6 +194,49 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
       }
    }
 
+   /**
+    * Size the prepared-statement cache of the connections subsequently opened for
+    * this appName so that it can hold the warmed statements of every table, up to
+    * SQLiteDatabaseConfiguration.MAX_SQL_CACHE_SIZE.
+    *
+    * @param appName
+    * @return the tableIds whose statements fit in the cache
+    */
+   private List<String> sizePreparedStatementCache(String appName) {
+
+      DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .acquireInternalUseDbHandle(appName);
+      OdkConnectionInterface db = null;
+
+      try {
+         // +1 referenceCount if db is returned (non-null)
+         db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .getConnection(appName, dbHandleName);
+         List<String> tableIds = ODKDatabaseImplUtils.get().getAllTableIds(db);
+
+         int maxTables = (SQLiteDatabaseConfiguration.MAX_SQL_CACHE_SIZE
+             - SQLiteDatabaseConfiguration.DEFAULT_SQL_CACHE_SIZE)
+             / ODKDatabaseImplUtils.WARMED_STATEMENTS_PER_TABLE;
+         if (tableIds.size() > maxTables) {
+            tableIds = tableIds.subList(0, maxTables);
+         }
+         OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .setPreparedStatementCacheSize(appName,
+                 SQLiteDatabaseConfiguration.DEFAULT_SQL_CACHE_SIZE
+                     + tableIds.size() * ODKDatabaseImplUtils.WARMED_STATEMENTS_PER_TABLE);
+         return tableIds;
+      } finally {
+         if (db != null) {
+            // release the reference...
+            // this does not necessarily close the db handle
+            // or terminate any pending transaction
+            db.releaseReference();
+         }
+         OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+             .releaseInternalUseDbHandle(appName, dbHandleName);
+      }
+   }
+
    @Override public void closeDatabase(String appName, DbHandle dbHandleName) {
 
       OdkConnectionInterface db = null;
@@ -219,6 +278,10 @@ public final class OdkDatabaseServiceImpl implements InternalUserDbInterface {
                //    OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().dumpInfo(true);
                // }
             }
+            // a client is done with its work; if it left a large write-ahead log
+            // (e.g., the sync), fold it back into the database.
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+                .requestWalCheckpoint(appName);
          }
       }
    }
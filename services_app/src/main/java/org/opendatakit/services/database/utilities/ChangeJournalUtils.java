@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database.utilities;
+
+import android.database.Cursor;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.database.DatabaseConstants;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.provider.TableDefinitionsColumns;
+import org.opendatakit.services.database.OdkConnectionInterface;
+
+import java.util.ArrayList;
+
+/**
+ * Append-only journal of local row changes to the synchronized data tables.
+ * <p/>
+ * Triggers on each data table append a (sequence number, tableId, rowId, operation,
+ * savepoint timestamp) record for every insert or update that leaves the row in a
+ * sync state that must be pushed to the server (new_row, changed or deleted), and
+ * for every delete (e.g., discarding a checkpoint) that leaves behind a record of
+ * the row in one of those states. The writes made by sync itself (adopting server rowETags, applying server changes,
+ * placing rows in conflict, removing deleted rows) leave rows in other states and
+ * are not journaled. Consumers (e.g., the push phase of sync) remember the last
+ * sequence number they have fully processed in a checkpoint and only need to examine
+ * the rows journaled after it. Journal records that every consumer of a table has
+ * moved past can then be compacted away.
+ * <p/>
+ * A consumer without a checkpoint must fall back to a full scan of the table.
+ */
+public final class ChangeJournalUtils {
+
+  public static final String CHANGE_JOURNAL_TABLE_NAME = "_row_change_journal";
+  public static final String CHANGE_JOURNAL_CHECKPOINTS_TABLE_NAME = "_row_change_checkpoints";
+
+  // journal columns
+  public static final String SEQUENCE = "_seq";
+  public static final String TABLE_ID = "_table_id";
+  public static final String ROW_ID = "_row_id";
+  public static final String OPERATION = "_op";
+  public static final String SAVEPOINT_TIMESTAMP = "_savepoint_timestamp";
+
+  // checkpoint columns (plus TABLE_ID)
+  public static final String CONSUMER = "_consumer";
+  public static final String CHECKPOINT_SEQUENCE = "_checkpoint_seq";
+
+  // values of the OPERATION column
+  public static final String OP_INSERT = "insert";
+  public static final String OP_UPDATE = "update";
+  public static final String OP_DELETE = "delete";
+
+  // the consumer name used by the push phase of sync
+  public static final String CONSUMER_SYNC_PUSH = "sync_push";
+
+  private static final String TRIGGER_SUFFIX_INSERT = "_journal_ins";
+  private static final String TRIGGER_SUFFIX_UPDATE = "_journal_upd";
+  private static final String TRIGGER_SUFFIX_DELETE = "_journal_del";
+
+  /**
+   * Version of the journal tables and triggers. Increment this when they change
+   * so that existing databases reinstall the triggers on every data table.
+   */
+  private static final String DERIVED_SCHEMA_NAME = "change_journal";
+  private static final int JOURNAL_VERSION = 2;
+
+  /**
+   * Methods are all static...
+   */
+  private ChangeJournalUtils() {
+  }
+
+  /**
+   * Create the journal and checkpoint tables, if needed, and ensure every existing
+   * data table has its journaling triggers. Invoked when the database is initialized
+   * or upgraded. Does nothing if the current journal version is already installed.
+   *
+   * @param db
+   */
+  public static final void initializeJournal(OdkConnectionInterface db) {
+
+    if (ODKDatabaseImplUtils.getDerivedSchemaVersion(db, DERIVED_SCHEMA_NAME)
+        >= JOURNAL_VERSION) {
+      return;
+    }
+
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("CREATE TABLE IF NOT EXISTS ").append(CHANGE_JOURNAL_TABLE_NAME).append(" (")
+     .append(SEQUENCE).append(" INTEGER PRIMARY KEY AUTOINCREMENT, ")
+     .append(TABLE_ID).append(" TEXT NOT NULL, ")
+     .append(ROW_ID).append(" TEXT NOT NULL, ")
+     .append(OPERATION).append(" TEXT NOT NULL, ")
+     .append(SAVEPOINT_TIMESTAMP).append(" TEXT NULL)");
+    //@formatter:on
+    db.execSQL(b.toString(), null);
+
+    b.setLength(0);
+    b.append("CREATE INDEX IF NOT EXISTS ").append(CHANGE_JOURNAL_TABLE_NAME)
+     .append("_table_seq ON ").append(CHANGE_JOURNAL_TABLE_NAME).append(" (")
+     .append(TABLE_ID).append(", ").append(SEQUENCE).append(")");
+    db.execSQL(b.toString(), null);
+
+    b.setLength(0);
+    //@formatter:off
+    b.append("CREATE TABLE IF NOT EXISTS ").append(CHANGE_JOURNAL_CHECKPOINTS_TABLE_NAME)
+     .append(" (")
+     .append(TABLE_ID).append(" TEXT NOT NULL, ")
+     .append(CONSUMER).append(" TEXT NOT NULL, ")
+     .append(CHECKPOINT_SEQUENCE).append(" INTEGER NOT NULL, ")
+     .append("PRIMARY KEY (").append(TABLE_ID).append(", ").append(CONSUMER).append("))");
+    //@formatter:on
+    db.execSQL(b.toString(), null);
+
+    // journal every existing data table
+    ArrayList<String> tableIds = new ArrayList<String>();
+    b.setLength(0);
+    b.append("SELECT ").append(TableDefinitionsColumns.TABLE_ID).append(" FROM ")
+     .append(DatabaseConstants.TABLE_DEFS_TABLE_NAME).append(" WHERE ")
+     .append(TableDefinitionsColumns.TABLE_ID)
+     .append(" IN (SELECT name FROM sqlite_master WHERE type = 'table')");
+    Cursor c = null;
+    try {
+      c = db.rawQuery(b.toString(), null);
+      if (c.moveToFirst()) {
+        do {
+          tableIds.add(c.getString(0));
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    for (String tableId : tableIds) {
+      installJournalTriggers(db, tableId);
+    }
+
+    ODKDatabaseImplUtils.setDerivedSchemaVersion(db, DERIVED_SCHEMA_NAME, JOURNAL_VERSION);
+  }
+
+  /**
+   * (Re)create the triggers that journal the changes to this data table.
+   * Idempotent.
+   *
+   * @param db
+   * @param tableId
+   */
+  public static final void installJournalTriggers(OdkConnectionInterface db, String tableId) {
+    db.execSQL("DROP TRIGGER IF EXISTS " + tableId + TRIGGER_SUFFIX_INSERT, null);
+    db.execSQL("DROP TRIGGER IF EXISTS " + tableId + TRIGGER_SUFFIX_UPDATE, null);
+    db.execSQL("DROP TRIGGER IF EXISTS " + tableId + TRIGGER_SUFFIX_DELETE, null);
+    db.execSQL(buildTrigger(tableId, TRIGGER_SUFFIX_INSERT, "INSERT", OP_INSERT), null);
+    db.execSQL(buildTrigger(tableId, TRIGGER_SUFFIX_UPDATE, "UPDATE", OP_UPDATE), null);
+    db.execSQL(buildDeleteTrigger(tableId), null);
+  }
+
+  private static String buildTrigger(String tableId, String suffix, String event,
+      String operation) {
+    // tableIds are restricted to letters, digits and underscores,
+    // so they can safely be embedded as a string literal.
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("CREATE TRIGGER IF NOT EXISTS ").append(tableId).append(suffix)
+     .append(" AFTER ").append(event).append(" ON ").append(tableId)
+     .append(" WHEN NEW.").append(DataTableColumns.SYNC_STATE).append(" IN ('")
+     .append(SyncState.new_row.name()).append("', '")
+     .append(SyncState.changed.name()).append("', '")
+     .append(SyncState.deleted.name()).append("')")
+     .append(" BEGIN INSERT INTO ").append(CHANGE_JOURNAL_TABLE_NAME).append(" (")
+     .append(TABLE_ID).append(", ").append(ROW_ID).append(", ")
+     .append(OPERATION).append(", ").append(SAVEPOINT_TIMESTAMP).append(") VALUES ('")
+     .append(tableId).append("', NEW.").append(DataTableColumns.ID)
+     .append(", '").append(operation).append("', NEW.")
+     .append(DataTableColumns.SAVEPOINT_TIMESTAMP)
+     .append("); END");
+    //@formatter:on
+    return b.toString();
+  }
+
+  /**
+   * Deleting some of the records of a row (e.g., discarding its checkpoints) does not
+   * touch the record that remains, so journal the rowId if that record still needs
+   * to be pushed. The push skips rows that have checkpoints and would otherwise
+   * never see it again.
+   */
+  private static String buildDeleteTrigger(String tableId) {
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("CREATE TRIGGER IF NOT EXISTS ").append(tableId).append(TRIGGER_SUFFIX_DELETE)
+     .append(" AFTER DELETE ON ").append(tableId)
+     .append(" WHEN EXISTS (SELECT 1 FROM ").append(tableId).append(" WHERE ")
+     .append(DataTableColumns.ID).append(" = OLD.").append(DataTableColumns.ID)
+     .append(" AND ").append(DataTableColumns.SYNC_STATE).append(" IN ('")
+     .append(SyncState.new_row.name()).append("', '")
+     .append(SyncState.changed.name()).append("', '")
+     .append(SyncState.deleted.name()).append("'))")
+     .append(" BEGIN INSERT INTO ").append(CHANGE_JOURNAL_TABLE_NAME).append(" (")
+     .append(TABLE_ID).append(", ").append(ROW_ID).append(", ")
+     .append(OPERATION).append(", ").append(SAVEPOINT_TIMESTAMP).append(") VALUES ('")
+     .append(tableId).append("', OLD.").append(DataTableColumns.ID)
+     .append(", '").append(OP_DELETE).append("', OLD.")
+     .append(DataTableColumns.SAVEPOINT_TIMESTAMP)
+     .append("); END");
+    //@formatter:on
+    return b.toString();
+  }
+
+  /**
+   * Remove all journal records and checkpoints for the given table. Invoked when we
+   * delete a table (its triggers are dropped along with it).
+   *
+   * @param db
+   * @param tableId
+   */
+  public static final void deleteJournalForTableId(OdkConnectionInterface db, String tableId) {
+    Object[] bindArgs = { tableId };
+    db.execSQL("DELETE FROM " + CHANGE_JOURNAL_TABLE_NAME + " WHERE " + TABLE_ID + "=?",
+        bindArgs);
+    db.execSQL("DELETE FROM " + CHANGE_JOURNAL_CHECKPOINTS_TABLE_NAME + " WHERE " + TABLE_ID
+        + "=?", bindArgs);
+  }
+
+  /**
+   * SQL to read a consumer's position in the journal of a table. Returns one row
+   * with two columns: the consumer's checkpoint (null if it has never established
+   * one and must do a full scan) and the highest sequence number journaled for the
+   * table. The latter is never less than the checkpoint (the journal may have been
+   * compacted), so the two are equal when nothing has been journaled since.
+   * Bind arguments are: tableId, consumer, tableId.
+   *
+   * @return the SELECT statement
+   */
+  public static final String getJournalPositionSql() {
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("SELECT cp as checkpointSeq, MAX(IFNULL(cp, 0), IFNULL(js, 0)) as latestSeq FROM (")
+     .append("SELECT (SELECT ").append(CHECKPOINT_SEQUENCE).append(" FROM ")
+     .append(CHANGE_JOURNAL_CHECKPOINTS_TABLE_NAME).append(" WHERE ")
+     .append(TABLE_ID).append(" = ? AND ").append(CONSUMER).append(" = ?) as cp, ")
+     .append("(SELECT MAX(").append(SEQUENCE).append(") FROM ")
+     .append(CHANGE_JOURNAL_TABLE_NAME).append(" WHERE ").append(TABLE_ID)
+     .append(" = ?) as js)");
+    //@formatter:on
+    return b.toString();
+  }
+
+  /**
+   * SQL to record a consumer's checkpoint.
+   * Bind arguments are: tableId, consumer, sequence.
+   *
+   * @return the INSERT OR REPLACE statement
+   */
+  public static final String getUpdateCheckpointSql() {
+    StringBuilder b = new StringBuilder();
+    b.append("INSERT OR REPLACE INTO ").append(CHANGE_JOURNAL_CHECKPOINTS_TABLE_NAME)
+     .append(" (").append(TABLE_ID).append(", ").append(CONSUMER).append(", ")
+     .append(CHECKPOINT_SEQUENCE).append(") VALUES (?, ?, ?)");
+    return b.toString();
+  }
+
+  /**
+   * SQL to remove the journal records of a table that every consumer has processed.
+   * Bind arguments are: tableId, tableId.
+   *
+   * @return the DELETE statement
+   */
+  public static final String getCompactJournalSql() {
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("DELETE FROM ").append(CHANGE_JOURNAL_TABLE_NAME).append(" WHERE ")
+     .append(TABLE_ID).append("=? AND ").append(SEQUENCE).append(" <= (SELECT MIN(")
+     .append(CHECKPOINT_SEQUENCE).append(") FROM ").append(CHANGE_JOURNAL_CHECKPOINTS_TABLE_NAME)
+     .append(" WHERE ").append(TABLE_ID).append("=?)");
+    //@formatter:on
+    return b.toString();
+  }
+}
@@ -21,18 +21,114 @@ import org.opendatakit.provider.ChoiceListColumns;
 import org.opendatakit.services.database.OdkConnectionInterface;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Manipulator class for setting and getting choiceList definitions.
+ * <p/>
+ * The choiceListJSON of each choiceListId is cached per appName. Only values read
+ * outside of a transaction are cached, as a transaction may yet be rolled back.
+ * setChoiceList() invalidates the cached entry, and the whole cache of an appName
+ * is dropped when its database is reset or found to have been deleted. The choiceListIds assigned by ODKDatabaseImplUtils are the
+ * md5 hashes of their choiceListJSON, so a cached entry is never rebound.
  */
 public final class ChoiceListUtils {
 
+  /**
+   * Choice lists larger than this many characters are never cached.
+   */
+  private static final int MAX_CACHED_CHOICE_LIST_CHARS = 256 * 1024;
+
+  /**
+   * Total characters of choiceListJSON cached for each appName.
+   */
+  private static final long MAX_CACHE_CHARS = 2L * 1024L * 1024L;
+
+  /**
+   * Per-appName cache of choiceListId to choiceListJSON, in least-recently-used order.
+   */
+  private static final class ChoiceListCache {
+    final LinkedHashMap<String, String> entries =
+        new LinkedHashMap<String, String>(64, 0.75f, true);
+    long chars = 0L;
+  }
+
+  /**
+   * Access only within itself. Map of appName to its cache.
+   */
+  private static final Map<String, ChoiceListCache> appNameCaches =
+      new HashMap<String, ChoiceListCache>();
+
   /**
    * Methods are all static...
    */
   private ChoiceListUtils() {
   }
 
+  private static ChoiceListCache getCache(String appName) {
+    synchronized (appNameCaches) {
+      ChoiceListCache cache = appNameCaches.get(appName);
+      if (cache == null) {
+        cache = new ChoiceListCache();
+        appNameCaches.put(appName, cache);
+      }
+      return cache;
+    }
+  }
+
+  private static String getCached(String appName, String choiceListId) {
+    ChoiceListCache cache = getCache(appName);
+    synchronized (cache) {
+      return cache.entries.get(choiceListId);
+    }
+  }
+
+  private static void putCached(String appName, String choiceListId, String choiceListJSON) {
+    if (choiceListJSON.length() > MAX_CACHED_CHOICE_LIST_CHARS) {
+      return;
+    }
+    ChoiceListCache cache = getCache(appName);
+    synchronized (cache) {
+      String old = cache.entries.put(choiceListId, choiceListJSON);
+      if (old != null) {
+        cache.chars -= old.length();
+      }
+      cache.chars += choiceListJSON.length();
+      // evict least-recently-used entries
+      Iterator<Map.Entry<String, String>> it = cache.entries.entrySet().iterator();
+      while (cache.chars > MAX_CACHE_CHARS && it.hasNext()) {
+        cache.chars -= it.next().getValue().length();
+        it.remove();
+      }
+    }
+  }
+
+  private static void removeCached(String appName, String choiceListId) {
+    ChoiceListCache cache = getCache(appName);
+    synchronized (cache) {
+      String old = cache.entries.remove(choiceListId);
+      if (old != null) {
+        cache.chars -= old.length();
+      }
+    }
+  }
+
+  /**
+   * Drop all cached choice lists of this appName. Invoked when all connections
+   * to the database are removed (e.g., when it is reset) and when the database
+   * is found to have been deleted.
+   *
+   * @param appName
+   */
+  public static final void invalidateChoiceListCache(String appName) {
+    synchronized (appNameCaches) {
+      appNameCaches.remove(appName);
+    }
+  }
+
   /**
    * @param db           a database connection to use
    * @param choiceListId which row of choices to get from the database
@@ -44,6 +140,11 @@ public final class ChoiceListUtils {
       return null;
     }
 
+    String cached = getCached(db.getAppName(), choiceListId);
+    if ( cached != null ) {
+      return cached;
+    }
+
     ArrayList<String> bindArgs = new ArrayList<String>();
     StringBuilder b = new StringBuilder();
     //@formatter:off
@@ -79,6 +180,9 @@ public final class ChoiceListUtils {
         return null;
       }
 
+      if ( !db.inTransaction() ) {
+        putCached(db.getAppName(), choiceListId, value);
+      }
       return value;
     } finally {
       if ( c != null && !c.isClosed()) {
@@ -140,6 +244,9 @@ public final class ChoiceListUtils {
         db.setTransactionSuccessful();
       }
     } finally {
+      // do not write through -- the transaction may yet be rolled back.
+      // The next getChoiceList() will re-read and cache it.
+      removeCached(db.getAppName(), choiceListId);
       if ( !inTransaction ) {
         db.endTransaction();
       }
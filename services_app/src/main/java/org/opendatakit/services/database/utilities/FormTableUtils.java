@@ -19,8 +19,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Update the form definitions table based upon the content of the sdcard.
@@ -35,6 +42,11 @@ import java.util.Set;
 public class FormTableUtils {
   private static final String TAG = "FormTableUtils";
 
+  /**
+   * Number of threads used to hash and parse formDef.json files during a scan.
+   */
+  private static final int MAX_FORMDEF_SCAN_THREADS = 4;
+
   private static void patchUpValues(String appName, HashMap<String, Object>
       values) {
 
@@ -77,27 +89,74 @@ public class FormTableUtils {
     return;
   }
 
-  private static synchronized void insert(String appName, String tableId, String formId) {
-
+  /**
+   * Build the full set of forms-table values for a formId by parsing its formDef.json
+   *
+   * @param appName
+   * @param tableId
+   * @param formId
+   * @return
+   */
+  private static HashMap<String, Object> scanFormDef(String appName, String tableId,
+      String formId) {
     HashMap<String, Object> values = new HashMap<String, Object>();
     values.put(FormsColumns.TABLE_ID, tableId);
     values.put(FormsColumns.FORM_ID, formId);
 
     // force a scan from disk
     patchUpValues(appName, values);
+    return values;
+  }
+
+  /**
+   * The stored record of a form whose formDef.json may have changed.
+   */
+  private static final class StoredFormDef {
+    final String formId;
+    final String jsonMd5;
+
+    StoredFormDef(String formId, String jsonMd5) {
+      this.formId = formId;
+      this.jsonMd5 = jsonMd5;
+    }
+  }
+
+  /**
+   * Hash the formDef.json of a form whose size or modification time no longer
+   * matches its stored record. If the content is unchanged, only the size and
+   * modification time need to be updated. Otherwise, the formDef is re-parsed.
+   *
+   * @param appName
+   * @param tableId
+   * @param stored
+   * @return values to apply to the existing record
+   */
+  private static HashMap<String, Object> rescanFormDef(String appName, String tableId,
+      StoredFormDef stored) {
+    File formDefFile = new File(ODKFileUtils.getFormFolder(appName, tableId, stored.formId),
+        ODKFileUtils.FORMDEF_JSON_FILENAME);
+    // capture these before hashing so that a concurrent edit is caught by the next scan
+    long lastModified = formDefFile.lastModified();
+    long length = formDefFile.length();
+    String fileMd5 = ODKFileUtils.getMd5Hash(appName, formDefFile);
+    if (stored.jsonMd5 != null && stored.jsonMd5.equals(fileMd5)) {
+      HashMap<String, Object> values = new HashMap<String, Object>();
+      values.put(FormsColumns.DATE, lastModified);
+      values.put(FormsColumns.FILE_LENGTH, length);
+      return values;
+    }
+    return scanFormDef(appName, tableId, stored.formId);
+  }
+
+  private static void insert(OdkConnectionInterface db, String tableId, String formId,
+      HashMap<String, Object> values) {
 
     // first try to see if a record with this filename already exists...
     String[] projection = { FormsColumns.TABLE_ID, FormsColumns.FORM_ID };
     String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
     String[] selectionArgs = { tableId, formId };
     Cursor c = null;
-
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
-    OdkConnectionInterface db = null;
     try {
-      // +1 referenceCount if db is returned (non-null)
-      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
-      db.beginTransactionNonExclusive();
       try {
         c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, selection, selectionArgs,
             null, null, null, null);
@@ -118,7 +177,6 @@ public class FormTableUtils {
       }
 
       db.insertOrThrow(DatabaseConstants.FORMS_TABLE_NAME, null, values);
-      db.setTransactionSuccessful();
     } catch (SQLException e) {
       throw e;
     } catch (Exception e) {
@@ -127,45 +185,20 @@ public class FormTableUtils {
         msg = e.toString();
       }
       throw new SQLException("FAILED Insert into " + tableId + " form " + formId + " -- " + msg, e);
-    } finally {
-      if (db != null) {
-        try {
-          db.endTransaction();
-        } finally {
-          try {
-            db.releaseReference();
-          } finally {
-            // this closes the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                appName, dbHandleName);
-          }
-        }
-      }
     }
   }
 
   /**
-   * This method removes the entry from the content provider, and also removes
-   * any associated files. files: form.xml, [formmd5].formdef, formname
-   * {directory}
+   * This method removes the entry from the content provider. It leaves
+   * any associated files untouched.
    */
-  private static synchronized void delete(String appName, String tableId, String formId) {
+  private static void delete(OdkConnectionInterface db, String tableId, String formId) {
 
     String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
     String[] selectionArgs = { tableId, formId };
 
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
-    OdkConnectionInterface db = null;
-
     try {
-      // Get the database and run the query
-      // +1 referenceCount if db is returned (non-null)
-      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-          .getConnection(appName, dbHandleName);
-      db.beginTransactionNonExclusive();
       db.delete(DatabaseConstants.FORMS_TABLE_NAME, selection, selectionArgs);
-      // commit the transaction...
-      db.setTransactionSuccessful();
     } catch (SQLException e) {
       throw e;
     } catch (Exception e) {
@@ -174,76 +207,22 @@ public class FormTableUtils {
         msg = e.toString();
       }
       throw new SQLException("FAILED Delete from " + tableId + " form " + formId + " -- " + msg, e);
-    } finally {
-      if (db != null) {
-        try {
-          db.endTransaction();
-        } finally {
-          try {
-            db.releaseReference();
-          } finally {
-            // this closes the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-                .removeConnection(appName, dbHandleName);
-          }
-        }
-      }
     }
   }
 
-  private static synchronized void update(String appName, String tableId, String formId) {
+  private static void update(OdkConnectionInterface db, String tableId, String formId,
+      HashMap<String, Object> values) {
 
-    HashMap<String, Object> values = new HashMap<String, Object>();
-    values.put(FormsColumns.TABLE_ID, tableId);
-    values.put(FormsColumns.FORM_ID, formId);
-
-    // force a scan from disk
-    patchUpValues(appName, values);
-
-    String[] projection = { FormsColumns.TABLE_ID, FormsColumns.FORM_ID };
     String selection = FormsColumns.TABLE_ID + "=? AND " + FormsColumns.FORM_ID + "=?";
     String[] selectionArgs = { tableId, formId };
-    /*
-     * First, find out what records match this query. Replicate the
-     * ContentValues if there are multiple tableIds/formIds involved
-     * and the contentValues do not have formId and tableId specified.
-     *
-     * Otherwise, it is an error to specify the tableId or formId in
-     * the ContentValues and have those not match the where results.
-     *
-     */
-
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
-    OdkConnectionInterface db = null;
-    try {
-      // +1 referenceCount if db is returned (non-null)
-      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
-      db.beginTransactionNonExclusive();
-
-      Cursor c = null;
-      try {
-        c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, selection, selectionArgs,
-            null, null, null, null);
-
-        if (c == null) {
-          throw new SQLException("FAILED Update of " + tableId + " form " + formId
-              + " -- query for existing row did not return a cursor");
-        }
-        c.moveToFirst();
-        if ( c.getCount() != 1 ) {
-          throw new SQLException("FAILED Update to " + tableId + " form " + formId
-              + " -- not exactly one row for this formId!");
-        }
-      } finally {
-        if (c != null && !c.isClosed()) {
-          c.close();
-        }
-      }
 
+    try {
       // update the database with these patched-up values...
-      db.update(DatabaseConstants.FORMS_TABLE_NAME, values, selection, selectionArgs);
-      db.setTransactionSuccessful();
-
+      int count = db.update(DatabaseConstants.FORMS_TABLE_NAME, values, selection, selectionArgs);
+      if ( count != 1 ) {
+        throw new SQLException("FAILED Update to " + tableId + " form " + formId
+            + " -- not exactly one row for this formId!");
+      }
     } catch (SQLException e) {
       throw e;
     } catch (Exception e) {
@@ -252,22 +231,35 @@ public class FormTableUtils {
         msg = e.toString();
       }
       throw new SQLException("FAILED Update on " + tableId + " form " + formId + " -- " + msg, e);
-    } finally {
-      if (db != null) {
-        try {
-          if (db.inTransaction()) {
-            db.endTransaction();
-          }
-        } finally {
-          try {
-            db.releaseReference();
-          } finally {
-            // this closes the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                appName, dbHandleName);
-          }
-        }
+    }
+  }
+
+  /**
+   * Wait for a formDef scan to complete, unwrapping any failure.
+   *
+   * @param tableId
+   * @param formId
+   * @param future
+   * @return the scanned values
+   */
+  private static HashMap<String, Object> awaitScan(String tableId, String formId,
+      Future<HashMap<String, Object>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("FAILED scan of " + tableId + " form " + formId
+          + " -- interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = (e.getCause() == null) ? e : e.getCause();
+      if ( cause instanceof RuntimeException ) {
+        throw (RuntimeException) cause;
       }
+      String msg = cause.getMessage();
+      if ( msg == null ) {
+        msg = cause.toString();
+      }
+      throw new SQLException("FAILED scan of " + tableId + " form " + formId + " -- " + msg, cause);
     }
   }
 
@@ -275,11 +267,16 @@ public class FormTableUtils {
    * This throws an exception on nearly all failures. I.e., the return code will
    * always be true.
    *
+   * The formDef.json files that need hashing or parsing are processed in
+   * parallel. Files whose size and modification time match the stored record
+   * are assumed unchanged and are not read. All resulting changes to the
+   * forms table are then applied within a single transaction.
+   *
    * @param appName
    * @param tableIdFilter
    * @return true on success
    */
-  public static boolean updateFormDir(String appName, String tableIdFilter) {
+  public static boolean updateFormDir(final String appName, final String tableIdFilter) {
 
     WebLoggerIf log = WebLogger.getLogger(appName);
     log.i(TAG, "updateFormDir: " + appName + " tableId: " + tableIdFilter + " begin");
@@ -305,38 +302,41 @@ public class FormTableUtils {
       }
     }
 
-    // /////////////////////////////////////////
-    // look at list of forms recorded in forms table.
-    Set<String> badFormIds = new HashSet<>();
-    Set<String> changedFormIds = new HashSet<>();
-    Set<String> duplicateFormIds = new HashSet<>();
-    // 1. If a form is in the database but does not exist in the formDirs list (on the sdcard)
-    //    then add it to the badFormIds set -- this set needs to be deleted.
-    // 2. If the form exists, check if it has already been processed, as evidenced by being in the
-    //    changedFormIds, processedFormIds, or duplicateFormIds lists. If it has, remove it
-    //    from these and add it to the duplicateFormIds list.
-    // 2. If the form exists in both, if the md5 hash of the form is unchanged, then remove
-    //    it from the formDirs list, since the matching hash indicates that the file is unchanged
-    //    and the information in the forms table is valid. Add to processedFormIds.
-    // 3. If the form exists in both, but the md5 hash has changed, add it to the changedFormIds
-    //    and processedFormIds sets and remove it from the formDirs list. These forms need to be
-    //    updated.
-    // 4. Finally, at the end, the formDirs will contain only the forms to be inserted.
-    {
-      Set<String> processedIds = new HashSet<String>();
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+        .acquireInternalUseDbHandle(appName);
+    OdkConnectionInterface db = null;
+    ExecutorService scanners = null;
+    try {
+      // +1 referenceCount if db is returned (non-null)
+      db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
 
-      // Get the database and run the query
-      DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
-      OdkConnectionInterface db = null;
-      try {
-        // +1 referenceCount if db is returned (non-null)
-        db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
+      // /////////////////////////////////////////
+      // look at list of forms recorded in forms table.
+      Set<String> badFormIds = new HashSet<>();
+      Map<String, StoredFormDef> suspectFormIds = new LinkedHashMap<>();
+      Set<String> duplicateFormIds = new HashSet<>();
+      // 1. If a form is in the database but does not exist in the formDirs list (on the sdcard)
+      //    then add it to the badFormIds set -- this set needs to be deleted.
+      // 2. If the form exists, check if it has already been processed, as evidenced by being in
+      //    the processedIds set. If it has, remove it from the suspectFormIds and add it to
+      //    the duplicateFormIds set.
+      // 3. If the form exists in both, and the file length and modification date of the
+      //    formDef.json match the record, the file is assumed unchanged and the information in
+      //    the forms table is valid. Remove it from the formDirs list.
+      // 4. If the form exists in both, but the file length or modification date differ, add it
+      //    to the suspectFormIds and remove it from the formDirs list. These forms need to be
+      //    hashed and, if the md5 hash has changed, re-parsed and updated.
+      // 5. Finally, at the end, the formDirs will contain only the forms to be inserted.
+      {
+        Set<String> processedIds = new HashSet<String>();
 
         String selection = FormsColumns.TABLE_ID + "=?";
         String[] selectionArgs = { tableIdFilter };
+        String[] projection = { FormsColumns.FORM_ID, FormsColumns.JSON_MD5_HASH,
+            FormsColumns.DATE, FormsColumns.FILE_LENGTH };
 
-        Cursor c = db.query(DatabaseConstants.FORMS_TABLE_NAME, null, selection, selectionArgs,
-            null, null, null, null);
+        Cursor c = db.query(DatabaseConstants.FORMS_TABLE_NAME, projection, selection,
+            selectionArgs, null, null, null, null);
 
         if (c == null) {
           WebLogger.getLogger(appName)
@@ -344,8 +344,12 @@ public class FormTableUtils {
         } else {
           try {
             if (c.moveToFirst()) {
+              int idxFormId = c.getColumnIndex(FormsColumns.FORM_ID);
+              int idxMd5 = c.getColumnIndex(FormsColumns.JSON_MD5_HASH);
+              int idxDate = c.getColumnIndex(FormsColumns.DATE);
+              int idxLength = c.getColumnIndex(FormsColumns.FILE_LENGTH);
               do {
-                String formId = CursorUtils.getIndexAsString(c, c.getColumnIndex(FormsColumns.FORM_ID));
+                String formId = CursorUtils.getIndexAsString(c, idxFormId);
 
                 String formDir = ODKFileUtils.getFormFolder(appName, tableIdFilter, formId);
                 File f = new File(formDir);
@@ -356,17 +360,19 @@ public class FormTableUtils {
                 } else if ( processedIds.contains(formId) ) {
                   // formdef.json exists. But...
                   // there are two database records for this formId.
-                  // remove it from the changedFormIds set and add it to the
+                  // remove it from the suspectFormIds set and add it to the
                   // duplicateFormIds set.
-                  changedFormIds.remove(formId);
+                  suspectFormIds.remove(formId);
                   duplicateFormIds.add(formId);
                 } else {
                   // formdef.json exists. See if it is unchanged...
-                  String json_md5 = CursorUtils.getIndexAsString(c, c.getColumnIndex(FormsColumns.JSON_MD5_HASH));
-                  String fileMd5 = ODKFileUtils.getMd5Hash(appName, formDefJson);
-                  if (json_md5 == null || !json_md5.equals(fileMd5)) {
-                    // it HAS changed -- add it to the changed list
-                    changedFormIds.add(formId);
+                  Long date = CursorUtils.getIndexAsType(c, Long.class, idxDate);
+                  Long length = CursorUtils.getIndexAsType(c, Long.class, idxLength);
+                  if (date == null || length == null ||
+                      date != formDefJson.lastModified() || length != formDefJson.length()) {
+                    // it MAY have changed -- add it to the suspect list
+                    suspectFormIds.put(formId,
+                        new StoredFormDef(formId, CursorUtils.getIndexAsString(c, idxMd5)));
                   }
                   // remove it from the formDirs list
                   formDirs.remove(f);
@@ -379,61 +385,112 @@ public class FormTableUtils {
             c.close();
           }
         }
-      } finally {
-        if (db != null) {
-          try {
-            db.releaseReference();
-          } finally {
-            // this closes the connection
-            // if it was successful, then the InvalidateMonitor will close the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                appName, dbHandleName);
-          }
+      }
+
+      ///////////////////////////
+      ///////////////////////////
+      // we now have a:
+      // 1. set of forms (duplicateFormIds) that had two or more entries in the form definitions
+      // table (internal error).
+      // 2. a set of forms (badFormIds) that no longer exist on the sdcard and  which need to be
+      // removed from the form definitions table.
+      // 3. a set of forms (suspectFormIds) whose formDef.json may have changed and therefore
+      // may need their form definition record updated.
+      // 4. a list of formDirs who have formDef.json files that need to be scanned and added to the
+      // form definitions table.
+      //
+      // Hash and parse everything that needs it in parallel.
+      Map<String, Future<HashMap<String, Object>>> insertScans = new LinkedHashMap<>();
+      Map<String, Future<HashMap<String, Object>>> updateScans = new LinkedHashMap<>();
+      if ( !duplicateFormIds.isEmpty() || !suspectFormIds.isEmpty() || !formDirs.isEmpty() ) {
+        scanners = Executors.newFixedThreadPool(MAX_FORMDEF_SCAN_THREADS);
+        List<String> insertFormIds = new ArrayList<String>(duplicateFormIds);
+        for (File formDir : formDirs) {
+          insertFormIds.add(formDir.getName());
+        }
+        for (final String formId : insertFormIds) {
+          insertScans.put(formId, scanners.submit(new Callable<HashMap<String, Object>>() {
+            @Override
+            public HashMap<String, Object> call() throws Exception {
+              return scanFormDef(appName, tableIdFilter, formId);
+            }
+          }));
+        }
+        for (final StoredFormDef stored : suspectFormIds.values()) {
+          updateScans.put(stored.formId, scanners.submit(new Callable<HashMap<String, Object>>() {
+            @Override
+            public HashMap<String, Object> call() throws Exception {
+              return rescanFormDef(appName, tableIdFilter, stored);
+            }
+          }));
         }
+        scanners.shutdown();
       }
-    }
 
-    ///////////////////////////
-    ///////////////////////////
-    // we now have a:
-    // 1. set of forms (duplicateFormIds) that had two or more entries in the form definitions
-    // table (internal error).
-    // 2. a set of forms (badFormIds) that no longer exist on the sdcard and  which need to be
-    // removed from the form definitions table.
-    // 3. a set of forms (changedFormIds) whose formDef.json have changed and therefore need
-    // their form definition record updated.
-    // 4. a list of formDirs who have formDef.json files that need to be scanned and added to the
-    // form definitions table.
-
-    ////////////////////////////
-    // The duplicateFormIds should be deleted from the form definitions table.
-    // They should then be processed to insert new records into the table.
-    for (String formId : duplicateFormIds) {
-      delete(appName, tableIdFilter, formId);
-      insert(appName, tableIdFilter, formId);
-    }
+      if ( badFormIds.isEmpty() && insertScans.isEmpty() && updateScans.isEmpty() ) {
+        // nothing to do
+        log.i(TAG, "updateFormDir: " + appName + " tableId: " + tableIdFilter + " end");
+        return true;
+      }
 
-    //////////////////////////
-    // delete the bad forms from the database -- these have no formDef.json files.
-    // Leave the other files that might be under these formDir locations unchanged.
-    // i.e., Assume that the files are as intended by the application architect.
-    for (String formId : badFormIds) {
-      delete(appName, tableIdFilter, formId);
-    }
+      // wait for all the scans before starting the transaction
+      Map<String, HashMap<String, Object>> insertValues = new LinkedHashMap<>();
+      for (Map.Entry<String, Future<HashMap<String, Object>>> e : insertScans.entrySet()) {
+        insertValues.put(e.getKey(), awaitScan(tableIdFilter, e.getKey(), e.getValue()));
+      }
+      Map<String, HashMap<String, Object>> updateValues = new LinkedHashMap<>();
+      for (Map.Entry<String, Future<HashMap<String, Object>>> e : updateScans.entrySet()) {
+        updateValues.put(e.getKey(), awaitScan(tableIdFilter, e.getKey(), e.getValue()));
+      }
 
-    //////////////////////////
-    // Update the changed forms
-    for ( String formId : changedFormIds ) {
-      update(appName, tableIdFilter, formId);
-    }
+      db.beginTransactionNonExclusive();
 
-    ///////////////////////////
-    // insert the forms that are new
-    for (int i = 0; i < formDirs.size(); ++i) {
-      File formDir = formDirs.get(i);
+      ////////////////////////////
+      // The duplicateFormIds should be deleted from the form definitions table.
+      // They are re-inserted with the new forms, below.
+      for (String formId : duplicateFormIds) {
+        delete(db, tableIdFilter, formId);
+      }
 
-      String formId = formDir.getName();
-      insert(appName, tableIdFilter, formId);
+      //////////////////////////
+      // delete the bad forms from the database -- these have no formDef.json files.
+      // Leave the other files that might be under these formDir locations unchanged.
+      // i.e., Assume that the files are as intended by the application architect.
+      for (String formId : badFormIds) {
+        delete(db, tableIdFilter, formId);
+      }
+
+      //////////////////////////
+      // Update the changed forms
+      for (Map.Entry<String, HashMap<String, Object>> e : updateValues.entrySet()) {
+        update(db, tableIdFilter, e.getKey(), e.getValue());
+      }
+
+      ///////////////////////////
+      // insert the forms that are new (or were duplicated)
+      for (Map.Entry<String, HashMap<String, Object>> e : insertValues.entrySet()) {
+        insert(db, tableIdFilter, e.getKey(), e.getValue());
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      if (scanners != null) {
+        scanners.shutdownNow();
+      }
+      if (db != null) {
+        try {
+          if (db.inTransaction()) {
+            db.endTransaction();
+          }
+        } finally {
+          try {
+            db.releaseReference();
+          } finally {
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+                .releaseInternalUseDbHandle(appName, dbHandleName);
+          }
+        }
+      }
     }
 
     log.i(TAG, "updateFormDir: " + appName + " tableId: " + tableIdFilter + " end");
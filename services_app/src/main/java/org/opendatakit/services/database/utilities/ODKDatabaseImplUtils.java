@@ -68,6 +68,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -103,6 +104,43 @@ public final class ODKDatabaseImplUtils {
 
   private static final String K_DATATABLE_ID_EQUALS_PARAM = DataTableColumns.ID + S_EQUALS_PARAM;
 
+  /**
+   * Records the installed version of each set of derived tables, indexes and
+   * triggers (e.g., the change journal) so that an existing database is only
+   * upgraded, and its tables backfilled, once.
+   */
+  private static final String DERIVED_SCHEMA_VERSIONS_TABLE_NAME = "_derived_schema_versions";
+  private static final String K_DERIVED_SCHEMA_NAME = "_name";
+  private static final String K_DERIVED_SCHEMA_VERSION = "_version";
+
+  /**
+   * Rows addressed by one rowETag / sync state UPDATE. Each row binds
+   * three arguments; this stays well below SQLite's host parameter limit.
+   */
+  public static final int MAX_ROWS_PER_ETAG_UPDATE = 200;
+
+  /**
+   * Statements prepared for each table by {@link #warmPreparedStatements}.
+   */
+  public static final int WARMED_STATEMENTS_PER_TABLE = 3;
+
+  /**
+   * Bind arguments in one multi-row INSERT into the server row staging table.
+   * Stays below SQLite's default limit of 999 host parameters per statement.
+   */
+  public static final int MAX_BIND_ARGS_PER_STAGING_INSERT = 900;
+
+  /**
+   * Column of the server row staging table holding the {@link ServerRowAction}.
+   */
+  public static final String SERVER_ROW_ACTION = "_server_row_action";
+
+  /**
+   * Tables probed by one getTablesWithConflictsOrCheckpoints query. Each adds
+   * a term to a compound select; SQLite limits these to 500 by default.
+   */
+  private static final int MAX_TABLES_PER_HEALTH_QUERY = 100;
+
   /**
    * Also store an immutable cache of the roles for a tables administrator.
    * These are used for privileged requests.
@@ -130,6 +168,22 @@ public final class ODKDatabaseImplUtils {
     LOCKED_EFFECTIVE_ACCESS_COLUMN,
     UNLOCKED_EFFECTIVE_ACCESS_COLUMN }
 
+  /**
+   * How a staged server row is applied to the data table during a sync pull.
+   * See {@link #buildClassifyServerRows}.
+   */
+  public enum ServerRowAction {
+    // absent locally; insert the server row
+    INSERT,
+    // a lone synced or synced_pending_files local row; take the server values
+    UPDATE,
+    // a lone synced or synced_pending_files local row the server has deleted
+    DELETE,
+    // local changes or an existing conflict; apply the row individually
+    CONFLICT,
+    // absent locally and deleted on the server
+    NONE }
+
   public final static class AccessContext {
     public final AccessColumnType accessColumnType;
     public final boolean canCreateRow;
@@ -1380,6 +1434,70 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  /**
+   * Identify the tables that have conflicts or checkpoints. Unlike calling
+   * getTableHealth on every table, this only probes for the existence of such
+   * rows (which the partial indexes on each data table make cheap) and does so
+   * for all tables in one query.
+   *
+   * @param db
+   * @return map of tableId to table health (conflicts and checkpoints flags only)
+   * for those tables that have conflicts and/or checkpoints
+   */
+  public TreeMap<String, Integer> getTablesWithConflictsOrCheckpoints(OdkConnectionInterface db) {
+    TreeMap<String, Integer> healthMap = new TreeMap<String, Integer>();
+
+    ArrayList<String> tableIds = getAllTableIds(db);
+
+    // stay well under SQLite's limit on the number of terms in a compound select
+    for (int start = 0; start < tableIds.size(); start += MAX_TABLES_PER_HEALTH_QUERY) {
+      int end = Math.min(start + MAX_TABLES_PER_HEALTH_QUERY, tableIds.size());
+
+      StringBuilder b = new StringBuilder();
+      Object[] bindArgs = new Object[end - start];
+      for (int i = start; i < end; ++i) {
+        String tableId = tableIds.get(i);
+        if (i != start) {
+          b.append(" UNION ALL ");
+        }
+        b.append("SELECT ? AS ").append(TableDefinitionsColumns.TABLE_ID)
+            .append(", EXISTS (SELECT 1 FROM ").append(tableId).append(K_WHERE)
+            .append(DataTableColumns.CONFLICT_TYPE).append(S_IS_NOT_NULL)
+            .append(") AS conflicts, EXISTS (SELECT 1 FROM ").append(tableId).append(K_WHERE)
+            .append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NULL)
+            .append(") AS checkpoints");
+        bindArgs[i - start] = tableId;
+      }
+
+      Cursor c = null;
+      try {
+        c = db.rawQuery(b.toString(), bindArgs);
+        if (c.moveToFirst()) {
+          int idxTableId = c.getColumnIndex(TableDefinitionsColumns.TABLE_ID);
+          int idxConflicts = c.getColumnIndex("conflicts");
+          int idxCheckpoints = c.getColumnIndex("checkpoints");
+          do {
+            int outcome = CursorUtils.TABLE_HEALTH_IS_CLEAN;
+            if (c.getInt(idxConflicts) != 0) {
+              outcome = CursorUtils.setTableHealthHasConflicts(outcome);
+            }
+            if (c.getInt(idxCheckpoints) != 0) {
+              outcome = CursorUtils.setTableHealthHasCheckpoints(outcome);
+            }
+            if (outcome != CursorUtils.TABLE_HEALTH_IS_CLEAN) {
+              healthMap.put(c.getString(idxTableId), outcome);
+            }
+          } while (c.moveToNext());
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+    }
+    return healthMap;
+  }
+
   /**
    * Return all the tableIds in the database.
    *
@@ -1440,6 +1558,9 @@ public final class ODKDatabaseImplUtils {
       // Delete the server sync ETags associated with this table
       SyncETagsUtils.deleteAllSyncETagsForTableId(db, tableId);
 
+      // Delete the change journal associated with this table
+      ChangeJournalUtils.deleteJournalForTableId(db, tableId);
+
       // Delete the table definition for the tableId
       {
         String whereClause = K_TABLE_DEFS_TABLE_ID_EQUALS_PARAM;
@@ -2266,6 +2387,11 @@ public final class ODKDatabaseImplUtils {
     db.execSQL(createTableCmdWithCols.toString(), null);
 
     if (isSynchronized) {
+      // journal all changes to the rows of this table
+      ChangeJournalUtils.installJournalTriggers(db, tableId);
+      // and track its instances in the uploads table
+      UploadsIndexUtils.installUploadsIndexTrigger(db, tableId);
+
       // Create the metadata for the table - table def and KVS
       createTableMetadata(db, tableId);
 
@@ -3957,6 +4083,200 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  /**
+   * For every rowId in the table that has checkpoints, update all of its rows
+   * to SavepointType 'COMPLETE' and remove all but the most recent row.
+   * This is the bulk form of saveAsCompleteMostRecentCheckpointRowWithId and
+   * runs as three statements within a single transaction.
+   *
+   * @param db
+   * @param tableId
+   */
+  public void saveAsCompleteMostRecentCheckpointRows(OdkConnectionInterface db, String tableId) {
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      StringBuilder checkpointedIds = new StringBuilder();
+      checkpointedIds.append("SELECT ").append(DataTableColumns.ID).append(" FROM ")
+          .append(tableId).append(K_WHERE).append(DataTableColumns.SAVEPOINT_TYPE)
+          .append(S_IS_NULL);
+
+      // mark the existing savepoints of these rowIds as complete
+      // (the checkpoints still identify the rowIds at this point)
+      StringBuilder b = new StringBuilder();
+      b.append("UPDATE ").append(tableId).append(" SET ")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(S_EQUALS_PARAM).append(K_WHERE)
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NOT_NULL).append(S_AND)
+          .append(DataTableColumns.ID).append(" IN (").append(checkpointedIds).append(")");
+      db.execSQL(b.toString(), new Object[] { SavepointTypeManipulator.complete() });
+
+      // remove all but the most recent row of each of these rowIds
+      b.setLength(0);
+      b.append(DataTableColumns.ID).append(" IN (").append(checkpointedIds).append(")")
+          .append(S_AND).append(DataTableColumns.SAVEPOINT_TIMESTAMP)
+          .append(" NOT IN (SELECT MAX(V.").append(DataTableColumns.SAVEPOINT_TIMESTAMP)
+          .append(") FROM ").append(tableId).append(" AS V WHERE V.").append(DataTableColumns.ID)
+          .append("=").append(tableId).append(".").append(DataTableColumns.ID).append(")");
+      db.delete(tableId, b.toString(), null);
+
+      // and the surviving checkpoints become complete
+      b.setLength(0);
+      b.append("UPDATE ").append(tableId).append(" SET ")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(S_EQUALS_PARAM).append(K_WHERE)
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NULL);
+      db.execSQL(b.toString(), new Object[] { SavepointTypeManipulator.complete() });
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * Delete all checkpoint rows in the table. This is the bulk form of
+   * deleteAllCheckpointRowsWithId: the row-level access checks are made from one
+   * query and the deletes are applied within a single transaction. The
+   * checkpoints of rowIds the user is not allowed to change are left alone and
+   * reported. Attachments of rowIds that no longer have any rows are deleted.
+   *
+   * @param db
+   * @param tableId
+   * @param activeUser
+   * @param rolesList
+   * @return map of rowId to the reason its checkpoints were not deleted
+   */
+  public Map<String,String> deleteAllCheckpointRows(OdkConnectionInterface db,
+      String tableId, String activeUser, String rolesList) {
+
+    Map<String,String> skipped = new LinkedHashMap<String,String>();
+    List<String> removedRowIds = new ArrayList<String>();
+
+    boolean dbWithinTransaction = db.inTransaction();
+    try {
+      if (!dbWithinTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      List<String> allowedRowIds = new ArrayList<String>();
+
+      // test whether we can delete each of the checkpoint rows.
+      // Also determine whether the rowId consists only of checkpoints.
+      StringBuilder b = new StringBuilder();
+      b.append("SELECT T.").append(DataTableColumns.ID).append(", T.")
+          .append(DataTableColumns.SYNC_STATE).append(", T.")
+          .append(DataTableColumns.DEFAULT_ACCESS).append(", T.")
+          .append(DataTableColumns.ROW_OWNER).append(", T.")
+          .append(DataTableColumns.GROUP_READ_ONLY).append(", T.")
+          .append(DataTableColumns.GROUP_MODIFY).append(", T.")
+          .append(DataTableColumns.GROUP_PRIVILEGED)
+          .append(", EXISTS (SELECT 1 FROM ").append(tableId).append(" AS V WHERE V.")
+          .append(DataTableColumns.ID).append("=T.").append(DataTableColumns.ID).append(S_AND)
+          .append("V.").append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NOT_NULL)
+          .append(") AS has_savepoint FROM ").append(tableId).append(" AS T WHERE T.")
+          .append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NULL)
+          .append(" ORDER BY T.").append(DataTableColumns.ID);
+
+      List<String> rolesArray = getRolesArray(rolesList);
+      TableSecuritySettings tss = getTableSecuritySettings(db, tableId);
+
+      Cursor c = null;
+      try {
+        c = db.rawQuery(b.toString(), null);
+        int idxId = c.getColumnIndex(DataTableColumns.ID);
+        int idxSyncState = c.getColumnIndex(DataTableColumns.SYNC_STATE);
+        int idxDefaultAccess = c.getColumnIndex(DataTableColumns.DEFAULT_ACCESS);
+        int idxOwner = c.getColumnIndex(DataTableColumns.ROW_OWNER);
+        int idxGroupReadOnly = c.getColumnIndex(DataTableColumns.GROUP_READ_ONLY);
+        int idxGroupModify = c.getColumnIndex(DataTableColumns.GROUP_MODIFY);
+        int idxGroupPrivileged = c.getColumnIndex(DataTableColumns.GROUP_PRIVILEGED);
+        int idxHasSavepoint = c.getColumnIndex("has_savepoint");
+
+        String priorRowId = null;
+        boolean priorAllowed = false;
+        boolean priorHasSavepoint = false;
+        while (c.moveToNext()) {
+          String rowId = c.getString(idxId);
+          if (!rowId.equals(priorRowId)) {
+            if (priorRowId != null && priorAllowed) {
+              allowedRowIds.add(priorRowId);
+              if (!priorHasSavepoint) {
+                removedRowIds.add(priorRowId);
+              }
+            }
+            priorRowId = rowId;
+            priorAllowed = true;
+            priorHasSavepoint = (c.getInt(idxHasSavepoint) != 0);
+          }
+          if (!priorAllowed) {
+            continue;
+          }
+          try {
+            tss.allowRowChange(activeUser, rolesArray, c.getString(idxSyncState),
+                c.isNull(idxDefaultAccess) ? null : c.getString(idxDefaultAccess),
+                c.isNull(idxOwner) ? null : c.getString(idxOwner),
+                c.isNull(idxGroupReadOnly) ? null : c.getString(idxGroupReadOnly),
+                c.isNull(idxGroupModify) ? null : c.getString(idxGroupModify),
+                c.isNull(idxGroupPrivileged) ? null : c.getString(idxGroupPrivileged),
+                RowChange.CHANGE_ROW);
+          } catch (ActionNotAuthorizedException e) {
+            priorAllowed = false;
+            skipped.put(rowId, e.getMessage());
+          }
+        }
+        if (priorRowId != null && priorAllowed) {
+          allowedRowIds.add(priorRowId);
+          if (!priorHasSavepoint) {
+            removedRowIds.add(priorRowId);
+          }
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+
+      b.setLength(0);
+      b.append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NULL);
+      if (skipped.isEmpty()) {
+        db.delete(tableId, b.toString(), null);
+      } else {
+        b.append(S_AND).append(K_DATATABLE_ID_EQUALS_PARAM);
+        for (String rowId : allowedRowIds) {
+          db.delete(tableId, b.toString(), new Object[] { rowId });
+        }
+      }
+
+      if (!dbWithinTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (!dbWithinTransaction) {
+        db.endTransaction();
+      }
+    }
+
+    // these rows were entirely removed -- delete the attachments
+    for (String rowId : removedRowIds) {
+      File instanceFolder = new File(ODKFileUtils.getInstanceFolder(db.getAppName(), tableId, rowId));
+      try {
+        ODKFileUtils.deleteDirectory(instanceFolder);
+      } catch (Exception e) {
+        WebLogger.getLogger(db.getAppName())
+            .e(t, "Unable to delete this directory: " + instanceFolder.getAbsolutePath());
+        WebLogger.getLogger(db.getAppName()).printStackTrace(e);
+      }
+    }
+    return skipped;
+  }
+
   /**
    * Update the given rowId with the values in the cvValues. If certain metadata
    * values are not specified in the cvValues, then suitable default values may
@@ -4228,106 +4548,8 @@ public final class ODKDatabaseImplUtils {
       Row localRow = table.getRowAtIndex(0);
       Row serverRow = table.getRowAtIndex(1);
 
-      int localConflictType = Integer
-          .parseInt(localRow.getRawStringByKey(DataTableColumns.CONFLICT_TYPE));
-
-      int serverConflictType = Integer
-          .parseInt(serverRow.getRawStringByKey(DataTableColumns.CONFLICT_TYPE));
-
-      if (localConflictType != ConflictType.LOCAL_UPDATED_UPDATED_VALUES
-          && localConflictType != ConflictType.LOCAL_DELETED_OLD_VALUES) {
-        throw new IllegalStateException(
-            "Did not find local conflict row when resolving conflicts for rowId: " + rowId);
-      }
-
-      if (serverConflictType != ConflictType.SERVER_UPDATED_UPDATED_VALUES
-          && serverConflictType != ConflictType.SERVER_DELETED_OLD_VALUES) {
-        throw new IllegalStateException(
-            "Did not find server conflict row when resolving conflicts for rowId: " + rowId);
-      }
-
-      // update what was the local conflict record with the local's changes
-      // by the time we apply the update, the local conflict record will be
-      // restored to the proper (conflict_type, sync_state) values.
-      //
-      // No need to specify them here.
-      TreeMap<String,Object> updateValues = new TreeMap<String,Object>();
-      updateValues.put(DataTableColumns.ID, rowId);
-      updateValues
-          .put(DataTableColumns.ROW_ETAG, serverRow.getRawStringByKey(DataTableColumns.ROW_ETAG));
-
-      // take the server's filter metadata values ...
-      TreeMap<String,Object> privilegedUpdateValues = new TreeMap<String,Object>();
-      privilegedUpdateValues.put(DataTableColumns.ID, rowId);
-      privilegedUpdateValues.put(DataTableColumns.DEFAULT_ACCESS,
-          serverRow.getRawStringByKey(DataTableColumns.DEFAULT_ACCESS));
-      privilegedUpdateValues.put(DataTableColumns.ROW_OWNER,
-          serverRow.getRawStringByKey(DataTableColumns.ROW_OWNER));
-      privilegedUpdateValues.put(DataTableColumns.GROUP_READ_ONLY,
-          serverRow.getRawStringByKey(DataTableColumns.GROUP_READ_ONLY));
-      privilegedUpdateValues.put(DataTableColumns.GROUP_MODIFY,
-          serverRow.getRawStringByKey(DataTableColumns.GROUP_MODIFY));
-      privilegedUpdateValues.put(DataTableColumns.GROUP_PRIVILEGED,
-          serverRow.getRawStringByKey(DataTableColumns.GROUP_PRIVILEGED));
-      privilegedUpdateValues.put(DataTableColumns.SAVEPOINT_TIMESTAMP,
-          serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TIMESTAMP));
-      privilegedUpdateValues.put(DataTableColumns.SAVEPOINT_CREATOR,
-          serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_CREATOR));
-
-      // Figure out whether to take the server or local metadata fields.
-      // and whether to take the server or local data fields.
-
-      SyncState finalSyncState = SyncState.changed;
-
-      if (localConflictType == ConflictType.LOCAL_UPDATED_UPDATED_VALUES) {
-        // We are updating -- preserve the local metadata and column values
-        // this is a no-op, as we are updating the local record, so we don't
-        // need to do anything special.
-      } else {
-        finalSyncState = SyncState.deleted;
-
-        // Deletion is really a "TakeServerChanges" action, but ending with 'deleted' as
-        // the final sync state.
-
-        // copy everything over from the server row
-        updateValues
-            .put(DataTableColumns.FORM_ID, serverRow.getRawStringByKey(DataTableColumns.FORM_ID));
-        updateValues.put(DataTableColumns.LOCALE, serverRow.getRawStringByKey(DataTableColumns.LOCALE));
-        updateValues.put(DataTableColumns.SAVEPOINT_TYPE,
-            serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TYPE));
-        updateValues.put(DataTableColumns.SAVEPOINT_TIMESTAMP,
-            serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TIMESTAMP));
-        updateValues.put(DataTableColumns.SAVEPOINT_CREATOR,
-            serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_CREATOR));
-
-        // including the values of the user fields on the server
-        for (String elementKey : orderedColumns.getRetentionColumnNames()) {
-          updateValues.put(elementKey, serverRow.getRawStringByKey(elementKey));
-        }
-      }
-
-      // delete the record of the server row
-      deleteServerConflictRowWithId(db, tableId, rowId);
-
-      // move the local conflict back into the normal non-conflict (null) state
-      // set the sync state to "changed" temporarily (otherwise we can't update)
-
-      restoreRowFromConflict(db, tableId, rowId, SyncState.changed, localConflictType);
-
-      // update local with the changes
-      updateRowWithId(db, tableId, orderedColumns, updateValues, activeUser, rolesList,
-          locale);
-
-      // update as if user has admin privileges.
-      // do this so we can update the filter type and filter value
-      updateRowWithId( db, tableId, orderedColumns, privilegedUpdateValues,
-          activeUser, RoleConsts.ADMIN_ROLES_LIST, locale);
-
-      // and if we are deleting, try to delete it.
-      // this may throw an ActionNotAuthorizedException
-      if ( finalSyncState == SyncState.deleted ) {
-        deleteRowWithId(db, tableId, rowId, activeUser, rolesList);
-      }
+      internalResolveServerConflictTakeLocalRowWithId(db, tableId, rowId, orderedColumns,
+          localRow, serverRow, activeUser, rolesList, locale);
 
       if (!inTransaction) {
         db.setTransactionSuccessful();
@@ -4342,41 +4564,161 @@ public final class ODKDatabaseImplUtils {
   }
 
   /**
-   * Resolve the server conflict by taking the local changes plus a value map
-   * of select server field values.  This map should not update any metadata
-   * fields -- it should just contain user data fields.
-   * <p/>
-   * It is an error to call this if the local change is to delete the row.
+   * Resolve the server conflict by taking the local changes, given the
+   * already-fetched local and server conflict rows.
    *
    * @param db
    * @param tableId
-   * @param cvValues   key-value pairs from the server record that we should incorporate.
    * @param rowId
+   * @param orderedColumns
+   * @param localRow
+   * @param serverRow
    * @param activeUser
    * @param rolesList
    * @param locale
    */
-  public void resolveServerConflictTakeLocalRowPlusServerDeltasWithId(OdkConnectionInterface db,
-      String tableId, ContentValues cvValues, String rowId, String activeUser,
-      String rolesList, String locale) throws ActionNotAuthorizedException {
-
-    // TODO: if rolesList does not contain RoleConsts.ROLE_SUPER_USER or RoleConsts.ROLE_ADMINISTRATOR
-    // TODO: then take the server's rowFilterScope rather than the user's values of those.
-    // TODO: and apply the update only if the user roles support that update.
+  private void internalResolveServerConflictTakeLocalRowWithId(OdkConnectionInterface db,
+      String tableId, String rowId, OrderedColumns orderedColumns, Row localRow, Row serverRow,
+      String activeUser, String rolesList, String locale) throws ActionNotAuthorizedException {
 
-    // I.e., if the user is super-user or higher, we should take local FilterScope.
-    // otherwise, we should take server FilterScope. Or should we allow user to select
-    // which to take?
+    int localConflictType = Integer
+        .parseInt(localRow.getRawStringByKey(DataTableColumns.CONFLICT_TYPE));
 
-    boolean inTransaction = false;
-    try {
+    int serverConflictType = Integer
+        .parseInt(serverRow.getRawStringByKey(DataTableColumns.CONFLICT_TYPE));
 
-      inTransaction = db.inTransaction();
-      if (!inTransaction) {
-        db.beginTransactionNonExclusive();
-      }
+    if (localConflictType != ConflictType.LOCAL_UPDATED_UPDATED_VALUES
+        && localConflictType != ConflictType.LOCAL_DELETED_OLD_VALUES) {
+      throw new IllegalStateException(
+          "Did not find local conflict row when resolving conflicts for rowId: " + rowId);
+    }
 
-      OrderedColumns orderedColumns = getUserDefinedColumns(db, tableId);
+    if (serverConflictType != ConflictType.SERVER_UPDATED_UPDATED_VALUES
+        && serverConflictType != ConflictType.SERVER_DELETED_OLD_VALUES) {
+      throw new IllegalStateException(
+          "Did not find server conflict row when resolving conflicts for rowId: " + rowId);
+    }
+
+    // update what was the local conflict record with the local's changes
+    // by the time we apply the update, the local conflict record will be
+    // restored to the proper (conflict_type, sync_state) values.
+    //
+    // No need to specify them here.
+    TreeMap<String,Object> updateValues = new TreeMap<String,Object>();
+    updateValues.put(DataTableColumns.ID, rowId);
+    updateValues
+        .put(DataTableColumns.ROW_ETAG, serverRow.getRawStringByKey(DataTableColumns.ROW_ETAG));
+
+    // take the server's filter metadata values ...
+    TreeMap<String,Object> privilegedUpdateValues = new TreeMap<String,Object>();
+    privilegedUpdateValues.put(DataTableColumns.ID, rowId);
+    privilegedUpdateValues.put(DataTableColumns.DEFAULT_ACCESS,
+        serverRow.getRawStringByKey(DataTableColumns.DEFAULT_ACCESS));
+    privilegedUpdateValues.put(DataTableColumns.ROW_OWNER,
+        serverRow.getRawStringByKey(DataTableColumns.ROW_OWNER));
+    privilegedUpdateValues.put(DataTableColumns.GROUP_READ_ONLY,
+        serverRow.getRawStringByKey(DataTableColumns.GROUP_READ_ONLY));
+    privilegedUpdateValues.put(DataTableColumns.GROUP_MODIFY,
+        serverRow.getRawStringByKey(DataTableColumns.GROUP_MODIFY));
+    privilegedUpdateValues.put(DataTableColumns.GROUP_PRIVILEGED,
+        serverRow.getRawStringByKey(DataTableColumns.GROUP_PRIVILEGED));
+    privilegedUpdateValues.put(DataTableColumns.SAVEPOINT_TIMESTAMP,
+        serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TIMESTAMP));
+    privilegedUpdateValues.put(DataTableColumns.SAVEPOINT_CREATOR,
+        serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_CREATOR));
+
+    // Figure out whether to take the server or local metadata fields.
+    // and whether to take the server or local data fields.
+
+    SyncState finalSyncState = SyncState.changed;
+
+    if (localConflictType == ConflictType.LOCAL_UPDATED_UPDATED_VALUES) {
+      // We are updating -- preserve the local metadata and column values
+      // this is a no-op, as we are updating the local record, so we don't
+      // need to do anything special.
+    } else {
+      finalSyncState = SyncState.deleted;
+
+      // Deletion is really a "TakeServerChanges" action, but ending with 'deleted' as
+      // the final sync state.
+
+      // copy everything over from the server row
+      updateValues
+          .put(DataTableColumns.FORM_ID, serverRow.getRawStringByKey(DataTableColumns.FORM_ID));
+      updateValues.put(DataTableColumns.LOCALE, serverRow.getRawStringByKey(DataTableColumns.LOCALE));
+      updateValues.put(DataTableColumns.SAVEPOINT_TYPE,
+          serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TYPE));
+      updateValues.put(DataTableColumns.SAVEPOINT_TIMESTAMP,
+          serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_TIMESTAMP));
+      updateValues.put(DataTableColumns.SAVEPOINT_CREATOR,
+          serverRow.getRawStringByKey(DataTableColumns.SAVEPOINT_CREATOR));
+
+      // including the values of the user fields on the server
+      for (String elementKey : orderedColumns.getRetentionColumnNames()) {
+        updateValues.put(elementKey, serverRow.getRawStringByKey(elementKey));
+      }
+    }
+
+    // delete the record of the server row
+    deleteServerConflictRowWithId(db, tableId, rowId);
+
+    // move the local conflict back into the normal non-conflict (null) state
+    // set the sync state to "changed" temporarily (otherwise we can't update)
+
+    restoreRowFromConflict(db, tableId, rowId, SyncState.changed, localConflictType);
+
+    // update local with the changes
+    updateRowWithId(db, tableId, orderedColumns, updateValues, activeUser, rolesList,
+        locale);
+
+    // update as if user has admin privileges.
+    // do this so we can update the filter type and filter value
+    updateRowWithId( db, tableId, orderedColumns, privilegedUpdateValues,
+        activeUser, RoleConsts.ADMIN_ROLES_LIST, locale);
+
+    // and if we are deleting, try to delete it.
+    // this may throw an ActionNotAuthorizedException
+    if ( finalSyncState == SyncState.deleted ) {
+      deleteRowWithId(db, tableId, rowId, activeUser, rolesList);
+    }
+  }
+
+  /**
+   * Resolve the server conflict by taking the local changes plus a value map
+   * of select server field values.  This map should not update any metadata
+   * fields -- it should just contain user data fields.
+   * <p/>
+   * It is an error to call this if the local change is to delete the row.
+   *
+   * @param db
+   * @param tableId
+   * @param cvValues   key-value pairs from the server record that we should incorporate.
+   * @param rowId
+   * @param activeUser
+   * @param rolesList
+   * @param locale
+   */
+  public void resolveServerConflictTakeLocalRowPlusServerDeltasWithId(OdkConnectionInterface db,
+      String tableId, ContentValues cvValues, String rowId, String activeUser,
+      String rolesList, String locale) throws ActionNotAuthorizedException {
+
+    // TODO: if rolesList does not contain RoleConsts.ROLE_SUPER_USER or RoleConsts.ROLE_ADMINISTRATOR
+    // TODO: then take the server's rowFilterScope rather than the user's values of those.
+    // TODO: and apply the update only if the user roles support that update.
+
+    // I.e., if the user is super-user or higher, we should take local FilterScope.
+    // otherwise, we should take server FilterScope. Or should we allow user to select
+    // which to take?
+
+    boolean inTransaction = false;
+    try {
+
+      inTransaction = db.inTransaction();
+      if (!inTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      OrderedColumns orderedColumns = getUserDefinedColumns(db, tableId);
 
       AccessContext accessContext = getAccessContext(db, tableId, activeUser,
           RoleConsts.ADMIN_ROLES_LIST);
@@ -4559,6 +4901,190 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  /**
+   * Fetch all of the in-conflict rows of the table in one query and pair them
+   * up by rowId. The local record is always before the server record (due to
+   * conflict_type values).
+   *
+   * @param db
+   * @param tableId
+   * @param accessContext
+   * @param skipped rowIds that do not have exactly one local and one server
+   *                conflict row are added here, with the reason.
+   * @return list of { localRow, serverRow } pairs
+   */
+  private List<Row[]> getServerConflictRowPairs(OdkConnectionInterface db, String tableId,
+      AccessContext accessContext, Map<String,String> skipped) {
+
+    BaseTable table = privilegedQuery(db, tableId,
+        QueryUtil.buildSqlStatement(tableId, DataTableColumns.CONFLICT_TYPE + S_IS_NOT_NULL,
+            null, null, new String[] { DataTableColumns.ID, DataTableColumns.CONFLICT_TYPE },
+            new String[] { "ASC", "ASC" }), null, null, accessContext);
+
+    List<Row[]> pairs = new ArrayList<Row[]>();
+    int i = 0;
+    while (i < table.getNumberOfRows()) {
+      String rowId = table.getRowAtIndex(i).getRawStringByKey(DataTableColumns.ID);
+      int j = i + 1;
+      while (j < table.getNumberOfRows() &&
+          rowId.equals(table.getRowAtIndex(j).getRawStringByKey(DataTableColumns.ID))) {
+        ++j;
+      }
+      if (j - i != 2) {
+        skipped.put(rowId,
+            "Did not find a server and local row when resolving conflicts for rowId: " + rowId);
+      } else {
+        pairs.add(new Row[] { table.getRowAtIndex(i), table.getRowAtIndex(i + 1) });
+      }
+      i = j;
+    }
+    return pairs;
+  }
+
+  /**
+   * Resolve all the server conflicts in the table by taking the local changes.
+   * This is the bulk form of resolveServerConflictTakeLocalRowWithId:
+   * the conflict rows are read in one query and all rows are resolved within a
+   * single transaction. Rows for which the user does not have the privileges to
+   * apply the local change (modify or, for a local delete, delete) are left in
+   * conflict and reported.
+   *
+   * @param db
+   * @param tableId
+   * @param activeUser
+   * @param rolesList
+   * @param locale
+   * @return map of rowId to the reason that row was skipped
+   */
+  public Map<String,String> resolveAllServerConflictsTakeLocalRows(OdkConnectionInterface db,
+      String tableId, String activeUser, String rolesList, String locale) {
+
+    Map<String,String> skipped = new LinkedHashMap<String,String>();
+
+    boolean inTransaction = false;
+    try {
+
+      inTransaction = db.inTransaction();
+      if (!inTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      OrderedColumns orderedColumns = getUserDefinedColumns(db, tableId);
+
+      AccessContext accessContext = getAccessContext(db, tableId, activeUser,
+          RoleConsts.ADMIN_ROLES_LIST);
+
+      List<String> rolesArray = getRolesArray(rolesList);
+      TableSecuritySettings tss = getTableSecuritySettings(db, tableId);
+
+      for (Row[] pair : getServerConflictRowPairs(db, tableId, accessContext, skipped)) {
+        Row localRow = pair[0];
+        Row serverRow = pair[1];
+        String rowId = localRow.getRawStringByKey(DataTableColumns.ID);
+
+        // verify up front the row-level access checks that the per-row
+        // resolution applies, so that nothing is changed for a skipped row.
+        try {
+          tss.allowRowChange(activeUser, rolesArray, SyncState.changed.name(),
+              localRow.getRawStringByKey(DataTableColumns.DEFAULT_ACCESS),
+              localRow.getRawStringByKey(DataTableColumns.ROW_OWNER),
+              localRow.getRawStringByKey(DataTableColumns.GROUP_READ_ONLY),
+              localRow.getRawStringByKey(DataTableColumns.GROUP_MODIFY),
+              localRow.getRawStringByKey(DataTableColumns.GROUP_PRIVILEGED),
+              RowChange.CHANGE_ROW);
+
+          int localConflictType = Integer
+              .parseInt(localRow.getRawStringByKey(DataTableColumns.CONFLICT_TYPE));
+          if (localConflictType == ConflictType.LOCAL_DELETED_OLD_VALUES) {
+            // the delete is applied after the server's filter values are taken
+            tss.allowRowChange(activeUser, rolesArray, SyncState.changed.name(),
+                serverRow.getRawStringByKey(DataTableColumns.DEFAULT_ACCESS),
+                serverRow.getRawStringByKey(DataTableColumns.ROW_OWNER),
+                serverRow.getRawStringByKey(DataTableColumns.GROUP_READ_ONLY),
+                serverRow.getRawStringByKey(DataTableColumns.GROUP_MODIFY),
+                serverRow.getRawStringByKey(DataTableColumns.GROUP_PRIVILEGED),
+                RowChange.DELETE_ROW);
+          }
+        } catch (ActionNotAuthorizedException e) {
+          skipped.put(rowId, e.getMessage());
+          continue;
+        }
+
+        try {
+          internalResolveServerConflictTakeLocalRowWithId(db, tableId, rowId, orderedColumns,
+              localRow, serverRow, activeUser, rolesList, locale);
+        } catch (ActionNotAuthorizedException e) {
+          // the access checks above should have prevented this
+          WebLogger.getLogger(db.getAppName()).printStackTrace(e);
+          throw new IllegalStateException(e);
+        }
+      }
+
+      if (!inTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (db != null) {
+        if (!inTransaction) {
+          db.endTransaction();
+        }
+      }
+    }
+    return skipped;
+  }
+
+  /**
+   * Resolve all the server conflicts in the table by taking the server changes.
+   * This is the bulk form of resolveServerConflictTakeServerRowWithId:
+   * the conflict rows are read in one query and all rows are resolved within a
+   * single transaction. This may delete local rows.
+   *
+   * @param db
+   * @param tableId
+   * @param activeUser
+   * @param locale
+   * @return map of rowId to the reason that row was skipped
+   */
+  public Map<String,String> resolveAllServerConflictsTakeServerRows(OdkConnectionInterface db,
+      String tableId, String activeUser, String locale) {
+
+    Map<String,String> skipped = new LinkedHashMap<String,String>();
+
+    boolean inTransaction = false;
+    try {
+
+      inTransaction = db.inTransaction();
+      if (!inTransaction) {
+        db.beginTransactionNonExclusive();
+      }
+
+      OrderedColumns orderedColumns = getUserDefinedColumns(db, tableId);
+
+      AccessContext accessContext = getAccessContext(db, tableId, activeUser,
+          RoleConsts.ADMIN_ROLES_LIST);
+
+      for (Row[] pair : getServerConflictRowPairs(db, tableId, accessContext, skipped)) {
+        Row localRow = pair[0];
+        Row serverRow = pair[1];
+        String rowId = localRow.getRawStringByKey(DataTableColumns.ID);
+
+        internalResolveServerConflictTakeServerRowWithId(db, tableId, rowId,
+            orderedColumns, null, serverRow, localRow, activeUser, locale);
+      }
+
+      if (!inTransaction) {
+        db.setTransactionSuccessful();
+      }
+    } finally {
+      if (db != null) {
+        if (!inTransaction) {
+          db.endTransaction();
+        }
+      }
+    }
+    return skipped;
+  }
+
   /**
    * Resolve the server conflict by taking the server changes.  This may delete the local row.
    *
@@ -5847,6 +6373,455 @@ public final class ODKDatabaseImplUtils {
     }
   }
 
+  /**
+   * Prepare the per-table statements that syncing a table issues for each row
+   * (fetch by rowId and the rowETag / sync state update) so that they are in the
+   * connection's prepared-statement cache before the first row is processed.
+   * The key-value-store lookups bind the tableId and are shared across tables,
+   * so they do not need to be warmed per table.
+   *
+   * @param db
+   * @param tableId
+   * @return the number of statements that were newly prepared
+   */
+  public int warmPreparedStatements(OdkConnectionInterface db, String tableId) {
+    ArrayList<String> sqlStatements = new ArrayList<String>();
+
+    // the probe issued by rawQuery(...) before privilegedUpdateRowETagAndSyncState's query
+    StringBuilder b = new StringBuilder();
+    b.append(K_SELECT_FROM).append(tableId).append(K_WHERE).append(K_DATATABLE_ID_EQUALS_PARAM);
+    sqlStatements.add(b.toString() + " LIMIT 1");
+
+    // the probe issued by rawQuery(...) for getRowsWithId and privilegedGetRowsWithId
+    sqlStatements.add(QueryUtil.buildSqlStatement(tableId,
+        QueryUtil.WHERE_CLAUSE_ROWS_WITH_ID_EQUALS, null, null,
+        QueryUtil.ORDER_BY_SAVEPOINT_TIMESTAMP, QueryUtil.ORDER_BY_DESCENDING) + " LIMIT 1");
+
+    // the update issued by privilegedUpdateRowETagAndSyncState (keys are in TreeMap order)
+    b.setLength(0);
+    b.append("UPDATE ").append(tableId).append(" SET ")
+        .append(DataTableColumns.ROW_ETAG).append("=?,")
+        .append(DataTableColumns.SYNC_STATE).append("=?")
+        .append(K_WHERE).append(K_DATATABLE_ID_EQUALS_PARAM);
+    sqlStatements.add(b.toString());
+
+    return db.warmPreparedStatements(sqlStatements);
+  }
+
+  /**
+   * Build the query that returns which of a set of rowIds have exactly one record
+   * in the table (i.e., are neither in conflict nor have checkpoints).
+   *
+   * @param tableId
+   * @param rowIds  no more than MAX_ROWS_PER_ETAG_UPDATE row ids
+   * @param bindArgs  receives the bind arguments for the query
+   * @return the SELECT statement; its only column is the rowId
+   */
+  public String buildSingleRecordRowIdsQuery(String tableId, List<String> rowIds,
+      List<Object> bindArgs) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ").append(DataTableColumns.ID).append(" FROM ").append(tableId);
+    appendSingleRecordRowIdsClause(b, rowIds, bindArgs);
+    return b.toString();
+  }
+
+  /**
+   * Build the statement that sets the rowETag and sync state of a set of rows.
+   * As with {@link #privilegedUpdateRowETagAndSyncState}, a rowId is only updated
+   * if it has exactly one record (i.e., no conflicts or checkpoints). Other rowIds
+   * are left unchanged rather than failing the statement.
+   * <p>
+   * The sync issues this through privilegedExecute, so it is a single statement
+   * and is applied atomically.
+   *
+   * @param tableId
+   * @param rowIds  no more than MAX_ROWS_PER_ETAG_UPDATE row ids
+   * @param rowETags  the new rowETag of each of the rowIds
+   * @param state  the new sync state of the rows
+   * @param bindArgs  receives the bind arguments for the statement
+   * @return the UPDATE statement
+   */
+  public String buildPrivilegedUpdateRowETagsAndSyncState(String tableId, List<String> rowIds,
+      List<String> rowETags, SyncState state, List<Object> bindArgs) {
+    if (rowIds.size() != rowETags.size()) {
+      throw new IllegalArgumentException(t + ": rowIds and rowETags must have the same size");
+    }
+    if (rowIds.isEmpty() || rowIds.size() > MAX_ROWS_PER_ETAG_UPDATE) {
+      throw new IllegalArgumentException(t + ": between 1 and " + MAX_ROWS_PER_ETAG_UPDATE
+          + " rowIds must be specified");
+    }
+
+    StringBuilder b = new StringBuilder();
+    b.append("UPDATE ").append(tableId).append(" SET ").append(DataTableColumns.SYNC_STATE)
+        .append(" = ?, ").append(DataTableColumns.ROW_ETAG).append(" = CASE ")
+        .append(DataTableColumns.ID);
+    bindArgs.add(state.name());
+    for (int i = 0; i < rowIds.size(); ++i) {
+      b.append(" WHEN ? THEN ?");
+      bindArgs.add(rowIds.get(i));
+      bindArgs.add(rowETags.get(i));
+    }
+    b.append(" END").append(K_WHERE).append(DataTableColumns.ID).append(" IN (SELECT ")
+        .append(DataTableColumns.ID).append(" FROM ").append(tableId);
+    appendSingleRecordRowIdsClause(b, rowIds, bindArgs);
+    b.append(")");
+    return b.toString();
+  }
+
+  private void appendSingleRecordRowIdsClause(StringBuilder b, List<String> rowIds,
+      List<Object> bindArgs) {
+    b.append(K_WHERE).append(DataTableColumns.ID).append(" IN (");
+    for (int i = 0; i < rowIds.size(); ++i) {
+      if (i != 0) {
+        b.append(",");
+      }
+      b.append("?");
+    }
+    b.append(") GROUP BY ").append(DataTableColumns.ID).append(" HAVING COUNT(*) = 1");
+    bindArgs.addAll(rowIds);
+  }
+
+  /**
+   * The local-only table into which the sync stages a page of server row changes
+   * before classifying and applying them with set-based statements.
+   *
+   * @param tableId
+   * @return name of the staging table
+   */
+  public String getServerRowStagingTableName(String tableId) {
+    return "L_M__" + tableId;
+  }
+
+  /**
+   * The columns of a staged server row, in the order used by
+   * {@link #buildInsertServerRowsIntoStaging}: the admin columns followed by the
+   * retained user columns. The server supplies a value for every one of these.
+   *
+   * @param orderedColumns
+   * @return the staging column names
+   */
+  public List<String> getServerRowStagingColumns(OrderedColumns orderedColumns) {
+    ArrayList<String> columns = new ArrayList<String>(ADMIN_COLUMNS);
+    columns.addAll(orderedColumns.getRetentionColumnNames());
+    return columns;
+  }
+
+  /**
+   * Build the statement that creates an empty staging table with the columns of
+   * the data table plus the {@link #SERVER_ROW_ACTION} column. The caller drops any
+   * prior staging table first (see {@link #buildDropServerRowStagingTable}).
+   *
+   * @param tableId
+   * @return the CREATE TABLE statement
+   */
+  public String buildCreateServerRowStagingTable(String tableId) {
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE TABLE ").append(getServerRowStagingTableName(tableId))
+        .append(" AS SELECT *, NULL AS ").append(SERVER_ROW_ACTION).append(" FROM ")
+        .append(tableId).append(" WHERE 0");
+    return b.toString();
+  }
+
+  /**
+   * Build the statement that indexes the staging table by rowId.
+   *
+   * @param tableId
+   * @return the CREATE INDEX statement
+   */
+  public String buildCreateServerRowStagingIndex(String tableId) {
+    String stagingTable = getServerRowStagingTableName(tableId);
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE INDEX ").append(stagingTable).append("_id ON ").append(stagingTable)
+        .append(" (").append(DataTableColumns.ID).append(")");
+    return b.toString();
+  }
+
+  /**
+   * @param tableId
+   * @return the statement that drops the staging table, if it exists
+   */
+  public String buildDropServerRowStagingTable(String tableId) {
+    return "DROP TABLE IF EXISTS " + getServerRowStagingTableName(tableId);
+  }
+
+  /**
+   * Build a multi-row INSERT of server rows into the staging table. Each row binds
+   * one argument per staging column, in the order of {@code columns}.
+   *
+   * @param tableId
+   * @param columns  from {@link #getServerRowStagingColumns}
+   * @param rowCount  rows in this statement; rowCount * columns.size() must not
+   *                  exceed MAX_BIND_ARGS_PER_STAGING_INSERT
+   * @return the INSERT statement
+   */
+  public String buildInsertServerRowsIntoStaging(String tableId, List<String> columns,
+      int rowCount) {
+    if (rowCount < 1 || rowCount * columns.size() > MAX_BIND_ARGS_PER_STAGING_INSERT) {
+      throw new IllegalArgumentException(t + ": between 1 and "
+          + (MAX_BIND_ARGS_PER_STAGING_INSERT / columns.size()) + " rows must be specified");
+    }
+    StringBuilder values = new StringBuilder();
+    values.append("(");
+    for (int i = 0; i < columns.size(); ++i) {
+      if (i != 0) {
+        values.append(",");
+      }
+      values.append("?");
+    }
+    values.append(")");
+
+    StringBuilder b = new StringBuilder();
+    b.append("INSERT INTO ").append(getServerRowStagingTableName(tableId)).append(" (");
+    appendColumnList(b, columns);
+    b.append(") VALUES ");
+    for (int i = 0; i < rowCount; ++i) {
+      if (i != 0) {
+        b.append(",");
+      }
+      b.append(values);
+    }
+    return b.toString();
+  }
+
+  /**
+   * Build the query that counts the checkpoint records of the staged rowIds. The
+   * pull cannot be applied to a table with checkpoints on any of these rows.
+   *
+   * @param tableId
+   * @return the SELECT statement; its only column is rowCount
+   */
+  public String buildCountServerRowCheckpoints(String tableId) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT COUNT(*) AS rowCount FROM ").append(tableId).append(K_WHERE)
+        .append(DataTableColumns.ID).append(" IN (SELECT ").append(DataTableColumns.ID)
+        .append(" FROM ").append(getServerRowStagingTableName(tableId)).append(")")
+        .append(S_AND).append(DataTableColumns.SAVEPOINT_TYPE).append(S_IS_NULL);
+    return b.toString();
+  }
+
+  /**
+   * Build the statement that assigns a {@link ServerRowAction} to every staged row.
+   * Only a lone, non-conflicting synced or synced_pending_files local row is updated
+   * or deleted in bulk; any other local row is a CONFLICT and is handled through
+   * {@link #privilegedPerhapsPlaceRowIntoConflictWithId}. The staged _sync_state is
+   * "deleted" if the server deleted the row.
+   *
+   * @param tableId
+   * @param bindArgs  receives the bind arguments for the statement
+   * @return the UPDATE statement
+   */
+  public String buildClassifyServerRows(String tableId, List<Object> bindArgs) {
+    String stagingTable = getServerRowStagingTableName(tableId);
+    String stagedId = stagingTable + "." + DataTableColumns.ID;
+    String stagedSyncState = stagingTable + "." + DataTableColumns.SYNC_STATE;
+
+    StringBuilder b = new StringBuilder();
+    b.append("UPDATE ").append(stagingTable).append(" SET ").append(SERVER_ROW_ACTION)
+        .append(" = CASE WHEN NOT EXISTS (SELECT 1 FROM ").append(tableId).append(" AS D WHERE D.")
+        .append(DataTableColumns.ID).append(" = ").append(stagedId).append(")")
+        .append(" THEN CASE WHEN ").append(stagedSyncState).append(" = ? THEN ? ELSE ? END")
+        .append(" WHEN (SELECT COUNT(*) FROM ").append(tableId).append(" AS D WHERE D.")
+        .append(DataTableColumns.ID).append(" = ").append(stagedId).append(") = 1")
+        .append(" AND EXISTS (SELECT 1 FROM ").append(tableId).append(" AS D WHERE D.")
+        .append(DataTableColumns.ID).append(" = ").append(stagedId)
+        .append(" AND D.").append(DataTableColumns.CONFLICT_TYPE).append(S_IS_NULL)
+        .append(" AND D.").append(DataTableColumns.SYNC_STATE).append(" IN (?, ?))")
+        .append(" THEN CASE WHEN ").append(stagedSyncState).append(" = ? THEN ? ELSE ? END")
+        .append(" ELSE ? END");
+    bindArgs.add(SyncState.deleted.name());
+    bindArgs.add(ServerRowAction.NONE.name());
+    bindArgs.add(ServerRowAction.INSERT.name());
+    bindArgs.add(SyncState.synced.name());
+    bindArgs.add(SyncState.synced_pending_files.name());
+    bindArgs.add(SyncState.deleted.name());
+    bindArgs.add(ServerRowAction.DELETE.name());
+    bindArgs.add(ServerRowAction.UPDATE.name());
+    bindArgs.add(ServerRowAction.CONFLICT.name());
+    return b.toString();
+  }
+
+  /**
+   * Build the statement that sets the sync state the INSERT and UPDATE staged rows
+   * will have once applied. An inserted row is synced_pending_files if it has any
+   * attachment; a synced row becomes synced_pending_files if the server changed an
+   * attachment. This matches {@link #privilegedPerhapsPlaceRowIntoConflictWithId}.
+   *
+   * @param tableId
+   * @param orderedColumns
+   * @param bindArgs  receives the bind arguments for the statement
+   * @return the UPDATE statement
+   */
+  public String buildSetServerRowSyncStates(String tableId, OrderedColumns orderedColumns,
+      List<Object> bindArgs) {
+    String stagingTable = getServerRowStagingTableName(tableId);
+
+    ArrayList<String> rowpathColumns = new ArrayList<String>();
+    for (ColumnDefinition cd : orderedColumns.getColumnDefinitions()) {
+      // todo: does not handle array containing (types containing) rowpath elements
+      if (cd.isUnitOfRetention() && cd.getType().getDataType().equals(ElementDataType.rowpath)) {
+        rowpathColumns.add(cd.getElementKey());
+      }
+    }
+
+    StringBuilder b = new StringBuilder();
+    b.append("UPDATE ").append(stagingTable).append(" SET ").append(DataTableColumns.CONFLICT_TYPE)
+        .append(" = NULL, ").append(DataTableColumns.SYNC_STATE).append(" = CASE WHEN ")
+        .append(SERVER_ROW_ACTION).append(" = ? THEN ");
+    bindArgs.add(ServerRowAction.INSERT.name());
+    if (rowpathColumns.isEmpty()) {
+      b.append("?");
+      bindArgs.add(SyncState.synced.name());
+    } else {
+      b.append("CASE WHEN ");
+      for (int i = 0; i < rowpathColumns.size(); ++i) {
+        if (i != 0) {
+          b.append(" OR ");
+        }
+        b.append(stagingTable).append(".").append(rowpathColumns.get(i)).append(S_IS_NOT_NULL);
+      }
+      b.append(" THEN ? ELSE ? END");
+      bindArgs.add(SyncState.synced_pending_files.name());
+      bindArgs.add(SyncState.synced.name());
+    }
+    b.append(" ELSE (SELECT ");
+    if (rowpathColumns.isEmpty()) {
+      b.append("D.").append(DataTableColumns.SYNC_STATE);
+    } else {
+      b.append("CASE WHEN D.").append(DataTableColumns.SYNC_STATE).append(" = ? AND (");
+      bindArgs.add(SyncState.synced.name());
+      for (int i = 0; i < rowpathColumns.size(); ++i) {
+        String stagedValue = stagingTable + "." + rowpathColumns.get(i);
+        String localValue = "D." + rowpathColumns.get(i);
+        if (i != 0) {
+          b.append(" OR ");
+        }
+        b.append("(").append(stagedValue).append(S_IS_NOT_NULL).append(" AND (")
+            .append(localValue).append(S_IS_NULL).append(" OR ").append(localValue)
+            .append(" <> ").append(stagedValue).append("))");
+      }
+      b.append(") THEN ? ELSE D.").append(DataTableColumns.SYNC_STATE).append(" END");
+      bindArgs.add(SyncState.synced_pending_files.name());
+    }
+    b.append(" FROM ").append(tableId).append(" AS D WHERE D.").append(DataTableColumns.ID)
+        .append(" = ").append(stagingTable).append(".").append(DataTableColumns.ID)
+        .append(") END").append(K_WHERE).append(SERVER_ROW_ACTION).append(" IN (?, ?)");
+    bindArgs.add(ServerRowAction.INSERT.name());
+    bindArgs.add(ServerRowAction.UPDATE.name());
+    return b.toString();
+  }
+
+  /**
+   * @param tableId
+   * @return the query returning the rowId and {@link #SERVER_ROW_ACTION} of each staged row
+   */
+  public String buildSelectServerRowActions(String tableId) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ").append(DataTableColumns.ID).append(", ").append(SERVER_ROW_ACTION)
+        .append(" FROM ").append(getServerRowStagingTableName(tableId));
+    return b.toString();
+  }
+
+  /**
+   * Build a where clause on the data table selecting the rows whose staged server
+   * row has the given action. Used to fetch the synced_pending_files rows the server
+   * deleted, so their attachments can be pushed first.
+   *
+   * @param tableId
+   * @param action
+   * @param bindArgs  receives the bind arguments for the clause
+   * @return the where clause
+   */
+  public String buildServerRowActionWhereClause(String tableId, ServerRowAction action,
+      List<Object> bindArgs) {
+    StringBuilder b = new StringBuilder();
+    b.append(DataTableColumns.ID).append(" IN (SELECT ").append(DataTableColumns.ID)
+        .append(" FROM ").append(getServerRowStagingTableName(tableId)).append(K_WHERE)
+        .append(SERVER_ROW_ACTION).append(S_EQUALS_PARAM).append(")");
+    bindArgs.add(action.name());
+    return b.toString();
+  }
+
+  /**
+   * Build the statement that deletes the local rows the server deleted (DELETE).
+   * Their instance folders are removed by the caller.
+   *
+   * @param tableId
+   * @param bindArgs  receives the bind arguments for the statement
+   * @return the DELETE statement
+   */
+  public String buildApplyServerRowDeletes(String tableId, List<Object> bindArgs) {
+    StringBuilder b = new StringBuilder();
+    b.append("DELETE FROM ").append(tableId).append(K_WHERE)
+        .append(buildServerRowActionWhereClause(tableId, ServerRowAction.DELETE, bindArgs));
+    return b.toString();
+  }
+
+  /**
+   * Build the statement that overwrites the local rows with the staged server
+   * values (UPDATE).
+   *
+   * @param tableId
+   * @param orderedColumns
+   * @param bindArgs  receives the bind arguments for the statement
+   * @return the UPDATE statement
+   */
+  public String buildApplyServerRowUpdates(String tableId, OrderedColumns orderedColumns,
+      List<Object> bindArgs) {
+    String stagingTable = getServerRowStagingTableName(tableId);
+
+    StringBuilder b = new StringBuilder();
+    b.append("UPDATE ").append(tableId).append(" SET ");
+    boolean first = true;
+    for (String column : getServerRowStagingColumns(orderedColumns)) {
+      if (DataTableColumns.ID.equals(column)) {
+        continue;
+      }
+      if (!first) {
+        b.append(", ");
+      }
+      first = false;
+      b.append(column).append(" = (SELECT S.").append(column).append(" FROM ")
+          .append(stagingTable).append(" AS S WHERE S.").append(DataTableColumns.ID)
+          .append(" = ").append(tableId).append(".").append(DataTableColumns.ID).append(")");
+    }
+    b.append(K_WHERE)
+        .append(buildServerRowActionWhereClause(tableId, ServerRowAction.UPDATE, bindArgs));
+    return b.toString();
+  }
+
+  /**
+   * Build the statement that inserts the staged server rows that are absent
+   * locally (INSERT).
+   *
+   * @param tableId
+   * @param orderedColumns
+   * @param bindArgs  receives the bind arguments for the statement
+   * @return the INSERT statement
+   */
+  public String buildApplyServerRowInserts(String tableId, OrderedColumns orderedColumns,
+      List<Object> bindArgs) {
+    List<String> columns = getServerRowStagingColumns(orderedColumns);
+
+    StringBuilder b = new StringBuilder();
+    b.append("INSERT INTO ").append(tableId).append(" (");
+    appendColumnList(b, columns);
+    b.append(") SELECT ");
+    appendColumnList(b, columns);
+    b.append(" FROM ").append(getServerRowStagingTableName(tableId)).append(K_WHERE)
+        .append(SERVER_ROW_ACTION).append(S_EQUALS_PARAM);
+    bindArgs.add(ServerRowAction.INSERT.name());
+    return b.toString();
+  }
+
+  private void appendColumnList(StringBuilder b, List<String> columns) {
+    for (int i = 0; i < columns.size(); ++i) {
+      if (i != 0) {
+        b.append(", ");
+      }
+      b.append(columns.get(i));
+    }
+  }
+
   /**
    * If the caller specified a complex json value for a structured type, flush
    * the value through to the individual columns.
@@ -5962,6 +6937,58 @@ public final class ODKDatabaseImplUtils {
     commonTableDefn(db);
   }
 
+  /**
+   * Bring an existing database up to date with the derived tables, indexes
+   * and triggers that were introduced after it was created. Idempotent.
+   * Each set is installed (and its data tables backfilled) only if its stored
+   * version is out of date; otherwise this just reads those versions.
+   *
+   * @param db
+   */
+  public static void upgradeDatabase(OdkConnectionInterface db) {
+    derivedTableDefn(db);
+  }
+
+  /**
+   * @param db
+   * @param name  the set of derived tables, indexes and triggers (e.g., the change journal)
+   * @return the version of it that is installed in this database, or 0 if none.
+   */
+  static int getDerivedSchemaVersion(OdkConnectionInterface db, String name) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT ").append(K_DERIVED_SCHEMA_VERSION).append(" FROM ")
+        .append(DERIVED_SCHEMA_VERSIONS_TABLE_NAME).append(K_WHERE)
+        .append(K_DERIVED_SCHEMA_NAME).append(S_EQUALS_PARAM);
+    Cursor c = null;
+    try {
+      c = db.rawQuery(b.toString(), new Object[] { name });
+      if (c.moveToFirst() && !c.isNull(0)) {
+        return c.getInt(0);
+      }
+      return 0;
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Record the version of a set of derived tables, indexes and triggers that
+   * has been installed in this database.
+   *
+   * @param db
+   * @param name
+   * @param version
+   */
+  static void setDerivedSchemaVersion(OdkConnectionInterface db, String name, int version) {
+    StringBuilder b = new StringBuilder();
+    b.append("INSERT OR REPLACE INTO ").append(DERIVED_SCHEMA_VERSIONS_TABLE_NAME).append(" (")
+        .append(K_DERIVED_SCHEMA_NAME).append(", ").append(K_DERIVED_SCHEMA_VERSION)
+        .append(") VALUES (?, ?)");
+    db.execSQL(b.toString(), new Object[] { name, version });
+  }
+
   private static void commonTableDefn(OdkConnectionInterface db) {
     WebLogger.getLogger(db.getAppName()).i("commonTableDefn", "starting");
     WebLogger.getLogger(db.getAppName()).i("commonTableDefn", DatabaseConstants.UPLOADS_TABLE_NAME);
@@ -5988,6 +7015,24 @@ public final class ODKDatabaseImplUtils {
     WebLogger.getLogger(db.getAppName())
         .i("commonTableDefn", DatabaseConstants.CHOICE_LIST_TABLE_NAME);
     db.execSQL(ChoiceListColumns.getTableCreateSql(DatabaseConstants.CHOICE_LIST_TABLE_NAME), null);
+    derivedTableDefn(db);
     WebLogger.getLogger(db.getAppName()).i("commonTableDefn", "done");
   }
+
+  private static void derivedTableDefn(OdkConnectionInterface db) {
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE TABLE IF NOT EXISTS ").append(DERIVED_SCHEMA_VERSIONS_TABLE_NAME)
+        .append(" (").append(K_DERIVED_SCHEMA_NAME).append(" TEXT NOT NULL PRIMARY KEY, ")
+        .append(K_DERIVED_SCHEMA_VERSION).append(" INTEGER NOT NULL)");
+    db.execSQL(b.toString(), null);
+    WebLogger.getLogger(db.getAppName())
+        .i("derivedTableDefn", ChangeJournalUtils.CHANGE_JOURNAL_TABLE_NAME);
+    ChangeJournalUtils.initializeJournal(db);
+    WebLogger.getLogger(db.getAppName())
+        .i("derivedTableDefn", DatabaseConstants.UPLOADS_TABLE_NAME + " index");
+    UploadsIndexUtils.initializeUploadsIndex(db);
+    WebLogger.getLogger(db.getAppName())
+        .i("derivedTableDefn", DatabaseConstants.SYNC_ETAGS_TABLE_NAME + " index");
+    SyncETagsUtils.initializeSyncETagsIndex(db);
+  }
 }
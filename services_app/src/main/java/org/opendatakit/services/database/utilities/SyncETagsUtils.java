@@ -23,15 +23,167 @@ import org.opendatakit.services.database.OdkConnectionInterface;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public final class SyncETagsUtils {
 
+  /**
+   * The scheme://hostname prefix of the url, maintained by this class so that
+   * the ETags of a given server can be found and deleted through an index.
+   */
+  static final String SERVER_PREFIX = "_server_prefix";
+
+  private static final String URL_TABLE_ID_INDEX_NAME =
+      DatabaseConstants.SYNC_ETAGS_TABLE_NAME + "_url_table";
+
+  private static final String SERVER_PREFIX_INDEX_NAME =
+      DatabaseConstants.SYNC_ETAGS_TABLE_NAME + "_server_prefix";
+
+  /**
+   * Version of the server prefix column and the sync ETags indexes. Increment this
+   * when they change so that existing databases reinstall them.
+   */
+  private static final String DERIVED_SCHEMA_NAME = "sync_etags_index";
+  private static final int SYNC_ETAGS_INDEX_VERSION = 1;
+
+  /**
+   * Maximum number of file ETags deleted or inserted by one statement
+   * (6 bind arguments each, well under SQLite's limit of 999).
+   */
+  public static final int MAX_FILE_SYNC_ETAGS_PER_STATEMENT = 100;
+
+  /**
+   * The ETag of a file and the modification time of the local file when
+   * that ETag was recorded.
+   */
+  public static final class FileSyncETag {
+    public final long modified;
+    public final String eTag;
+
+    public FileSyncETag(long modified, String eTag) {
+      this.modified = modified;
+      this.eTag = eTag;
+    }
+  }
+
   /**
    * Methods are all static...
    */
   private SyncETagsUtils() {
   }
 
+  /**
+   * Add the server prefix column to the sync ETags table (filling it in for any
+   * existing ETags) and index the table by (url, tableId) and by server prefix.
+   * Invoked when the database is initialized or upgraded. Does nothing if the
+   * current version is already installed.
+   *
+   * @param db
+   */
+  public static final void initializeSyncETagsIndex(OdkConnectionInterface db) {
+
+    if (ODKDatabaseImplUtils.getDerivedSchemaVersion(db, DERIVED_SCHEMA_NAME)
+        >= SYNC_ETAGS_INDEX_VERSION) {
+      return;
+    }
+
+    boolean hasServerPrefix = false;
+    Cursor c = null;
+    try {
+      c = db.rawQuery("PRAGMA table_info(" + DatabaseConstants.SYNC_ETAGS_TABLE_NAME + ")", null);
+      if (c.moveToFirst()) {
+        int idxName = c.getColumnIndex("name");
+        do {
+          if (SERVER_PREFIX.equals(c.getString(idxName))) {
+            hasServerPrefix = true;
+          }
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    StringBuilder b = new StringBuilder();
+    if (!hasServerPrefix) {
+      b.append("ALTER TABLE ").append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME)
+       .append(" ADD COLUMN ").append(SERVER_PREFIX).append(" TEXT NULL");
+      db.execSQL(b.toString(), null);
+    }
+
+    // fill in the server prefix of any ETags recorded before the column existed
+    ArrayList<String> urls = new ArrayList<String>();
+    b.setLength(0);
+    b.append("SELECT DISTINCT ").append(SyncETagColumns.URL).append(" FROM ")
+     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" WHERE ")
+     .append(SyncETagColumns.URL).append(" IS NOT NULL AND ")
+     .append(SERVER_PREFIX).append(" IS NULL");
+    try {
+      c = db.rawQuery(b.toString(), null);
+      if (c.moveToFirst()) {
+        do {
+          urls.add(c.getString(0));
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    b.setLength(0);
+    b.append("UPDATE ").append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" SET ")
+     .append(SERVER_PREFIX).append("=? WHERE ").append(SyncETagColumns.URL).append("=?");
+    for (String url : urls) {
+      String serverPrefix = getServerPrefix(url);
+      if (serverPrefix != null) {
+        db.execSQL(b.toString(), new String[] { serverPrefix, url });
+      }
+    }
+
+    b.setLength(0);
+    b.append("CREATE INDEX IF NOT EXISTS ").append(URL_TABLE_ID_INDEX_NAME).append(" ON ")
+     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" (")
+     .append(SyncETagColumns.URL).append(", ")
+     .append(SyncETagColumns.TABLE_ID).append(")");
+    db.execSQL(b.toString(), null);
+
+    b.setLength(0);
+    b.append("CREATE INDEX IF NOT EXISTS ").append(SERVER_PREFIX_INDEX_NAME).append(" ON ")
+     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" (")
+     .append(SERVER_PREFIX).append(")");
+    db.execSQL(b.toString(), null);
+
+    ODKDatabaseImplUtils.setDerivedSchemaVersion(db, DERIVED_SCHEMA_NAME,
+        SYNC_ETAGS_INDEX_VERSION);
+  }
+
+  /**
+   * Because the server may return urls that include the port specification, the uri
+   * is truncated to the scheme and hostname (e.g., https://hostname or http://hostname)
+   *
+   * @param url
+   * @return the lower-cased scheme://hostname of the url, or null if it has none.
+   */
+  static final String getServerPrefix(String url) {
+    if (url == null) {
+      return null;
+    }
+    URI uriBase;
+    try {
+      uriBase = URI.create(url).normalize();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (uriBase.getScheme() == null || uriBase.getHost() == null) {
+      return null;
+    }
+    return (uriBase.getScheme() + "://" + uriBase.getHost()).toLowerCase(Locale.US);
+  }
+
   /**
    * Remove all ETags for the given table. Invoked when we delete a table...
    * 
@@ -95,37 +247,26 @@ public final class SyncETagsUtils {
 
     String uriPrefix = null;
     if ( serverUriPrefix != null ) {
-      URI uriBase = URI.create(serverUriPrefix).normalize();
-      uriPrefix = uriBase.getScheme() + "://" + uriBase.getHost();
+      uriPrefix = getServerPrefix(serverUriPrefix);
     }
 
     ArrayList<String> bindArgs = new ArrayList<String>();
     StringBuilder b = new StringBuilder();
     //@formatter:off
     b.append("DELETE FROM ")
-     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" WHERE ")
-     .append(SyncETagColumns.URL);
+     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" WHERE ");
     //@formatter:on
     if ( uriPrefix == null ) {
       // i.e., delete everything
-      b.append(" IS NOT NULL");
+      b.append(SyncETagColumns.URL).append(" IS NOT NULL");
     } else {
-      // delete anything not beginning with this prefix
-      b.append(" IS NULL")
-       .append(" OR length(").append(SyncETagColumns.URL).append(") < abs(?)");
-      // wrap with abs() to convert the string to a numeric value
-      bindArgs.add(Integer.toString(uriPrefix.length()));
-
-      String likePrefix = uriPrefix;
-      likePrefix = likePrefix.replace("\\", "\\\\");
-      likePrefix = likePrefix.replace("%", "\\%");
-      likePrefix = likePrefix.replace("_", "\\_");
-
-      likePrefix = likePrefix + "%";
-
-      b.append(" OR ").append(SyncETagColumns.URL).append(" NOT LIKE ? ESCAPE ?");
-      bindArgs.add(likePrefix);
-      bindArgs.add("\\");
+      // delete anything not under this server.
+      // Two range comparisons, rather than !=, so that the index is used.
+      b.append(SERVER_PREFIX).append(" IS NULL")
+       .append(" OR ").append(SERVER_PREFIX).append(" < ?")
+       .append(" OR ").append(SERVER_PREFIX).append(" > ?");
+      bindArgs.add(uriPrefix);
+      bindArgs.add(uriPrefix);
     }
 
      boolean inTransaction = db.inTransaction();
@@ -162,33 +303,19 @@ public final class SyncETagsUtils {
     if ( serverUriPrefix == null ) {
       throw new IllegalArgumentException("must specify a serverUriPrefix");
     }
-    URI uriBase = URI.create(serverUriPrefix).normalize();
-    String uriPrefix = uriBase.getScheme() + "://" + uriBase.getHost();
+    String uriPrefix = getServerPrefix(serverUriPrefix);
+    if ( uriPrefix == null ) {
+      throw new IllegalArgumentException("serverUriPrefix must specify a scheme and host");
+    }
 
     ArrayList<String> bindArgs = new ArrayList<String>();
     StringBuilder b = new StringBuilder();
     //@formatter:off
     b.append("DELETE FROM ")
      .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" WHERE ")
-     .append(SyncETagColumns.URL).append(" IS NOT NULL");
-    // delete anything not beginning with this prefix...
-    // ...long enough
-    b.append(" AND length(").append(SyncETagColumns.URL).append(") >= abs(?)");
-    // wrap with abs() to convert the string to a numeric value
-    bindArgs.add(Integer.toString(uriPrefix.length()));
-    // ...shares prefix
-
-    String likePrefix = uriPrefix;
-    likePrefix = likePrefix.replace("\\", "\\\\");
-    likePrefix = likePrefix.replace("%", "\\%");
-    likePrefix = likePrefix.replace("_", "\\_");
-
-    likePrefix = likePrefix + "%";
-
-    b.append(" AND ").append(SyncETagColumns.URL).append(" LIKE ? ESCAPE ?");
-    bindArgs.add(likePrefix);
-    bindArgs.add("\\");
+     .append(SERVER_PREFIX).append("=?");
     //@formatter:on
+    bindArgs.add(uriPrefix);
 
     boolean inTransaction = db.inTransaction();
     try {
@@ -293,7 +420,8 @@ public final class SyncETagsUtils {
          .append(SyncETagColumns.IS_MANIFEST).append(",")
          .append(SyncETagColumns.URL).append(",")
          .append(SyncETagColumns.LAST_MODIFIED_TIMESTAMP).append(",")
-         .append(SyncETagColumns.ETAG_MD5_HASH).append(") VALUES (");
+         .append(SyncETagColumns.ETAG_MD5_HASH).append(",")
+         .append(SERVER_PREFIX).append(") VALUES (");
         //@formatter:on
         if ( tableId == null ) {
           b.append("NULL,");
@@ -301,13 +429,14 @@ public final class SyncETagsUtils {
           b.append("?,");
           bindArgs.add(tableId);
         }
-        b.append("?,?,?,?)");
+        b.append("?,?,?,?,?)");
         bindArgs.add(DatabaseConstants.INT_TRUE_STRING);
         bindArgs.add(url);
         bindArgs.add(TableConstants.nanoSecondsFromMillis(
             System.currentTimeMillis(), TableConstants.TIMESTAMP_LOCALE));
         bindArgs.add(etag);
-  
+        bindArgs.add(getServerPrefix(url));
+
         db.execSQL(b.toString(), bindArgs.toArray(new String[bindArgs.size()]));
       }
       if ( !inTransaction ) {
@@ -420,7 +549,8 @@ public final class SyncETagsUtils {
          .append(SyncETagColumns.IS_MANIFEST).append(",")
          .append(SyncETagColumns.URL).append(",")
          .append(SyncETagColumns.LAST_MODIFIED_TIMESTAMP).append(",")
-         .append(SyncETagColumns.ETAG_MD5_HASH).append(") VALUES (");
+         .append(SyncETagColumns.ETAG_MD5_HASH).append(",")
+         .append(SERVER_PREFIX).append(") VALUES (");
         //@formatter:on
         if ( tableId == null ) {
           b.append("NULL,");
@@ -428,12 +558,13 @@ public final class SyncETagsUtils {
           b.append("?,");
           bindArgs.add(tableId);
         }
-        b.append("?,?,?,?)");
+        b.append("?,?,?,?,?)");
         bindArgs.add(DatabaseConstants.INT_FALSE_STRING);
         bindArgs.add(url);
         bindArgs.add(TableConstants.nanoSecondsFromMillis(modified, TableConstants.TIMESTAMP_LOCALE));
         bindArgs.add(etag);
-  
+        bindArgs.add(getServerPrefix(url));
+
         db.execSQL(b.toString(), bindArgs.toArray(new String[bindArgs.size()]));
       }
       if ( !inTransaction ) {
@@ -446,4 +577,115 @@ public final class SyncETagsUtils {
     }
   }
 
+  /**
+   * Build the query for the ETags of all the files of the given table (or app-level
+   * files, if tableId is null), most recent first. The sync reads these through
+   * arbitrarySqlQuery and keeps the first entry for each url.
+   *
+   * @param tableId
+   * @param bindArgs receives the bind arguments of the query
+   * @return the SQL query
+   */
+  public static final String getFileSyncETagsSql(String tableId, List<Object> bindArgs) {
+
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("SELECT ")
+     .append(SyncETagColumns.URL).append(",")
+     .append(SyncETagColumns.LAST_MODIFIED_TIMESTAMP).append(",")
+     .append(SyncETagColumns.ETAG_MD5_HASH).append(" FROM ")
+     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" WHERE ")
+     .append(SyncETagColumns.TABLE_ID);
+    //@formatter:on
+    if ( tableId == null ) {
+      b.append(" IS NULL");
+    } else {
+      b.append("=?");
+      bindArgs.add(tableId);
+    }
+    b.append(" AND ").append(SyncETagColumns.IS_MANIFEST).append("=?");
+    bindArgs.add(DatabaseConstants.INT_FALSE_STRING);
+    b.append(" ORDER BY ").append(SyncETagColumns.LAST_MODIFIED_TIMESTAMP).append(" DESC");
+    return b.toString();
+  }
+
+  /**
+   * Build the statement deleting the file ETags of the given urls of the given table
+   * (or app-level files, if tableId is null). Used with getInsertFileSyncETagsSql()
+   * so that the sync can record the ETags of many files in two privilegedExecute calls.
+   *
+   * @param tableId
+   * @param urls at most MAX_FILE_SYNC_ETAGS_PER_STATEMENT urls
+   * @param bindArgs receives the bind arguments of the statement
+   * @return the SQL statement
+   */
+  public static final String getDeleteFileSyncETagsSql(String tableId, List<String> urls,
+      List<Object> bindArgs) {
+
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("DELETE FROM ")
+     .append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" WHERE ")
+     .append(SyncETagColumns.TABLE_ID);
+    //@formatter:on
+    if ( tableId == null ) {
+      b.append(" IS NULL");
+    } else {
+      b.append("=?");
+      bindArgs.add(tableId);
+    }
+    b.append(" AND ").append(SyncETagColumns.IS_MANIFEST).append("=?");
+    bindArgs.add(DatabaseConstants.INT_FALSE_STRING);
+    b.append(" AND ").append(SyncETagColumns.URL).append(" IN (");
+    for (int i = 0; i < urls.size(); ++i) {
+      b.append((i == 0) ? "?" : ",?");
+      bindArgs.add(urls.get(i));
+    }
+    b.append(")");
+    return b.toString();
+  }
+
+  /**
+   * Build the statement inserting the given file ETags of the given table
+   * (or app-level files, if tableId is null). See getDeleteFileSyncETagsSql().
+   *
+   * @param tableId
+   * @param eTags map of url to ETag; at most MAX_FILE_SYNC_ETAGS_PER_STATEMENT entries
+   * @param bindArgs receives the bind arguments of the statement
+   * @return the SQL statement
+   */
+  public static final String getInsertFileSyncETagsSql(String tableId,
+      Map<String, FileSyncETag> eTags, List<Object> bindArgs) {
+
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("INSERT INTO ").append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" (")
+     .append(SyncETagColumns.TABLE_ID).append(",")
+     .append(SyncETagColumns.IS_MANIFEST).append(",")
+     .append(SyncETagColumns.URL).append(",")
+     .append(SyncETagColumns.LAST_MODIFIED_TIMESTAMP).append(",")
+     .append(SyncETagColumns.ETAG_MD5_HASH).append(",")
+     .append(SERVER_PREFIX).append(") VALUES ");
+    //@formatter:on
+    boolean first = true;
+    for (Map.Entry<String, FileSyncETag> entry : eTags.entrySet()) {
+      b.append(first ? "(" : ",(");
+      first = false;
+      if ( tableId == null ) {
+        b.append("NULL,");
+      } else {
+        b.append("?,");
+        bindArgs.add(tableId);
+      }
+      b.append("?,?,?,?,?)");
+      bindArgs.add(DatabaseConstants.INT_FALSE_STRING);
+      bindArgs.add(entry.getKey());
+      bindArgs.add(TableConstants.nanoSecondsFromMillis(entry.getValue().modified,
+          TableConstants.TIMESTAMP_LOCALE));
+      bindArgs.add(entry.getValue().eTag);
+      bindArgs.add(getServerPrefix(entry.getKey()));
+    }
+    return b.toString();
+  }
+
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.database.utilities;
+
+import android.database.Cursor;
+import org.opendatakit.database.DatabaseConstants;
+import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.provider.InstanceColumns;
+import org.opendatakit.provider.TableDefinitionsColumns;
+import org.opendatakit.services.database.OdkConnectionInterface;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the uploads table (one record per instance of each data table, used by the
+ * InstanceProvider to track submission status) current as rows are written.
+ * <p/>
+ * An insert trigger on each data table adds the uploads record for a new instance.
+ * The records of instances whose rows are all deleted are left in place (as they
+ * always have been); queries join against the data table and never see them.
+ * They are removed when the table is deleted.
+ */
+public final class UploadsIndexUtils {
+
+  private static final String UPLOADS_INDEX_NAME =
+      DatabaseConstants.UPLOADS_TABLE_NAME + "_table_instance";
+
+  private static final String TRIGGER_SUFFIX_INSERT = "_uploads_ins";
+
+  private static final String SAVEPOINT_INDEX_SUFFIX = "_id_savepoint";
+
+  private static final String CONFLICTS_INDEX_SUFFIX = "_conflicts";
+
+  private static final String CHECKPOINTS_INDEX_SUFFIX = "_checkpoints";
+
+  /**
+   * Version of the uploads index, data table indexes and triggers. Increment this
+   * when they change so that existing databases reinstall them on every data table.
+   */
+  private static final String DERIVED_SCHEMA_NAME = "uploads_index";
+  private static final int UPLOADS_INDEX_VERSION = 1;
+
+  /**
+   * Methods are all static...
+   */
+  private UploadsIndexUtils() {
+  }
+
+  /**
+   * Index the uploads table and ensure every existing data table has its trigger
+   * and a complete set of uploads records. Invoked when the database is initialized
+   * or upgraded. Does nothing if the current version is already installed, so the
+   * backfill of the data tables runs once rather than on every process start.
+   * This runs within the exclusive transaction in which the first connection
+   * of the process initializes the database, so that backfill holds up every
+   * other connection until it completes.
+   *
+   * @param db
+   */
+  public static final void initializeUploadsIndex(OdkConnectionInterface db) {
+
+    if (ODKDatabaseImplUtils.getDerivedSchemaVersion(db, DERIVED_SCHEMA_NAME)
+        >= UPLOADS_INDEX_VERSION) {
+      return;
+    }
+
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE INDEX IF NOT EXISTS ").append(UPLOADS_INDEX_NAME).append(" ON ")
+     .append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" (")
+     .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(", ")
+     .append(InstanceColumns.DATA_INSTANCE_ID).append(")");
+    db.execSQL(b.toString(), null);
+
+    ArrayList<String> tableIds = new ArrayList<String>();
+    b.setLength(0);
+    b.append("SELECT ").append(TableDefinitionsColumns.TABLE_ID).append(" FROM ")
+     .append(DatabaseConstants.TABLE_DEFS_TABLE_NAME).append(" WHERE ")
+     .append(TableDefinitionsColumns.TABLE_ID)
+     .append(" IN (SELECT name FROM sqlite_master WHERE type = 'table')");
+    Cursor c = null;
+    try {
+      c = db.rawQuery(b.toString(), null);
+      if (c.moveToFirst()) {
+        do {
+          tableIds.add(c.getString(0));
+        } while (c.moveToNext());
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+    }
+
+    for (String tableId : tableIds) {
+      installUploadsIndexTrigger(db, tableId);
+    }
+
+    ODKDatabaseImplUtils.setDerivedSchemaVersion(db, DERIVED_SCHEMA_NAME, UPLOADS_INDEX_VERSION);
+  }
+
+  /**
+   * Create the trigger that maintains the uploads records for this data table
+   * and add any records that are missing. Also index the data table by
+   * (rowId, savepoint timestamp) so that the latest savepoint of each instance
+   * can be found without a scan, and add partial indexes over the (normally
+   * empty) sets of conflict and checkpoint rows so that tables holding them can
+   * be identified without a scan. Idempotent.
+   *
+   * @param db
+   * @param tableId
+   */
+  public static final void installUploadsIndexTrigger(OdkConnectionInterface db,
+      String tableId) {
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE INDEX IF NOT EXISTS ").append(tableId).append(SAVEPOINT_INDEX_SUFFIX)
+     .append(" ON ").append(tableId).append(" (").append(DataTableColumns.ID).append(", ")
+     .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(")");
+    db.execSQL(b.toString(), null);
+
+    b.setLength(0);
+    b.append("CREATE INDEX IF NOT EXISTS ").append(tableId).append(CONFLICTS_INDEX_SUFFIX)
+     .append(" ON ").append(tableId).append(" (").append(DataTableColumns.CONFLICT_TYPE)
+     .append(") WHERE ").append(DataTableColumns.CONFLICT_TYPE).append(" IS NOT NULL");
+    db.execSQL(b.toString(), null);
+
+    b.setLength(0);
+    b.append("CREATE INDEX IF NOT EXISTS ").append(tableId).append(CHECKPOINTS_INDEX_SUFFIX)
+     .append(" ON ").append(tableId).append(" (").append(DataTableColumns.ID)
+     .append(") WHERE ").append(DataTableColumns.SAVEPOINT_TYPE).append(" IS NULL");
+    db.execSQL(b.toString(), null);
+
+    // tableIds are restricted to letters, digits and underscores,
+    // so they can safely be embedded as a string literal.
+    b.setLength(0);
+    //@formatter:off
+    b.append("CREATE TRIGGER IF NOT EXISTS ").append(tableId).append(TRIGGER_SUFFIX_INSERT)
+     .append(" AFTER INSERT ON ").append(tableId)
+     .append(" WHEN NOT EXISTS (SELECT 1 FROM ").append(DatabaseConstants.UPLOADS_TABLE_NAME)
+       .append(" WHERE ").append(InstanceColumns.DATA_TABLE_TABLE_ID).append("='")
+       .append(tableId).append("' AND ").append(InstanceColumns.DATA_INSTANCE_ID)
+       .append("=NEW.").append(DataTableColumns.ID).append(")")
+     .append(" BEGIN INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" (")
+       .append(InstanceColumns.DATA_INSTANCE_ID).append(", ")
+       .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(") VALUES (NEW.")
+       .append(DataTableColumns.ID).append(", '").append(tableId).append("'); END");
+    //@formatter:on
+    db.execSQL(b.toString(), null);
+
+    // catch up with any rows written before the trigger existed
+    b.setLength(0);
+    //@formatter:off
+    b.append("INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" (")
+       .append(InstanceColumns.DATA_INSTANCE_ID).append(", ")
+       .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(") SELECT DISTINCT ")
+       .append(DataTableColumns.ID).append(", ? FROM ").append(tableId)
+     .append(" WHERE ").append(DataTableColumns.ID).append(" NOT IN (SELECT ")
+       .append(InstanceColumns.DATA_INSTANCE_ID).append(" FROM ")
+       .append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" WHERE ")
+       .append(InstanceColumns.DATA_TABLE_TABLE_ID).append("=?)");
+    //@formatter:on
+    db.execSQL(b.toString(), new Object[] { tableId, tableId });
+  }
+}
@@ -16,7 +16,9 @@ package org.opendatakit.services.forms;
 
 import android.database.Cursor;
 import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import org.opendatakit.database.utilities.CursorUtils;
 import org.opendatakit.logging.WebLogger;
@@ -173,6 +175,77 @@ public class FormInfo {
   }
 
   /**
+   * Stream through the formDef.json file and materialize only the
+   * specification.settings object. All other sections (which can be
+   * several MB for large forms) are skipped without being built.
+   *
+   * @param appName
+   * @param formDefFile
+   * @return the settings section of the formDef.json
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> readSpecificationSettings(String appName, File formDefFile) {
+    boolean isJsonObject = false;
+    boolean hasSpecification = false;
+    Map<String, Object> settings = null;
+
+    JsonParser parser = null;
+    try {
+      parser = ODKFileUtils.mapper.getFactory().createParser(formDefFile);
+      if (parser.nextToken() == JsonToken.START_OBJECT) {
+        isJsonObject = true;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String name = parser.getCurrentName();
+          JsonToken value = parser.nextToken();
+          if (FORMDEF_SPECIFICATION_SECTION.equals(name) && value == JsonToken.START_OBJECT) {
+            hasSpecification = true;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+              String subName = parser.getCurrentName();
+              JsonToken subValue = parser.nextToken();
+              if (FORMDEF_SETTINGS_SUBSECTION.equals(subName) &&
+                  subValue == JsonToken.START_OBJECT) {
+                settings = ODKFileUtils.mapper.readValue(parser, Map.class);
+              } else {
+                parser.skipChildren();
+              }
+            }
+          } else {
+            parser.skipChildren();
+          }
+        }
+      }
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      isJsonObject = false;
+    } finally {
+      if (parser != null) {
+        try {
+          parser.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+
+    if (!isJsonObject) {
+      throw new IllegalArgumentException("File is not a json file! "
+          + formDefFile.getAbsolutePath());
+    }
+    if (!hasSpecification) {
+      throw new IllegalArgumentException("File is not a formdef json file! No specification element."
+          + formDefFile.getAbsolutePath());
+    }
+    if (settings == null) {
+      throw new IllegalArgumentException("File is not a formdef json file! No settings section inside specification element."
+          + formDefFile.getAbsolutePath());
+    }
+    return settings;
+  }
+
+  /**
+   * Extract the form's settings from the formDef.json file.
+   * The formDef member is left null; use the cursor-based
+   * constructor with parseFormDef=true to obtain the full formDef.
    *
    * @param appName
    * @param formDefFile
@@ -191,22 +264,8 @@ public class FormInfo {
      */ 
     ODKFileUtils.getRelativeFormPath(appName, formDefFile);
     
-    // OK -- parse the formDef file.
-    HashMap<String, Object> om = null;
-    try {
-      om = ODKFileUtils.mapper.readValue(formDefFile, HashMap.class);
-    } catch (JsonParseException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } catch (JsonMappingException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    } catch (IOException e) {
-      WebLogger.getLogger(appName).printStackTrace(e);
-    }
-    formDef = om;
-    if (formDef == null) {
-      throw new IllegalArgumentException("File is not a json file! "
-          + formDefFile.getAbsolutePath());
-    }
+    // The full formDef is not retained -- only the settings are extracted.
+    formDef = null;
 
     // /////////////////////////////////////////////////
     // TODO: DEPENDENCY ALERT!!!
@@ -215,20 +274,8 @@ public class FormInfo {
     // TODO: DEPENDENCY ALERT!!!
     // THIS ASSUMES A CERTAIN STRUCTURE FOR THE formDef.json
     // file...
-    Map<String, Object> specification = (Map<String, Object>) formDef
-            .get(FORMDEF_SPECIFICATION_SECTION);
-    if (specification == null) {
-        throw new IllegalArgumentException("File is not a formdef json file! No specification element."
-            + formDefFile.getAbsolutePath());
-      }
+    Map<String, Object> settings = readSpecificationSettings(appName, formDefFile);
 
-    Map<String, Object> settings = (Map<String, Object>) specification
-        .get(FORMDEF_SETTINGS_SUBSECTION);
-    if (settings == null) {
-      throw new IllegalArgumentException("File is not a formdef json file! No settings section inside specification element."
-          + formDefFile.getAbsolutePath());
-    }
-    
     try {
       this.settings = ODKFileUtils.mapper.writeValueAsString(settings);
     } catch (JsonProcessingException ex) {
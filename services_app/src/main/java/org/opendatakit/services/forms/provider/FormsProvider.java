@@ -243,7 +243,7 @@ public class FormsProvider extends ContentProvider {
 
 
     // Get the database and run the query
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().acquireInternalUseDbHandle(pf.appName);
     OdkConnectionInterface db = null;
     boolean success = false;
     Cursor c = null;
@@ -276,10 +276,10 @@ public class FormsProvider extends ContentProvider {
           db.releaseReference();
         } finally {
           if (!success) {
-            // this closes the connection
-            // if it was successful, then the InvalidateMonitor will close the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                pf.appName, dbHandleName);
+            // this returns the connection to the pool (or closes it)
+            // if it was successful, then the InvalidateMonitor will return the connection
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+                .releaseInternalUseDbHandle(pf.appName, dbHandleName);
           }
         }
       }
@@ -304,6 +304,7 @@ public class FormsProvider extends ContentProvider {
   private static class InvalidateMonitor extends DataSetObserver {
     String appName;
     DbHandle dbHandleName;
+    boolean released = false;
 
     InvalidateMonitor(String appName, DbHandle dbHandleName) {
       this.appName = appName;
@@ -313,9 +314,17 @@ public class FormsProvider extends ContentProvider {
     @Override
     public void onInvalidated() {
       super.onInvalidated();
-
-      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(appName,
-          dbHandleName);
+      // onInvalidated() fires on both deactivate() and close();
+      // the handle must only be given back once.
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      // this returns the connection to the pool (or closes it)
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .releaseInternalUseDbHandle(appName, dbHandleName);
     }
   }
 
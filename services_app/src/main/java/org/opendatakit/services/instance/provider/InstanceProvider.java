@@ -76,6 +76,7 @@ public class InstanceProvider extends ContentProvider {
   private class InvalidateMonitor extends DataSetObserver {
     String appName;
     DbHandle dbHandleName;
+    boolean released = false;
 
     InvalidateMonitor(String appName, DbHandle dbHandleName) {
       this.appName = appName;
@@ -85,9 +86,17 @@ public class InstanceProvider extends ContentProvider {
     @Override
     public void onInvalidated() {
       super.onInvalidated();
-
-      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(appName,
-          dbHandleName);
+      // onInvalidated() fires on both deactivate() and close();
+      // the handle must only be given back once.
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      // this returns the connection to the pool (or closes it)
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .releaseInternalUseDbHandle(appName, dbHandleName);
     }
   }
 
@@ -150,7 +159,7 @@ public class InstanceProvider extends ContentProvider {
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = (segments.size() == 3 ? segments.get(2) : null);
 
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().acquireInternalUseDbHandle(appName);
 
     boolean success = false;
     OdkConnectionInterface db = null;
@@ -158,8 +167,6 @@ public class InstanceProvider extends ContentProvider {
       // +1 referenceCount if db is returned (non-null)
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().getConnection(appName, dbHandleName);
 
-      internalUpdate(db, uri, appName, tableId);
-
       Cursor c = internalQuery(db, uri,
           appName, tableId, instanceId,
           projection, selection, selectionArgs, sortOrder);
@@ -180,10 +187,10 @@ public class InstanceProvider extends ContentProvider {
           db.releaseReference();
         } finally {
           if ( !success ) {
-            // this closes the connection
-            // if it was successful, then the InvalidateMonitor will close the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                appName, dbHandleName);
+            // this returns the connection to the pool (or closes it)
+            // if it was successful, then the InvalidateMonitor will return the connection
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+                .releaseInternalUseDbHandle(appName, dbHandleName);
           }
         }
       }
@@ -191,100 +198,50 @@ public class InstanceProvider extends ContentProvider {
   }
 
   /**
-   * Update the status columns for the instance upload table
+   * Determine the data table column that holds the display name of an instance.
+   * The uploads table records for each instance are maintained by a trigger on
+   * the data table (see UploadsIndexUtils), so this is a pure read.
    *
    * @param db
-   * @param uri
-   * @param appName
    * @param tableId
+   * @param orderedDefns
+   * @return the instance-name column, or the savepoint timestamp column if none is
+   * configured (or the configured column does not exist).
    */
-  void internalUpdate(OdkConnectionInterface db,
-      Uri uri,
-      String appName, String tableId ) {
+  String getInstanceNameColumn(OdkConnectionInterface db, String tableId,
+      OrderedColumns orderedDefns) {
 
     String instanceName = null;
     Cursor c = null;
-
-    StringBuilder b = new StringBuilder();
-
     try {
-      db.beginTransactionNonExclusive();
-
-      boolean success = false;
-      try {
-        success = ODKDatabaseImplUtils.get().hasTableId(db, tableId);
-      } catch (Exception e) {
-        WebLogger.getLogger(appName).printStackTrace(e);
-        throw new SQLException("Unknown URI (exception testing for tableId) " + uri);
+      c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
+          new String[] { KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID + "=? AND "
+              + KeyValueStoreColumns.PARTITION + "=? AND " + KeyValueStoreColumns.ASPECT
+              + "=? AND " + KeyValueStoreColumns.KEY + "=?", new String[] { tableId,
+              KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
+              KeyValueStoreConstants.XML_INSTANCE_NAME }, null, null, null, null);
+      if ( c != null ) {
+        c.moveToFirst();
+        if (c.getCount() == 1) {
+          int idxInstanceName = c.getColumnIndex(KeyValueStoreColumns.VALUE);
+          instanceName = c.getString(idxInstanceName);
+        }
       }
-      if (!success) {
-        throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
+    } finally {
+      if ( c != null ) {
+        c.close();
       }
+    }
 
-      try {
-        c = db.query(DatabaseConstants.KEY_VALUE_STORE_ACTIVE_TABLE_NAME,
-            new String[] { KeyValueStoreColumns.VALUE }, KeyValueStoreColumns.TABLE_ID + "=? AND "
-                + KeyValueStoreColumns.PARTITION + "=? AND " + KeyValueStoreColumns.ASPECT
-                + "=? AND " + KeyValueStoreColumns.KEY + "=?", new String[] { tableId,
-                KeyValueStoreConstants.PARTITION_TABLE, KeyValueStoreConstants.ASPECT_DEFAULT,
-                KeyValueStoreConstants.XML_INSTANCE_NAME }, null, null, null, null);
-        if ( c != null ) {
-          c.moveToFirst();
-          if (c.getCount() == 1) {
-            int idxInstanceName = c.getColumnIndex(KeyValueStoreColumns.VALUE);
-            instanceName = c.getString(idxInstanceName);
-          }
-        }
-      } finally {
-        if ( c != null ) {
-          c.close();
+    if ( instanceName != null ) {
+      // the value is spliced into the SQL -- it must name a retained column
+      for ( ColumnDefinition cd : orderedDefns.getColumnDefinitions() ) {
+        if ( cd.isUnitOfRetention() && cd.getElementKey().equals(instanceName) ) {
+          return instanceName;
         }
       }
-
-      // ARGH! we must ensure that we have records in our UPLOADS_TABLE_NAME
-      // for every distinct instance in the data table.
-      b.setLength(0);
-      //@formatter:off
-      b.append("INSERT INTO ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append("(")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",").append("SELECT ")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(",").append(" FROM (")
-            .append("SELECT DISTINCT ").append(DATA_TABLE_ID_COLUMN).append(" as ")
-            .append(InstanceColumns.DATA_INSTANCE_ID).append(",").append("? as ")
-            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(" FROM ")
-            .append(tableId).append(" EXCEPT SELECT DISTINCT ")
-            .append(InstanceColumns.DATA_INSTANCE_ID).append(",")
-            .append(InstanceColumns.DATA_TABLE_TABLE_ID).append(" FROM ")
-            .append(DatabaseConstants.UPLOADS_TABLE_NAME).append(")");
-      //@formatter:on
-
-      String[] args = { tableId };
-      db.execSQL(b.toString(), args);
-
-      //@formatter:off
-      b.append("WITH idname AS (SELECT t.")
-              .append(DATA_TABLE_ID_COLUMN).append(" as ").append(InstanceColumns.DATA_INSTANCE_ID).append(", t.");
-      if ( instanceName == null ) {
-        b.append(DataTableColumns.SAVEPOINT_TIMESTAMP);
-      } else {
-        b.append(instanceName);
-      }
-      b.append(" as ").append(InstanceColumns.DATA_INSTANCE_NAME).append(" FROM ")
-              .append(tableId).append(" t WHERE t.").append(DataTableColumns.SAVEPOINT_TIMESTAMP).append("=")
-              .append("(select max(v.").append(DataTableColumns.SAVEPOINT_TIMESTAMP)
-                  .append(") from ").append(tableId).append(" as v where v._id=t._id)")
-              .append(") UPDATE ").append(DatabaseConstants.UPLOADS_TABLE_NAME).append(" SET ")
-                .append(InstanceColumns.DATA_INSTANCE_NAME).append("=idname.").append(InstanceColumns.DATA_INSTANCE_NAME)
-              .append(" WHERE ")
-          .append(InstanceColumns.DATA_TABLE_TABLE_ID).append("=? AND ")
-          .append(InstanceColumns.DATA_INSTANCE_ID).append("=idname.").append(InstanceColumns.DATA_INSTANCE_ID);
-      //@formatter:on
-      db.execSQL(b.toString(), args);
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
     }
+    return DataTableColumns.SAVEPOINT_TIMESTAMP;
   }
 
 
@@ -394,7 +351,7 @@ public class InstanceProvider extends ContentProvider {
         .append(" > ").append(InstanceColumns.XML_PUBLISH_TIMESTAMP).append(" THEN null")
         .append(" ELSE ").append(InstanceColumns.DISPLAY_SUBTEXT).append(" END as ")
             .append(InstanceColumns.DISPLAY_SUBTEXT).append(",");
-    b.append(InstanceColumns.DATA_INSTANCE_NAME);
+    b.append(tableId).append(".").append(getInstanceNameColumn(db, tableId, orderedDefns));
     b.append(" as ").append(InstanceColumns.DISPLAY_NAME);
     b.append(" FROM ");
     b.append("( SELECT * FROM ").append(tableId).append(" AS T WHERE T.")
@@ -507,7 +464,7 @@ public class InstanceProvider extends ContentProvider {
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = (segments.size() == 3 ? segments.get(2) : null);
 
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().acquireInternalUseDbHandle(appName);
     OdkConnectionInterface db = null;
     List<IdStruct> idStructs = new ArrayList<IdStruct>();
     try {
@@ -537,8 +494,6 @@ public class InstanceProvider extends ContentProvider {
           }
         }
 
-        internalUpdate(db, uri, appName, tableId );
-
         Cursor del = null;
         try {
           del = internalQuery(db,
@@ -622,9 +577,9 @@ public class InstanceProvider extends ContentProvider {
           try {
             db.releaseReference();
           } finally {
-            // this closes the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                appName, dbHandleName);
+            // this returns the connection to the pool (or closes it)
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+                .releaseInternalUseDbHandle(appName, dbHandleName);
           }
         }
       }
@@ -651,7 +606,7 @@ public class InstanceProvider extends ContentProvider {
     // _ID in UPLOADS_TABLE_NAME
     String instanceId = segments.get(2);
 
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().acquireInternalUseDbHandle(appName);
     OdkConnectionInterface db = null;
     int count = 0;
     try {
@@ -670,8 +625,6 @@ public class InstanceProvider extends ContentProvider {
         throw new SQLException("Unknown URI (missing data table for tableId) " + uri);
       }
 
-      internalUpdate(db, uri, appName, tableId );
-
       // run the query to get all the ids...
       List<IdStruct> idStructs = new ArrayList<IdStruct>();
       Cursor ref = null;
@@ -732,9 +685,9 @@ public class InstanceProvider extends ContentProvider {
           try {
             db.releaseReference();
           } finally {
-            // this closes the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                appName, dbHandleName);
+            // this returns the connection to the pool (or closes it)
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+                .releaseInternalUseDbHandle(appName, dbHandleName);
           }
         }
       }
@@ -23,12 +23,14 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import org.apache.commons.lang3.CharEncoding;
 import org.apache.commons.lang3.StringEscapeUtils;
+import org.opendatakit.database.DatabaseConstants;
 import org.opendatakit.database.utilities.CursorUtils;
 import org.opendatakit.httpclientandroidlib.Header;
 import org.opendatakit.httpclientandroidlib.HttpResponse;
 import org.opendatakit.httpclientandroidlib.auth.AuthScope;
 import org.opendatakit.httpclientandroidlib.auth.Credentials;
 import org.opendatakit.httpclientandroidlib.auth.UsernamePasswordCredentials;
+import org.opendatakit.httpclientandroidlib.client.AuthCache;
 import org.opendatakit.httpclientandroidlib.client.ClientProtocolException;
 import org.opendatakit.httpclientandroidlib.client.CookieStore;
 import org.opendatakit.httpclientandroidlib.client.CredentialsProvider;
@@ -41,6 +43,7 @@ import org.opendatakit.httpclientandroidlib.conn.ConnectTimeoutException;
 import org.opendatakit.httpclientandroidlib.conn.HttpHostConnectException;
 import org.opendatakit.httpclientandroidlib.entity.ContentType;
 import org.opendatakit.httpclientandroidlib.entity.mime.MultipartEntityBuilder;
+import org.opendatakit.httpclientandroidlib.impl.client.BasicAuthCache;
 import org.opendatakit.httpclientandroidlib.impl.client.BasicCookieStore;
 import org.opendatakit.httpclientandroidlib.impl.client.BasicCredentialsProvider;
 import org.opendatakit.httpclientandroidlib.impl.client.CloseableHttpClient;
@@ -76,6 +79,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Background task for uploading completed forms.
@@ -86,6 +96,12 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
 
   private static final String TAG = InstanceUploaderTask.class.getSimpleName();
   private static final String fail = "Error: ";
+  // maximum number of submissions being POSTed at any one time
+  private static final int MAX_CONCURRENT_UPLOADS = 4;
+  // maximum number of submissions being constructed at any one time
+  private static final int MAX_CONCURRENT_PREPARES = 2;
+  // maximum number of instance ids in a single InstanceProvider query
+  private static final int MAX_IDS_PER_QUERY = 200;
 
   private Application appContext;
   private InstanceUploaderListener mStateListener;
@@ -94,6 +110,9 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
 
   private InstanceUploadOutcome mResultOutcome = new InstanceUploadOutcome();
 
+  // whether the server has accepted any submission during this run (guarded by mOutcome)
+  private boolean mAnySubmitted = false;
+
   private final String appName;
   private final String uploadTableId;
 
@@ -135,21 +154,21 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       u = url.toURI();
     } catch (MalformedURLException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put(id,
+      putResult(id,
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
       return true;
     } catch (URISyntaxException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put(id,
+      putResult(id,
           fail + "invalid uri: " + urlString + " :: details: " + e.getMessage());
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
       return true;
     } catch (UnsupportedEncodingException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put(id,
+      putResult(id,
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -178,37 +197,36 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
           WebUtils.get().discardEntityBytes(response);
           // we need authentication, so stop and return what we've
           // done so far.
-          mOutcome.mAuthRequestingServer = u;
+          synchronized (mOutcome) {
+            mOutcome.mAuthRequestingServer = u;
+          }
           return false;
         } else if (statusCode == 204) {
           Header[] locations = response.getHeaders("Location");
           WebUtils.get().discardEntityBytes(response);
-          if (locations != null && locations.length == 1) {
-            try {
-              URL url = new URL(URLDecoder.decode(locations[0].getValue(), CharEncoding.UTF_8));
-              URI uNew = url.toURI();
-              if (u.getHost().equalsIgnoreCase(uNew.getHost())) {
-                // trust the server to tell us a new location
-                // ... and possibly to use https instead.
-                uriRemap.put(u, uNew);
-                u = uNew;
-              } else {
-                // Don't follow a redirection attempt to a
-                // different host.
-                // We can't tell if this is a spoof or not.
-                mOutcome.mResults.put(id, fail
-                    + "Unexpected redirection attempt to a different host: " + uNew.toString());
-                cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
-                appContext.getContentResolver().update(toUpdate, cv, null, null);
-                return true;
-              }
-            } catch (Exception e) {
-              WebLogger.getLogger(appName).printStackTrace(e);
-              mOutcome.mResults.put(id, fail + urlString + " " + e.getMessage());
+          try {
+            URI uNew = getSubmissionUri(u, locations);
+            if (u.getHost().equalsIgnoreCase(uNew.getHost())) {
+              // trust the server to tell us a new location
+              // ... and possibly to use https instead.
+              uriRemap.put(u, uNew);
+              u = uNew;
+            } else {
+              // Don't follow a redirection attempt to a
+              // different host.
+              // We can't tell if this is a spoof or not.
+              putResult(id, fail
+                  + "Unexpected redirection attempt to a different host: " + uNew.toString());
               cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
               appContext.getContentResolver().update(toUpdate, cv, null, null);
               return true;
             }
+          } catch (Exception e) {
+            WebLogger.getLogger(appName).printStackTrace(e);
+            putResult(id, fail + urlString + " " + e.getMessage());
+            cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
+            appContext.getContentResolver().update(toUpdate, cv, null, null);
+            return true;
           }
         } else {
           // may be a server that does not handle
@@ -216,8 +234,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
 
           WebLogger.getLogger(appName).w(TAG, "Status code on Head request: " + statusCode);
           if (statusCode >= 200 && statusCode <= 299) {
-            mOutcome.mResults
-                .put(
+            putResult(
                     id,
                     fail
                         + "Invalid status code on Head request.  If you have a web proxy, you may need to login to your network. ");
@@ -229,20 +246,20 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       } catch (ClientProtocolException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
-        mOutcome.mResults.put(id, fail + "Client Protocol Exception");
+        putResult(id, fail + "Client Protocol Exception");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (ConnectTimeoutException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
-        mOutcome.mResults.put(id, fail + "Connection Timeout");
+        putResult(id, fail + "Connection Timeout");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (UnknownHostException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
-        mOutcome.mResults.put(id, fail + e.getMessage() + " :: Network Connection Failed");
+        putResult(id, fail + e.getMessage() + " :: Network Connection Failed");
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -250,20 +267,20 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       } catch (SocketTimeoutException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
-        mOutcome.mResults.put(id, fail + "Connection Timeout");
+        putResult(id, fail + "Connection Timeout");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (HttpHostConnectException e) {
         WebLogger.getLogger(appName).printStackTrace(e);
         WebLogger.getLogger(appName).e(TAG, e.toString());
-        mOutcome.mResults.put(id, fail + "Network Connection Refused");
+        putResult(id, fail + "Network Connection Refused");
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
       } catch (Exception e) {
         WebLogger.getLogger(appName).printStackTrace(e);
-        mOutcome.mResults.put(id, fail + "Generic Exception");
+        putResult(id, fail + "Generic Exception");
         WebLogger.getLogger(appName).e(TAG, e.getMessage());
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
@@ -284,7 +301,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
     File instanceFile = instanceFiles.instanceFile;
 
     if (!instanceFile.exists()) {
-      mOutcome.mResults.put(id, fail + "instance XML file does not exist!");
+      putResult(id, fail + "instance XML file does not exist!");
       cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
       appContext.getContentResolver().update(toUpdate, cv, null, null);
       return true;
@@ -352,9 +369,9 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
         // If it wasn't, the submission has failed.
         if (responseCode != 201 && responseCode != 202) {
           if (responseCode == 200) {
-            mOutcome.mResults.put(id, fail + "Network login failure? Again?");
+            putResult(id, fail + "Network login failure? Again?");
           } else {
-            mOutcome.mResults.put(id, fail + response.getStatusLine().getReasonPhrase() + " ("
+            putResult(id, fail + response.getStatusLine().getReasonPhrase() + " ("
                 + responseCode + ") at " + urlString);
           }
           cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
@@ -363,7 +380,7 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
         }
       } catch (Exception e) {
         WebLogger.getLogger(appName).printStackTrace(e);
-        mOutcome.mResults.put(id, fail + "Generic Exception. " + e.getMessage());
+        putResult(id, fail + "Generic Exception. " + e.getMessage());
         cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMISSION_FAILED);
         appContext.getContentResolver().update(toUpdate, cv, null, null);
         return true;
@@ -371,12 +388,38 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
     }
 
     // if it got here, it must have worked
-    mOutcome.mResults.put(id, appContext.getString(R.string.success));
+    putResult(id, appContext.getString(R.string.success));
+    synchronized (mOutcome) {
+      mAnySubmitted = true;
+    }
     cv.put(InstanceColumns.XML_PUBLISH_STATUS, InstanceColumns.STATUS_SUBMITTED);
     appContext.getContentResolver().update(toUpdate, cv, null, null);
     return true;
   }
 
+  /**
+   * Determine where submissions are to be sent from the Location headers of
+   * a 204 response to the OpenRosa HEAD request on u.
+   *
+   * @param u
+   *          the url of the HEAD request
+   * @param locations
+   *          the Location headers of its response
+   * @return the redirected url, or u itself if the response did not redirect
+   *         (u is then the proper OpenRosa submission url).
+   * @throws MalformedURLException
+   * @throws URISyntaxException
+   * @throws UnsupportedEncodingException
+   */
+  static URI getSubmissionUri(URI u, Header[] locations)
+      throws MalformedURLException, URISyntaxException, UnsupportedEncodingException {
+    if (locations == null || locations.length != 1) {
+      return u;
+    }
+    URL url = new URL(URLDecoder.decode(locations[0].getValue(), CharEncoding.UTF_8));
+    return url.toURI();
+  }
+
   /**
    * Write's the data to the sdcard, and updates the instances content provider.
    * In theory we don't have to write to disk, and this is where you'd add other
@@ -458,13 +501,163 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
     }
   }
 
-  // TODO: This method is like 350 lines long, down from 400.
-  // still. ridiculous. make it smaller.
+  /**
+   * Record the outcome of one upload. Uploads complete on several threads.
+   *
+   * @param id
+   * @param result
+   */
+  private void putResult(String id, String result) {
+    synchronized (mOutcome) {
+      mOutcome.mResults.put(id, result);
+    }
+  }
+
+  private boolean needsCredentials() {
+    synchronized (mOutcome) {
+      return mOutcome.mAuthRequestingServer != null;
+    }
+  }
+
+  private boolean anySubmitted() {
+    synchronized (mOutcome) {
+      return mAnySubmitted;
+    }
+  }
+
+  /**
+   * The upload-table row for one instance, as read from the InstanceProvider.
+   */
+  private static final class UploadCandidate {
+    final Uri toUpdate;
+    final String id;
+    final String dataTableInstanceId;
+    final String submissionInstanceId;
+
+    UploadCandidate(Uri toUpdate, String id, String dataTableInstanceId,
+        String submissionInstanceId) {
+      this.toUpdate = toUpdate;
+      this.id = id;
+      this.dataTableInstanceId = dataTableInstanceId;
+      this.submissionInstanceId = submissionInstanceId;
+    }
+  }
+
+  /**
+   * Fetch the instance rows for all of the ids in toUpload, issuing one
+   * InstanceProvider query per MAX_IDS_PER_QUERY ids.
+   *
+   * @param toUpload
+   * @return the candidates, in toUpload order
+   */
+  private List<UploadCandidate> fetchUploadCandidates(String... toUpload) {
+    Uri tableUri = Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI, appName + "/"
+        + uploadTableId);
+    String idColumn = DatabaseConstants.UPLOADS_TABLE_NAME + "." + InstanceColumns._ID;
+
+    Map<String, UploadCandidate> found = new HashMap<String, UploadCandidate>();
+    for (int start = 0; start < toUpload.length; start += MAX_IDS_PER_QUERY) {
+      int end = Math.min(toUpload.length, start + MAX_IDS_PER_QUERY);
+      StringBuilder b = new StringBuilder();
+      b.append(idColumn).append(" IN (");
+      String[] selectionArgs = new String[end - start];
+      for (int i = start; i < end; ++i) {
+        if (i != start) {
+          b.append(",");
+        }
+        b.append("?");
+        selectionArgs[i - start] = toUpload[i];
+      }
+      b.append(")");
+
+      Cursor c = null;
+      try {
+        c = appContext.getContentResolver().query(tableUri, null, b.toString(), selectionArgs,
+            null);
+        if (c == null) {
+          continue;
+        }
+        int idxId = c.getColumnIndex(InstanceColumns._ID);
+        int idxDataInstanceId = c.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID);
+        int idxPublishStatus = c.getColumnIndex(InstanceColumns.XML_PUBLISH_STATUS);
+        int idxSubmissionInstanceId = c.getColumnIndex(InstanceColumns.SUBMISSION_INSTANCE_ID);
+        while (c.moveToNext()) {
+          String id = CursorUtils.getIndexAsString(c, idxId);
+          String dataTableInstanceId = CursorUtils.getIndexAsString(c, idxDataInstanceId);
+          String lastOutcome = CursorUtils.getIndexAsString(c, idxPublishStatus);
+          String submissionInstanceId = LocalizationUtils.genUUID();
+          // submissions always get a new legacy instance id UNLESS the last
+          // submission failed,
+          // in which case we retry the submission using the legacy instance id
+          // associated with
+          // that failure. This supports resumption of sends of forms with many
+          // attachments.
+          if (lastOutcome != null && lastOutcome.equals(InstanceColumns.STATUS_SUBMISSION_FAILED)) {
+            String lastId = CursorUtils.getIndexAsString(c, idxSubmissionInstanceId);
+            if (lastId != null) {
+              submissionInstanceId = lastId;
+            }
+          }
+          Uri toUpdate = Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI, appName + "/"
+              + uploadTableId + "/" + StringEscapeUtils.escapeHtml4(id));
+          found.put(id, new UploadCandidate(toUpdate, id, dataTableInstanceId,
+              submissionInstanceId));
+        }
+      } finally {
+        if (c != null && !c.isClosed()) {
+          c.close();
+        }
+      }
+    }
+
+    List<UploadCandidate> candidates = new ArrayList<UploadCandidate>();
+    for (String id : toUpload) {
+      UploadCandidate candidate = found.get(id);
+      if (candidate == null) {
+        Uri toUpdate = Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI, appName + "/"
+            + uploadTableId + "/" + StringEscapeUtils.escapeHtml4(id));
+        putResult("unknown", fail + "unable to retrieve instance information via: "
+            + toUpdate.toString());
+      } else {
+        candidates.add(candidate);
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Construct the submission files for a candidate.
+   *
+   * @param candidate
+   * @return the file set, or null if it could not be constructed (the failure
+   * has been recorded in the outcome).
+   */
+  private FileSet prepareSubmission(UploadCandidate candidate) {
+    try {
+      return constructSubmissionFiles(candidate.dataTableInstanceId,
+          candidate.submissionInstanceId);
+    } catch (JsonParseException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      putResult(candidate.id, fail + "unable to obtain manifest: "
+          + candidate.dataTableInstanceId + " :: details: " + e.toString());
+    } catch (JsonMappingException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      putResult(candidate.id, fail + "unable to obtain manifest: "
+          + candidate.dataTableInstanceId + " :: details: " + e.toString());
+    } catch (IOException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      putResult(candidate.id, fail + "unable to obtain manifest: "
+          + candidate.dataTableInstanceId + " :: details: " + e.toString());
+    }
+    return null;
+  }
+
   @Override
   protected InstanceUploadOutcome doInBackground(String... toUpload) {
     mOutcome = new InstanceUploadOutcome();
     mOutcome.mResults = new HashMap<String, String>();
     mOutcome.mAuthRequestingServer = null;
+    mAnySubmitted = false;
 
     PropertiesSingleton props = CommonToolProperties.get(appContext, appName);
 
@@ -477,23 +670,27 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       u = url.toURI();
     } catch (MalformedURLException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put("unknown",
+      putResult("unknown",
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       return mOutcome;
     } catch (URISyntaxException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put("unknown",
+      putResult("unknown",
           fail + "invalid uri: " + urlString + " :: details: " + e.getMessage());
       return mOutcome;
     } catch (UnsupportedEncodingException e) {
       WebLogger.getLogger(appName).printStackTrace(e);
-      mOutcome.mResults.put("unknown",
+      putResult("unknown",
           fail + "invalid url: " + urlString + " :: details: " + e.getMessage());
       return mOutcome;
     }
 
-    CredentialsProvider credsProvider = new BasicCredentialsProvider();
-    CookieStore cookieStore = new BasicCookieStore();
+    // thread-safe; shared by the per-upload contexts
+    final CredentialsProvider credsProvider = new BasicCredentialsProvider();
+    final CookieStore cookieStore = new BasicCookieStore();
+    // holds the scheme of the first successful authentication so that
+    // the other uploads authenticate preemptively
+    final AuthCache authCache = new BasicAuthCache();
 
     String authType = props.getProperty(CommonToolProperties.KEY_AUTHENTICATION_TYPE);
     if ( authType.equals(appContext.getString(R.string.credential_type_username_password))) {
@@ -502,89 +699,141 @@ public class InstanceUploaderTask extends AsyncTask<String, Integer, InstanceUpl
       registerUsernamePassword(credsProvider, username, password, u.getHost());
     }
 
-    // context holds authentication state machine, so it cannot be
-    // shared across independent activities.
-    HttpClientContext localContext = HttpClientContext.create();
-
-    localContext.setCookieStore(cookieStore);
-    localContext.setCredentialsProvider(credsProvider);
-
-    CloseableHttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
+    final List<UploadCandidate> candidates = fetchUploadCandidates(toUpload);
+    if (candidates.isEmpty()) {
+      return mOutcome;
+    }
 
-    Map<URI, URI> uriRemap = new HashMap<URI, URI>();
+    final CloseableHttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT,
+        1, MAX_CONCURRENT_UPLOADS);
 
-    for (int i = 0; i < toUpload.length; ++i) {
-      if (isCancelled()) {
-        return mOutcome;
-      }
-      publishProgress(i + 1, toUpload.length);
+    final Map<URI, URI> uriRemap = new ConcurrentHashMap<URI, URI>();
+    final String submissionUrl = urlString;
+    final AtomicInteger progress = new AtomicInteger(0);
+    final int total = toUpload.length;
 
-      Uri toUpdate = Uri.withAppendedPath(InstanceProviderAPI.CONTENT_URI, appName + "/"
-          + uploadTableId + "/" + StringEscapeUtils.escapeHtml4(toUpload[i]));
-      Cursor c = null;
-      try {
-        c = appContext.getContentResolver().query(toUpdate, null, null, null, null);
-        if (c.getCount() == 1 && c.moveToFirst()) {
-
-          String id = CursorUtils.getIndexAsString(c,
-              c.getColumnIndex(InstanceColumns._ID));
-          String dataTableInstanceId = CursorUtils.getIndexAsString(c,
-              c.getColumnIndex(InstanceColumns.DATA_INSTANCE_ID));
-          String lastOutcome = CursorUtils.getIndexAsString(c,
-              c.getColumnIndex(InstanceColumns.XML_PUBLISH_STATUS));
-          String submissionInstanceId = LocalizationUtils.genUUID();
-          // submissions always get a new legacy instance id UNLESS the last
-          // submission failed,
-          // in which case we retry the submission using the legacy instance id
-          // associated with
-          // that failure. This supports resumption of sends of forms with many
-          // attachments.
-          if (lastOutcome != null && lastOutcome.equals(InstanceColumns.STATUS_SUBMISSION_FAILED)) {
-            String lastId = CursorUtils.getIndexAsString(c,
-                c.getColumnIndex(InstanceColumns.SUBMISSION_INSTANCE_ID));
-            if (lastId != null) {
-              submissionInstanceId = lastId;
+    ExecutorService preparers = null;
+    ExecutorService uploaders = null;
+    try {
+      // construct the submission files ahead of the uploads...
+      preparers = Executors.newFixedThreadPool(MAX_CONCURRENT_PREPARES);
+      final List<Future<FileSet>> prepared = new ArrayList<Future<FileSet>>();
+      for (final UploadCandidate candidate : candidates) {
+        prepared.add(preparers.submit(new Callable<FileSet>() {
+          @Override
+          public FileSet call() throws Exception {
+            if (isCancelled() || needsCredentials()) {
+              return null;
             }
+            return prepareSubmission(candidate);
           }
-          c.close();
+        }));
+      }
 
-          FileSet instanceFiles;
-          try {
-            instanceFiles = constructSubmissionFiles(dataTableInstanceId, submissionInstanceId);
-            // NOTE: /submission must not be translated! It is
-            // the well-known path on the server.
+      // Submissions are sent one at a time until one of them succeeds, so
+      // that the HEAD request (redirection and authentication handling) is
+      // issued by only one upload at a time. That success populates uriRemap,
+      // the shared cookie store and the shared auth cache.
+      int next = 0;
+      while (next < candidates.size() && !anySubmitted()) {
+        if (isCancelled()) {
+          return mOutcome;
+        }
+        publishProgress(progress.incrementAndGet(), total);
+        if (!uploadPrepared(submissionUrl, candidates.get(next), prepared.get(next), httpclient,
+            cookieStore, authCache, credsProvider, uriRemap)) {
+          return mOutcome; // get credentials...
+        }
+        ++next;
+      }
 
-            if (!uploadOneSubmission(urlString, toUpdate, id, submissionInstanceId, instanceFiles,
-                httpclient, localContext, uriRemap)) {
-              return mOutcome; // get credentials...
+      // the remainder are sent with several POSTs in flight
+      uploaders = Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS);
+      List<Future<?>> uploads = new ArrayList<Future<?>>();
+      for (int i = next; i < candidates.size(); ++i) {
+        final UploadCandidate candidate = candidates.get(i);
+        final Future<FileSet> instanceFiles = prepared.get(i);
+        uploads.add(uploaders.submit(new Runnable() {
+          @Override
+          public void run() {
+            if (isCancelled() || needsCredentials()) {
+              return;
             }
-          } catch (JsonParseException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            mOutcome.mResults.put(id, fail + "unable to obtain manifest: " + dataTableInstanceId
-                + " :: details: " + e.toString());
-          } catch (JsonMappingException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            mOutcome.mResults.put(id, fail + "unable to obtain manifest: " + dataTableInstanceId
-                + " :: details: " + e.toString());
-          } catch (IOException e) {
-            WebLogger.getLogger(appName).printStackTrace(e);
-            mOutcome.mResults.put(id, fail + "unable to obtain manifest: " + dataTableInstanceId
-                + " :: details: " + e.toString());
+            publishProgress(progress.incrementAndGet(), total);
+            uploadPrepared(submissionUrl, candidate, instanceFiles, httpclient, cookieStore,
+                authCache, credsProvider, uriRemap);
           }
-        } else {
-          mOutcome.mResults.put("unknown", fail + "unable to retrieve instance information via: "
-              + toUpdate.toString());
-        }
-      } finally {
-        if (c != null && !c.isClosed()) {
-          c.close();
-        }
+        }));
+      }
+      for (Future<?> upload : uploads) {
+        upload.get();
+      }
+    } catch (InterruptedException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      putResult("unknown", fail + "Generic Exception. " + e.getCause().toString());
+    } finally {
+      if (uploaders != null) {
+        uploaders.shutdownNow();
+      }
+      if (preparers != null) {
+        preparers.shutdownNow();
+      }
+      try {
+        httpclient.close();
+      } catch (IOException e) {
+        WebLogger.getLogger(appName).printStackTrace(e);
       }
     }
 
     return mOutcome;
   }
 
+  /**
+   * Wait for the submission files of this candidate to be constructed and
+   * then upload them.
+   *
+   * @return false if credentials are required and we should terminate
+   *         immediately.
+   */
+  private boolean uploadPrepared(String urlString, UploadCandidate candidate,
+      Future<FileSet> prepared, HttpClient httpclient, CookieStore cookieStore,
+      AuthCache authCache, CredentialsProvider credsProvider, Map<URI, URI> uriRemap) {
+
+    FileSet instanceFiles;
+    try {
+      instanceFiles = prepared.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return true;
+    } catch (ExecutionException e) {
+      WebLogger.getLogger(appName).printStackTrace(e);
+      putResult(candidate.id, fail + "unable to obtain manifest: "
+          + candidate.dataTableInstanceId + " :: details: " + e.getCause().toString());
+      return true;
+    }
+    if (instanceFiles == null) {
+      // failure (if any) already recorded
+      return true;
+    }
+
+    // context holds authentication state machine, so it cannot be
+    // shared across concurrent uploads. The cookies, the auth cache
+    // and the credentials are shared.
+    HttpClientContext localContext = HttpClientContext.create();
+
+    localContext.setCookieStore(cookieStore);
+    localContext.setAuthCache(authCache);
+    localContext.setCredentialsProvider(credsProvider);
+
+    // NOTE: /submission must not be translated! It is
+    // the well-known path on the server.
+    return uploadOneSubmission(urlString, candidate.toUpdate, candidate.id,
+        candidate.submissionInstanceId, instanceFiles, httpclient, localContext, uriRemap);
+  }
+
   @Override
   protected void onPostExecute(InstanceUploadOutcome result) {
     synchronized (this) {
@@ -114,6 +114,20 @@ public final class WebUtils {
   }
 
   public static CloseableHttpClient createHttpClient(int timeout, int maxRedirects) {
+    return createHttpClient(timeout, maxRedirects, 0);
+  }
+
+  /**
+   * Create an httpClient whose connection pool allows up to maxConnections
+   * concurrent requests to the same server.
+   *
+   * @param timeout
+   * @param maxRedirects
+   * @param maxConnections 0 to use the default pool size
+   * @return CloseableHttpClient properly configured.
+   */
+  public static CloseableHttpClient createHttpClient(int timeout, int maxRedirects,
+      int maxConnections) {
     // configure connection
     SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT)
         .setSoTimeout(2*timeout)
@@ -135,18 +149,24 @@ public final class WebUtils {
         .build();
 
     // setup client
-    CloseableHttpClient httpclient = HttpClientBuilder.create()
+    HttpClientBuilder builder = HttpClientBuilder.create()
         .setDefaultSocketConfig(socketConfig)
-        .setDefaultRequestConfig(requestConfig)
-        .build();
+        .setDefaultRequestConfig(requestConfig);
+    if (maxConnections > 0) {
+      builder.setMaxConnTotal(maxConnections).setMaxConnPerRoute(maxConnections);
+    }
+    CloseableHttpClient httpclient = builder.build();
 
     return httpclient;
   }
 
   private void setOpenRosaHeaders(HttpRequest req) {
     req.setHeader(OPEN_ROSA_VERSION_HEADER, OPEN_ROSA_VERSION);
-    g.setTime(new Date());
-    req.setHeader(DATE_HEADER, DateFormat.format("E, dd MMM yyyy hh:mm:ss zz", g).toString());
+    // requests may be built concurrently (e.g., parallel submission uploads)
+    synchronized (g) {
+      g.setTime(new Date());
+      req.setHeader(DATE_HEADER, DateFormat.format("E, dd MMM yyyy hh:mm:ss zz", g).toString());
+    }
   }
 
   public HttpHead createOpenRosaHttpHead(URI uri) {
@@ -55,6 +55,8 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
 
   private static final String HAVE_RESOLVED_METADATA_CONFLICTS = "haveResolvedMetadataConflicts";
 
+  private static final String LOADER_ARG_OFFSET = "offset";
+
   private enum DialogState {
     Progress, Alert, None
   }
@@ -123,7 +125,14 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
     mAdapter = new ArrayAdapter<ResolveRowEntry>(getActivity(), android.R.layout.simple_list_item_1);
     setListAdapter(mAdapter);
 
-    getLoaderManager().initLoader(RESOLVE_ROW_LOADER, null, this);
+    // A retained loader past the first page would deliver only its own page into
+    // this new (empty) adapter. Reload the list from the start instead.
+    Loader<ArrayList<ResolveRowEntry>> loader = getLoaderManager().getLoader(RESOLVE_ROW_LOADER);
+    if ( loader != null && ((OdkResolveConflictRowLoader) loader).getOffset() != 0 ) {
+      getLoaderManager().restartLoader(RESOLVE_ROW_LOADER, null, this);
+    } else {
+      getLoaderManager().initLoader(RESOLVE_ROW_LOADER, null, this);
+    }
   }
 
   @Override
@@ -180,43 +189,65 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
   public Loader<ArrayList<ResolveRowEntry>> onCreateLoader(int id, Bundle args) {
     // Now create and return a OdkResolveCheckpointRowLoader that will take care of
     // creating an ArrayList<ResolveRowEntry> for the data being displayed.
+    int offset = (args == null) ? 0 : args.getInt(LOADER_ARG_OFFSET, 0);
     return new OdkResolveConflictRowLoader(getActivity(), mAppName, mTableId,
-        mHaveResolvedMetadataConflicts);
+        mHaveResolvedMetadataConflicts, offset);
   }
 
   @Override
   public void onLoadFinished(Loader<ArrayList<ResolveRowEntry>> loader,
       ArrayList<ResolveRowEntry> resolveRowEntryArrayList) {
-    // we have resolved the metadata conflicts -- no need to try this again
-    mHaveResolvedMetadataConflicts = true;
-
-    // this toast may be silently swallowed if there is only one remaining checkpoint in the table.
-    int silentlyResolvedConflicts =
-        ((OdkResolveConflictRowLoader) loader).getNumberRowsSilentlyResolved();
+    final OdkResolveConflictRowLoader rowLoader = (OdkResolveConflictRowLoader) loader;
+
+    // the silent resolutions and the list reset only happen with the first page
+    if ( rowLoader.getOffset() == 0 ) {
+      // we have resolved the metadata conflicts -- no need to try this again
+      mHaveResolvedMetadataConflicts = true;
+
+      // this toast may be silently swallowed if there is only one remaining checkpoint in the table.
+      int silentlyResolvedConflicts = rowLoader.getNumberRowsSilentlyResolved();
+
+      if ( silentlyResolvedConflicts != 0 ) {
+        if ( silentlyResolvedConflicts == 1 ) {
+          Toast.makeText(getActivity(), getActivity().getString(R.string
+              .silently_resolved_single_conflict), Toast.LENGTH_LONG).show();
+        } else {
+          Toast.makeText(getActivity(), getActivity().getString(R.string.silently_resolved_conflicts,
+              silentlyResolvedConflicts), Toast.LENGTH_LONG).show();
+        }
+      }
 
-    if ( silentlyResolvedConflicts != 0 ) {
-      if ( silentlyResolvedConflicts == 1 ) {
-        Toast.makeText(getActivity(), getActivity().getString(R.string
-            .silently_resolved_single_conflict), Toast.LENGTH_LONG).show();
-      } else {
-        Toast.makeText(getActivity(), getActivity().getString(R.string.silently_resolved_conflicts,
-            silentlyResolvedConflicts), Toast.LENGTH_LONG).show();
+      // Swap the new cursor in. (The framework will take care of closing the
+      // old cursor once we return.)
+      mAdapter.clear();
+      if ( resolveRowEntryArrayList.size() == 1 && !rowLoader.hasMoreRows() ) {
+        launchRowResolution(resolveRowEntryArrayList.get(0));
+        return;
+      } else if ( resolveRowEntryArrayList.isEmpty() ){
+        Toast.makeText(getActivity(), R.string.conflict_auto_apply_all, Toast.LENGTH_SHORT).show();
+        getActivity().setResult(Activity.RESULT_OK);
+        getActivity().finish();
+        return;
       }
     }
+    mAdapter.addAll(resolveRowEntryArrayList);
 
-    // Swap the new cursor in. (The framework will take care of closing the
-    // old cursor once we return.)
-    mAdapter.clear();
-    if ( resolveRowEntryArrayList.size() == 1 ) {
-      launchRowResolution(resolveRowEntryArrayList.get(0));
-      return;
-    } else if ( resolveRowEntryArrayList.isEmpty() ){
-      Toast.makeText(getActivity(), R.string.conflict_auto_apply_all, Toast.LENGTH_SHORT).show();
-      getActivity().setResult(Activity.RESULT_OK);
-      getActivity().finish();
-      return;
+    if ( rowLoader.hasMoreRows() ) {
+      // render this page and then fetch the next one
+      final int nextOffset = rowLoader.getOffset() + resolveRowEntryArrayList.size();
+      handler.post(new Runnable() {
+        @Override public void run() {
+          // skip if the list was reloaded in the meantime
+          if ( !isAdded() || getLoaderManager().getLoader(RESOLVE_ROW_LOADER) != rowLoader ) {
+            return;
+          }
+          Bundle args = new Bundle();
+          args.putInt(LOADER_ARG_OFFSET, nextOffset);
+          getLoaderManager().restartLoader(RESOLVE_ROW_LOADER, args,
+              ConflictResolutionListFragment.this);
+        }
+      });
     }
-    mAdapter.addAll(resolveRowEntryArrayList);
 
     if ( getView() == null ) {
       throw new IllegalStateException("Unexpectedly found no view!");
@@ -231,8 +262,11 @@ public class ConflictResolutionListFragment extends ListFragment implements Load
   public void onLoaderReset(Loader<ArrayList<ResolveRowEntry>> loader) {
     // This is called when the last ArrayList<ResolveRowEntry> provided to onLoadFinished()
     // above is about to be released. We need to make sure we are no
-    // longer using it.
-    mAdapter.clear();
+    // longer using it. Loaders for the earlier pages are reset as each new
+    // page arrives; those must not clear the list.
+    if ( getLoaderManager().getLoader(RESOLVE_ROW_LOADER) == loader ) {
+      mAdapter.clear();
+    }
   }
 
   @Override public void onDestroy() {
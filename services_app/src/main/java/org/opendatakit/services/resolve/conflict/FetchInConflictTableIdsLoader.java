@@ -25,6 +25,7 @@ import org.opendatakit.services.database.OdkConnectionInterface;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -54,11 +55,12 @@ public class FetchInConflictTableIdsLoader extends AsyncTaskLoader<ArrayList<Str
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
           .getConnection(mAppName, dbHandleName);
 
-      ArrayList<String> tableIds = ODKDatabaseImplUtils.get().getAllTableIds(db);
-      for ( String tableId : tableIds ) {
-        int status = ODKDatabaseImplUtils.get().getTableHealth(db, tableId);
-        if (CursorUtils.getTableHealthHasConflicts(status)){
-          conflictingTableIds.add(tableId);
+      // probe all tables at once rather than scanning each for its health
+      Map<String, Integer> healthMap = ODKDatabaseImplUtils.get()
+          .getTablesWithConflictsOrCheckpoints(db);
+      for ( Map.Entry<String, Integer> entry : healthMap.entrySet() ) {
+        if (CursorUtils.getTableHealthHasConflicts(entry.getValue())){
+          conflictingTableIds.add(entry.getKey());
         }
       }
     } catch (Exception e) {
@@ -23,29 +23,24 @@ import org.opendatakit.aggregate.odktables.rest.KeyValueStoreConstants;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
 import org.opendatakit.database.DatabaseConstants;
 import org.opendatakit.database.RoleConsts;
-import org.opendatakit.database.data.BaseTable;
+import org.opendatakit.database.data.ColumnDefinition;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
-import org.opendatakit.database.data.Row;
-import org.opendatakit.database.data.TypedRow;
-import org.opendatakit.database.data.UserTable;
 import org.opendatakit.database.service.DbHandle;
-import org.opendatakit.database.utilities.QueryUtil;
+import org.opendatakit.database.utilities.CursorUtils;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.provider.FormsColumns;
 import org.opendatakit.services.database.OdkConnectionFactorySingleton;
 import org.opendatakit.services.database.OdkConnectionInterface;
 import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
-import org.opendatakit.services.resolve.views.components.ResolveActionList;
 import org.opendatakit.services.resolve.views.components.ResolveRowEntry;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 import org.opendatakit.utilities.LocalizationUtils;
 import org.opendatakit.utilities.NameUtil;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
@@ -55,10 +50,18 @@ import java.util.UUID;
  */
 class OdkResolveConflictRowLoader extends AsyncTaskLoader<ArrayList<ResolveRowEntry>> {
 
+  /**
+   * Number of conflict rows returned by one load. The list fragment loads
+   * successive pages so that large conflict sets render incrementally.
+   */
+  static final int CONFLICT_ROWS_PAGE_SIZE = 200;
+
   private final String mAppName;
   private final String mTableId;
   private final boolean mHaveResolvedMetadataConflicts;
+  private final int mOffset;
   private int mNumberRowsSilentlyResolved = 0;
+  private boolean mHasMoreRows = false;
 
   private static class FormDefinition {
     String instanceName;
@@ -67,17 +70,32 @@ class OdkResolveConflictRowLoader extends AsyncTaskLoader<ArrayList<ResolveRowEn
   }
 
   public OdkResolveConflictRowLoader(Context context, String appName, String tableId,
-      boolean haveResolvedMetadataConflicts) {
+      boolean haveResolvedMetadataConflicts, int offset) {
     super(context);
     this.mAppName = appName;
     this.mTableId = tableId;
     this.mHaveResolvedMetadataConflicts = haveResolvedMetadataConflicts;
+    this.mOffset = offset;
   }
 
   public int getNumberRowsSilentlyResolved() {
     return mNumberRowsSilentlyResolved;
   }
 
+  /**
+   * @return the offset of the first conflict row in this page
+   */
+  public int getOffset() {
+    return mOffset;
+  }
+
+  /**
+   * @return true if there are conflict rows beyond this page
+   */
+  public boolean hasMoreRows() {
+    return mHasMoreRows;
+  }
+
   @Override public ArrayList<ResolveRowEntry> loadInBackground() {
 
     OdkConnectionInterface db = null;
@@ -90,7 +108,7 @@ class OdkResolveConflictRowLoader extends AsyncTaskLoader<ArrayList<ResolveRowEn
     ArrayList<FormDefinition> formDefinitions = new ArrayList<FormDefinition>();
     String tableDisplayName = null;
     Cursor forms = null;
-    UserTable table = null;
+    ArrayList<ResolveRowEntry> results = new ArrayList<ResolveRowEntry>();
 
     try {
       // +1 referenceCount if db is returned (non-null)
@@ -99,14 +117,6 @@ class OdkResolveConflictRowLoader extends AsyncTaskLoader<ArrayList<ResolveRowEn
 
       OrderedColumns orderedDefns = ODKDatabaseImplUtils.get()
           .getUserDefinedColumns(db, mTableId);
-      String whereClause = DataTableColumns.CONFLICT_TYPE + " IN ( ?, ?)";
-      Object[] selectionArgs = new Object[] {
-          ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.LOCAL_UPDATED_UPDATED_VALUES };
-      String[] groupBy = { DataTableColumns.ID };
-      String[] orderByKeys = new String[] { DataTableColumns.SAVEPOINT_TIMESTAMP };
-      String[] orderByDir = new String[] { "DESC" };
-      List<String> adminColumns = ODKDatabaseImplUtils.get().getAdminColumns();
-      String[] adminColArr = adminColumns.toArray(new String[adminColumns.size()]);
 
       ODKDatabaseImplUtils.AccessContext accessContextBase =
           ODKDatabaseImplUtils.get().getAccessContext(db, mTableId, aul.activeUser,
@@ -116,161 +126,28 @@ class OdkResolveConflictRowLoader extends AsyncTaskLoader<ArrayList<ResolveRowEn
           ODKDatabaseImplUtils.get().getAccessContext(db, mTableId, aul.activeUser,
               RoleConsts.ADMIN_ROLES_LIST);
 
-      BaseTable baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
-              .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
-          selectionArgs, null, accessContextPrivileged);
-      table = new UserTable(baseTable, orderedDefns, adminColArr);
-
-      // NOTE: Logic is slightly different from checkpoints, as the privilege-change logic below
-      // may alter the permissions fields of a row (force the server's permissions into the local
-      // change).  We therefore make the if-no-changes clean-up after this logic, rather than
-      // before it.
-
-      // Now run a similar query, but pulling the server conflict records as an unprivileged
-      // query (with the current user's permissions). This gets the effectiveAccess (**from the
-      // server change**) that the user would have when resolving a conflict. If the user does
-      // not have "w" access and is trying to do a local update, or if the user does not have
-      // "d" access and is trying to do a local delete, then the conflict should be resolved by
-      // taking the server's change.
-      //
-      // i.e., the server conflict row imposes its privilege restrictions prior to consideration
-      // of the user's row changes. So a change from the server can revoke privileges for a
-      // class of users, and, when resolving conflicts, any users whose privileges have been
-      // revoked should be forced to take the server's changes. This happens implicitly in the
-      // ODKDatabaseImplUtils.privilegedPerhapsPlaceRowIntoConflictWithId() method. We apply
-      // that same logic here to handle loss-of-privilege between the time of Sync and the time
-      // we hit this conflict-resolution screen.
-      //
-      // We also enforce permissions-change restrictions on all of the local conflicts. This
-      // makes it necessary to always re-fetch the table whether or not the number of conflicts
-      // has actually changed (unlike in the checkpoint resolution case).
-      //
-      // For bookkeeping, we first create a map of rowId -> local conflict type
-      // and then iterate over the result set from the server query.
-      {
-        // create a map of rowId -> local conflict type from the privileged query.
-        //
-        // then build up the set of ids missing from the unprivilegedTable vs. the (privilegedQuery)
-        // table and any ids that the user does not have the ability to modify ("w" access) or
-        // delete ("d" access) as appropriate for the conflict type.
-        HashMap<String, Integer> localConflictTypeMap = new HashMap<>();
-        Set<String> ids = new HashSet<String>();
-        for (int i = 0; i < table.getNumberOfRows(); ++i) {
-          // full set of ids in conflict
-          ids.add(table.getRowId(i));
-          TypedRow theRow = table.getRowAtIndex(i);
-          String strLocalConflictValue = theRow.getRawStringByKey(DataTableColumns.CONFLICT_TYPE);
-          // the strLocalConflictValue will always be an integer because of the where clause
-          int localConflictValue = Integer.valueOf(strLocalConflictValue);
-          localConflictTypeMap.put(table.getRowId(i), localConflictValue);
-        }
-
-        int removedRows = 0;
-
-        // do the unprivileged query to get the server rows
-        Object[] serverSelectionArgs = new Object[] {
-            ConflictType.SERVER_DELETED_OLD_VALUES, ConflictType.SERVER_UPDATED_UPDATED_VALUES };
-        BaseTable unprivilegedBaseTable = ODKDatabaseImplUtils.get().query(db, mTableId, QueryUtil
-                .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
-            serverSelectionArgs, null, accessContextBase);
-        UserTable unprivilegedTable = new UserTable(unprivilegedBaseTable, orderedDefns, adminColArr);
-
-        for (int i = 0; i < unprivilegedTable.getNumberOfRows(); ++i) {
-          String rowId = unprivilegedTable.getRowId(i);
-          // fetch the local conflict value from the map created above.
-          // there will always be a value because the localConflictTypeMap was built
-          // from results of a privileged query. The unprivileged query is always
-          // a subset of the privileged query result set.
-          int localConflictValue = localConflictTypeMap.get(rowId);
-
-          TypedRow theRow = unprivilegedTable.getRowAtIndex(i);
-          String effectiveAccess = theRow.getRawStringByKey(DataTableColumns.EFFECTIVE_ACCESS);
-
-          if ( localConflictValue == ConflictType.LOCAL_UPDATED_UPDATED_VALUES &&
-              effectiveAccess.contains("w") ) {
-            // local update and user can modify the row -- do not auto-resolve this
-            // HOWEVER: enforce permissions-update rules (whether the user has "p" privileges)
-            // this may resolve the conflict...
-            if ( !ODKDatabaseImplUtils.get().enforcePermissionsAndOptimizeConflictProcessing
-                (db, mTableId, orderedDefns, rowId, SyncState.in_conflict,
-                    accessContextBase, aul.locale) ) {
-              ++removedRows;
-            }
-            // and then present it to the user (remove it from this list).
-            ids.remove(rowId);
-          } else if ( localConflictValue == ConflictType.LOCAL_DELETED_OLD_VALUES &&
-              effectiveAccess.contains("d") ) {
-            // local delete and user can delete the row -- do not auto-resolve this
-            // HOWEVER: enforce permissions-update rules (whether the user has "p" privileges)
-            // this may resolve the conflict...
-            if ( !ODKDatabaseImplUtils.get().enforcePermissionsAndOptimizeConflictProcessing
-                (db, mTableId, orderedDefns, rowId, SyncState.in_conflict,
-                    accessContextBase, aul.locale) ) {
-              ++removedRows;
-            }
-            // and then present it to the user (remove it from this list).
-            ids.remove(rowId);
+      // the silent resolution only needs to happen once -- when loading the first page.
+      if ( mOffset == 0 ) {
+        // apply all the silent resolutions as one batch
+        boolean dbWithinTransaction = db.inTransaction();
+        try {
+          if (!dbWithinTransaction) {
+            db.beginTransactionNonExclusive();
           }
-        }
-        mNumberRowsSilentlyResolved = ids.size() + removedRows;
-
-        // the ids remaining in 'ids' are either hidden to the user or the user does not have
-        // the ability to perform the local change they want in those rows.
-        for (String rowId : ids) {
-          // act as a privileged user so that we always restore to original row
-          ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowWithId(db, mTableId, rowId,
-              aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
-        }
 
-        {
-          // update the privileged query table again
-          // we always do this because we may have updated the permissions fields
-          selectionArgs = new Object[] { ConflictType.LOCAL_DELETED_OLD_VALUES,
-              ConflictType.LOCAL_UPDATED_UPDATED_VALUES };
-
-          baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
-                  .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
-              selectionArgs, null, accessContextPrivileged);
-          table = new UserTable(baseTable, orderedDefns, adminColArr);
-        }
-      }
+          resolveInaccessibleConflicts(db, orderedDefns, accessContextBase, aul);
 
-      // and now scan to see if we can resolve the conflicts because the rows are
-      // identical in all fields that the user should be able to select. This is after
-      // the above processing because the
-      // ODKDatabaseImplUtils.enforcePermissionsAndOptimizeConflictProcessing()
-      // function may have eliminated all of the differences in the row (if they were
-      // only impacting the permissions fields).
-      //
-      if ( !mHaveResolvedMetadataConflicts ) {
-
-        boolean tableSetChanged = false;
-        // resolve the automatically-resolvable ones
-        // (the ones that differ only in their metadata).
-        for ( int i = 0 ; i < table.getNumberOfRows(); ++i ) {
-          TypedRow row = table.getRowAtIndex(i);
-          String rowId = row.getRawStringByKey(DataTableColumns.ID);
-          OdkResolveConflictFieldLoader loader = new OdkResolveConflictFieldLoader(getContext()
-              , mAppName, mTableId, rowId);
-          ResolveActionList resolveActionList = loader.doWork(dbHandleName);
-
-          if ( resolveActionList.noChangesInUserDefinedFieldValues() ) {
-            tableSetChanged = true;
-            // all users can resolve taking the server's changes
-            // Use privileged user roles since we are taking the server's values
-            ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowWithId(db,
-                mTableId, rowId, aul.activeUser, aul.locale);
+          if ( !mHaveResolvedMetadataConflicts ) {
+            resolveMetadataOnlyConflicts(db, orderedDefns, aul);
           }
-        }
 
-        if (tableSetChanged) {
-          selectionArgs = new Object[] { ConflictType.LOCAL_DELETED_OLD_VALUES,
-              ConflictType.LOCAL_UPDATED_UPDATED_VALUES };
-
-          baseTable = ODKDatabaseImplUtils.get().privilegedQuery(db, mTableId, QueryUtil
-                  .buildSqlStatement(mTableId, whereClause, groupBy, null, orderByKeys, orderByDir),
-              selectionArgs, null, accessContextPrivileged);
-          table = new UserTable(baseTable, orderedDefns, adminColArr);
+          if (!dbWithinTransaction) {
+            db.setTransactionSuccessful();
+          }
+        } finally {
+          if (!dbWithinTransaction) {
+            db.endTransaction();
+          }
         }
       }
 
@@ -323,6 +200,62 @@ class OdkResolveConflictRowLoader extends AsyncTaskLoader<ArrayList<ResolveRowEn
       if ( forms != null ) {
         forms.close();
       }
+
+      // use the instanceName in the tableId form, if defined.
+      FormDefinition nameToUse = null;
+      for ( FormDefinition fd : formDefinitions ) {
+        if ( fd.formId.equals(mTableId) ) {
+          nameToUse = fd;
+          break;
+        }
+      }
+      if ( nameToUse == null ) {
+        if ( formDefinitions.isEmpty() ) {
+          nameToUse = new FormDefinition();
+          nameToUse.formId = null;
+          nameToUse.formDisplayName = tableDisplayName;
+          nameToUse.instanceName = DataTableColumns.SAVEPOINT_TIMESTAMP;
+        } else {
+          // otherwise use the name from the first formId that gave one.
+          nameToUse = formDefinitions.get(0);
+        }
+      }
+      String formDisplayName = LocalizationUtils.getLocalizedDisplayName(mAppName, mTableId,
+          aul.locale, nameToUse.formDisplayName);
+
+      // only the rowId and the instance name are needed to present this page of the list
+      String instanceNameKey = isRetainedColumn(orderedDefns, nameToUse.instanceName) ?
+          nameToUse.instanceName : DataTableColumns.SAVEPOINT_TIMESTAMP;
+
+      StringBuilder b = new StringBuilder();
+      b.append("SELECT ").append(DataTableColumns.ID).append(", ").append(instanceNameKey)
+          .append(" FROM ").append(mTableId).append(" WHERE ")
+          .append(DataTableColumns.CONFLICT_TYPE).append(" IN (?, ?) ORDER BY ")
+          .append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" DESC, ")
+          .append(DataTableColumns.ID).append(" ASC LIMIT ? OFFSET ?");
+
+      Cursor c = null;
+      try {
+        // fetch one extra row to learn whether there is another page
+        c = db.rawQuery(b.toString(), new Object[] {
+            ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.LOCAL_UPDATED_UPDATED_VALUES,
+            CONFLICT_ROWS_PAGE_SIZE + 1, mOffset });
+        int idxId = c.getColumnIndex(DataTableColumns.ID);
+        int idxInstanceName = c.getColumnIndex(instanceNameKey);
+        while (c.moveToNext()) {
+          if ( results.size() == CONFLICT_ROWS_PAGE_SIZE ) {
+            mHasMoreRows = true;
+            break;
+          }
+          String rowId = c.getString(idxId);
+          String instanceName = CursorUtils.getIndexAsString(c, idxInstanceName);
+          results.add(new ResolveRowEntry(rowId, formDisplayName + ": " + instanceName));
+        }
+      } finally {
+        if ( c != null && !c.isClosed() ) {
+          c.close();
+        }
+      }
     } catch (Exception e) {
       String msg = e.getLocalizedMessage();
       if (msg == null)
@@ -349,38 +282,204 @@ class OdkResolveConflictRowLoader extends AsyncTaskLoader<ArrayList<ResolveRowEn
       }
     }
 
-    // use the instanceName in the tableId form, if defined.
-    FormDefinition nameToUse = null;
-    for ( FormDefinition fd : formDefinitions ) {
-      if ( fd.formId.equals(mTableId) ) {
-        nameToUse = fd;
-        break;
+    return results;
+  }
+
+  /**
+   * NOTE: Logic is slightly different from checkpoints, as the privilege-change logic below
+   * may alter the permissions fields of a row (force the server's permissions into the local
+   * change).  We therefore make the if-no-changes clean-up after this logic, rather than
+   * before it.
+   * <p>
+   * A single query joins each local conflict record to its server conflict record and
+   * computes, as the current user (with the current user's permissions), the effectiveAccess
+   * (**from the server change**) that the user would have when resolving a conflict. If the
+   * user does not have "w" access and is trying to do a local update, or if the user does not
+   * have "d" access and is trying to do a local delete, then the conflict should be resolved by
+   * taking the server's change.
+   * <p>
+   * i.e., the server conflict row imposes its privilege restrictions prior to consideration
+   * of the user's row changes. So a change from the server can revoke privileges for a
+   * class of users, and, when resolving conflicts, any users whose privileges have been
+   * revoked should be forced to take the server's changes. This happens implicitly in the
+   * ODKDatabaseImplUtils.privilegedPerhapsPlaceRowIntoConflictWithId() method. We apply
+   * that same logic here to handle loss-of-privilege between the time of Sync and the time
+   * we hit this conflict-resolution screen.
+   * <p>
+   * We also enforce permissions-change restrictions on all of the local conflicts.
+   */
+  private void resolveInaccessibleConflicts(OdkConnectionInterface db,
+      OrderedColumns orderedDefns, ODKDatabaseImplUtils.AccessContext accessContextBase,
+      ActiveUserAndLocale aul) {
+
+    // full set of ids in conflict. Any that are not visible to the user or that the user
+    // does not have the ability to modify ("w" access) or delete ("d" access) as appropriate
+    // for the conflict type are removed below.
+    Set<String> ids = new LinkedHashSet<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT " + DataTableColumns.ID + " FROM " + mTableId +
+          " WHERE " + DataTableColumns.CONFLICT_TYPE + " IN (?, ?)", new Object[] {
+          ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.LOCAL_UPDATED_UPDATED_VALUES });
+      while (c.moveToNext()) {
+        ids.add(c.getString(0));
       }
+    } finally {
+      if ( c != null && !c.isClosed() ) {
+        c.close();
+      }
+    }
+
+    // the local conflict type and the server's row-level access fields of each rowId.
+    // The wrapping query applied by rawQuery() filters this to the rows visible to the
+    // user and adds their effective access.
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT L.").append(DataTableColumns.ID).append(" AS ").append(DataTableColumns.ID)
+        .append(", L.").append(DataTableColumns.CONFLICT_TYPE).append(" AS ")
+        .append(DataTableColumns.CONFLICT_TYPE);
+    for ( String accessColumn : new String[] { DataTableColumns.SYNC_STATE,
+        DataTableColumns.DEFAULT_ACCESS, DataTableColumns.ROW_OWNER,
+        DataTableColumns.GROUP_READ_ONLY, DataTableColumns.GROUP_MODIFY,
+        DataTableColumns.GROUP_PRIVILEGED } ) {
+      b.append(", S.").append(accessColumn).append(" AS ").append(accessColumn);
     }
-    if ( nameToUse == null ) {
-      if ( formDefinitions.isEmpty() ) {
-        nameToUse = new FormDefinition();
-        nameToUse.formId = null;
-        nameToUse.formDisplayName = tableDisplayName;
-        nameToUse.instanceName = DataTableColumns.SAVEPOINT_TIMESTAMP;
-      } else {
-        // otherwise use the name from the first formId that gave one.
-        nameToUse = formDefinitions.get(0);
+    appendConflictPairJoin(b);
+
+    List<String> accessibleIds = new ArrayList<String>();
+    c = null;
+    try {
+      c = ODKDatabaseImplUtils.get().rawQuery(db, b.toString(), new Object[] {
+              ConflictType.SERVER_DELETED_OLD_VALUES, ConflictType.SERVER_UPDATED_UPDATED_VALUES,
+              ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.LOCAL_UPDATED_UPDATED_VALUES },
+          null, accessContextBase);
+      int idxId = c.getColumnIndex(DataTableColumns.ID);
+      int idxConflictType = c.getColumnIndex(DataTableColumns.CONFLICT_TYPE);
+      int idxEffectiveAccess = c.getColumnIndex(DataTableColumns.EFFECTIVE_ACCESS);
+      // without an access column, only a privileged user is known to be able to
+      // modify or delete the row
+      String contextAccess = accessContextBase.isPrivilegedUser ? "rwdp" : "r";
+      while (c.moveToNext()) {
+        String rowId = c.getString(idxId);
+        // the local conflict value will always be an integer because of the where clause
+        int localConflictValue = c.getInt(idxConflictType);
+        String effectiveAccess = (idxEffectiveAccess == -1) ? contextAccess :
+            c.getString(idxEffectiveAccess);
+
+        if ( (localConflictValue == ConflictType.LOCAL_UPDATED_UPDATED_VALUES &&
+              effectiveAccess.contains("w")) ||
+             (localConflictValue == ConflictType.LOCAL_DELETED_OLD_VALUES &&
+              effectiveAccess.contains("d")) ) {
+          // local update (delete) and user can modify (delete) the row
+          // -- do not auto-resolve this
+          accessibleIds.add(rowId);
+        }
+      }
+    } finally {
+      if ( c != null && !c.isClosed() ) {
+        c.close();
       }
     }
-    String formDisplayName = LocalizationUtils.getLocalizedDisplayName(mAppName, mTableId,
-        aul.locale, nameToUse.formDisplayName);
 
-    ArrayList<ResolveRowEntry> results = new ArrayList<ResolveRowEntry>();
-    for (int i = 0; i < table.getNumberOfRows(); i++) {
-      TypedRow row = table.getRowAtIndex(i);
-      String rowId = row.getRawStringByKey(DataTableColumns.ID);
-      String instanceName = row.getRawStringByKey(nameToUse.instanceName);
-      ResolveRowEntry re = new ResolveRowEntry(rowId, formDisplayName + ": " + instanceName);
-      results.add(re);
+    int removedRows = 0;
+    for ( String rowId : accessibleIds ) {
+      // enforce permissions-update rules (whether the user has "p" privileges)
+      // this may resolve the conflict...
+      if ( !ODKDatabaseImplUtils.get().enforcePermissionsAndOptimizeConflictProcessing
+          (db, mTableId, orderedDefns, rowId, SyncState.in_conflict,
+              accessContextBase, aul.locale) ) {
+        ++removedRows;
+      }
+      // and then present it to the user (remove it from this list).
+      ids.remove(rowId);
     }
+    mNumberRowsSilentlyResolved = ids.size() + removedRows;
+
+    // the ids remaining in 'ids' are either hidden to the user or the user does not have
+    // the ability to perform the local change they want in those rows.
+    for (String rowId : ids) {
+      // act as a privileged user so that we always restore to original row
+      ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowWithId(db, mTableId, rowId,
+          aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
+    }
+  }
 
-    return results;
+  /**
+   * Resolve the conflicts that are automatically resolvable because the rows are identical in
+   * all fields that the user should be able to select (the ones that differ only in their
+   * metadata). This is after the permissions processing because the
+   * ODKDatabaseImplUtils.enforcePermissionsAndOptimizeConflictProcessing()
+   * function may have eliminated all of the differences in the row (if they were
+   * only impacting the permissions fields).
+   * <p>
+   * The comparison of the user-defined fields is done by the database, matching
+   * ResolveActionList.noChangesInUserDefinedFieldValues().
+   */
+  private void resolveMetadataOnlyConflicts(OdkConnectionInterface db,
+      OrderedColumns orderedDefns, ActiveUserAndLocale aul) {
+
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT L.").append(DataTableColumns.ID);
+    appendConflictPairJoin(b);
+    b.append(" AND ((L.").append(DataTableColumns.CONFLICT_TYPE).append(" = ? AND S.")
+        .append(DataTableColumns.CONFLICT_TYPE).append(" = ?) OR (L.")
+        .append(DataTableColumns.CONFLICT_TYPE).append(" = ? AND S.")
+        .append(DataTableColumns.CONFLICT_TYPE).append(" = ?");
+    for (ColumnDefinition cd : orderedDefns.getColumnDefinitions()) {
+      if (!cd.isUnitOfRetention()) {
+        continue;
+      }
+      b.append(" AND L.").append(cd.getElementKey()).append(" IS S.")
+          .append(cd.getElementKey());
+    }
+    b.append("))");
+
+    List<String> metadataOnlyIds = new ArrayList<String>();
+    Cursor c = null;
+    try {
+      c = db.rawQuery(b.toString(), new Object[] {
+          ConflictType.SERVER_DELETED_OLD_VALUES, ConflictType.SERVER_UPDATED_UPDATED_VALUES,
+          ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.LOCAL_UPDATED_UPDATED_VALUES,
+          ConflictType.LOCAL_DELETED_OLD_VALUES, ConflictType.SERVER_DELETED_OLD_VALUES,
+          ConflictType.LOCAL_UPDATED_UPDATED_VALUES, ConflictType.SERVER_UPDATED_UPDATED_VALUES });
+      while (c.moveToNext()) {
+        metadataOnlyIds.add(c.getString(0));
+      }
+    } finally {
+      if ( c != null && !c.isClosed() ) {
+        c.close();
+      }
+    }
+
+    for ( String rowId : metadataOnlyIds ) {
+      // all users can resolve taking the server's changes
+      // Use privileged user roles since we are taking the server's values
+      ODKDatabaseImplUtils.get().resolveServerConflictTakeServerRowWithId(db,
+          mTableId, rowId, aul.activeUser, aul.locale);
+    }
+  }
+
+  /**
+   * Append the FROM and WHERE clauses pairing each local conflict record (L) with its
+   * server conflict record (S). Binds the two server conflict types then the two local
+   * conflict types.
+   */
+  private void appendConflictPairJoin(StringBuilder b) {
+    b.append(" FROM ").append(mTableId).append(" AS L JOIN ").append(mTableId)
+        .append(" AS S ON S.").append(DataTableColumns.ID).append(" = L.")
+        .append(DataTableColumns.ID).append(" AND S.").append(DataTableColumns.CONFLICT_TYPE)
+        .append(" IN (?, ?) WHERE L.").append(DataTableColumns.CONFLICT_TYPE)
+        .append(" IN (?, ?)");
+  }
+
+  private boolean isRetainedColumn(OrderedColumns orderedDefns, String elementKey) {
+    if ( ODKDatabaseImplUtils.get().getAdminColumns().contains(elementKey) ) {
+      return true;
+    }
+    try {
+      return orderedDefns.find(elementKey).isUnitOfRetention();
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
   }
 
   @Override protected void onStartLoading() {
@@ -14,6 +14,8 @@ import org.opendatakit.services.resolve.listener.ResolutionListener;
 import org.opendatakit.services.resolve.views.components.ResolveRowEntry;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -56,55 +58,49 @@ public class CheckpointResolutionListTask extends AsyncTask<Void, String, String
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
           .getConnection(mAppName, dbHandleName);
 
-      for ( int i = 0 ; i < mAdapter.getCount() ; ++i ) {
-        this.publishProgress(
-            String.format(formatStrResolvingRowNofM, i+1, mAdapter.getCount()));
-
-        ResolveRowEntry entry = mAdapter.getItem(i);
-        try {
-
-          if ( mTakeNewest ) {
-            // this may fail if user does not have permissions for modifying row
-            ODKDatabaseImplUtils.get()
-                .saveAsCompleteMostRecentCheckpointRowWithId(db, mTableId, entry.rowId);
-          } else {
-            // allow all users to automatically roll back
-            ODKDatabaseImplUtils.get().deleteAllCheckpointRowsWithId(db, mTableId,
-                entry.rowId, aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
-          }
+      // resolve every row of the table in a single transaction
+      this.publishProgress(
+          String.format(formatStrResolvingRowNofM, 1, mAdapter.getCount()));
+
+      try {
+        Map<String,String> skipped;
+        if ( mTakeNewest ) {
+          ODKDatabaseImplUtils.get().saveAsCompleteMostRecentCheckpointRows(db, mTableId);
+          skipped = Collections.emptyMap();
+        } else {
+          // allow all users to automatically roll back
+          skipped = ODKDatabaseImplUtils.get().deleteAllCheckpointRows(db, mTableId,
+              aul.activeUser, RoleConsts.ADMIN_ROLES_LIST);
+        }
 
-        } catch (Exception e) {
-          String msg = e.getLocalizedMessage();
-          if (msg == null)
-            msg = e.getMessage();
-          if (msg == null)
-            msg = e.toString();
-          msg = "Exception: " + msg;
+        for (Map.Entry<String,String> entry : skipped.entrySet()) {
+          String msg = "Exception: " + entry.getKey() + " " + entry.getValue();
           WebLogger.getLogger(mAppName).e("takeAllLocal",
               mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
-          WebLogger.getLogger(mAppName).printStackTrace(e);
-
           if (exceptions == null) {
             exceptions = new StringBuilder();
           } else {
             exceptions.append("\n");
           }
           exceptions.append(msg);
-
-          // and to be sure, try to release this database connection and create a new one...
-          OdkConnectionInterface dbOld = db;
-          db = null;
-
-          dbHandleName = new DbHandle(UUID.randomUUID().toString());
-
-          if ( dbOld != null ) {
-            dbOld.releaseReference();
-          }
-
-          // +1 referenceCount if db is returned (non-null)
-          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-              .getConnection(mAppName, dbHandleName);
         }
+      } catch (Exception e) {
+        String msg = e.getLocalizedMessage();
+        if (msg == null)
+          msg = e.getMessage();
+        if (msg == null)
+          msg = e.toString();
+        msg = "Exception: " + msg;
+        WebLogger.getLogger(mAppName).e("takeAllLocal",
+            mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
+        WebLogger.getLogger(mAppName).printStackTrace(e);
+
+        if (exceptions == null) {
+          exceptions = new StringBuilder();
+        } else {
+          exceptions.append("\n");
+        }
+        exceptions.append(msg);
       }
       this.publishProgress(formatStrDone);
 
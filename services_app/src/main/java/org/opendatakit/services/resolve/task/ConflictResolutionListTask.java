@@ -13,6 +13,7 @@ import org.opendatakit.services.resolve.listener.ResolutionListener;
 import org.opendatakit.services.resolve.views.components.ResolveRowEntry;
 import org.opendatakit.services.utilities.ActiveUserAndLocale;
 
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -61,56 +62,52 @@ public class ConflictResolutionListTask extends AsyncTask<Void, String, String>
       db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
           .getConnection(mAppName, dbHandleName);
 
-      for ( int i = 0 ; i < mAdapter.getCount() ; ++i ) {
-        this.publishProgress(String.format(formatStrResolvingRowNofM, i+1, mAdapter.getCount()));
-
-        ResolveRowEntry entry = mAdapter.getItem(i);
-        try {
-
-          if ( mTakeLocal ) {
-            // this might fail due to lowered user privileges
-            ODKDatabaseImplUtils.get()
-                .resolveServerConflictTakeLocalRowWithId(db, mTableId, entry.rowId,
-                    aul.activeUser, aul.rolesList, aul.locale);
-          } else {
-            // all users can always take the server's changes
-            ODKDatabaseImplUtils.get()
-                .resolveServerConflictTakeServerRowWithId(db, mTableId, entry.rowId,
-                    aul.activeUser, aul.locale);
-          }
+      // resolve every row of the table in a single transaction
+      this.publishProgress(
+          String.format(formatStrResolvingRowNofM, 1, mAdapter.getCount()));
+
+      try {
+        Map<String,String> skipped;
+        if ( mTakeLocal ) {
+          // rows the user lacks the privileges to change are skipped
+          skipped = ODKDatabaseImplUtils.get()
+              .resolveAllServerConflictsTakeLocalRows(db, mTableId,
+                  aul.activeUser, aul.rolesList, aul.locale);
+        } else {
+          // all users can always take the server's changes
+          skipped = ODKDatabaseImplUtils.get()
+              .resolveAllServerConflictsTakeServerRows(db, mTableId,
+                  aul.activeUser, aul.locale);
+        }
 
-        } catch (Exception e) {
-          String msg = e.getLocalizedMessage();
-          if (msg == null)
-            msg = e.getMessage();
-          if (msg == null)
-            msg = e.toString();
-          msg = "Exception: " + msg;
+        for (Map.Entry<String,String> entry : skipped.entrySet()) {
+          String msg = "Exception: " + entry.getKey() + " " + entry.getValue();
           WebLogger.getLogger(mAppName).e("takeAllLocal",
               mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
-          WebLogger.getLogger(mAppName).printStackTrace(e);
-
           if (exceptions == null) {
             exceptions = new StringBuilder();
           } else {
             exceptions.append("\n");
           }
           exceptions.append(msg);
-
-          // and to be sure, try to release this database connection and create a new one...
-          OdkConnectionInterface dbOld = db;
-          db = null;
-
-          dbHandleName = new DbHandle(UUID.randomUUID().toString());
-
-          if ( dbOld != null ) {
-            dbOld.releaseReference();
-          }
-
-          // +1 referenceCount if db is returned (non-null)
-          db = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
-              .getConnection(mAppName, dbHandleName);
         }
+      } catch (Exception e) {
+        String msg = e.getLocalizedMessage();
+        if (msg == null)
+          msg = e.getMessage();
+        if (msg == null)
+          msg = e.toString();
+        msg = "Exception: " + msg;
+        WebLogger.getLogger(mAppName).e("takeAllLocal",
+            mAppName + " " + dbHandleName.getDatabaseHandle() + " " + msg);
+        WebLogger.getLogger(mAppName).printStackTrace(e);
+
+        if (exceptions == null) {
+          exceptions = new StringBuilder();
+        } else {
+          exceptions.append("\n");
+        }
+        exceptions.append(msg);
       }
       this.publishProgress(formatStrDone);
 
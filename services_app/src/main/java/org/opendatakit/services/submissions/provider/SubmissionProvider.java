@@ -22,6 +22,9 @@ import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.Xml;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import org.apache.commons.lang3.CharEncoding;
@@ -49,34 +52,24 @@ import org.opendatakit.services.utilities.EncryptionUtils;
 import org.opendatakit.services.utilities.EncryptionUtils.EncryptedFormInformation;
 import org.opendatakit.utilities.FileSet;
 import org.opendatakit.utilities.ODKFileUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Text;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import java.io.ByteArrayOutputStream;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Properties;
 
 /**
  * The WebKit does better if there is a content provider vending files to it.
@@ -152,26 +145,24 @@ public class SubmissionProvider extends ContentProvider {
   }
 
   @SuppressWarnings("unchecked")
-  private static int generateXmlHelper(Document d, Element data, int idx, String key,
-      Map<String, Object> values, WebLoggerIf logger) {
+  private static void generateXmlHelper(XmlSerializer serializer, String key,
+      Map<String, Object> values, WebLoggerIf logger) throws IOException {
     Object o = values.get(key);
 
-    Element e = d.createElement(key);
+    serializer.startTag(null, key);
 
     if (o == null) {
       logger.e(t, "Unexpected null value");
     } else if (o instanceof Integer) {
-      Text txtNode = d.createTextNode(((Integer) o).toString());
-      e.appendChild(txtNode);
+      serializer.text(((Integer) o).toString());
+    } else if (o instanceof Long) {
+      serializer.text(((Long) o).toString());
     } else if (o instanceof Double) {
-      Text txtNode = d.createTextNode(((Double) o).toString());
-      e.appendChild(txtNode);
+      serializer.text(((Double) o).toString());
     } else if (o instanceof Boolean) {
-      Text txtNode = d.createTextNode(((Boolean) o).toString());
-      e.appendChild(txtNode);
+      serializer.text(((Boolean) o).toString());
     } else if (o instanceof String) {
-      Text txtNode = d.createTextNode(((String) o));
-      e.appendChild(txtNode);
+      serializer.text(((String) o));
     } else if (o instanceof List) {
       StringBuilder b = new StringBuilder();
       List<Object> al = (List<Object>) o;
@@ -189,24 +180,105 @@ public class SubmissionProvider extends ContentProvider {
         }
         b.append(" ");
       }
-      Text txtNode = d.createTextNode(b.toString().trim());
-      e.appendChild(txtNode);
+      serializer.text(b.toString().trim());
     } else if (o instanceof Map) {
       // it is an object...
       Map<String, Object> m = (Map<String, Object>) o;
-      int nidx = 0;
 
       ArrayList<String> entryNames = new ArrayList<String>();
       entryNames.addAll(m.keySet());
       Collections.sort(entryNames);
       for (String name : entryNames) {
-        nidx = generateXmlHelper(d, e, nidx, name, m, logger);
+        generateXmlHelper(serializer, name, m, logger);
       }
     } else {
       throw new IllegalArgumentException("Unexpected object type in XML submission serializer");
     }
-    data.appendChild(e);
-    return idx;
+    serializer.endTag(null, key);
+  }
+
+  /**
+   * Streams the XML form of a submission directly to its destination
+   * (the submission file or the encrypting stream).
+   */
+  static final class XmlSubmissionWriter implements EncryptionUtils.SubmissionContentWriter {
+    private final String rootElementName;
+    private final String tableId;
+    // meta elements in the openrosa namespace
+    private final Map<String, String> openRosaMeta;
+    // meta elements in no namespace
+    private final Map<String, String> extraMeta;
+    private final Map<String, Object> values;
+    private final WebLoggerIf logger;
+
+    XmlSubmissionWriter(String rootElementName, String tableId, Map<String, String> openRosaMeta,
+        Map<String, String> extraMeta, Map<String, Object> values, WebLoggerIf logger) {
+      this.rootElementName = rootElementName;
+      this.tableId = tableId;
+      this.openRosaMeta = openRosaMeta;
+      this.extraMeta = extraMeta;
+      this.values = values;
+      this.logger = logger;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      XmlSerializer serializer = Xml.newSerializer();
+      // no XML declaration is emitted (startDocument() is not called)
+      serializer.setOutput(out, CharEncoding.UTF_8);
+
+      serializer.startTag(null, rootElementName);
+      serializer.attribute(null, "id", tableId);
+
+      serializer.setPrefix("jr", XML_OPENROSA_NAMESPACE);
+      serializer.startTag(XML_OPENROSA_NAMESPACE, "meta");
+      for (Map.Entry<String, String> entry : openRosaMeta.entrySet()) {
+        // unprefixed, each declaring the openrosa namespace as its default namespace
+        serializer.setPrefix("", XML_OPENROSA_NAMESPACE);
+        serializer.startTag(XML_OPENROSA_NAMESPACE, entry.getKey());
+        if (entry.getValue() != null) {
+          serializer.text(entry.getValue());
+        }
+        serializer.endTag(XML_OPENROSA_NAMESPACE, entry.getKey());
+      }
+      for (Map.Entry<String, String> entry : extraMeta.entrySet()) {
+        serializer.startTag(null, entry.getKey());
+        if (entry.getValue() != null) {
+          serializer.text(entry.getValue());
+        }
+        serializer.endTag(null, entry.getKey());
+      }
+      serializer.endTag(XML_OPENROSA_NAMESPACE, "meta");
+
+      ArrayList<String> entryNames = new ArrayList<String>();
+      entryNames.addAll(values.keySet());
+      Collections.sort(entryNames);
+      for (String name : entryNames) {
+        generateXmlHelper(serializer, name, values, logger);
+      }
+
+      serializer.endTag(null, rootElementName);
+      serializer.flush();
+    }
+  }
+
+  /**
+   * Streams the JSON form of a submission directly to its destination.
+   */
+  private static final class JsonSubmissionWriter implements EncryptionUtils.SubmissionContentWriter {
+    private final Map<String, Object> wrapper;
+
+    JsonSubmissionWriter(Map<String, Object> wrapper) {
+      this.wrapper = wrapper;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      JsonGenerator generator = ODKFileUtils.mapper.getFactory()
+          .createGenerator(out, JsonEncoding.UTF8);
+      ODKFileUtils.mapper.writeValue(generator, wrapper);
+      generator.flush();
+    }
   }
 
   /**
@@ -519,188 +591,46 @@ public class SubmissionProvider extends ContentProvider {
               datestamp = (new SimpleDateFormat(ISO8601_DATE_FORMAT, Locale.US))
                   .format(new Date(TableConstants.milliSecondsFromNanos(savepointTimestamp, Locale.ROOT)));
 
-              // For XML, we traverse the map to serialize it
-              DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-              DocumentBuilder docBuilder = dbf.newDocumentBuilder();
-              
-              Document d = docBuilder.newDocument();
-
-              d.setXmlStandalone(true);
-              
-              Element e = d.createElement(
-                  (xmlRootElementName == null) ? "data" : xmlRootElementName);
-              d.appendChild(e);
-              e.setAttribute("id", tableId);
+              // For XML, we stream the map out as we traverse it
               DynamicPropertiesCallback cb = new DynamicPropertiesCallback(appName,
                   tableId, instanceId, aul.activeUser, aul.locale);
 
-              int idx = 0;
-              Element meta = d.createElementNS(XML_OPENROSA_NAMESPACE, "meta");
-              meta.setPrefix("jr");
-
-              Element v = d.createElementNS(XML_OPENROSA_NAMESPACE, "instanceID");
-              Text txtNode = d.createTextNode(submissionInstanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
+              LinkedHashMap<String, String> openRosaMeta = new LinkedHashMap<String, String>();
+              openRosaMeta.put("instanceID", submissionInstanceId);
               if (xmlDeviceIdPropertyName != null) {
                 String deviceId = propertyManager.getSingularProperty(xmlDeviceIdPropertyName, cb);
                 if (deviceId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "deviceID");
-                  txtNode = d.createTextNode(deviceId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
+                  openRosaMeta.put("deviceID", deviceId);
                 }
               }
               if (xmlUserIdPropertyName != null) {
                 String userId = propertyManager.getSingularProperty(xmlUserIdPropertyName, cb);
                 if (userId != null) {
-                  v = d.createElementNS(XML_OPENROSA_NAMESPACE, "userID");
-                  txtNode = d.createTextNode(userId);
-                  v.appendChild(txtNode);
-                  meta.appendChild(v);
+                  openRosaMeta.put("userID", userId);
                 }
               }
-              v = d.createElementNS(XML_OPENROSA_NAMESPACE, "timeEnd");
-              txtNode = d.createTextNode(datestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // these are extra metadata tags...
-              if (instanceName != null) {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(instanceName);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
-              } else {
-                v = d.createElement("instanceName");
-                txtNode = d.createTextNode(savepointTimestamp);
-                v.appendChild(txtNode);
-                meta.appendChild(v);
-              }
+              openRosaMeta.put("timeEnd", datestamp);
 
               // these are extra metadata tags...
-              // rowID
-              v = d.createElement("rowID");
-              txtNode = d.createTextNode(instanceId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // rowETag
-              v = d.createElement("rowETag");
-              if (rowETag != null) {
-                txtNode = d.createTextNode(rowETag);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // defaultAccess
-              v = d.createElement("defaultAccess");
-              if (defaultAccess != null) {
-                txtNode = d.createTextNode(defaultAccess);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // owner
-              v = d.createElement("owner");
-              if (owner != null) {
-                txtNode = d.createTextNode(owner);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // groupReadOnly
-              v = d.createElement("groupReadOnly");
-              if (groupReadOnly != null) {
-                txtNode = d.createTextNode(groupReadOnly);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // groupModify
-              v = d.createElement("groupModify");
-              if (groupModify != null) {
-                txtNode = d.createTextNode(groupModify);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // groupPrivileged
-              v = d.createElement("groupPrivileged");
-              if (groupPrivileged != null) {
-                txtNode = d.createTextNode(groupPrivileged);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // formID
-              v = d.createElement("formID");
-              txtNode = d.createTextNode(formId);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // locale
-              v = d.createElement("locale");
-              txtNode = d.createTextNode(locale);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointType
-              v = d.createElement("savepointType");
-              txtNode = d.createTextNode(savepointType);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // savepointCreator
-              v = d.createElement("savepointCreator");
-              if (savepointCreator != null) {
-                txtNode = d.createTextNode(savepointCreator);
-                v.appendChild(txtNode);
-              }
-              meta.appendChild(v);
-
-              // savepointTimestamp
-              v = d.createElement("savepointTimestamp");
-              txtNode = d.createTextNode(savepointTimestamp);
-              v.appendChild(txtNode);
-              meta.appendChild(v);
-
-              // and insert the meta block into the XML
-
-              e.appendChild(meta);
-
-              idx = 3;
-              ArrayList<String> entryNames = new ArrayList<String>();
-              entryNames.addAll(values.keySet());
-              Collections.sort(entryNames);
-              for (String name : entryNames) {
-                idx = generateXmlHelper(d, e, idx, name, values, logger);
-              }
-
-              TransformerFactory factory = TransformerFactory.newInstance();
-              Transformer transformer = factory.newTransformer();
-              Properties outFormat = new Properties();
-              outFormat.setProperty( OutputKeys.INDENT, "no" );
-              outFormat.setProperty( OutputKeys.METHOD, "xml" );
-              outFormat.setProperty( OutputKeys.OMIT_XML_DECLARATION, "yes" );
-              outFormat.setProperty( OutputKeys.VERSION, "1.0" );
-              outFormat.setProperty( OutputKeys.ENCODING, "UTF-8" );
-              transformer.setOutputProperties( outFormat );
-
-              ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-              DOMSource domSource = new DOMSource( d.getDocumentElement() );
-              StreamResult result = new StreamResult( out );
-              transformer.transform( domSource, result );
-
-              out.flush();
-              out.close();
-
-              b.append(out.toString(CharEncoding.UTF_8));
-
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
+              LinkedHashMap<String, String> extraMeta = new LinkedHashMap<String, String>();
+              extraMeta.put("instanceName",
+                  (instanceName != null) ? instanceName : savepointTimestamp);
+              extraMeta.put("rowID", instanceId);
+              extraMeta.put("rowETag", rowETag);
+              extraMeta.put("defaultAccess", defaultAccess);
+              extraMeta.put("owner", owner);
+              extraMeta.put("groupReadOnly", groupReadOnly);
+              extraMeta.put("groupModify", groupModify);
+              extraMeta.put("groupPrivileged", groupPrivileged);
+              extraMeta.put("formID", formId);
+              extraMeta.put("locale", locale);
+              extraMeta.put("savepointType", savepointType);
+              extraMeta.put("savepointCreator", savepointCreator);
+              extraMeta.put("savepointTimestamp", savepointTimestamp);
+
+              XmlSubmissionWriter doc = new XmlSubmissionWriter(
+                  (xmlRootElementName == null) ? "data" : xmlRootElementName, tableId,
+                  openRosaMeta, extraMeta, values, logger);
 
               freturn.instanceFile = submissionXml;
 
@@ -790,11 +720,7 @@ public class SubmissionProvider extends ContentProvider {
               elem.put("saved", "COMPLETE");
               elem.put("timestamp", datestamp);
 
-              b.append(ODKFileUtils.mapper.writeValueAsString(wrapper));
-
-              // OK we have the document in the builder (b).
-              String doc = b.toString();
-              exportFile(doc, submissionXml, logger);
+              exportFile(new JsonSubmissionWriter(wrapper), submissionXml, logger);
             }
             exportFile(freturn.serializeUriFragmentList(), manifest, logger);
             return ParcelFileDescriptor.open(manifest, ParcelFileDescriptor.MODE_READ_ONLY);
@@ -807,10 +733,6 @@ public class SubmissionProvider extends ContentProvider {
           }
         }
 
-      } catch (ParserConfigurationException e) {
-        logger.printStackTrace(e);
-      } catch (TransformerException e) {
-        logger.printStackTrace(e);
       } catch (JsonParseException e) {
         logger.printStackTrace(e);
       } catch (JsonMappingException e) {
@@ -868,6 +790,38 @@ public class SubmissionProvider extends ContentProvider {
     }
   }
 
+  /**
+   * This method streams the submission content to disk.
+   *
+   * @param payload writes the content to be written
+   * @param outputFilePath the path to the file to write
+   * @param  logger a logger to write to, typically gotten with WebLogger.getWebLogger(appName)
+   * @return whether successful or not
+   */
+  private static boolean exportFile(EncryptionUtils.SubmissionContentWriter payload,
+      File outputFilePath, WebLoggerIf logger) {
+    OutputStream os = null;
+    try {
+      os = new BufferedOutputStream(new FileOutputStream(outputFilePath, false));
+      payload.writeTo(os);
+      os.flush();
+      os.close();
+      return true;
+
+    } catch (IOException e) {
+      logger.e(t, "Error writing file");
+      logger.printStackTrace(e);
+      try {
+        if (os != null) {
+          os.close();
+        }
+      } catch (IOException ex) {
+        logger.printStackTrace(ex);
+      }
+      return false;
+    }
+  }
+
   @Override
   public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
     return 0;
@@ -24,6 +24,7 @@ import org.opendatakit.services.sync.service.exceptions.AccessDeniedException;
 import org.opendatakit.services.sync.service.exceptions.InvalidAuthTokenException;
 import org.opendatakit.services.sync.service.exceptions.NoAppNameSpecifiedException;
 import org.opendatakit.services.sync.service.logic.AggregateSynchronizer;
+import org.opendatakit.services.sync.service.logic.LocalFileInventory;
 import org.opendatakit.services.sync.service.logic.ProcessAppAndTableLevelChanges;
 import org.opendatakit.services.sync.service.logic.ProcessRowDataOrchestrateChanges;
 import org.opendatakit.services.sync.service.logic.Synchronizer;
@@ -306,6 +307,9 @@ public class AppSynchronizer {
           if (syncResult.getAppLevelSyncOutcome() == SyncOutcome.WORKING) {
             syncResult.setAppLevelSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
           }
+        } finally {
+          // save the config-file inventory built up during the app- and table-level file sync
+          LocalFileInventory.getInventory(context, appName).persist();
         }
 
         if (syncResult.getAppLevelSyncOutcome() != SyncOutcome.SUCCESS) {
@@ -22,6 +22,7 @@ import android.os.IBinder;
 import org.opendatakit.application.IToolAware;
 import org.opendatakit.consts.IntentConsts;
 import org.opendatakit.logging.WebLogger;
+import org.opendatakit.services.sync.service.logic.LocalFileInventory;
 import org.opendatakit.sync.service.SyncAttachmentState;
 import org.opendatakit.sync.service.SyncOverallResult;
 import org.opendatakit.sync.service.SyncProgressEvent;
@@ -184,6 +185,8 @@ public class OdkSyncService extends Service {
     } catch (Exception e) {
       e.printStackTrace();
     }
+    // stop the config-file observers and save what they have recorded
+    LocalFileInventory.releaseAll();
   }
 
   private AppSynchronizer getSync(String appName) {
@@ -434,13 +434,13 @@ public class SyncExecutionContext implements SynchronizerStatus {
     }
   }
 
-  public void resetMajorSyncSteps(int nMajorSyncSteps) {
+  public synchronized void resetMajorSyncSteps(int nMajorSyncSteps) {
     this.nMajorSyncSteps = nMajorSyncSteps;
     this.GRAINS_PER_MAJOR_SYNC_STEP = (OVERALL_PROGRESS_BAR_LENGTH / nMajorSyncSteps);
     this.iMajorSyncStep = 0;
   }
   
-  public void incMajorSyncStep() {
+  public synchronized void incMajorSyncStep() {
     ++iMajorSyncStep;
     if ( iMajorSyncStep > nMajorSyncSteps ) {
       iMajorSyncStep = nMajorSyncSteps - 1;
@@ -448,7 +448,7 @@ public class SyncExecutionContext implements SynchronizerStatus {
   }
   
   @Override
-  public void updateNotification(SyncProgressState state, int textResource, Object[] formatArgVals,
+  public synchronized void updateNotification(SyncProgressState state, int textResource, Object[] formatArgVals,
                                  Double progressPercentage, boolean indeterminateProgress) {
     String text = "Bad text resource id: " + textResource + "!";
     String fmt = application.getString(textResource);
@@ -98,6 +98,12 @@ public class HttpRestProtocolWrapper {
   private static final String TOKEN_INFO = "https://www.googleapis.com/oauth2/v1/tokeninfo?access_token=";
   public static final int CONNECTION_TIMEOUT = 60000;
 
+  /**
+   * Row-level attachments are transferred by several workers at once;
+   * allow that many concurrent connections to the sync server.
+   */
+  public static final int MAX_CONNECTIONS_PER_ROUTE = 8;
+
   // parameters for queries that could return a lot of data...
   public static final String CURSOR_PARAMETER = "cursor";
   public static final String FETCH_LIMIT = "fetchLimit";
@@ -121,7 +127,12 @@ public class HttpRestProtocolWrapper {
   private CloseableHttpClient httpClient = null;
   private CloseableHttpClient httpAuthClient = null;
 
-  private HttpContext localContext = null;
+  /**
+   * HttpContext holds the authentication state machine and cannot be shared across
+   * concurrently executing requests. Each thread gets its own context; the cookie
+   * store and credentials are shared among them.
+   */
+  private ThreadLocal<HttpContext> localContext = null;
   private HttpContext localAuthContext = null;
 
   private CookieStore cookieStore = null;
@@ -695,8 +706,16 @@ public class HttpRestProtocolWrapper {
 
     // Context
     // context holds authentication state machine, so it cannot be
-    // shared across independent activities.
-    localContext = new BasicHttpContext();
+    // shared across independent activities (or concurrent threads).
+    localContext = new ThreadLocal<HttpContext>() {
+      @Override
+      protected HttpContext initialValue() {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(HttpClientContext.COOKIE_STORE, cookieStore);
+        context.setAttribute(HttpClientContext.CREDS_PROVIDER, credsProvider);
+        return context;
+      }
+    };
 
     cookieStore = new BasicCookieStore();
     credsProvider = new BasicCredentialsProvider();
@@ -742,9 +761,6 @@ public class HttpRestProtocolWrapper {
       }
     }
 
-    localContext.setAttribute(HttpClientContext.COOKIE_STORE, cookieStore);
-    localContext.setAttribute(HttpClientContext.CREDS_PROVIDER, credsProvider);
-
     SocketConfig socketConfig = SocketConfig.copy(SocketConfig.DEFAULT).setSoTimeout(2 * CONNECTION_TIMEOUT).build();
 
     // if possible, bias toward digest auth (may not be in 4.0 beta 2)
@@ -766,6 +782,8 @@ public class HttpRestProtocolWrapper {
             .build();
 
     httpClient = HttpClientBuilder.create()
+            .setMaxConnPerRoute(MAX_CONNECTIONS_PER_ROUTE)
+            .setMaxConnTotal(2 * MAX_CONNECTIONS_PER_ROUTE)
             .setDefaultSocketConfig(socketConfig)
             .setDefaultRequestConfig(requestConfig).build();
 
@@ -807,7 +825,7 @@ public class HttpRestProtocolWrapper {
     try {
       try {
         if (localContext != null) {
-          response = httpClient.execute(request, localContext);
+          response = httpClient.execute(request, localContext.get());
         } else {
           response = httpClient.execute(request);
         }
@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2018 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.services.sync.service.logic;
+
+import android.content.Context;
+import android.os.FileObserver;
+import org.opendatakit.logging.WebLogger;
+import org.opendatakit.logging.WebLoggerIf;
+import org.opendatakit.utilities.ODKFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Persistent inventory (path, size, mtime, md5) of the files under the config folder of
+ * an appName. Used by the app-level and table-level file sync to avoid walking the whole
+ * config tree and re-hashing every file on each sync.
+ * <p>
+ * The inventory is refreshed incrementally:
+ * <ul>
+ * <li>While the sync service is running, a FileObserver on each inventoried directory
+ * records the paths that changed. If the observers have been watching since the last
+ * refresh, only those paths are re-examined.</li>
+ * <li>Otherwise (e.g., after the service restarts), the tree is rescanned, but a directory
+ * whose mtime matches the inventory is not re-listed; only its files are re-stat'd.</li>
+ * </ul>
+ * md5 hashes are computed lazily and retained for as long as the file's size and mtime
+ * do not change.
+ *
+ * @author mitchellsundt@gmail.com
+ */
+public final class LocalFileInventory {
+
+  private static final String TAG = LocalFileInventory.class.getSimpleName();
+
+  private static final int INVENTORY_VERSION = 1;
+
+  private static final String INVENTORY_FOLDER = "sync_file_inventory";
+
+  /**
+   * Events that change the set of entries in a watched directory.
+   */
+  private static final int DIRECTORY_CHANGE_EVENTS = FileObserver.CREATE | FileObserver.DELETE |
+      FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF |
+      FileObserver.MOVE_SELF;
+
+  /**
+   * Events that change the content or attributes of a file in a watched directory.
+   */
+  private static final int FILE_CHANGE_EVENTS = FileObserver.MODIFY | FileObserver.CLOSE_WRITE |
+      FileObserver.ATTRIB;
+
+  private static final Map<String, LocalFileInventory> inventories = new HashMap<>();
+
+  /**
+   * Obtain the inventory for this appName, loading it from disk if necessary.
+   *
+   * @param context
+   * @param appName
+   * @return the inventory
+   */
+  public static LocalFileInventory getInventory(Context context, String appName) {
+    synchronized (inventories) {
+      LocalFileInventory inventory = inventories.get(appName);
+      if (inventory == null) {
+        File folder = new File(context.getFilesDir(), INVENTORY_FOLDER);
+        inventory = new LocalFileInventory(appName, new File(folder, appName + ".json"));
+        inventories.put(appName, inventory);
+      }
+      return inventory;
+    }
+  }
+
+  /**
+   * Stop watching and persist all inventories. Called when the sync service shuts down.
+   */
+  public static void releaseAll() {
+    synchronized (inventories) {
+      for (LocalFileInventory inventory : inventories.values()) {
+        inventory.stopWatching();
+        inventory.persist();
+      }
+      inventories.clear();
+    }
+  }
+
+  /**
+   * Persisted per-file information.
+   */
+  static final class FileEntry {
+    public long size;
+    public long lastModified;
+    public String md5;
+  }
+
+  /**
+   * Persisted per-directory information. Children that are directories have a trailing '/'.
+   */
+  static final class DirEntry {
+    public long lastModified;
+    public ArrayList<String> children;
+  }
+
+  /**
+   * The serialized form of the inventory.
+   */
+  static final class InventoryDocument {
+    public int version;
+    public TreeMap<String, FileEntry> files;
+    public TreeMap<String, DirEntry> dirs;
+  }
+
+  private final class DirectoryObserver extends FileObserver {
+    private final File dir;
+
+    DirectoryObserver(File dir) {
+      super(dir.getAbsolutePath(), DIRECTORY_CHANGE_EVENTS | FILE_CHANGE_EVENTS);
+      this.dir = dir;
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+      event &= FileObserver.ALL_EVENTS;
+      synchronized (LocalFileInventory.this) {
+        if ((event & DIRECTORY_CHANGE_EVENTS) != 0 || path == null) {
+          dirtyDirs.add(dir);
+        } else if ((event & FILE_CHANGE_EVENTS) != 0) {
+          dirtyFiles.add(new File(dir, path));
+        }
+      }
+    }
+  }
+
+  private final String appName;
+  private final File inventoryFile;
+  private final WebLoggerIf log;
+
+  private TreeMap<String, FileEntry> files = new TreeMap<>();
+  private TreeMap<String, DirEntry> dirs = new TreeMap<>();
+
+  private final Map<String, DirectoryObserver> observers = new HashMap<>();
+  private final Set<File> dirtyDirs = new HashSet<>();
+  private final Set<File> dirtyFiles = new HashSet<>();
+
+  /**
+   * True if every inventoried directory has been watched since the last refresh,
+   * so that the dirty sets are a complete record of what changed.
+   */
+  private boolean watchCoverageComplete = false;
+  private boolean loaded = false;
+  private boolean changedSincePersist = false;
+
+  private LocalFileInventory(String appName, File inventoryFile) {
+    this.appName = appName;
+    this.inventoryFile = inventoryFile;
+    this.log = WebLogger.getLogger(appName);
+  }
+
+  /**
+   * Bring the inventory up to date with the contents of the config folder.
+   */
+  public synchronized void refresh() {
+    if (!loaded) {
+      load();
+    }
+
+    File configFolder = new File(ODKFileUtils.getConfigFolder(appName));
+    if (!configFolder.exists() || !configFolder.isDirectory()) {
+      stopWatching();
+      if (!files.isEmpty() || !dirs.isEmpty()) {
+        files.clear();
+        dirs.clear();
+        changedSincePersist = true;
+      }
+      return;
+    }
+
+    if (watchCoverageComplete) {
+      // only examine what the observers reported
+      ArrayList<File> changedDirs = new ArrayList<>(dirtyDirs);
+      ArrayList<File> changedFiles = new ArrayList<>(dirtyFiles);
+      dirtyDirs.clear();
+      dirtyFiles.clear();
+      for (File dir : changedDirs) {
+        scanDirectory(dir, false);
+      }
+      for (File f : changedFiles) {
+        statFile(f);
+      }
+      log.i(TAG, "refresh: incremental, " + changedDirs.size() + " directories and " +
+          changedFiles.size() + " files changed");
+    } else {
+      dirtyDirs.clear();
+      dirtyFiles.clear();
+      scanDirectory(configFolder, true);
+      watchCoverageComplete = true;
+      log.i(TAG, "refresh: rescanned " + dirs.size() + " directories " + files.size() + " files");
+    }
+  }
+
+  /**
+   * Return the app-relative paths of the inventoried files under the given folder.
+   * Call refresh() first.
+   *
+   * @param folder
+   * @return list of app-relative paths
+   */
+  public synchronized List<String> getFilesUnderFolder(File folder) {
+    String prefix = asRelativeDirPath(folder);
+    ArrayList<String> relativePaths = new ArrayList<>();
+    for (String relativePath : subMap(files, prefix).keySet()) {
+      relativePaths.add(relativePath);
+    }
+    return relativePaths;
+  }
+
+  /**
+   * @param localFile
+   * @return true if the inventory holds this file.
+   */
+  public synchronized boolean containsFile(File localFile) {
+    return files.containsKey(ODKFileUtils.asRelativePath(appName, localFile));
+  }
+
+  /**
+   * Return the md5 hash (with the "md5:" prefix) of the file, computing it only if the
+   * file's size or mtime differs from the inventory. The file is stat'd directly so that a
+   * stale inventory entry cannot produce a wrong hash.
+   *
+   * @param localFile
+   * @return md5 hash or null if the file does not exist.
+   */
+  public synchronized String getMd5Hash(File localFile) {
+    String relativePath = ODKFileUtils.asRelativePath(appName, localFile);
+    long size = localFile.length();
+    long lastModified = localFile.lastModified();
+    if (lastModified == 0L && !localFile.exists()) {
+      if (files.remove(relativePath) != null) {
+        changedSincePersist = true;
+      }
+      return null;
+    }
+    FileEntry entry = files.get(relativePath);
+    if (entry != null && entry.size == size && entry.lastModified == lastModified &&
+        entry.md5 != null) {
+      return entry.md5;
+    }
+    String md5 = ODKFileUtils.getMd5Hash(appName, localFile);
+    if (entry == null) {
+      entry = new FileEntry();
+      files.put(relativePath, entry);
+    }
+    entry.size = size;
+    entry.lastModified = lastModified;
+    entry.md5 = md5;
+    changedSincePersist = true;
+    return md5;
+  }
+
+  /**
+   * Record a file that sync just wrote (with its known md5) or deleted.
+   *
+   * @param localFile
+   * @param md5 the md5 hash of the content, or null if not known
+   */
+  public synchronized void recordFileChange(File localFile, String md5) {
+    String relativePath = ODKFileUtils.asRelativePath(appName, localFile);
+    if (!localFile.exists()) {
+      if (files.remove(relativePath) != null) {
+        changedSincePersist = true;
+      }
+      return;
+    }
+    FileEntry entry = files.get(relativePath);
+    if (entry == null) {
+      entry = new FileEntry();
+      files.put(relativePath, entry);
+      // the parent listing is now stale
+      dirtyDirs.add(localFile.getParentFile());
+    }
+    entry.size = localFile.length();
+    entry.lastModified = localFile.lastModified();
+    entry.md5 = md5;
+    changedSincePersist = true;
+  }
+
+  /**
+   * Write the inventory to disk if it has changed.
+   */
+  public synchronized void persist() {
+    if (!changedSincePersist) {
+      return;
+    }
+    InventoryDocument doc = new InventoryDocument();
+    doc.version = INVENTORY_VERSION;
+    doc.files = files;
+    doc.dirs = dirs;
+    File parent = inventoryFile.getParentFile();
+    File tmp = new File(parent, inventoryFile.getName() + ".tmp");
+    try {
+      if (!parent.exists() && !parent.mkdirs()) {
+        log.e(TAG, "persist: unable to create " + parent.getAbsolutePath());
+        return;
+      }
+      ODKFileUtils.mapper.writeValue(tmp, doc);
+      if (!tmp.renameTo(inventoryFile)) {
+        log.e(TAG, "persist: unable to rename " + tmp.getAbsolutePath());
+        return;
+      }
+      changedSincePersist = false;
+    } catch (IOException e) {
+      log.printStackTrace(e);
+      log.e(TAG, "persist: unable to write inventory");
+    }
+  }
+
+  /**
+   * Stop all FileObservers. The next refresh will rescan.
+   */
+  public synchronized void stopWatching() {
+    for (DirectoryObserver observer : observers.values()) {
+      observer.stopWatching();
+    }
+    observers.clear();
+    watchCoverageComplete = false;
+  }
+
+  private void load() {
+    loaded = true;
+    if (!inventoryFile.exists()) {
+      return;
+    }
+    try {
+      InventoryDocument doc = ODKFileUtils.mapper.readValue(inventoryFile, InventoryDocument.class);
+      if (doc != null && doc.version == INVENTORY_VERSION && doc.files != null &&
+          doc.dirs != null) {
+        files = doc.files;
+        dirs = doc.dirs;
+      }
+    } catch (IOException e) {
+      log.printStackTrace(e);
+      log.w(TAG, "load: discarding unreadable inventory");
+    }
+  }
+
+  /**
+   * Bring the entries for this directory up to date.
+   * <p>
+   * The directory is only re-listed if its mtime differs from the inventory. Its files
+   * are always re-stat'd. Subdirectories not yet in the inventory are always scanned;
+   * subdirectories already in the inventory are scanned only if recurseIntoKnownDirs.
+   *
+   * @param dir
+   * @param recurseIntoKnownDirs
+   */
+  private void scanDirectory(File dir, boolean recurseIntoKnownDirs) {
+    String relativeDir = asRelativeDirPath(dir);
+
+    // watch before examining so that no change can slip in between.
+    watch(dir, relativeDir);
+
+    long lastModified = dir.lastModified();
+    if (lastModified == 0L && !dir.exists()) {
+      removeSubtree(relativeDir);
+      return;
+    }
+
+    DirEntry entry = dirs.get(relativeDir);
+    if (entry == null || entry.lastModified != lastModified || entry.children == null) {
+      File[] children = dir.listFiles();
+      ArrayList<String> names = new ArrayList<>();
+      if (children != null) {
+        for (File child : children) {
+          names.add(child.isDirectory() ? child.getName() + "/" : child.getName());
+        }
+      }
+      if (entry != null && entry.children != null) {
+        // forget anything that has gone away
+        HashSet<String> current = new HashSet<>(names);
+        for (String old : entry.children) {
+          if (!current.contains(old)) {
+            if (old.endsWith("/")) {
+              removeSubtree(relativeDir + old);
+            } else if (files.remove(relativeDir + old) != null) {
+              changedSincePersist = true;
+            }
+          }
+        }
+      }
+      if (entry == null) {
+        entry = new DirEntry();
+        dirs.put(relativeDir, entry);
+      }
+      entry.lastModified = lastModified;
+      entry.children = names;
+      changedSincePersist = true;
+    }
+
+    for (String name : entry.children) {
+      if (name.endsWith("/")) {
+        String childDir = relativeDir + name;
+        if (recurseIntoKnownDirs || !dirs.containsKey(childDir)) {
+          scanDirectory(new File(dir, name.substring(0, name.length() - 1)),
+              recurseIntoKnownDirs);
+        }
+      } else {
+        statFile(new File(dir, name));
+      }
+    }
+  }
+
+  private void statFile(File f) {
+    String relativePath = ODKFileUtils.asRelativePath(appName, f);
+    long lastModified = f.lastModified();
+    if (lastModified == 0L && !f.exists()) {
+      if (files.remove(relativePath) != null) {
+        changedSincePersist = true;
+      }
+      return;
+    }
+    if (f.isDirectory()) {
+      // replaced by a directory; the parent listing will pick it up.
+      dirtyDirs.add(f.getParentFile());
+      return;
+    }
+    long size = f.length();
+    FileEntry entry = files.get(relativePath);
+    if (entry == null) {
+      entry = new FileEntry();
+      files.put(relativePath, entry);
+    } else if (entry.size == size && entry.lastModified == lastModified) {
+      return;
+    }
+    entry.size = size;
+    entry.lastModified = lastModified;
+    entry.md5 = null;
+    changedSincePersist = true;
+  }
+
+  private void removeSubtree(String relativeDir) {
+    SortedMap<String, FileEntry> removedFiles = subMap(files, relativeDir);
+    SortedMap<String, DirEntry> removedDirs = subMap(dirs, relativeDir);
+    if (!removedFiles.isEmpty() || !removedDirs.isEmpty()) {
+      changedSincePersist = true;
+    }
+    removedFiles.clear();
+    Iterator<String> it = removedDirs.keySet().iterator();
+    while (it.hasNext()) {
+      DirectoryObserver observer = observers.remove(it.next());
+      if (observer != null) {
+        observer.stopWatching();
+      }
+      it.remove();
+    }
+  }
+
+  private void watch(File dir, String relativeDir) {
+    if (!observers.containsKey(relativeDir) && dir.isDirectory()) {
+      DirectoryObserver observer = new DirectoryObserver(dir);
+      observer.startWatching();
+      observers.put(relativeDir, observer);
+    }
+  }
+
+  private String asRelativeDirPath(File dir) {
+    String relativeDir = ODKFileUtils.asRelativePath(appName, dir);
+    return relativeDir.endsWith("/") ? relativeDir : relativeDir + "/";
+  }
+
+  private static <T> SortedMap<String, T> subMap(TreeMap<String, T> map, String prefix) {
+    // '/' + 1 == '0'; every key with this prefix sorts before prefix-with-'/'-bumped
+    String upperBound = prefix.substring(0, prefix.length() - 1) + '0';
+    return map.subMap(prefix, upperBound);
+  }
+}
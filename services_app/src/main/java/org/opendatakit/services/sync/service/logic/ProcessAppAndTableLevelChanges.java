@@ -24,16 +24,22 @@ import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.UserInfoList;
 import org.opendatakit.builder.PropertiesFileUtils;
+import org.opendatakit.database.DatabaseConstants;
+import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.KeyValueStoreEntry;
 import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.TableDefinitionEntry;
+import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.WebLoggerIf;
 import org.opendatakit.properties.CommonToolProperties;
 import org.opendatakit.provider.FormsColumns;
+import org.opendatakit.provider.SyncETagColumns;
+import org.opendatakit.provider.TableDefinitionsColumns;
 import org.opendatakit.services.R;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
 import org.opendatakit.services.sync.service.exceptions.SchemaMismatchException;
@@ -46,9 +52,17 @@ import org.opendatakit.utilities.ODKFileUtils;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Isolate the app-level and table-level synchronization steps
@@ -61,6 +75,11 @@ public class ProcessAppAndTableLevelChanges {
 
   private static final String TAG = ProcessAppAndTableLevelChanges.class.getSimpleName();
 
+  /**
+   * Number of tables whose table-level configuration and files are synced concurrently.
+   */
+  private static final int MAX_CONCURRENT_TABLE_SYNCS = 4;
+
   private final WebLoggerIf log;
   
   private final SyncExecutionContext sc;
@@ -81,24 +100,26 @@ public class ProcessAppAndTableLevelChanges {
         PropertiesFileUtils.DataTableDefinition dtd =
             PropertiesFileUtils.readPropertiesFromCsv(sc.getAppName(), tableId);
 
-        // Go through the KVS list and replace all the choiceList entries with their choiceListId
-        for ( KeyValueStoreEntry entry : dtd.kvsEntries ) {
-          if ( entry.partition.equals(KeyValueStoreConstants.PARTITION_COLUMN) &&
-              entry.key.equals(KeyValueStoreConstants.COLUMN_DISPLAY_CHOICES_LIST) ) {
-            // stored type is a string -- the choiceListId
-            entry.type = ElementDataType.string.name();
-            if ((entry.value != null) && (entry.value.trim().length() != 0)) {
-              String choiceListId = sc.getDatabaseService().setChoiceList(sc.getAppName(),
-                  sc.getDatabase(), entry.value);
-              entry.value = choiceListId;
-            } else {
-              entry.value = null;
+        synchronized (manifestProcessor.getDatabaseMutex()) {
+          // Go through the KVS list and replace all the choiceList entries with their choiceListId
+          for ( KeyValueStoreEntry entry : dtd.kvsEntries ) {
+            if ( entry.partition.equals(KeyValueStoreConstants.PARTITION_COLUMN) &&
+                entry.key.equals(KeyValueStoreConstants.COLUMN_DISPLAY_CHOICES_LIST) ) {
+              // stored type is a string -- the choiceListId
+              entry.type = ElementDataType.string.name();
+              if ((entry.value != null) && (entry.value.trim().length() != 0)) {
+                String choiceListId = sc.getDatabaseService().setChoiceList(sc.getAppName(),
+                    sc.getDatabase(), entry.value);
+                entry.value = choiceListId;
+              } else {
+                entry.value = null;
+              }
             }
           }
-        }
 
-        sc.getDatabaseService().createOrOpenTableWithColumnsAndProperties(sc.getAppName(),
-            sc.getDatabase(), tableId, dtd.columnList, dtd.kvsEntries, true);
+          sc.getDatabaseService().createOrOpenTableWithColumnsAndProperties(sc.getAppName(),
+              sc.getDatabase(), tableId, dtd.columnList, dtd.kvsEntries, true);
+        }
       } catch (Exception e) {
         this.reloadingException = e;
       }
@@ -286,10 +307,14 @@ public class ProcessAppAndTableLevelChanges {
 
     // get the tables on the local device
     List<String> localTableIds;
+    Map<String, LocalTableFingerprint> localFingerprints = null;
     DbHandle db = null;
     try {
       db = sc.getDatabase();
       localTableIds = sc.getDatabaseService().getAllTableIds(sc.getAppName(), db);
+      if (!pushToServer) {
+        localFingerprints = getLocalTableFingerprints(db);
+      }
     } catch (Exception e) {
       sc.setAppLevelSyncOutcome(sc.exceptionEquivalentOutcome(e));
       log.e(TAG,
@@ -397,7 +422,8 @@ public class ProcessAppAndTableLevelChanges {
       // / UPDATE SERVER CONTENT
       // / UPDATE SERVER CONTENT
       // / UPDATE SERVER CONTENT
-      for (String localTableId : localTableIds) {
+      List<TableConfigurationTask> tasks = new ArrayList<TableConfigurationTask>();
+      for (final String localTableId : localTableIds) {
         TableResource matchingResource = null;
         for (TableResource tr : tables) {
           if (tr.getTableId().equals(localTableId)) {
@@ -405,41 +431,31 @@ public class ProcessAppAndTableLevelChanges {
             break;
           }
         }
-        log.i(TAG, "[synchronizeConfigurationAndContent] synchronizing table " + localTableId);
 
         // do not sync the framework table
-        if (!localTableId.equals(FormsColumns.COMMON_BASE_FORM_ID)) {
-          TableDefinitionEntry entry;
-          OrderedColumns orderedDefns;
-          try {
-            db = sc.getDatabase();
-            entry = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db, localTableId);
-            orderedDefns = sc.getDatabaseService().getUserDefinedColumns(sc.getAppName(), db, localTableId);
-          } finally {
-            try {
-              sc.releaseDatabase(db);
-            } finally {
-              db = null;
-            }
-          }
+        if (localTableId.equals(FormsColumns.COMMON_BASE_FORM_ID)) {
+          sc.updateNotification(SyncProgressState.TABLE_FILES,
+              R.string.sync_table_level_file_sync_complete, new Object[] { localTableId }, 100.0,
+              false);
+          sc.incMajorSyncStep();
+          continue;
+        }
 
-          if (matchingResource != null) {
-            serverTablesToDelete.remove(matchingResource);
-          }
+        if (matchingResource != null) {
+          serverTablesToDelete.remove(matchingResource);
+        }
 
-          TableResource updatedResource = synchronizeTableConfigurationAndContent(entry,
-              orderedDefns, matchingResource, true);
-          if (updatedResource != null) {
-            // there were no errors sync'ing the table-level info.
-            // allow client to sync instance-level data...
-            workingListOfTables.add(updatedResource);
+        final TableResource resource = matchingResource;
+        tasks.add(new TableConfigurationTask(localTableId) {
+          @Override
+          public TableResource call() throws Exception {
+            return pushTableConfigurationAndContent(localTableId, resource);
           }
-        }
+        });
+      }
 
-        sc.updateNotification(SyncProgressState.TABLE_FILES,
-            R.string.sync_table_level_file_sync_complete, new Object[] { localTableId }, 100.0,
-            false);
-        sc.incMajorSyncStep();
+      if (!synchronizeTablesConcurrently(tasks, workingListOfTables)) {
+        return new ArrayList<TableResource>();
       }
 
       // TODO: make this configurable?
@@ -471,111 +487,49 @@ public class ProcessAppAndTableLevelChanges {
       // do not remove the framework table
       localTableIdsToDelete.remove(FormsColumns.COMMON_BASE_FORM_ID);
 
-      boolean firstTime = true;
-      for (TableResource table : tables) {
-        if ( !firstTime ) {
-          sc.incMajorSyncStep();
-        }
-        firstTime = false;
+      List<TableConfigurationTask> tasks = new ArrayList<TableConfigurationTask>();
+      List<TableResource> unchangedTables = new ArrayList<TableResource>();
+      for (final TableResource table : tables) {
+        final boolean doesNotExistLocally = !localTableIds.contains(table.getTableId());
+        localTableIdsToDelete.remove(table.getTableId());
 
-        OrderedColumns orderedDefns = null;
-
-        String serverTableId = table.getTableId();
-
-        TableLevelResult tableLevelResult = sc.getTableLevelResult(serverTableId);
-
-        boolean doesNotExistLocally = true;
-        boolean isLocalMatch = false;
-        TableDefinitionEntry entry = null;
-
-        if (localTableIds.contains(serverTableId)) {
-          localTableIdsToDelete.remove(serverTableId);
-          doesNotExistLocally = false;
-
-          sc.updateNotification(SyncProgressState.TABLE_FILES,
-              R.string.sync_verifying_table_schema_on_server, new Object[] { serverTableId },
-              0.0,
-              false);
-
-          // see if the schemaETag matches. If so, we can skip a lot of steps...
-          // no need to verify schema match -- just sync files...
-          try {
-            db = sc.getDatabase();
-            entry = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db, serverTableId);
-            orderedDefns = sc.getDatabaseService().getUserDefinedColumns(sc.getAppName(), db, serverTableId);
-            if (table.getSchemaETag().equals(entry.getSchemaETag())) {
-              isLocalMatch = true;
-            }
-          } catch (Exception e) {
-            exception("synchronizeConfigurationAndContent - database exception", serverTableId, e, tableLevelResult);
-            continue;
-          } finally {
-            if ( db != null ) {
-              try {
-                sc.releaseDatabase(db);
-              } finally {
-                db = null;
-              }
-            }
-          }
+        if (!doesNotExistLocally &&
+            isUnchangedOnServer(table, localFingerprints.get(table.getTableId()))) {
+          unchangedTables.add(table);
+          continue;
         }
 
-        if (!isLocalMatch) {
-          sc.updateNotification(SyncProgressState.TABLE_FILES,
-              R.string.sync_creating_local_table, new Object[] { serverTableId },
-              0.0,
-              false);
-
-          try {
-            TableDefinitionResource definitionResource = sc.getSynchronizer().getTableDefinition(table
-                .getDefinitionUri());
-
-            try {
-              db = sc.getDatabase();
-              orderedDefns = addTableFromDefinitionResource(db, definitionResource, doesNotExistLocally);
-              // NOTE: get entry after addTableFromDefinitionResource() because that may update tableSchemaETag
-              entry = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db, serverTableId);
-            } finally {
-              if (db != null) {
-                try {
-                  sc.releaseDatabase(db);
-                } finally {
-                  db = null;
-                }
-              }
-            }
-          } catch (Exception e) {
-            exception("synchronizeConfigurationAndContent - exception while verifying table definition",
-                serverTableId, e, tableLevelResult);
-            continue;
+        tasks.add(new TableConfigurationTask(table.getTableId()) {
+          @Override
+          public TableResource call() throws Exception {
+            return pullTableConfigurationAndContent(table, doesNotExistLocally);
           }
-        }
+        });
+      }
 
-        // only sync the files if we don't yet have a failure on this tableId
-        if ( tableLevelResult.getSyncOutcome().equals(SyncOutcome.WORKING) ) {
-          // Sync the local media files with the server if the table
-          // existed locally before we attempted downloading it.
-
-          TableResource updatedResource = synchronizeTableConfigurationAndContent(entry,
-              orderedDefns, table, false);
-          if (updatedResource != null) {
-            // there were no errors sync'ing the table-level info.
-            // allow client to sync instance-level data...
-            workingListOfTables.add(updatedResource);
-          }
-          sc.updateNotification(SyncProgressState.TABLE_FILES,
-              R.string.sync_table_level_file_sync_complete, new Object[] { serverTableId }, 100.0,
-              false);
-        } else {
-          // otherwise leave our local configuration. We need to resolve earlier failures first.
-          sc.updateNotification(SyncProgressState.TABLE_FILES,
-              R.string.sync_table_level_sync_failed, new Object[] { serverTableId }, 100.0,
-              false);
+      // the schema and table-level files of these tables already match the server.
+      // The row-data sync will still visit them.
+      for (TableResource table : unchangedTables) {
+        log.i(TAG, "[synchronizeConfigurationAndContent] table " + table.getTableId()
+            + " is unchanged on server -- skipping table-level sync");
+        String displayName;
+        synchronized (manifestProcessor.getDatabaseMutex()) {
+          displayName = sc.getTableDisplayName(table.getTableId());
         }
+        sc.getTableLevelResult(table.getTableId()).setTableDisplayName(displayName);
+        workingListOfTables.add(table);
+        sc.updateNotification(SyncProgressState.TABLE_FILES,
+            R.string.sync_table_level_file_sync_complete, new Object[] { table.getTableId() },
+            100.0, false);
+        sc.incMajorSyncStep();
+      }
+
+      if (!synchronizeTablesConcurrently(tasks, workingListOfTables)) {
+        return new ArrayList<TableResource>();
       }
-      sc.incMajorSyncStep();
 
       // and now loop through the ones to delete...
+      // (only after all the server tables have been processed)
       for (String localTableId : localTableIdsToDelete) {
         sc.updateNotification(SyncProgressState.TABLE_FILES, R.string.sync_dropping_local_table,
             new Object[] { localTableId }, 0.0, false);
@@ -613,6 +567,327 @@ public class ProcessAppAndTableLevelChanges {
     return workingListOfTables;
   }
 
+  /**
+   * The locally-recorded ETags that identify the state of a table's schema and
+   * table-level files.
+   */
+  private static final class LocalTableFingerprint {
+    final String schemaETag;
+    final String tableLevelManifestUri;
+    String tableLevelManifestETag = null;
+
+    LocalTableFingerprint(String schemaETag, String tableLevelManifestUri) {
+      this.schemaETag = schemaETag;
+      this.tableLevelManifestUri = tableLevelManifestUri;
+    }
+  }
+
+  /**
+   * Retrieve the schemaETag and table-level manifest ETag of every local table
+   * with one query rather than several database round-trips per table.
+   *
+   * @param db
+   * @return map of tableId to the fingerprint of that local table
+   * @throws ServicesAvailabilityException
+   */
+  private Map<String, LocalTableFingerprint> getLocalTableFingerprints(DbHandle db)
+      throws ServicesAvailabilityException {
+
+    StringBuilder b = new StringBuilder();
+    //@formatter:off
+    b.append("SELECT d.").append(TableDefinitionsColumns.TABLE_ID).append(" AS tableId")
+     .append(", d.").append(TableDefinitionsColumns.SCHEMA_ETAG).append(" AS schemaETag")
+     .append(", e.").append(SyncETagColumns.URL).append(" AS url")
+     .append(", e.").append(SyncETagColumns.ETAG_MD5_HASH).append(" AS manifestETag")
+     .append(" FROM ").append(DatabaseConstants.TABLE_DEFS_TABLE_NAME).append(" AS d")
+     .append(" LEFT JOIN ").append(DatabaseConstants.SYNC_ETAGS_TABLE_NAME).append(" AS e")
+     .append(" ON e.").append(SyncETagColumns.TABLE_ID)
+     .append("=d.").append(TableDefinitionsColumns.TABLE_ID)
+     .append(" AND e.").append(SyncETagColumns.IS_MANIFEST).append("=?")
+     .append(" ORDER BY d.").append(TableDefinitionsColumns.TABLE_ID)
+     .append(", e.").append(SyncETagColumns.LAST_MODIFIED_TIMESTAMP).append(" DESC");
+    //@formatter:on
+
+    BaseTable bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+        b.toString(), new BindArgs(new Object[] { DatabaseConstants.INT_TRUE_STRING }),
+        null, null);
+
+    Map<String, LocalTableFingerprint> fingerprints = new HashMap<String, LocalTableFingerprint>();
+    for (int i = 0; i < bt.getNumberOfRows(); ++i) {
+      Row row = bt.getRowAtIndex(i);
+      String tableId = row.getRawStringByKey("tableId");
+      LocalTableFingerprint fingerprint = fingerprints.get(tableId);
+      if (fingerprint == null) {
+        fingerprint = new LocalTableFingerprint(row.getRawStringByKey("schemaETag"),
+            sc.getSynchronizer().constructTableLevelFileManifestUri(tableId).toString());
+        fingerprints.put(tableId, fingerprint);
+      }
+      // most-recent entries come first; take the first one for the current server
+      if (fingerprint.tableLevelManifestETag == null &&
+          fingerprint.tableLevelManifestUri.equals(row.getRawStringByKey("url"))) {
+        fingerprint.tableLevelManifestETag = row.getRawStringByKey("manifestETag");
+      }
+    }
+    return fingerprints;
+  }
+
+  /**
+   * @param table the server's table resource
+   * @param fingerprint the fingerprint of the local table, or null if unknown.
+   * @return true if the schema and table-level files of the local table are
+   * known to match those on the server.
+   */
+  private static boolean isUnchangedOnServer(TableResource table,
+      LocalTableFingerprint fingerprint) {
+    return fingerprint != null &&
+        table.getSchemaETag() != null &&
+        table.getSchemaETag().equals(fingerprint.schemaETag) &&
+        table.getTableLevelManifestETag() != null &&
+        table.getTableLevelManifestETag().equals(fingerprint.tableLevelManifestETag);
+  }
+
+  /**
+   * A unit of table-level configuration work, identified by its tableId.
+   */
+  private abstract static class TableConfigurationTask implements Callable<TableResource> {
+    final String tableId;
+
+    TableConfigurationTask(String tableId) {
+      this.tableId = tableId;
+    }
+  }
+
+  /**
+   * Outcome of a table-level configuration sync run on a worker thread.
+   */
+  private static final class TableConfigurationOutcome {
+    final String tableId;
+    final TableResource resource;
+    final Throwable error;
+
+    TableConfigurationOutcome(String tableId, TableResource resource, Throwable error) {
+      this.tableId = tableId;
+      this.resource = resource;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Run the table-level configuration sync of each table on a bounded pool of
+   * workers. Tables are independent of each other; their database interactions
+   * are serialized (see ProcessManifestContentAndFileChanges.getDatabaseMutex())
+   * because the workers share the one database handle. The outcomes are applied
+   * on this thread as they complete.
+   *
+   * @param tasks
+   * @param workingListOfTables tables that synced successfully are added to this list.
+   * @return false if the sync was interrupted (the app-level outcome has been set).
+   * @throws ServicesAvailabilityException
+   */
+  private boolean synchronizeTablesConcurrently(List<TableConfigurationTask> tasks,
+      List<TableResource> workingListOfTables) throws ServicesAvailabilityException {
+
+    if (tasks.isEmpty()) {
+      return true;
+    }
+
+    // TableLevelResults are created on demand; create them all on this thread
+    // so that the workers only ever look them up.
+    for (TableConfigurationTask task : tasks) {
+      sc.getTableLevelResult(task.tableId);
+    }
+
+    ExecutorService workers = Executors.newFixedThreadPool(
+        Math.min(MAX_CONCURRENT_TABLE_SYNCS, tasks.size()));
+    CompletionService<TableConfigurationOutcome> completionService =
+        new ExecutorCompletionService<TableConfigurationOutcome>(workers);
+    try {
+      for (final TableConfigurationTask task : tasks) {
+        completionService.submit(new Callable<TableConfigurationOutcome>() {
+          @Override
+          public TableConfigurationOutcome call() {
+            try {
+              return new TableConfigurationOutcome(task.tableId, task.call(), null);
+            } catch (Throwable e) {
+              return new TableConfigurationOutcome(task.tableId, null, e);
+            }
+          }
+        });
+      }
+
+      for (int i = 0; i < tasks.size(); ++i) {
+        TableConfigurationOutcome outcome = completionService.take().get();
+        if (outcome.error instanceof ServicesAvailabilityException) {
+          throw (ServicesAvailabilityException) outcome.error;
+        } else if (outcome.error != null) {
+          Exception e = (outcome.error instanceof Exception) ?
+              (Exception) outcome.error : new ExecutionException(outcome.error);
+          exception("synchronizeConfigurationAndContent", outcome.tableId, e,
+              sc.getTableLevelResult(outcome.tableId));
+        } else if (outcome.resource != null) {
+          // there were no errors sync'ing the table-level info.
+          // allow client to sync instance-level data...
+          workingListOfTables.add(outcome.resource);
+        }
+        sc.incMajorSyncStep();
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.e(TAG, "[synchronizeConfigurationAndContent] interrupted while synchronizing tables");
+      sc.setAppLevelSyncOutcome(sc.exceptionEquivalentOutcome(e));
+      return false;
+    } catch (ExecutionException e) {
+      // the submitted callables never throw
+      throw new IllegalStateException(e);
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Push the configuration of a local table to the server.
+   *
+   * @param localTableId
+   * @param matchingResource the server's table resource, or null if not on the server.
+   * @return null if there is an error, otherwise a new or updated table resource
+   * @throws ServicesAvailabilityException
+   */
+  private TableResource pushTableConfigurationAndContent(String localTableId,
+      TableResource matchingResource) throws ServicesAvailabilityException {
+    log.i(TAG, "[synchronizeConfigurationAndContent] synchronizing table " + localTableId);
+
+    TableDefinitionEntry entry;
+    OrderedColumns orderedDefns;
+    synchronized (manifestProcessor.getDatabaseMutex()) {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        entry = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db, localTableId);
+        orderedDefns = sc.getDatabaseService().getUserDefinedColumns(sc.getAppName(), db, localTableId);
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+
+    TableResource updatedResource = synchronizeTableConfigurationAndContent(entry,
+        orderedDefns, matchingResource, true);
+
+    sc.updateNotification(SyncProgressState.TABLE_FILES,
+        R.string.sync_table_level_file_sync_complete, new Object[] { localTableId }, 100.0,
+        false);
+    return updatedResource;
+  }
+
+  /**
+   * Create or update the local table to mimic the server's table and sync its
+   * table-level files.
+   *
+   * @param table the server's table resource
+   * @param doesNotExistLocally
+   * @return null if there is an error, otherwise the updated table resource
+   * @throws ServicesAvailabilityException
+   */
+  private TableResource pullTableConfigurationAndContent(TableResource table,
+      boolean doesNotExistLocally) throws ServicesAvailabilityException {
+
+    OrderedColumns orderedDefns = null;
+
+    String serverTableId = table.getTableId();
+
+    TableLevelResult tableLevelResult = sc.getTableLevelResult(serverTableId);
+
+    boolean isLocalMatch = false;
+    TableDefinitionEntry entry = null;
+
+    if (!doesNotExistLocally) {
+      sc.updateNotification(SyncProgressState.TABLE_FILES,
+          R.string.sync_verifying_table_schema_on_server, new Object[] { serverTableId },
+          0.0,
+          false);
+
+      // see if the schemaETag matches. If so, we can skip a lot of steps...
+      // no need to verify schema match -- just sync files...
+      synchronized (manifestProcessor.getDatabaseMutex()) {
+        DbHandle db = null;
+        try {
+          db = sc.getDatabase();
+          entry = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db, serverTableId);
+          orderedDefns = sc.getDatabaseService().getUserDefinedColumns(sc.getAppName(), db, serverTableId);
+          if (table.getSchemaETag().equals(entry.getSchemaETag())) {
+            isLocalMatch = true;
+          }
+        } catch (Exception e) {
+          exception("synchronizeConfigurationAndContent - database exception", serverTableId, e, tableLevelResult);
+          return null;
+        } finally {
+          if ( db != null ) {
+            try {
+              sc.releaseDatabase(db);
+            } finally {
+              db = null;
+            }
+          }
+        }
+      }
+    }
+
+    if (!isLocalMatch) {
+      sc.updateNotification(SyncProgressState.TABLE_FILES,
+          R.string.sync_creating_local_table, new Object[] { serverTableId },
+          0.0,
+          false);
+
+      try {
+        TableDefinitionResource definitionResource = sc.getSynchronizer().getTableDefinition(table
+            .getDefinitionUri());
+
+        // table creation alters the database schema; do this one table at a time.
+        synchronized (manifestProcessor.getDatabaseMutex()) {
+          DbHandle db = null;
+          try {
+            db = sc.getDatabase();
+            orderedDefns = addTableFromDefinitionResource(db, definitionResource, doesNotExistLocally);
+            // NOTE: get entry after addTableFromDefinitionResource() because that may update tableSchemaETag
+            entry = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db, serverTableId);
+          } finally {
+            if (db != null) {
+              try {
+                sc.releaseDatabase(db);
+              } finally {
+                db = null;
+              }
+            }
+          }
+        }
+      } catch (Exception e) {
+        exception("synchronizeConfigurationAndContent - exception while verifying table definition",
+            serverTableId, e, tableLevelResult);
+        return null;
+      }
+    }
+
+    // only sync the files if we don't yet have a failure on this tableId
+    if ( tableLevelResult.getSyncOutcome().equals(SyncOutcome.WORKING) ) {
+      // Sync the local media files with the server if the table
+      // existed locally before we attempted downloading it.
+
+      TableResource updatedResource = synchronizeTableConfigurationAndContent(entry,
+          orderedDefns, table, false);
+      sc.updateNotification(SyncProgressState.TABLE_FILES,
+          R.string.sync_table_level_file_sync_complete, new Object[] { serverTableId }, 100.0,
+          false);
+      return updatedResource;
+    } else {
+      // otherwise leave our local configuration. We need to resolve earlier failures first.
+      sc.updateNotification(SyncProgressState.TABLE_FILES,
+          R.string.sync_table_level_sync_failed, new Object[] { serverTableId }, 100.0,
+          false);
+      return null;
+    }
+  }
+
   /**
    * Synchronize the table represented by the given TableProperties with the
    * cloud.
@@ -667,7 +942,9 @@ public class ProcessAppAndTableLevelChanges {
         R.string.sync_verifying_table_schema_on_server, new Object[] { tableId }, 0.0, false);
     final TableLevelResult tableLevelResult = sc.getTableLevelResult(tableId);
     String displayName;
-    displayName = sc.getTableDisplayName(tableId);
+    synchronized (manifestProcessor.getDatabaseMutex()) {
+      displayName = sc.getTableDisplayName(tableId);
+    }
     tableLevelResult.setTableDisplayName(displayName);
 
     DbHandle db = null;
@@ -698,14 +975,16 @@ public class ProcessAppAndTableLevelChanges {
         }
 
         schemaETag = resource.getSchemaETag();
-        try {
-          db = sc.getDatabase();
-          // update schemaETag to that on server (dataETag is null already).
-          sc.getDatabaseService().privilegedUpdateTableETags(sc.getAppName(), db, tableId,
-              schemaETag, null);
-        } finally {
-          sc.releaseDatabase(db);
-          db = null;
+        synchronized (manifestProcessor.getDatabaseMutex()) {
+          try {
+            db = sc.getDatabase();
+            // update schemaETag to that on server (dataETag is null already).
+            sc.getDatabaseService().privilegedUpdateTableETags(sc.getAppName(), db, tableId,
+                schemaETag, null);
+          } finally {
+            sc.releaseDatabase(db);
+            db = null;
+          }
         }
       }
 
@@ -738,23 +1017,25 @@ public class ProcessAppAndTableLevelChanges {
 
         // record that we have pulled it
         tableLevelResult.setPulledServerSchema(true);
-        try {
-          db = sc.getDatabase();
-          // apply changes
-          // this also updates the data rows so they will sync
-          orderedDefns = addTableFromDefinitionResource(db, definitionResource, false);
-          // NOTE: get tde after addTableFromDefinitionResource() because that may update tableSchemaETag
-          tde = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db, tableId);
-
-          log.w(TAG,
-              "database schema has changed. Structural modifications, if any, were successful.");
-        } catch (Exception e) {
-          exception("synchronizeTableConfigurationAndContent - create table locally", tableId, e, tableLevelResult);
-          return null;
-        } finally {
-          if (db != null) {
-            sc.releaseDatabase(db);
-            db = null;
+        synchronized (manifestProcessor.getDatabaseMutex()) {
+          try {
+            db = sc.getDatabase();
+            // apply changes
+            // this also updates the data rows so they will sync
+            orderedDefns = addTableFromDefinitionResource(db, definitionResource, false);
+            // NOTE: get tde after addTableFromDefinitionResource() because that may update tableSchemaETag
+            tde = sc.getDatabaseService().getTableDefinitionEntry(sc.getAppName(), db, tableId);
+
+            log.w(TAG,
+                "database schema has changed. Structural modifications, if any, were successful.");
+          } catch (Exception e) {
+            exception("synchronizeTableConfigurationAndContent - create table locally", tableId, e, tableLevelResult);
+            return null;
+          } finally {
+            if (db != null) {
+              sc.releaseDatabase(db);
+              db = null;
+            }
           }
         }
       }
@@ -763,41 +1044,43 @@ public class ProcessAppAndTableLevelChanges {
 
       // write our properties and definitions files.
       // write the current schema and properties set.
-      try {
-        db = sc.getDatabase();
-        File definitionCsv = new File(ODKFileUtils.getTableDefinitionCsvFile(sc.getAppName(), tableId));
-        File propertiesCsv = new File(ODKFileUtils.getTablePropertiesCsvFile(sc.getAppName(), tableId));
-        /**
-         * Since the md5Hash of the file identifies identical properties, ensure
-         * that the list of KVS entries is in alphabetical order.
-         */
-        List<KeyValueStoreEntry> kvsEntries = sc.getDatabaseService()
-            .getTableMetadata(sc.getAppName(), db, tableId, null, null, null, null).getEntries();
-
-        for (int i = 0; i < kvsEntries.size(); i++) {
-          KeyValueStoreEntry entry = kvsEntries.get(i);
-
-          // replace all the choiceList entries with their choiceListJSON
-          if (entry.partition.equals(KeyValueStoreConstants.PARTITION_COLUMN) && entry.key
-              .equals(KeyValueStoreConstants.COLUMN_DISPLAY_CHOICES_LIST)) {
-            // exported type is an array -- the choiceListJSON
-            entry.type = ElementDataType.array.name();
-            if ((entry.value != null) && (entry.value.trim().length() != 0)) {
-              String choiceListJSON =
-                  sc.getDatabaseService().getChoiceList(sc.getAppName(), db, entry.value);
-              entry.value = choiceListJSON;
-            } else {
-              entry.value = null;
+      synchronized (manifestProcessor.getDatabaseMutex()) {
+        try {
+          db = sc.getDatabase();
+          File definitionCsv = new File(ODKFileUtils.getTableDefinitionCsvFile(sc.getAppName(), tableId));
+          File propertiesCsv = new File(ODKFileUtils.getTablePropertiesCsvFile(sc.getAppName(), tableId));
+          /**
+           * Since the md5Hash of the file identifies identical properties, ensure
+           * that the list of KVS entries is in alphabetical order.
+           */
+          List<KeyValueStoreEntry> kvsEntries = sc.getDatabaseService()
+              .getTableMetadata(sc.getAppName(), db, tableId, null, null, null, null).getEntries();
+
+          for (int i = 0; i < kvsEntries.size(); i++) {
+            KeyValueStoreEntry entry = kvsEntries.get(i);
+
+            // replace all the choiceList entries with their choiceListJSON
+            if (entry.partition.equals(KeyValueStoreConstants.PARTITION_COLUMN) && entry.key
+                .equals(KeyValueStoreConstants.COLUMN_DISPLAY_CHOICES_LIST)) {
+              // exported type is an array -- the choiceListJSON
+              entry.type = ElementDataType.array.name();
+              if ((entry.value != null) && (entry.value.trim().length() != 0)) {
+                String choiceListJSON =
+                    sc.getDatabaseService().getChoiceList(sc.getAppName(), db, entry.value);
+                entry.value = choiceListJSON;
+              } else {
+                entry.value = null;
+              }
             }
           }
-        }
 
-        PropertiesFileUtils
-            .writePropertiesIntoCsv(sc.getAppName(), tableId, orderedDefns, kvsEntries,
-                definitionCsv, propertiesCsv);
-      } finally {
-        sc.releaseDatabase(db);
-        db = null;
+          PropertiesFileUtils
+              .writePropertiesIntoCsv(sc.getAppName(), tableId, orderedDefns, kvsEntries,
+                  definitionCsv, propertiesCsv);
+        } finally {
+          sc.releaseDatabase(db);
+          db = null;
+        }
       }
 
       try {
@@ -15,14 +15,22 @@
  */
 package org.opendatakit.services.sync.service.logic;
 
+import org.opendatakit.aggregate.odktables.rest.TableConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifestEntry;
+import org.opendatakit.database.DatabaseConstants;
+import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.Row;
+import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.logging.WebLogger;
 import org.opendatakit.logging.WebLoggerIf;
 import org.opendatakit.provider.DataTableColumns;
+import org.opendatakit.provider.SyncETagColumns;
 import org.opendatakit.services.R;
+import org.opendatakit.services.database.utilities.SyncETagsUtils;
+import org.opendatakit.services.database.utilities.SyncETagsUtils.FileSyncETag;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
 import org.opendatakit.services.sync.service.exceptions.ClientDetectedVersionMismatchedServerResponseException;
 import org.opendatakit.services.sync.service.exceptions.HttpClientWebException;
@@ -34,19 +42,21 @@ import org.opendatakit.sync.service.logic.FileManifestDocument;
 import org.opendatakit.utilities.ODKFileUtils;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 /**
  * Extraction of manifest and file-update logic for app-level and table-level config files
@@ -72,13 +82,44 @@ class ProcessManifestContentAndFileChanges {
    */
   private static final int DEFAULT_DL_MAX_RETRY_COUNT = 3;
 
+  /**
+   * Maximum number of bytes of row-level instance files that may be in flight
+   * (uploading or downloading) across all attachment workers sharing this processor.
+   */
+  private static final long MAX_IN_FLIGHT_BYTES = 2 * MAX_BATCH_SIZE;
+
+  /**
+   * Permits are in kilobytes so that the budget fits within a Semaphore.
+   */
+  private static final int MAX_IN_FLIGHT_KILOBYTES = (int) (MAX_IN_FLIGHT_BYTES / 1024L);
 
   private final SyncExecutionContext sc;
   private final WebLoggerIf log;
+  private final LocalFileInventory fileInventory;
+
+  /**
+   * Table-level files and row-level attachments may be synced from several worker
+   * threads at once. They all share the one database handle held by the
+   * SyncExecutionContext, so the ETag bookkeeping (and the callers' own database
+   * interactions) are serialized on this mutex to keep their transactions from
+   * interleaving.
+   */
+  private final Object databaseMutex = new Object();
+
+  private final Semaphore inFlightKilobytes = new Semaphore(MAX_IN_FLIGHT_KILOBYTES, true);
 
   public ProcessManifestContentAndFileChanges(SyncExecutionContext sc) {
     this.sc = sc;
     this.log = WebLogger.getLogger(sc.getAppName());
+    this.fileInventory = LocalFileInventory.getInventory(sc.getApplication(), sc.getAppName());
+  }
+
+  /**
+   * @return the mutex that serializes database interactions issued while syncing
+   * table-level files or row-level attachments from multiple threads.
+   */
+  Object getDatabaseMutex() {
+    return databaseMutex;
   }
 
   /**********************************************************************************
@@ -112,58 +153,30 @@ class ProcessManifestContentAndFileChanges {
       return new ArrayList<String>();
     }
 
-    LinkedList<File> unexploredDirs = new LinkedList<File>();
-    List<String> relativePaths = new ArrayList<String>();
-    
-    unexploredDirs.add(baseFolder);
-
-    boolean haveFilteredTablesDir = false;
-    boolean haveFilteredAssetsCsvDir = false;
-    boolean haveFilteredTableInitFile = false;
-    
-    while (!unexploredDirs.isEmpty()) {
-      File exploring = unexploredDirs.removeFirst();
-      File[] files = exploring.listFiles();
-      for (File f : files) {
-        if (f.isDirectory()) {
-
-          // ignore the config/tables dir
-          if ( !haveFilteredTablesDir ) {
-            File tablesDir = new File(ODKFileUtils.getTablesFolder(sc.getAppName()));
-            if ( f.equals(tablesDir) ) {
-              haveFilteredTablesDir = true;
-              continue;
-            }
-          }
-          // ignore the config/assets/csv dir
-          if ( !haveFilteredAssetsCsvDir ) {
-            File csvDir = new File(ODKFileUtils.getAssetsCsvFolder(sc.getAppName()));
-            if ( f.equals(csvDir) ) {
-              haveFilteredAssetsCsvDir = true;
-              continue;
-            }
-          }
-
-          // we'll need to explore it
-          unexploredDirs.add(f);
-        } else {
+    // the inventory tracks the whole config tree; filter out what is not app-level.
+    fileInventory.refresh();
 
-          // ignore the config/assets/tables.init file -- never sync'd to server...
-          if ( !haveFilteredTableInitFile ) {
-            File tablesInitFile = new File(ODKFileUtils.getTablesInitializationFile(sc.getAppName()));
-            if ( f.equals(tablesInitFile) ) {
-              haveFilteredTableInitFile = true;
-              continue;
-            }
-          }
+    String tablesDirPrefix = ODKFileUtils.asRelativePath(sc.getAppName(),
+        new File(ODKFileUtils.getTablesFolder(sc.getAppName()))) + "/";
+    String csvDirPrefix = ODKFileUtils.asRelativePath(sc.getAppName(),
+        new File(ODKFileUtils.getAssetsCsvFolder(sc.getAppName()))) + "/";
+    String tablesInitFile = ODKFileUtils.asRelativePath(sc.getAppName(),
+        new File(ODKFileUtils.getTablesInitializationFile(sc.getAppName())));
 
-          // we'll add it to our list of files.
-          relativePaths.add(ODKFileUtils.asRelativePath(sc.getAppName(), f));
-        }
+    List<String> relativePaths = new ArrayList<String>();
+    for (String relativePath : fileInventory.getFilesUnderFolder(baseFolder)) {
+      // ignore the config/tables dir
+      // ignore the config/assets/csv dir
+      // ignore the config/assets/tables.init file -- never sync'd to server...
+      if (relativePath.startsWith(tablesDirPrefix) || relativePath.startsWith(csvDirPrefix) ||
+          relativePath.equals(tablesInitFile)) {
+        continue;
       }
+      // we'll add it to our list of files.
+      relativePaths.add(relativePath);
     }
 
-    return relativePaths; 
+    return relativePaths;
   }
 
   private static List<String> filterInTableIdFiles(List<String> relativePaths, String tableId) {
@@ -218,51 +231,21 @@ class ProcessManifestContentAndFileChanges {
       return new ArrayList<String>();
     }
 
-    // construct the set of starting directories and files to process
-    File[] partials = baseFolder.listFiles(new FileFilter() {
-      @Override
-      public boolean accept(File pathname) {
-        return excludingNamedItemsUnderFolder == null ||
-            !excludingNamedItemsUnderFolder.contains(pathname.getName());
-      }
-    });
+    fileInventory.refresh();
 
-    if (partials == null) {
-      return Collections.emptyList();
-    }
-
-    LinkedList<File> unexploredDirs = new LinkedList<File>();
-    List<File> nondirFiles = new ArrayList<File>();
-
-    // copy the starting set into a queue of unexploredDirs
-    // and a list of files to be sync'd
-    for (int i = 0; i < partials.length; ++i) {
-      if (partials[i].isDirectory()) {
-        unexploredDirs.add(partials[i]);
-      } else {
-        nondirFiles.add(partials[i]);
-      }
-    }
-
-    while (!unexploredDirs.isEmpty()) {
-      File exploring = unexploredDirs.removeFirst();
-      File[] files = exploring.listFiles();
-      for (File f : files) {
-        if (f.isDirectory()) {
-          // we'll need to explore it
-          unexploredDirs.add(f);
-        } else {
-          // we'll add it to our list of files.
-          nondirFiles.add(f);
+    String basePrefix = ODKFileUtils.asRelativePath(appName, baseFolder) + "/";
+    List<String> relativePaths = new ArrayList<String>();
+    for (String relativePath : fileInventory.getFilesUnderFolder(baseFolder)) {
+      if (excludingNamedItemsUnderFolder != null) {
+        // name of the item immediately under the baseFolder
+        String remainder = relativePath.substring(basePrefix.length());
+        int idx = remainder.indexOf('/');
+        String name = (idx == -1) ? remainder : remainder.substring(0, idx);
+        if (excludingNamedItemsUnderFolder.contains(name)) {
+          continue;
         }
       }
-    }
-
-    List<String> relativePaths = new ArrayList<String>();
-    // we want the relative path, so drop the necessary bets.
-    for (File f : nondirFiles) {
-      // +1 to exclude the separator.
-      relativePaths.add(ODKFileUtils.asRelativePath(sc.getAppName(), f));
+      relativePaths.add(relativePath);
     }
     return relativePaths;
   }
@@ -321,7 +304,7 @@ class ProcessManifestContentAndFileChanges {
         if (!localFile.exists() || !localFile.isFile()) {
           // we need to delete this file from the server.
           serverFilesToDelete.add(localFile);
-        } else if (ODKFileUtils.getMd5Hash(sc.getAppName(), localFile).equals(entry.md5hash)) {
+        } else if (entry.md5hash != null && entry.md5hash.equals(fileInventory.getMd5Hash(localFile))) {
           // we are ok -- no need to upload or delete
           relativePathsOnDevice.remove(ODKFileUtils.asRelativePath(sc.getAppName(), localFile));
         }
@@ -360,23 +343,31 @@ class ProcessManifestContentAndFileChanges {
       // down from the server, then remove the local files that are not present
       // on the server.
 
-      for (OdkTablesFileManifestEntry entry : manifestDocument.entries) {
-        File localFile = ODKFileUtils.asConfigFile(sc.getAppName(), entry.filename);
-        String relativePath = ODKFileUtils.asRelativePath(sc.getAppName(), localFile);
+      Map<String, FileSyncETag> knownFileETags = getFileSyncETags(null);
+      // the ETags of the verified and downloaded files, recorded in bulk
+      Map<String, FileSyncETag> fileETagUpdates = new LinkedHashMap<String, FileSyncETag>();
+      try {
+        for (OdkTablesFileManifestEntry entry : manifestDocument.entries) {
+          File localFile = ODKFileUtils.asConfigFile(sc.getAppName(), entry.filename);
+          String relativePath = ODKFileUtils.asRelativePath(sc.getAppName(), localFile);
 
-        syncStatus.updateNotification(SyncProgressState.APP_FILES,
-            R.string.sync_verifying_local_file,
-            new Object[] { relativePath }, stepCount * stepSize, false);
+          syncStatus.updateNotification(SyncProgressState.APP_FILES,
+              R.string.sync_verifying_local_file,
+              new Object[] { relativePath }, stepCount * stepSize, false);
 
-        // make sure our copy is current
-        compareAndDownloadConfigFile(null, entry, localFile);
-        // remove it from the set of app-level files we found before the sync
-        relativePathsOnDevice.remove(relativePath);
+          // make sure our copy is current
+          compareAndDownloadConfigFile(null, entry, localFile, knownFileETags,
+              fileETagUpdates);
+          // remove it from the set of app-level files we found before the sync
+          relativePathsOnDevice.remove(relativePath);
 
-        // this is the corrected step size based upon matching files
-        stepSize = 100.0 / (1 + relativePathsOnDevice.size() + manifestDocument.entries.size());
+          // this is the corrected step size based upon matching files
+          stepSize = 100.0 / (1 + relativePathsOnDevice.size() + manifestDocument.entries.size());
 
-        ++stepCount;
+          ++stepCount;
+        }
+      } finally {
+        updateFileSyncETags(null, fileETagUpdates);
       }
 
       for (String relativePath : relativePathsOnDevice) {
@@ -388,7 +379,9 @@ class ProcessManifestContentAndFileChanges {
         // and remove any remaining files, as these do not match anything on
         // the server.
         File localFile = ODKFileUtils.asAppFile(sc.getAppName(), relativePath);
-        if (!localFile.delete()) {
+        if (localFile.delete()) {
+          fileInventory.recordFileChange(localFile, null);
+        } else {
           // this is a benign error. Hopefully on the next reload of the app,
           // whatever was referencing/holding this file handle will no longer
           // be holding it and we will be able to delete it.
@@ -489,7 +482,7 @@ class ProcessManifestContentAndFileChanges {
         if (!localFile.exists() || !localFile.isFile()) {
           // we need to delete this file from the server.
           serverFilesToDelete.add(localFile);
-        } else if (ODKFileUtils.getMd5Hash(sc.getAppName(), localFile).equals(entry.md5hash)) {
+        } else if (entry.md5hash != null && entry.md5hash.equals(fileInventory.getMd5Hash(localFile))) {
           // we are ok -- no need to upload or delete
           relativePathsOnDevice.remove(ODKFileUtils.asRelativePath(sc.getAppName(), localFile));
         }
@@ -527,27 +520,35 @@ class ProcessManifestContentAndFileChanges {
       // down from the server, then remove the local files that are not present
       // on the server.
 
-      for (OdkTablesFileManifestEntry entry : manifestDocument.entries) {
-        File localFile = ODKFileUtils.asConfigFile(sc.getAppName(), entry.filename);
-        String relativePath = ODKFileUtils.asRelativePath(sc.getAppName(), localFile);
+      Map<String, FileSyncETag> knownFileETags = getFileSyncETags(tableId);
+      // the ETags of the verified and downloaded files, recorded in bulk
+      Map<String, FileSyncETag> fileETagUpdates = new LinkedHashMap<String, FileSyncETag>();
+      try {
+        for (OdkTablesFileManifestEntry entry : manifestDocument.entries) {
+          File localFile = ODKFileUtils.asConfigFile(sc.getAppName(), entry.filename);
+          String relativePath = ODKFileUtils.asRelativePath(sc.getAppName(), localFile);
+
+          syncStatus.updateNotification(SyncProgressState.TABLE_FILES,
+              R.string.sync_verifying_local_file,
+              new Object[] { relativePath }, stepCount * stepSize, false);
+
+          // make sure our copy is current; outcome is true if the file was changed
+          boolean hasChanged = compareAndDownloadConfigFile(tableId, entry, localFile,
+              knownFileETags, fileETagUpdates);
+          // and if it was the table properties file, remember whether it changed.
+          if (relativePath.equals(tableIdPropertiesFile)) {
+            tablePropertiesChanged = hasChanged;
+          }
+          // remove it from the set of app-level files we found before the sync
+          relativePathsOnDevice.remove(relativePath);
 
-        syncStatus.updateNotification(SyncProgressState.TABLE_FILES,
-            R.string.sync_verifying_local_file,
-            new Object[] { relativePath }, stepCount * stepSize, false);
+          // this is the corrected step size based upon matching files
+          stepSize = 100.0 / (1 + relativePathsOnDevice.size() + manifestDocument.entries.size());
 
-        // make sure our copy is current; outcome is true if the file was changed
-        boolean hasChanged = compareAndDownloadConfigFile(tableId, entry, localFile);
-        // and if it was the table properties file, remember whether it changed.
-        if (relativePath.equals(tableIdPropertiesFile)) {
-          tablePropertiesChanged = hasChanged;
+          ++stepCount;
         }
-        // remove it from the set of app-level files we found before the sync
-        relativePathsOnDevice.remove(relativePath);
-
-        // this is the corrected step size based upon matching files
-        stepSize = 100.0 / (1 + relativePathsOnDevice.size() + manifestDocument.entries.size());
-
-        ++stepCount;
+      } finally {
+        updateFileSyncETags(tableId, fileETagUpdates);
       }
 
       for (String relativePath : relativePathsOnDevice) {
@@ -559,7 +560,9 @@ class ProcessManifestContentAndFileChanges {
         // and remove any remaining files, as these do not match anything on
         // the server.
         File localFile = ODKFileUtils.asAppFile(sc.getAppName(), relativePath);
-        if (!localFile.delete()) {
+        if (localFile.delete()) {
+          fileInventory.recordFileChange(localFile, null);
+        } else {
           deviceAndServerEntirelyMatch = false;
           log.e(LOGTAG, "Unable to delete " + localFile.getAbsolutePath());
         }
@@ -596,13 +599,16 @@ class ProcessManifestContentAndFileChanges {
    * @param tableId
    * @param entry
    * @param localFile
+   * @param knownFileETags the ETags recorded for the config files (see getFileSyncETags())
+   * @param fileETagUpdates receives the ETags to record (see updateFileSyncETags())
    * @return true if the file was updated; false if it was left unchanged.
    * @throws HttpClientWebException
    * @throws IOException
    * @throws ServicesAvailabilityException
    */
   private boolean compareAndDownloadConfigFile(String tableId, OdkTablesFileManifestEntry entry,
-      File localFile) throws HttpClientWebException, IOException, ServicesAvailabilityException {
+      File localFile, Map<String, FileSyncETag> knownFileETags,
+      Map<String, FileSyncETag> fileETagUpdates) throws HttpClientWebException, IOException, ServicesAvailabilityException {
     String basePath = ODKFileUtils.getAppFolder(sc.getAppName());
 
     // if the file is a placeholder on the server, then don't do anything...
@@ -645,7 +651,9 @@ class ProcessManifestContentAndFileChanges {
           success = downloadFile(localFile, uri, entry.md5hash);
 
           if (success) {
-            updateFileSyncETag(uri, tableId, localFile.lastModified(), entry.md5hash);
+            fileInventory.recordFileChange(localFile, entry.md5hash);
+            fileETagUpdates.put(uri.toString(),
+                new FileSyncETag(localFile.lastModified(), entry.md5hash));
           }
         } finally {
           if ( !success ) {
@@ -655,17 +663,15 @@ class ProcessManifestContentAndFileChanges {
       } else {
         boolean hasUpToDateEntry = true;
         String md5hash = null;
-        try {
-          md5hash = getFileSyncETag(uri, tableId, localFile.lastModified());
-        } catch (ServicesAvailabilityException e1) {
-          log.printStackTrace(e1);
-          log.e(LOGTAG, "database access error (ignoring)");
+        FileSyncETag knownFileETag = knownFileETags.get(uri.toString());
+        if (knownFileETag != null && knownFileETag.modified == localFile.lastModified()) {
+          md5hash = knownFileETag.eTag;
         }
         if (md5hash == null) {
           // file exists, but no record of what is on the server
           // compute local value
           hasUpToDateEntry = false;
-          md5hash = ODKFileUtils.getMd5Hash(sc.getAppName(), localFile);
+          md5hash = fileInventory.getMd5Hash(localFile);
         }
         // so as it comes down from the manifest, the md5 hash includes a
         // "md5:" prefix. Add that and then check.
@@ -677,7 +683,9 @@ class ProcessManifestContentAndFileChanges {
             success = downloadFile(localFile, uri, entry.md5hash);
 
             if (success) {
-              updateFileSyncETag(uri, tableId, localFile.lastModified(), entry.md5hash);
+              fileInventory.recordFileChange(localFile, entry.md5hash);
+              fileETagUpdates.put(uri.toString(),
+                  new FileSyncETag(localFile.lastModified(), entry.md5hash));
             }
           } finally {
             if ( !success ) {
@@ -686,7 +694,8 @@ class ProcessManifestContentAndFileChanges {
           }
         } else {
           if (!hasUpToDateEntry) {
-            updateFileSyncETag(uri, tableId, localFile.lastModified(), md5hash);
+            fileETagUpdates.put(uri.toString(),
+                new FileSyncETag(localFile.lastModified(), md5hash));
           }
           // no change -- we have the file; it didn't change.
           return false;
@@ -879,8 +888,7 @@ class ProcessManifestContentAndFileChanges {
         // on the next iteration.
         if (batchSize + fileAttachment.localFile.length() > MAX_BATCH_SIZE && !batch.isEmpty()) {
           log.i(LOGTAG, "syncRowLevelFileAttachments uploading batch for " + instanceId);
-          sc.getSynchronizer().uploadInstanceFileBatch(batch, serverInstanceFileUri,
-              instanceId, tableId);
+          uploadInstanceFileBatch(batch, batchSize, serverInstanceFileUri, instanceId, tableId);
           batch.clear();
           batchSize = 0;
         }
@@ -892,8 +900,7 @@ class ProcessManifestContentAndFileChanges {
       if ( !batch.isEmpty() ) {
         // Upload the final batch
         log.i(LOGTAG, "syncRowLevelFileAttachments uploading batch for " + instanceId);
-        sc.getSynchronizer().uploadInstanceFileBatch(batch, serverInstanceFileUri,
-            instanceId, tableId);
+        uploadInstanceFileBatch(batch, batchSize, serverInstanceFileUri, instanceId, tableId);
       }
 
       fullySyncedUploads = true;
@@ -916,8 +923,7 @@ class ProcessManifestContentAndFileChanges {
         if (batchSize + filesToDownloadSizes.get(fileAttachment) > MAX_BATCH_SIZE &&
             !batch.isEmpty()) {
           log.i(LOGTAG, "syncRowLevelFileAttachments downloading batch for " + instanceId);
-          sc.getSynchronizer().downloadInstanceFileBatch(batch,
-              serverInstanceFileUri, instanceId, tableId);
+          downloadInstanceFileBatch(batch, batchSize, serverInstanceFileUri, instanceId, tableId);
           batch.clear();
           batchSize = 0;
         }
@@ -929,8 +935,7 @@ class ProcessManifestContentAndFileChanges {
       if ( !batch.isEmpty() ) {
         // download the final batch
         log.i(LOGTAG, "syncRowLevelFileAttachments downloading batch for " + instanceId);
-        sc.getSynchronizer().downloadInstanceFileBatch(batch, serverInstanceFileUri,
-            instanceId, tableId);
+        downloadInstanceFileBatch(batch, batchSize, serverInstanceFileUri, instanceId, tableId);
       }
 
       fullySyncedDownloads = !impossibleToFullySyncDownloadsServerMissingFileToDownload;
@@ -970,6 +975,71 @@ class ProcessManifestContentAndFileChanges {
     }
   }
 
+  /**
+   * Upload a batch of row-level attachments once the in-flight byte budget allows it.
+   *
+   * @param batch
+   * @param batchSize
+   * @param serverInstanceFileUri
+   * @param instanceId
+   * @param tableId
+   * @throws HttpClientWebException
+   * @throws IOException
+   */
+  private void uploadInstanceFileBatch(List<CommonFileAttachmentTerms> batch, long batchSize,
+      String serverInstanceFileUri, String instanceId, String tableId)
+      throws HttpClientWebException, IOException {
+    int permits = acquireTransferBudget(batchSize);
+    try {
+      sc.getSynchronizer().uploadInstanceFileBatch(batch, serverInstanceFileUri,
+          instanceId, tableId);
+    } finally {
+      inFlightKilobytes.release(permits);
+    }
+  }
+
+  /**
+   * Download a batch of row-level attachments once the in-flight byte budget allows it.
+   *
+   * @param batch
+   * @param batchSize
+   * @param serverInstanceFileUri
+   * @param instanceId
+   * @param tableId
+   * @throws HttpClientWebException
+   * @throws IOException
+   */
+  private void downloadInstanceFileBatch(List<CommonFileAttachmentTerms> batch, long batchSize,
+      String serverInstanceFileUri, String instanceId, String tableId)
+      throws HttpClientWebException, IOException {
+    int permits = acquireTransferBudget(batchSize);
+    try {
+      sc.getSynchronizer().downloadInstanceFileBatch(batch, serverInstanceFileUri,
+          instanceId, tableId);
+    } finally {
+      inFlightKilobytes.release(permits);
+    }
+  }
+
+  /**
+   * Block until the given number of bytes can be put in flight. A single batch larger
+   * than the whole budget takes the entire budget rather than waiting forever.
+   *
+   * @param bytes
+   * @return the number of permits acquired; these must be released by the caller.
+   * @throws InterruptedIOException if interrupted while waiting (e.g., sync cancelled)
+   */
+  private int acquireTransferBudget(long bytes) throws InterruptedIOException {
+    int permits = (int) Math.min(MAX_IN_FLIGHT_KILOBYTES, Math.max(1L, (bytes + 1023L) / 1024L));
+    try {
+      inFlightKilobytes.acquire(permits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting to transfer attachments");
+    }
+    return permits;
+  }
+
   /**
    * Wrapper around downloadFile with the default maximum number
    * of retries set to DEFAULT_DL_MAX_RETRY_COUNT
@@ -1038,45 +1108,95 @@ class ProcessManifestContentAndFileChanges {
   }
 
   /**
+   * Retrieve the ETags recorded for all the config files of this table (or the
+   * app-level config files) with one query rather than one query per file.
    *
-   * @param fileDownloadUri
-   * @param tableId
-   * @param lastModified
-   * @return
+   * @param tableId null for the app-level files
+   * @return map of download url to the most recently recorded ETag for that url
    * @throws ServicesAvailabilityException
    */
-  private String getFileSyncETag(URI fileDownloadUri, String tableId, long lastModified) throws ServicesAvailabilityException {
-    DbHandle db = null;
-    try {
-      db = sc.getDatabase();
-      return sc.getDatabaseService().getFileSyncETag(sc.getAppName(), db,
-          fileDownloadUri.toString(), tableId,
-          lastModified);
-    } finally {
-      sc.releaseDatabase(db);
-      db = null;
+  private Map<String, FileSyncETag> getFileSyncETags(String tableId)
+      throws ServicesAvailabilityException {
+    ArrayList<Object> bindArgs = new ArrayList<Object>();
+    String sql = SyncETagsUtils.getFileSyncETagsSql(tableId, bindArgs);
+
+    BaseTable bt;
+    synchronized (databaseMutex) {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+            sql, new BindArgs(bindArgs.toArray()), null, null);
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+
+    Map<String, FileSyncETag> eTags = new HashMap<String, FileSyncETag>();
+    for (int i = 0; i < bt.getNumberOfRows(); ++i) {
+      Row row = bt.getRowAtIndex(i);
+      String url = row.getRawStringByKey(SyncETagColumns.URL);
+      String eTag = row.getRawStringByKey(SyncETagColumns.ETAG_MD5_HASH);
+      // most recent first -- keep only the first entry for each url
+      if (url == null || eTag == null || eTags.containsKey(url)) {
+        continue;
+      }
+      Long modifiedTime = TableConstants.milliSecondsFromNanos(
+          row.getRawStringByKey(SyncETagColumns.LAST_MODIFIED_TIMESTAMP),
+          TableConstants.TIMESTAMP_LOCALE);
+      eTags.put(url, new FileSyncETag(modifiedTime, eTag));
     }
+    return eTags;
   }
 
   /**
-   * Updates this config file download URI with the indicated ETag
+   * Record the ETags of the given config file download URIs, in as few
+   * database calls as possible. This is a cache of what is on the server,
+   * so a failure is logged rather than failing the sync; the files will
+   * simply be verified again next time.
    *
-   * @param fileDownloadUri
-   * @param tableId
-   * @param lastModified
-   * @param documentETag
-   * @throws ServicesAvailabilityException
+   * @param tableId null for the app-level files
+   * @param fileETagUpdates map of download url to ETag
    */
-  private void updateFileSyncETag(URI fileDownloadUri, String tableId, long lastModified,
-      String documentETag) throws ServicesAvailabilityException {
-    DbHandle db = null;
+  private void updateFileSyncETags(String tableId, Map<String, FileSyncETag> fileETagUpdates) {
+    if (fileETagUpdates.isEmpty()) {
+      return;
+    }
+    List<String> urls = new ArrayList<String>(fileETagUpdates.keySet());
     try {
-      db = sc.getDatabase();
-      sc.getDatabaseService().updateFileSyncETag(sc.getAppName(), db, fileDownloadUri.toString(), tableId,
-          lastModified, documentETag);
-    } finally {
-      sc.releaseDatabase(db);
-      db = null;
+      synchronized (databaseMutex) {
+        DbHandle db = null;
+        try {
+          db = sc.getDatabase();
+          for (int start = 0; start < urls.size();
+               start += SyncETagsUtils.MAX_FILE_SYNC_ETAGS_PER_STATEMENT) {
+            int end = Math.min(start + SyncETagsUtils.MAX_FILE_SYNC_ETAGS_PER_STATEMENT,
+                urls.size());
+            List<String> chunk = urls.subList(start, end);
+            Map<String, FileSyncETag> chunkETags = new LinkedHashMap<String, FileSyncETag>();
+            for (String url : chunk) {
+              chunkETags.put(url, fileETagUpdates.get(url));
+            }
+
+            ArrayList<Object> bindArgs = new ArrayList<Object>();
+            String sql = SyncETagsUtils.getDeleteFileSyncETagsSql(tableId, chunk, bindArgs);
+            sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sql,
+                new BindArgs(bindArgs.toArray()));
+
+            bindArgs.clear();
+            sql = SyncETagsUtils.getInsertFileSyncETagsSql(tableId, chunkETags, bindArgs);
+            sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sql,
+                new BindArgs(bindArgs.toArray()));
+          }
+        } finally {
+          sc.releaseDatabase(db);
+          db = null;
+        }
+      }
+    } catch (ServicesAvailabilityException e) {
+      log.e(LOGTAG, "Error while trying to update the file sync etags");
+      log.printStackTrace(e);
     }
   }
 
@@ -1096,13 +1216,15 @@ class ProcessManifestContentAndFileChanges {
       fileManifestUri = sc.getSynchronizer().constructTableLevelFileManifestUri(tableId);
     }
 
-    DbHandle db = null;
-    try {
-      db = sc.getDatabase();
-      return sc.getDatabaseService().getManifestSyncETag(sc.getAppName(), db, fileManifestUri.toString(), tableId);
-    } finally {
-      sc.releaseDatabase(db);
-      db = null;
+    synchronized (databaseMutex) {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        return sc.getDatabaseService().getManifestSyncETag(sc.getAppName(), db, fileManifestUri.toString(), tableId);
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
     }
   }
 
@@ -1125,14 +1247,16 @@ class ProcessManifestContentAndFileChanges {
       fileManifestUri = sc.getSynchronizer().constructTableLevelFileManifestUri(tableId);
     }
 
-    DbHandle db = null;
-    try {
-      db = sc.getDatabase();
-      sc.getDatabaseService().updateManifestSyncETag(sc.getAppName(), db, fileManifestUri.toString(), tableId,
-          documentETag);
-    } finally {
-      sc.releaseDatabase(db);
-      db = null;
+    synchronized (databaseMutex) {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        sc.getDatabaseService().updateManifestSyncETag(sc.getAppName(), db, fileManifestUri.toString(), tableId,
+            documentETag);
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
     }
   }
 
@@ -1166,20 +1290,22 @@ class ProcessManifestContentAndFileChanges {
      * Accomplish this by prefixing the documentETag with a restrictive prefix and only
      * returning the eTag if that prefix matches.
      */
-    DbHandle db = null;
-    try {
-      db = sc.getDatabase();
-      String qualifiedETag = sc.getDatabaseService().getManifestSyncETag(sc.getAppName(), db,
-          fileManifestUri.toString(), tableId);
-      String restrictivePrefix = attachmentState.name() + "." + uriFragmentHash + "|";
-      if ( qualifiedETag != null && qualifiedETag.startsWith(restrictivePrefix) ) {
-        return qualifiedETag.substring(restrictivePrefix.length());
-      } else {
-        return null;
+    synchronized (databaseMutex) {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        String qualifiedETag = sc.getDatabaseService().getManifestSyncETag(sc.getAppName(), db,
+            fileManifestUri.toString(), tableId);
+        String restrictivePrefix = attachmentState.name() + "." + uriFragmentHash + "|";
+        if ( qualifiedETag != null && qualifiedETag.startsWith(restrictivePrefix) ) {
+          return qualifiedETag.substring(restrictivePrefix.length());
+        } else {
+          return null;
+        }
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
       }
-    } finally {
-      sc.releaseDatabase(db);
-      db = null;
     }
   }
 
@@ -1217,18 +1343,20 @@ class ProcessManifestContentAndFileChanges {
      * Accomplish this by prefixing the documentETag with a restrictive prefix and only
      * returning the eTag if that prefix matches.
      */
-    DbHandle db = null;
-    try {
-      db = sc.getDatabase();
-      String restrictivePrefix = attachmentState.name() + "." + uriFragmentHash + "|";
-      if ( documentETag != null ) {
-        documentETag = restrictivePrefix + documentETag;
+    synchronized (databaseMutex) {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        String restrictivePrefix = attachmentState.name() + "." + uriFragmentHash + "|";
+        if ( documentETag != null ) {
+          documentETag = restrictivePrefix + documentETag;
+        }
+        sc.getDatabaseService().updateManifestSyncETag(sc.getAppName(), db,
+            fileManifestUri.toString(), tableId, documentETag);
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
       }
-      sc.getDatabaseService().updateManifestSyncETag(sc.getAppName(), db,
-          fileManifestUri.toString(), tableId, documentETag);
-    } finally {
-      sc.releaseDatabase(db);
-      db = null;
     }
   }
 
@@ -1243,22 +1371,24 @@ class ProcessManifestContentAndFileChanges {
       String newSchemaETag, String oldSchemaETag) throws
       ServicesAvailabilityException {
     // we are creating data on the server
-    DbHandle db = null;
+    synchronized (databaseMutex) {
+      DbHandle db = null;
 
-    try {
-      String tableInstanceFilesUriString = null;
+      try {
+        String tableInstanceFilesUriString = null;
 
-      if ( oldSchemaETag != null) {
-        URI uri = sc.getSynchronizer().constructRealizedTableIdUri(tableId, oldSchemaETag);
-        tableInstanceFilesUriString = uri.toString();
-      }
+        if ( oldSchemaETag != null) {
+          URI uri = sc.getSynchronizer().constructRealizedTableIdUri(tableId, oldSchemaETag);
+          tableInstanceFilesUriString = uri.toString();
+        }
 
-      db = sc.getDatabase();
-      sc.getDatabaseService().privilegedServerTableSchemaETagChanged(sc.getAppName(), db,
-          tableId, newSchemaETag, tableInstanceFilesUriString);
-    } finally {
-      sc.releaseDatabase(db);
-      db = null;
+        db = sc.getDatabase();
+        sc.getDatabaseService().privilegedServerTableSchemaETagChanged(sc.getAppName(), db,
+            tableId, newSchemaETag, tableInstanceFilesUriString);
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
     }
   }
 }
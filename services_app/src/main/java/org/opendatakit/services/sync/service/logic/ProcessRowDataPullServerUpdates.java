@@ -17,29 +17,38 @@ package org.opendatakit.services.sync.service.logic;
 
 import android.content.ContentValues;
 import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.SavepointTypeManipulator;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
-import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.TableConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.RowFilterScope;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
 import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.database.data.BaseTable;
 import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.data.Row;
 import org.opendatakit.database.data.TableDefinitionEntry;
 import org.opendatakit.database.data.TypedRow;
 import org.opendatakit.database.data.UserTable;
+import org.opendatakit.database.queries.BindArgs;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.exception.ServicesAvailabilityException;
+import org.opendatakit.properties.CommonToolProperties;
+import org.opendatakit.properties.PropertiesSingleton;
 import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.services.R;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils.ServerRowAction;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
+import org.opendatakit.services.utilities.ODKServicesPropertyUtils;
 import org.opendatakit.sync.service.SyncAttachmentState;
 import org.opendatakit.sync.service.SyncOutcome;
 import org.opendatakit.sync.service.TableLevelResult;
+import org.opendatakit.utilities.ODKFileUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -79,6 +88,16 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
   /**
    * Processes one set of changed Rows reported by the server.
    * <p/>
+   * The rows are staged in a local-only table and classified against the data table
+   * in one statement. Rows that are absent locally, or that are synced locally, are
+   * then inserted, updated or deleted with one statement per action. Only the rows
+   * with local changes are applied individually, as conflicts.
+   * <p/>
+   * Each statement is applied atomically, but the page as a whole is not. This is safe
+   * because the table's dataETag is only advanced once every page has been applied;
+   * an interrupted page is fetched and re-applied by the next sync, and re-applying a
+   * server row that has already been applied is a no-op.
+   * <p/>
    * This will set the tableResult SyncOutcome if there is a non-recoverable error of
    * some sort. It may also throw an exception if there are internal errors or database
    * errors.
@@ -107,20 +126,13 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
     publishUpdateNotification(R.string.sync_applying_batch_server_row_changes, tableId, -1.0);
 
-    HashMap<String,Integer> serverElementKeyToIndex = new HashMap<String,Integer>();
-    {
-      RowResource serverRow = rows.getRows().get(0);
-      for (int i = 0; i < serverRow.getValues().size(); ++i) {
-        DataKeyValue dkv = serverRow.getValues().get(i);
-        serverElementKeyToIndex.put(dkv.column, i);
-      }
-    }
-
-    Map<String, RowResource> changedServerRows = new HashMap<String, RowResource>();
+    Map<String, ContentValues> changedServerRows = new HashMap<String, ContentValues>();
     for (RowResource row : rows.getRows()) {
-      changedServerRows.put(row.getRowId(), row);
+      changedServerRows.put(row.getRowId(), serverRowToContentValues(row, orderedColumns));
     }
 
+    ODKDatabaseImplUtils dbUtils = ODKDatabaseImplUtils.get();
+
     {
       DbHandle db = null;
       try {
@@ -136,179 +148,129 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
         publishUpdateNotification(R.string.sync_fetching_local_rows_in_batch_server_row_changes,
                 tableId, -1.0);
 
-        // get all the rows in the data table -- we will iterate through
-        // them all.
-        UserTable localDataTable;
-        {
-            // To get all the rows that match those sent from the server
-            // we create a local table and insert all of the row ids into
-            // that table. Then filter against the row ids in that table
-            // to pull out the matching rows in our table.
-
-            List<Column> columns = new ArrayList<Column>();
-            columns.add(
-                new Column(ID_COLUMN, ID_COLUMN, ElementDataType.string.name(),
-                    "[]"));
-            ColumnList columnList = new ColumnList(columns);
-
-            String local_id_table = "L__" + tableId;
-
-            // create the table (drop it first -- to get an empty table)
-            sc.getDatabaseService().deleteLocalOnlyTable(sc.getAppName(), db, local_id_table);
-            sc.getDatabaseService()
-                .createLocalOnlyTableWithColumns(sc.getAppName(), db, local_id_table, columnList);
-
-            // insert the row ids from the server
-            {
-              ContentValues cv = new ContentValues();
-              for (String id : changedServerRows.keySet()) {
-                cv.clear();
-                cv.put(ID_COLUMN, id);
-                sc.getDatabaseService().insertLocalOnlyRow(sc.getAppName(), db, local_id_table, cv);
-              }
-            }
-
-            // construct where clause filter
-            StringBuilder b = new StringBuilder();
-            b.append(DataTableColumns.ID).append(" IN (SELECT ").append(ID_COLUMN)
-                .append(" FROM ").append(local_id_table).append(")");
-
-            localDataTable = sc.getDatabaseService()
-                .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, b.toString(),
-                    null, null, null,
-                    new String[] { DataTableColumns.ID }, new String[] { "ASC" },
-                    null, null);
-        }
+        // stage the server rows (drop the staging table first -- to get an empty table)
+        stageServerRows(db, tableId, orderedColumns, changedServerRows);
 
         // //////////////////////////////////////////////////
         // //////////////////////////////////////////////////
         // fail the sync on this table if there are checkpoint rows.
-
-        if (localDataTable.hasCheckpointRows()) {
-          // should only be reachable on the first time through this for
-          // loop...
-          tableLevelResult.setMessage(sc.getString(R.string.sync_table_contains_checkpoints));
-          tableLevelResult.setSyncOutcome(SyncOutcome.TABLE_CONTAINS_CHECKPOINTS);
-          return;
+        {
+          BaseTable bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+              dbUtils.buildCountServerRowCheckpoints(tableId), null, null, null);
+          if (bt.getNumberOfRows() != 1 || bt.getColumnIndexOfElementKey("rowCount") != 0) {
+            tableLevelResult.setMessage("Unable to retrieve count of checkpoint rows");
+            tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
+            return;
+          }
+          if (bt.getRowAtIndex(0).getDataType(0, Long.class) != 0L) {
+            // should only be reachable on the first time through this for
+            // loop...
+            sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+                dbUtils.buildDropServerRowStagingTable(tableId), null);
+            tableLevelResult.setMessage(sc.getString(R.string.sync_table_contains_checkpoints));
+            tableLevelResult.setSyncOutcome(SyncOutcome.TABLE_CONTAINS_CHECKPOINTS);
+            return;
+          }
         }
 
-        // loop through the localRow table
-        for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-          TypedRow localRow = localDataTable.getRowAtIndex(i);
-          String stateStr = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
-          SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
+        // classify every server row against the local rows
+        ArrayList<Object> bindArgs = new ArrayList<Object>();
+        String sql = dbUtils.buildClassifyServerRows(tableId, bindArgs);
+        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sql,
+            new BindArgs(bindArgs.toArray()));
 
-          String rowId = localDataTable.getRowId(i);
+        bindArgs.clear();
+        sql = dbUtils.buildSetServerRowSyncStates(tableId, orderedColumns, bindArgs);
+        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sql,
+            new BindArgs(bindArgs.toArray()));
 
-          // see if there is a change to this row from our current
-          // server change set.
-          RowResource serverRow = changedServerRows.get(rowId);
-
-          if (serverRow == null) {
-            // we are selecting only the rows with ids matching those in the changedServerRows
-            // map. It should be impossible for this to be null.
-            tableLevelResult.setMessage(sc.getString(R.string.sync_table_erroneous_filter));
-            tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
-            return;
+        ArrayList<String> insertedRowIds = new ArrayList<String>();
+        ArrayList<String> deletedRowIds = new ArrayList<String>();
+        ArrayList<String> conflictRowIds = new ArrayList<String>();
+        {
+          BaseTable bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+              dbUtils.buildSelectServerRowActions(tableId), null, null, null);
+          int idxId = bt.getColumnIndexOfElementKey(DataTableColumns.ID);
+          int idxAction = bt.getColumnIndexOfElementKey(ODKDatabaseImplUtils.SERVER_ROW_ACTION);
+          for (int i = 0; i < bt.getNumberOfRows(); ++i) {
+            Row row = bt.getRowAtIndex(i);
+            String rowId = row.getRawStringByIndex(idxId);
+            ServerRowAction action = ServerRowAction.valueOf(row.getRawStringByIndex(idxAction));
+            if (action == ServerRowAction.INSERT) {
+              insertedRowIds.add(rowId);
+            } else if (action == ServerRowAction.DELETE) {
+              deletedRowIds.add(rowId);
+            } else if (action == ServerRowAction.CONFLICT) {
+              conflictRowIds.add(rowId);
+            }
           }
+        }
 
-          if (state == SyncState.synced_pending_files && serverRow.isDeleted() ) {
+        // push any pending attachments of the synced_pending_files rows before
+        // they are deleted.
+        if (!deletedRowIds.isEmpty()) {
+          bindArgs.clear();
+          StringBuilder b = new StringBuilder();
+          b.append(dbUtils.buildServerRowActionWhereClause(tableId, ServerRowAction.DELETE,
+              bindArgs)).append(" AND ").append(DataTableColumns.SYNC_STATE).append(" = ?");
+          bindArgs.add(SyncState.synced_pending_files.name());
+
+          UserTable pendingFilesTable = sc.getDatabaseService()
+              .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, b.toString(),
+                  new BindArgs(bindArgs.toArray()), null, null,
+                  new String[] { DataTableColumns.ID }, new String[] { "ASC" },
+                  null, null);
+          for (int i = 0; i < pendingFilesTable.getNumberOfRows(); i++) {
+            TypedRow localRow = pendingFilesTable.getRowAtIndex(i);
             manifestProcessor.syncRowLevelFileAttachments(
                 tableResource.getInstanceFilesUri(),
                 tableResource.getTableId(), localRow, fileAttachmentColumns, SyncAttachmentState.UPLOAD);
-
           }
-
-          // set up to insert the in_conflict row from the server
-          ContentValues values = dataKeyValueListToContentValues(
-              serverRow.getValues(),
-              orderedColumns
-          );
-
-          // insert in_conflict server row
-          values.put(DataTableColumns.ID, serverRow.getRowId());
-          values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
-          values.put(DataTableColumns.SYNC_STATE, (serverRow.isDeleted() ?
-              SyncState.deleted.name() : SyncState.changed.name()));
-          values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
-          values.put(DataTableColumns.LOCALE, serverRow.getLocale());
-          values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
-          values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
-          values.put(DataTableColumns.SAVEPOINT_TYPE, serverRow.getSavepointType());
-          RowFilterScope.Access type = serverRow.getRowFilterScope().getDefaultAccess();
-          values.put(DataTableColumns.DEFAULT_ACCESS,
-              (type == null) ? RowFilterScope.Access.FULL.name() : type.name());
-          values.put(DataTableColumns.ROW_OWNER, serverRow.getRowFilterScope().getRowOwner());
-          values.putNull(DataTableColumns.CONFLICT_TYPE);
-
-          values.put(DataTableColumns.GROUP_MODIFY, serverRow.getRowFilterScope().getGroupModify());
-          values.put(DataTableColumns.GROUP_PRIVILEGED, serverRow.getRowFilterScope().getGroupPrivileged());
-          values.put(DataTableColumns.GROUP_READ_ONLY, serverRow.getRowFilterScope().getGroupReadOnly());
-
-          sc.getDatabaseService().privilegedPerhapsPlaceRowIntoConflictWithId(sc.getAppName(), sc
-              .getDatabase(), tableId, orderedColumns, values, rowId);
-
-          // remove this server row from the map of changes reported by the server.
-          // the following decision tree will always place the row into one of the
-          // local action lists.
-          changedServerRows.remove(rowId);
         }
 
-        // Now, go through the remaining serverRows in the rows map. That
-        // map now contains only row changes that don't affect any existing
-        // localRow. If the server change is not a row-deletion / revoke-row
-        // action, then insert the serverRow locally.
-        for (RowResource serverRow : changedServerRows.values()) {
-          boolean isDeleted = serverRow.isDeleted();
-          if (!isDeleted) {
-
-            boolean hasNonNullAttachments = false;
-
-            for ( ColumnDefinition cd : fileAttachmentColumns ) {
-              Integer idx = serverElementKeyToIndex.get(cd.getElementKey());
-              if ( idx != null ) {
-                String uriFragment = serverRow.getValues().get(idx).value;
-                if ( uriFragment != null ) {
-                  hasNonNullAttachments = true;
-                  break;
-                }
-              }
-            }
+        // apply the deletes, updates and inserts
+        bindArgs.clear();
+        sql = dbUtils.buildApplyServerRowDeletes(tableId, bindArgs);
+        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sql,
+            new BindArgs(bindArgs.toArray()));
+
+        bindArgs.clear();
+        sql = dbUtils.buildApplyServerRowUpdates(tableId, orderedColumns, bindArgs);
+        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sql,
+            new BindArgs(bindArgs.toArray()));
+
+        bindArgs.clear();
+        sql = dbUtils.buildApplyServerRowInserts(tableId, orderedColumns, bindArgs);
+        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sql,
+            new BindArgs(bindArgs.toArray()));
 
-            ContentValues values = dataKeyValueListToContentValues(
-                serverRow.getValues(),
-                orderedColumns
-            );
-
-            // set all the metadata fields
-            values.put(DataTableColumns.ID, serverRow.getRowId());
-            values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
-            values.put(DataTableColumns.SYNC_STATE, hasNonNullAttachments
-                ? SyncState.synced_pending_files.name() : SyncState.synced.name());
-            values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
-            values.put(DataTableColumns.LOCALE, serverRow.getLocale());
-            values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
-            values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
-            values.put(DataTableColumns.SAVEPOINT_TYPE, serverRow.getSavepointType());
-            RowFilterScope.Access type = serverRow.getRowFilterScope().getDefaultAccess();
-            values.put(DataTableColumns.DEFAULT_ACCESS,
-                (type == null) ? RowFilterScope.Access.FULL.name() : type.name());
-            values.put(DataTableColumns.ROW_OWNER, serverRow.getRowFilterScope().getRowOwner());
-
-            values.put(DataTableColumns.GROUP_READ_ONLY, serverRow.getRowFilterScope().getGroupReadOnly());
-            values.put(DataTableColumns.GROUP_MODIFY, serverRow.getRowFilterScope().getGroupModify());
-            values.put(DataTableColumns.GROUP_PRIVILEGED, serverRow.getRowFilterScope().getGroupPrivileged());
-
-            values.putNull(DataTableColumns.CONFLICT_TYPE);
-
-            sc.getDatabaseService().privilegedInsertRowWithId(sc.getAppName(), db,
-                tableId, orderedColumns, values, serverRow.getRowId(), false);
-            tableLevelResult.incLocalInserts();
-
-            publishUpdateNotification(R.string.sync_inserting_local_row, tableId);
+        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+            dbUtils.buildDropServerRowStagingTable(tableId), null);
+
+        for (int i = 0; i < insertedRowIds.size(); ++i) {
+          tableLevelResult.incLocalInserts();
+          publishUpdateNotification(R.string.sync_inserting_local_row, tableId);
+        }
+
+        // the deleted rows were synced; remove their attachments
+        for (String rowId : deletedRowIds) {
+          File instanceFolder = new File(ODKFileUtils.getInstanceFolder(sc.getAppName(),
+              tableId, rowId));
+          try {
+            ODKFileUtils.deleteDirectory(instanceFolder);
+          } catch (Exception e) {
+            getLogger().e(TAG, "Unable to delete this directory: "
+                + instanceFolder.getAbsolutePath());
+            getLogger().printStackTrace(e);
           }
         }
 
+        // rows with local changes -- apply the full conflict processing to each.
+        for (String rowId : conflictRowIds) {
+          sc.getDatabaseService().privilegedPerhapsPlaceRowIntoConflictWithId(sc.getAppName(),
+              db, tableId, orderedColumns, changedServerRows.get(rowId), rowId);
+        }
+
       } finally {
         if (db != null) {
           sc.releaseDatabase(db);
@@ -318,6 +280,109 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
     }
   }
 
+  /**
+   * Load the server rows into the (emptied) staging table with multi-row INSERTs.
+   * The defaults that a server-requested insert would apply are applied here.
+   *
+   * @param db
+   * @param tableId
+   * @param orderedColumns
+   * @param changedServerRows
+   * @throws ServicesAvailabilityException
+   */
+  private void stageServerRows(DbHandle db, String tableId, OrderedColumns orderedColumns,
+      Map<String, ContentValues> changedServerRows) throws ServicesAvailabilityException {
+    ODKDatabaseImplUtils dbUtils = ODKDatabaseImplUtils.get();
+
+    sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+        dbUtils.buildDropServerRowStagingTable(tableId), null);
+    sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+        dbUtils.buildCreateServerRowStagingTable(tableId), null);
+    sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+        dbUtils.buildCreateServerRowStagingIndex(tableId), null);
+
+    PropertiesSingleton props = CommonToolProperties.get(sc.getApplication(), sc.getAppName());
+    String activeUser = ODKServicesPropertyUtils.getActiveUser(props);
+    String locale = props.getUserSelectedDefaultLocale();
+    String timeStamp = TableConstants.nanoSecondsFromMillis(System.currentTimeMillis(),
+        TableConstants.TIMESTAMP_LOCALE);
+
+    List<String> columns = dbUtils.getServerRowStagingColumns(orderedColumns);
+    int rowsPerInsert = ODKDatabaseImplUtils.MAX_BIND_ARGS_PER_STAGING_INSERT / columns.size();
+
+    ArrayList<Object> bindArgs = new ArrayList<Object>();
+    int rowCount = 0;
+    for (ContentValues values : changedServerRows.values()) {
+      for (String column : columns) {
+        if (!values.containsKey(column)) {
+          throw new IllegalArgumentException("Not all field values are set during server "
+              + "update in table " + tableId + " missing: " + column);
+        }
+        Object value = values.get(column);
+        if (value == null) {
+          if (DataTableColumns.LOCALE.equals(column)) {
+            value = locale;
+          } else if (DataTableColumns.SAVEPOINT_TYPE.equals(column)) {
+            value = SavepointTypeManipulator.complete();
+          } else if (DataTableColumns.SAVEPOINT_TIMESTAMP.equals(column)) {
+            value = timeStamp;
+          } else if (DataTableColumns.SAVEPOINT_CREATOR.equals(column)) {
+            value = activeUser;
+          }
+        }
+        bindArgs.add(value);
+      }
+      if (++rowCount == rowsPerInsert) {
+        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+            dbUtils.buildInsertServerRowsIntoStaging(tableId, columns, rowCount),
+            new BindArgs(bindArgs.toArray()));
+        bindArgs.clear();
+        rowCount = 0;
+      }
+    }
+    if (rowCount != 0) {
+      sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+          dbUtils.buildInsertServerRowsIntoStaging(tableId, columns, rowCount),
+          new BindArgs(bindArgs.toArray()));
+    }
+  }
+
+  /**
+   * The values of a server row, with its sync state set to "changed" or "deleted",
+   * as expected by privilegedPerhapsPlaceRowIntoConflictWithId and the staging table.
+   *
+   * @param serverRow
+   * @param orderedColumns
+   * @return the values of the row
+   */
+  private ContentValues serverRowToContentValues(RowResource serverRow,
+      OrderedColumns orderedColumns) {
+    ContentValues values = dataKeyValueListToContentValues(
+        serverRow.getValues(),
+        orderedColumns
+    );
+
+    values.put(DataTableColumns.ID, serverRow.getRowId());
+    values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
+    values.put(DataTableColumns.SYNC_STATE, (serverRow.isDeleted() ?
+        SyncState.deleted.name() : SyncState.changed.name()));
+    values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
+    values.put(DataTableColumns.LOCALE, serverRow.getLocale());
+    values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
+    values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
+    values.put(DataTableColumns.SAVEPOINT_TYPE, serverRow.getSavepointType());
+    RowFilterScope.Access type = serverRow.getRowFilterScope().getDefaultAccess();
+    values.put(DataTableColumns.DEFAULT_ACCESS,
+        (type == null) ? RowFilterScope.Access.FULL.name() : type.name());
+    values.put(DataTableColumns.ROW_OWNER, serverRow.getRowFilterScope().getRowOwner());
+    values.putNull(DataTableColumns.CONFLICT_TYPE);
+
+    values.put(DataTableColumns.GROUP_MODIFY, serverRow.getRowFilterScope().getGroupModify());
+    values.put(DataTableColumns.GROUP_PRIVILEGED, serverRow.getRowFilterScope().getGroupPrivileged());
+    values.put(DataTableColumns.GROUP_READ_ONLY, serverRow.getRowFilterScope().getGroupReadOnly());
+    return values;
+  }
+
   /**
    * Synchronize the table data rows.
    * <p/>
@@ -349,6 +414,16 @@ class ProcessRowDataPullServerUpdates extends ProcessRowDataSharedBase {
 
     try {
 
+      // the table list from the server reports the current dataETag of the table.
+      // If it matches ours, there are no server changes to pull.
+      if (tableResource.getDataETag() != null &&
+          tableResource.getDataETag().equals(te.getLastDataETag())) {
+        getLogger().i(TAG, "updateLocalRowsFromServer " + tableId +
+            " dataETag unchanged on server -- skipping!");
+        tableLevelResult.setPulledServerData(true);
+        return;
+      }
+
       // //////////////////////////////////////////////////
       // //////////////////////////////////////////////////
       // Pull changes from the server...
@@ -38,6 +38,8 @@ import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.provider.DataTableColumns;
 import org.opendatakit.services.R;
+import org.opendatakit.services.database.utilities.ChangeJournalUtils;
+import org.opendatakit.services.database.utilities.ODKDatabaseImplUtils;
 import org.opendatakit.services.sync.service.SyncExecutionContext;
 import org.opendatakit.services.sync.service.exceptions.ClientDetectedVersionMismatchedServerResponseException;
 import org.opendatakit.sync.service.SyncOutcome;
@@ -63,12 +65,64 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
 
   private static final int UPSERT_BATCH_SIZE = 500;
 
+  /**
+   * Set if a pushed row was left in its local state (so it must be
+   * re-examined on the next sync and the change journal checkpoint
+   * must not advance past it).
+   */
+  private boolean hasUnappliedOutcomes = false;
+
   ProcessRowDataPushLocalChanges(SyncExecutionContext sharedContext) {
     super(sharedContext);
 
     setUpdateNotificationBounds(minPercentage, maxPercentage, 1);
   }
 
+  /**
+   * Adopt the rowETags the server assigned to a set of pushed rows and move those
+   * rows into the given sync state. Rows are updated MAX_ROWS_PER_ETAG_UPDATE at a time
+   * with a single UPDATE statement rather than one database service call per row.
+   * <p>
+   * As with privilegedUpdateRowETagAndSyncState, a row that no longer has exactly one
+   * record (e.g., the user saved a checkpoint mid-sync) is skipped and left in its
+   * local state to be pushed again on the next sync. Each statement only touches
+   * rows that have exactly one record, so a skipped row never prevents the others
+   * from being updated.
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds    rows that were successfully pushed
+   * @param rowETags  rowETag assigned by the server to each of the rowIds
+   * @param state     new sync state for these rows
+   * @throws ServicesAvailabilityException
+   */
+  private void updateRowETagsAndSyncState(DbHandle db, String tableId, List<String> rowIds,
+      List<String> rowETags, SyncState state) throws ServicesAvailabilityException {
+
+    final int maxRows = ODKDatabaseImplUtils.MAX_ROWS_PER_ETAG_UPDATE;
+    for (int start = 0; start < rowIds.size(); start += maxRows) {
+      int end = Math.min(rowIds.size(), start + maxRows);
+      List<String> ids = rowIds.subList(start, end);
+
+      // report any row that will be skipped
+      ArrayList<Object> args = new ArrayList<Object>();
+      String sql = ODKDatabaseImplUtils.get().buildSingleRecordRowIdsQuery(tableId, ids, args);
+      BaseTable bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+          sql, new BindArgs(args.toArray()), null, null);
+      if (bt.getNumberOfRows() != ids.size()) {
+        hasUnappliedOutcomes = true;
+        getLogger().w(TAG, "updateRowETagsAndSyncState " + tableId + " skipping "
+            + (ids.size() - bt.getNumberOfRows()) + " rows that do not have exactly 1 record");
+      }
+
+      args.clear();
+      sql = ODKDatabaseImplUtils.get().buildPrivilegedUpdateRowETagsAndSyncState(tableId, ids,
+          rowETags.subList(start, end), state, args);
+      sc.getDatabaseService().privilegedExecute(sc.getAppName(), db, sql,
+          new BindArgs(args.toArray()));
+    }
+  }
+
   /**
    * We pushed changes up to the server and now need to update the local rowETags to match
    * the rowETags assigned to those changes by the server.
@@ -89,15 +143,24 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
       List<TypedRow> segmentAlter, ArrayList<RowOutcome> outcomes)
       throws ServicesAvailabilityException, IOException {
 
-    // For speed, do this all within a transaction. Processing is
-    // all in-memory except when we are deleting a client row. In that
-    // case, there may be SDCard access to delete the attachments for
-    // the client row. But that is local access, and the commit will
-    // be accessing the same device.
-    //
-    // i.e., no network access in this code, so we can place it all within
-    // a transaction and not lock up the database for very long.
+    // Processing is all in-memory except when we are deleting a client row.
+    // In that case, there may be SDCard access to delete the attachments for
+    // the client row. But that is local access, and there is no network
+    // access in this code.
     //
+    // The database service interface does not expose transactions. Accepted
+    // upserts are batched and applied first, with one UPDATE statement per
+    // MAX_ROWS_PER_ETAG_UPDATE rows; each row's update stands on its own.
+    // The per-row deletes and conflict placements follow.
+    // Verify the ordering of the server's response before changing anything
+    // so that a malformed response cannot leave the segment partially applied.
+    for (int i = 0; i < segmentAlter.size(); ++i) {
+      RowOutcome serverRow = outcomes.get(i);
+      String localRowId = segmentAlter.get(i).getRawStringByKey(DataTableColumns.ID);
+      if (!serverRow.getRowId().equals(localRowId)) {
+        throw new ClientDetectedVersionMismatchedServerResponseException("Unexpected reordering of return");
+      }
+    }
 
     DbHandle db = null;
     try {
@@ -105,21 +168,24 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
 
       boolean specialCase = false;
       boolean badState = false;
+      ArrayList<String> syncedRowIds = new ArrayList<String>();
+      ArrayList<String> syncedRowETags = new ArrayList<String>();
+      ArrayList<String> pendingFilesRowIds = new ArrayList<String>();
+      ArrayList<String> pendingFilesRowETags = new ArrayList<String>();
+      ArrayList<String> deletedRowIds = new ArrayList<String>();
+      ArrayList<String> conflictRowIds = new ArrayList<String>();
+      ArrayList<ContentValues> conflictServerValues = new ArrayList<ContentValues>();
       for (int i = 0; i < segmentAlter.size(); ++i) {
         RowOutcome serverRow = outcomes.get(i);
         TypedRow localRow = segmentAlter.get(i);
         String localRowId = localRow.getRawStringByKey(DataTableColumns.ID);
-        if (!serverRow.getRowId().equals(localRowId)) {
-          throw new ClientDetectedVersionMismatchedServerResponseException("Unexpected reordering of return");
-        }
         if (serverRow.getOutcome() == OutcomeType.SUCCESS) {
 
           if (serverRow.isDeleted()) {
 
             // we should delete the LOCAL row because we have successfully deleted the server row.
-            sc.getDatabaseService().privilegedDeleteRowWithId(
-                sc.getAppName(), db, resource.getTableId(), orderedColumns,
-                localRow.getRawStringByKey(DataTableColumns.ID));
+            // applied after the batched updates below
+            deletedRowIds.add(localRowId);
             tableLevelResult.incLocalDeletes();
             publishUpdateNotification(R.string.sync_deleting_local_row, resource.getTableId());
             tableLevelResult.incServerDeletes();
@@ -134,14 +200,14 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
                 break;
               }
             }
-            SyncState newSyncState = hasNonEmptyAttachmentColumns
-                ? SyncState.synced_pending_files : SyncState.synced;
-            sc.getDatabaseService().privilegedUpdateRowETagAndSyncState(
-                sc.getAppName(), db,
-                resource.getTableId(),
-                serverRow.getRowId(),
-                serverRow.getRowETag(),
-                newSyncState.name());
+            // batched -- applied once per segment below
+            if (hasNonEmptyAttachmentColumns) {
+              pendingFilesRowIds.add(serverRow.getRowId());
+              pendingFilesRowETags.add(serverRow.getRowETag());
+            } else {
+              syncedRowIds.add(serverRow.getRowId());
+              syncedRowETags.add(serverRow.getRowETag());
+            }
 
             publishUpdateNotification(R.string.sync_server_row_updated, resource.getTableId());
             // UPDATE or INSERT
@@ -157,6 +223,9 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
             // server should add row and mark it as deleted.
             // TODO: verify this is handled on server?
             // TODO: shouldn't we delete the local row?
+
+            // the row remains deleted locally -- don't checkpoint past it
+            hasUnappliedOutcomes = true;
           }
 
           publishUpdateNotification(R.string.sync_server_row_update_failed, resource.getTableId());
@@ -201,9 +270,9 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
           values.put(DataTableColumns.GROUP_READ_ONLY, serverRow.getRowFilterScope().getGroupReadOnly());
           values.put(DataTableColumns.GROUP_PRIVILEGED, serverRow.getRowFilterScope().getGroupPrivileged());
 
-          sc.getDatabaseService().privilegedPerhapsPlaceRowIntoConflictWithId(sc.getAppName(), db,
-              resource.getTableId(),
-              orderedColumns, values, serverRow.getRowId());
+          // applied after the batched updates below
+          conflictRowIds.add(serverRow.getRowId());
+          conflictServerValues.add(values);
 
         } else if (serverRow.getOutcome() == OutcomeType.DENIED) {
           specialCase = true;
@@ -215,6 +284,22 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
         }
       }
 
+      updateRowETagsAndSyncState(db, resource.getTableId(), syncedRowIds, syncedRowETags,
+          SyncState.synced);
+      updateRowETagsAndSyncState(db, resource.getTableId(), pendingFilesRowIds,
+          pendingFilesRowETags, SyncState.synced_pending_files);
+
+      for (String rowId : deletedRowIds) {
+        sc.getDatabaseService().privilegedDeleteRowWithId(
+            sc.getAppName(), db, resource.getTableId(), orderedColumns, rowId);
+      }
+
+      for (int i = 0; i < conflictRowIds.size(); ++i) {
+        sc.getDatabaseService().privilegedPerhapsPlaceRowIntoConflictWithId(sc.getAppName(), db,
+            resource.getTableId(),
+            orderedColumns, conflictServerValues.get(i), conflictRowIds.get(i));
+      }
+
       if (specialCase) {
         // user does not have privileges...
         throw new IllegalStateException(
@@ -269,13 +354,40 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
 
     String local_id_table = "L__" + tableId;
 
+    hasUnappliedOutcomes = false;
+
     // figure out how many rows there are to sync.
     int rowsToSyncCount = 0;
+    // the change journal position covered by this push.
+    // journalCheckpoint is null if we have never completed a journaled push.
+    Long journalCheckpoint = null;
+    long journalSequence = 0L;
     {
       DbHandle db = null;
       try {
         db = sc.getDatabase();
 
+        {
+          BaseTable bt = sc.getDatabaseService().arbitrarySqlQuery(sc.getAppName(), db, null,
+              ChangeJournalUtils.getJournalPositionSql(), new BindArgs(new Object[] { tableId,
+                  ChangeJournalUtils.CONSUMER_SYNC_PUSH, tableId }), null, null);
+          if ( bt.getNumberOfRows() != 1 ) {
+            tableLevelResult
+                .setMessage("Unable to retrieve the change journal position for the table");
+            tableLevelResult.setSyncOutcome(SyncOutcome.LOCAL_DATABASE_EXCEPTION);
+            return false;
+          }
+          String checkpointSeq = bt.getRowAtIndex(0).getRawStringByIndex(0);
+          journalCheckpoint = (checkpointSeq == null) ? null : Long.valueOf(checkpointSeq);
+          journalSequence = Long.valueOf(bt.getRowAtIndex(0).getRawStringByIndex(1));
+        }
+
+        if ( journalCheckpoint != null && journalCheckpoint == journalSequence ) {
+          // nothing has been journaled since our last complete push
+          getLogger().i(TAG, "pushLocalChanges " + tableId + " no journaled changes");
+          return false;
+        }
+
         // We need to create a temporary table and fill it with all the IDs of
         // the rows that should be pushed to the server.
         //
@@ -299,8 +411,7 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
 
 
         String sqlCommand;
-        BindArgs bindArgs = new BindArgs(new Object[]{
-            SyncState.new_row.name(), SyncState.changed.name(), SyncState.deleted.name() });
+        BindArgs bindArgs;
         {
           StringBuilder sqlCommandBuilder = new StringBuilder();
           sqlCommandBuilder.append("INSERT INTO ").append(local_id_table)
@@ -311,6 +422,21 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
               .append(DataTableColumns.ID).append(" NOT IN (SELECT DISTINCT ")
               .append(DataTableColumns.ID).append(" FROM ").append(tableId).append(" WHERE ")
               .append(DataTableColumns.SAVEPOINT_TYPE).append(" IS NULL)");
+          if ( journalCheckpoint == null ) {
+            // no checkpoint -- scan the entire table
+            bindArgs = new BindArgs(new Object[]{
+                SyncState.new_row.name(), SyncState.changed.name(), SyncState.deleted.name() });
+          } else {
+            // only consider the rows journaled since the last complete push
+            sqlCommandBuilder.append(" AND ").append(DataTableColumns.ID)
+                .append(" IN (SELECT ").append(ChangeJournalUtils.ROW_ID).append(" FROM ")
+                .append(ChangeJournalUtils.CHANGE_JOURNAL_TABLE_NAME).append(" WHERE ")
+                .append(ChangeJournalUtils.TABLE_ID).append(" = ? AND ")
+                .append(ChangeJournalUtils.SEQUENCE).append(" > ?)");
+            bindArgs = new BindArgs(new Object[]{
+                SyncState.new_row.name(), SyncState.changed.name(), SyncState.deleted.name(),
+                tableId, journalCheckpoint });
+          }
           sqlCommand = sqlCommandBuilder.toString();
         }
 
@@ -480,6 +606,29 @@ class ProcessRowDataPushLocalChanges extends ProcessRowDataSharedBase {
       }
     }
 
+    // Everything journaled up to journalSequence has now been pushed
+    // (or is held back by a checkpoint or conflict; resolving either one,
+    // including discarding the checkpoints, journals the row again).
+    // Advance our checkpoint. The rowETag
+    // and sync state updates made by this push and by the preceding pull
+    // are not journaled, so an unchanged table takes the fast path above
+    // on the next sync.
+    if ( !hasUnappliedOutcomes ) {
+      DbHandle db = null;
+      try {
+        db = sc.getDatabase();
+        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+            ChangeJournalUtils.getUpdateCheckpointSql(), new BindArgs(new Object[] {
+                tableId, ChangeJournalUtils.CONSUMER_SYNC_PUSH, journalSequence }));
+        sc.getDatabaseService().privilegedExecute(sc.getAppName(), db,
+            ChangeJournalUtils.getCompactJournalSql(),
+            new BindArgs(new Object[] { tableId, tableId }));
+      } finally {
+        sc.releaseDatabase(db);
+        db = null;
+      }
+    }
+
     publishUpdateNotification(R.string.sync_completed_push_to_server,
         tableId, maxPercentage);
 
@@ -39,6 +39,11 @@ import org.opendatakit.sync.service.TableLevelResult;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * SyncProcessor implements the cloud synchronization logic for Tables.
@@ -54,6 +59,16 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
   private static final double minPercentage = 75.0;
   private static final double maxPercentage = 100.0;
 
+  /**
+   * Number of rows whose attachments are transferred concurrently.
+   */
+  private static final int MAX_CONCURRENT_ROW_TRANSFERS = 4;
+
+  /**
+   * Number of rows that may be submitted to the workers but not yet applied.
+   */
+  private static final int MAX_QUEUED_ROW_TRANSFERS = 4 * MAX_CONCURRENT_ROW_TRANSFERS;
+
   private final ProcessManifestContentAndFileChanges manifestProcessor;
 
   public ProcessRowDataSyncAttachments(SyncExecutionContext sharedContext) {
@@ -85,13 +100,13 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
    * @return true if changes need to be pulled from the server before continuing
    * @throws ServicesAvailabilityException
    */
-  public void syncAttachments(TableResource tableResource,
+  public void syncAttachments(final TableResource tableResource,
       TableDefinitionEntry te, OrderedColumns orderedColumns,
-      ArrayList<ColumnDefinition> fileAttachmentColumns,
-      SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
+      final ArrayList<ColumnDefinition> fileAttachmentColumns,
+      final SyncAttachmentState attachmentState) throws ServicesAvailabilityException {
 
     // Prepare the tableLevelResult.
-    String tableId = te.getTableId();
+    final String tableId = te.getTableId();
     TableLevelResult tableLevelResult = sc.getTableLevelResult(tableId);
     getLogger().i( TAG, "syncAttachments - tableId: " + tableId +
         " attachmentState: " + attachmentState.toString());
@@ -196,138 +211,132 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
         whereClause = whereClauseBuilder.toString();
       }
 
-      for (; ; ) {
-
-        publishUpdateNotification(R.string.sync_fetch_batch_attachment_changes, tableId, -1.0);
+      // The network transfers for each row run on a bounded pool of workers.
+      // This thread fetches the rows, hands them to the workers, and applies the
+      // outcomes (sync state updates and progress notifications) as they complete.
+      ExecutorService workers = Executors.newFixedThreadPool(MAX_CONCURRENT_ROW_TRANSFERS);
+      CompletionService<RowAttachmentOutcome> completionService =
+          new ExecutorCompletionService<RowAttachmentOutcome>(workers);
+      int rowsInFlight = 0;
 
-        UserTable localDataTable;
-        try {
-          // //////////////////////////////////////////////////
-          // //////////////////////////////////////////////////
-          {
-            DbHandle db = null;
-            try {
-              db = sc.getDatabase();
-              String[] empty = {};
-              BindArgs bindArgs = new BindArgs(new Object[] {fetchLimit, fetchOffset});
-
-              localDataTable = sc.getDatabaseService()
-                  .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns, whereClause,
-                      bindArgs, empty, null, new String[] { DataTableColumns.ID },
-                      new String[] { "ASC" }, fetchLimit, fetchOffset);
-            } finally {
-              sc.releaseDatabase(db);
-              db = null;
+      try {
+        for (; ; ) {
+
+          publishUpdateNotification(R.string.sync_fetch_batch_attachment_changes, tableId, -1.0);
+
+          UserTable localDataTable;
+          try {
+            // //////////////////////////////////////////////////
+            // //////////////////////////////////////////////////
+            {
+              DbHandle db = null;
+              synchronized (manifestProcessor.getDatabaseMutex()) {
+                try {
+                  db = sc.getDatabase();
+                  String[] empty = {};
+                  BindArgs bindArgs = new BindArgs(new Object[] { fetchLimit, fetchOffset });
+
+                  localDataTable = sc.getDatabaseService()
+                      .privilegedSimpleQuery(sc.getAppName(), db, tableId, orderedColumns,
+                          whereClause, bindArgs, empty, null, new String[] { DataTableColumns.ID },
+                          new String[] { "ASC" }, fetchLimit, fetchOffset);
+                } finally {
+                  sc.releaseDatabase(db);
+                  db = null;
+                }
+              }
             }
-          }
-
-          fetchOffset += localDataTable.getNumberOfRows();
-
-          /**************************
-           * PART 2: UPDATE THE DATA
-           **************************/
-
-          // loop through the localRow table
-          for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-            TypedRow localRow = localDataTable.getRowAtIndex(i);
-            String stateStr = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
-            SyncState state = (stateStr == null) ? null : SyncState.valueOf(stateStr);
 
-            getLogger().i(TAG, "syncAttachments examining row " + localRow.getRawStringByKey
-                (DataTableColumns.ID));
-
-            boolean syncAttachments = false;
-            // the local row wasn't impacted by a server change
-            // see if this local row should be pushed to the server.
-            if (state == SyncState.in_conflict) {
-              if (!fileAttachmentColumns.isEmpty()) {
-                // fetch the file attachments for an in_conflict row but don't delete
-                // anything and never update the state to synced (it must stay in in_conflict)
+            fetchOffset += localDataTable.getNumberOfRows();
+
+            /**************************
+             * PART 2: UPDATE THE DATA
+             **************************/
+
+            // loop through the localRow table
+            for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
+              final TypedRow localRow = localDataTable.getRowAtIndex(i);
+              String stateStr = localRow.getRawStringByKey(DataTableColumns.SYNC_STATE);
+              final SyncState state = (stateStr == null) ? null : SyncState.valueOf(stateStr);
+
+              getLogger().i(TAG, "syncAttachments examining row " + localRow.getRawStringByKey
+                  (DataTableColumns.ID));
+
+              boolean syncAttachments = false;
+              // the local row wasn't impacted by a server change
+              // see if this local row should be pushed to the server.
+              if (state == SyncState.in_conflict) {
+                if (!fileAttachmentColumns.isEmpty()) {
+                  // fetch the file attachments for an in_conflict row but don't delete
+                  // anything and never update the state to synced (it must stay in in_conflict)
+                  syncAttachments = true;
+                }
+              } else if (state == SyncState.synced_pending_files) {
+                // if we succeed in fetching and deleting the local files to match the server
+                // then update the state to synced.
                 syncAttachments = true;
               }
-            } else if (state == SyncState.synced_pending_files) {
-              // if we succeed in fetching and deleting the local files to match the server
-              // then update the state to synced.
-              syncAttachments = true;
-            }
-
-            if (syncAttachments) {
-              // And try to push the file attachments...
-              try {
-                boolean outcome = true;
 
-                SyncAttachmentState filteredAttachmentState = (state == SyncState.in_conflict ?
-                    SyncAttachmentState.DOWNLOAD :
-                    attachmentState);
-
-                outcome = manifestProcessor.
-                    syncRowLevelFileAttachments(tableResource.getInstanceFilesUri(), tableId,
-                        localRow, fileAttachmentColumns, attachmentState);
+              if (syncAttachments) {
+                // bound the number of rows queued up behind the workers
+                while (rowsInFlight >= MAX_QUEUED_ROW_TRANSFERS) {
+                  tableLevelSyncOutcome = applyRowAttachmentOutcome(
+                      completionService.take().get(), tableId, tableLevelSyncOutcome,
+                      tableLevelResult, attachmentState);
+                  --rowsInFlight;
+                }
 
-                if (outcome) {
-                  if (state == SyncState.synced_pending_files) {
-                    // OK -- we succeeded in putting/getting all attachments
-                    // update our state to the synced state.
-                    DbHandle db = null;
+                // And try to push the file attachments...
+                completionService.submit(new Callable<RowAttachmentOutcome>() {
+                  @Override
+                  public RowAttachmentOutcome call() {
                     try {
-                      db = sc.getDatabase();
-                      sc.getDatabaseService()
-                          .privilegedUpdateRowETagAndSyncState(sc.getAppName(), db, tableId,
-                              localRow.getRawStringByKey(DataTableColumns.ID), localRow
-                                  .getRawStringByKey
-                                  (DataTableColumns.ROW_ETAG),
-                              SyncState.synced.name());
-                    } finally {
-                      sc.releaseDatabase(db);
-                      db = null;
+                      boolean outcome = manifestProcessor.
+                          syncRowLevelFileAttachments(tableResource.getInstanceFilesUri(), tableId,
+                              localRow, fileAttachmentColumns, attachmentState);
+                      return new RowAttachmentOutcome(localRow, state, outcome, null);
+                    } catch (Throwable e) {
+                      return new RowAttachmentOutcome(localRow, state, false, e);
                     }
                   }
-                }
-              } catch (Throwable e) {
-                getLogger().printStackTrace(e);
-                tableLevelSyncOutcome = sc.exceptionEquivalentOutcome(e);
-                getLogger().e(TAG, "[synchronizeTableRest] error synchronizing attachments " + e.toString());
-              }
-              tableLevelResult.incLocalAttachmentRetries();
-
-              getLogger().i(TAG, "syncAttachments completed processing for " + localRow.getDataByKey(DataTableColumns.ID));
-
-              int idString;
-              switch (attachmentState) {
-              default:
-              case NONE:
-                idString = R.string.sync_skipping_attachments_server_row;
-                break;
-              case SYNC:
-                idString = R.string.sync_syncing_attachments_server_row;
-                break;
-              case UPLOAD:
-                idString = R.string.sync_uploading_attachments_server_row;
-                break;
-              case DOWNLOAD:
-                idString = R.string.sync_downloading_attachments_server_row;
-                break;
+                });
+                ++rowsInFlight;
               }
-
-              publishUpdateNotification(idString, tableId);
             }
+          } catch (Exception e) {
+            exception("synchronizeTable - pushing data up to server", tableId, e, tableLevelResult);
+            return;
+          }
+
+          if (localDataTable.getNumberOfRows() < fetchLimit) {
+            // done!
+            break;
+          }
+        }
+
+        // wait for the remaining rows to complete.
+        try {
+          while (rowsInFlight > 0) {
+            tableLevelSyncOutcome = applyRowAttachmentOutcome(completionService.take().get(),
+                tableId, tableLevelSyncOutcome, tableLevelResult, attachmentState);
+            --rowsInFlight;
           }
         } catch (Exception e) {
           exception("synchronizeTable - pushing data up to server", tableId, e, tableLevelResult);
           return;
         }
 
-        if (localDataTable.getNumberOfRows() < fetchLimit) {
-          // done!
-          // OK. Now we have pushed everything.
-          // because of the 409 (CONFLICT) alterRows enforcement on the
-          // server, we know that our data records are consistent and
-          // our processing is complete.
+        // OK. Now we have pushed everything.
+        // because of the 409 (CONFLICT) alterRows enforcement on the
+        // server, we know that our data records are consistent and
+        // our processing is complete.
 
-          // And now update that we've pushed our changes to the server.
-          tableLevelResult.setPushedLocalData(true);
-          break;
-        }
+        // And now update that we've pushed our changes to the server.
+        tableLevelResult.setPushedLocalData(true);
+      } finally {
+        // on an early exit, abandon any in-flight transfers. Their rows are
+        // left in their current sync state and will be retried on the next sync.
+        workers.shutdownNow();
       }
     }
 
@@ -341,4 +350,96 @@ class ProcessRowDataSyncAttachments extends ProcessRowDataSharedBase {
     // if we got here, perhaps some of the attachments were sync'd.
     return;
   }
+
+  /**
+   * Apply the outcome of syncing one row's attachments. Runs on the thread driving
+   * syncAttachments, never on a worker, so progress reporting is single-threaded.
+   * The sync state update is serialized with the workers' ETag bookkeeping.
+   *
+   * @param rowOutcome
+   * @param tableId
+   * @param tableLevelSyncOutcome
+   * @param tableLevelResult
+   * @param attachmentState
+   * @return the updated tableLevelSyncOutcome
+   */
+  private SyncOutcome applyRowAttachmentOutcome(RowAttachmentOutcome rowOutcome, String tableId,
+      SyncOutcome tableLevelSyncOutcome, TableLevelResult tableLevelResult,
+      SyncAttachmentState attachmentState) {
+
+    TypedRow localRow = rowOutcome.localRow;
+
+    try {
+      if ( rowOutcome.failure != null ) {
+        throw rowOutcome.failure;
+      }
+
+      if (rowOutcome.outcome) {
+        if (rowOutcome.state == SyncState.synced_pending_files) {
+          // OK -- we succeeded in putting/getting all attachments
+          // update our state to the synced state.
+          synchronized (manifestProcessor.getDatabaseMutex()) {
+            DbHandle db = null;
+            try {
+              db = sc.getDatabase();
+              sc.getDatabaseService()
+                  .privilegedUpdateRowETagAndSyncState(sc.getAppName(), db, tableId,
+                      localRow.getRawStringByKey(DataTableColumns.ID), localRow
+                          .getRawStringByKey
+                          (DataTableColumns.ROW_ETAG),
+                      SyncState.synced.name());
+            } finally {
+              sc.releaseDatabase(db);
+              db = null;
+            }
+          }
+        }
+      }
+    } catch (Throwable e) {
+      getLogger().printStackTrace(e);
+      tableLevelSyncOutcome = sc.exceptionEquivalentOutcome(e);
+      getLogger().e(TAG, "[synchronizeTableRest] error synchronizing attachments " + e.toString());
+    }
+    tableLevelResult.incLocalAttachmentRetries();
+
+    getLogger().i(TAG, "syncAttachments completed processing for " + localRow.getDataByKey(DataTableColumns.ID));
+
+    int idString;
+    switch (attachmentState) {
+    default:
+    case NONE:
+      idString = R.string.sync_skipping_attachments_server_row;
+      break;
+    case SYNC:
+      idString = R.string.sync_syncing_attachments_server_row;
+      break;
+    case UPLOAD:
+      idString = R.string.sync_uploading_attachments_server_row;
+      break;
+    case DOWNLOAD:
+      idString = R.string.sync_downloading_attachments_server_row;
+      break;
+    }
+
+    publishUpdateNotification(idString, tableId);
+
+    return tableLevelSyncOutcome;
+  }
+
+  /**
+   * Result of syncing the attachments of one row on a worker thread.
+   */
+  private static final class RowAttachmentOutcome {
+    final TypedRow localRow;
+    final SyncState state;
+    final boolean outcome;
+    final Throwable failure;
+
+    RowAttachmentOutcome(TypedRow localRow, SyncState state, boolean outcome, Throwable failure) {
+      this.localRow = localRow;
+      this.state = state;
+      this.outcome = outcome;
+      this.failure = failure;
+    }
+  }
 }
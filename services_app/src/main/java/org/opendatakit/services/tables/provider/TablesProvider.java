@@ -61,6 +61,7 @@ public class TablesProvider extends ContentProvider {
   private class InvalidateMonitor extends DataSetObserver {
     final String appName;
     final DbHandle dbHandleName;
+    boolean released = false;
 
     InvalidateMonitor(String appName, DbHandle dbHandleName) {
       this.appName = appName;
@@ -70,9 +71,17 @@ public class TablesProvider extends ContentProvider {
     @Override
     public void onInvalidated() {
       super.onInvalidated();
-      // this releases the connection
-      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(appName,
-          dbHandleName);
+      // onInvalidated() fires on both deactivate() and close();
+      // the handle must only be given back once.
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      // this returns the connection to the pool (or closes it)
+      OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+          .releaseInternalUseDbHandle(appName, dbHandleName);
     }
   }
 
@@ -140,7 +149,7 @@ public class TablesProvider extends ContentProvider {
     }
 
     // Get the database and run the query
-    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().generateInternalUseDbHandle();
+    DbHandle dbHandleName = OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().acquireInternalUseDbHandle(appName);
     OdkConnectionInterface db = null;
     boolean success = false;
     Cursor c = null;
@@ -169,10 +178,10 @@ public class TablesProvider extends ContentProvider {
           db.releaseReference();
         } finally {
           if ( !success ) {
-            // this closes the connection
-            // if it was successful, then the InvalidateMonitor will close the connection
-            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface().removeConnection(
-                appName, dbHandleName);
+            // this returns the connection to the pool (or closes it)
+            // if it was successful, then the InvalidateMonitor will return the connection
+            OdkConnectionFactorySingleton.getOdkConnectionFactoryInterface()
+                .releaseInternalUseDbHandle(appName, dbHandleName);
           }
         }
       }
@@ -40,7 +40,6 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -49,6 +48,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -61,6 +62,11 @@ import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Utility class for encrypting submissions during the SaveToDiskTask.
@@ -95,6 +101,17 @@ public class EncryptionUtils {
   private static final String FILE = "file";
   private static final String BASE64_ENCRYPTED_ELEMENT_SIGNATURE = "base64EncryptedElementSignature";
   private static final String NEW_LINE = "\n";
+  // attachments are encrypted concurrently on at most this many threads
+  private static final int MAX_ENCRYPTION_THREADS = 3;
+  private static final int ENCRYPTION_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Writes the plaintext content of a submission to a stream, so that it can
+   * be encrypted as it is generated rather than being materialized first.
+   */
+  public interface SubmissionContentWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
 
   private EncryptionUtils() {
   }
@@ -199,9 +216,8 @@ public class EncryptionUtils {
       appendElementSignatureSource(file.getName() + "::" + md5Hash);
     }
 
-    public void appendFileSignatureSource(File file) {
-      String md5Hash = ODKFileUtils.getNakedMd5Hash(appName, file);
-      appendElementSignatureSource(file.getName() + "::" + md5Hash);
+    public void appendSubmissionFileSignatureSource(byte[] md5Digest, File file) {
+      appendElementSignatureSource(file.getName() + "::" + toNakedMd5Hash(md5Digest));
     }
 
     public String getBase64EncryptedElementSignature() {
@@ -343,78 +359,93 @@ public class EncryptionUtils {
     return new EncryptedFormInformation(appName, tableId, xmlBase64RsaPublicKey, instanceId, pk, wrapper);
   }
 
-  private static void encryptFile(File file, File encryptedFile, EncryptedFormInformation formInfo)
-      throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
-      InvalidAlgorithmParameterException {
-
-    // add elementSignatureSource for this file...
-    formInfo.appendFileSignatureSource(file);
+  /**
+   * Encrypt the file with the given cipher, computing the md5 hash of the
+   * plaintext in the same pass.
+   *
+   * @param appName
+   * @param file
+   * @param encryptedFile
+   * @param c cipher obtained from formInfo.getCipher() for this file
+   * @return the raw md5 digest of the plaintext file
+   */
+  private static byte[] encryptFile(String appName, File file, File encryptedFile, Cipher c)
+      throws IOException, NoSuchAlgorithmException {
 
     try {
-      Cipher c = formInfo.getCipher();
+      MessageDigest md = MessageDigest.getInstance("MD5");
 
+      // the plaintext is hashed as it is written into the cipher
       OutputStream fout;
       fout = new FileOutputStream(encryptedFile);
       fout = new CipherOutputStream(fout, c);
+      fout = new DigestOutputStream(fout, md);
       InputStream fin;
       fin = new FileInputStream(file);
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
+      try {
+        byte[] buffer = new byte[ENCRYPTION_BUFFER_SIZE];
+        int len = fin.read(buffer);
+        while (len != -1) {
+          fout.write(buffer, 0, len);
+          len = fin.read(buffer);
+        }
+        fout.flush();
+      } finally {
+        fin.close();
+        fout.close();
       }
-      fin.close();
-      fout.flush();
-      fout.close();
-      WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted:" + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(appName).i(t, "Encrpyted:" + file.getName() + " -> " + encryptedFile.getName());
+      return md.digest();
     } catch (IOException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(appName).printStackTrace(e);
       throw e;
     } catch (NoSuchAlgorithmException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (NoSuchPaddingException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (InvalidKeyException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
-      throw e;
-    } catch (InvalidAlgorithmParameterException e) {
-      WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
-      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      WebLogger.getLogger(appName).e(t, "Error encrypting: " + file.getName() + " -> " + encryptedFile.getName());
+      WebLogger.getLogger(appName).printStackTrace(e);
       throw e;
     }
   }
 
-  private static void encryptIntoFile(String contents, File submissionFile, File encryptedFile,
-      EncryptedFormInformation formInfo) throws IOException, NoSuchAlgorithmException,
-      NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+  /**
+   * Format a raw md5 digest the same way as ODKFileUtils.getNakedMd5Hash():
+   * a zero-padded 32-character lower-case hex string.
+   *
+   * @param md5Digest
+   * @return
+   */
+  private static String toNakedMd5Hash(byte[] md5Digest) {
+    String md5 = new BigInteger(1, md5Digest).toString(16);
+    StringBuilder b = new StringBuilder();
+    for (int i = md5.length(); i < 32; ++i) {
+      b.append('0');
+    }
+    return b.append(md5).toString();
+  }
 
-    // add elementSignatureSource for this file...
-    formInfo.appendSubmissionFileSignatureSource(contents, submissionFile);
+  private static void encryptIntoFile(SubmissionContentWriter contents, File submissionFile,
+      File encryptedFile, EncryptedFormInformation formInfo) throws IOException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException {
 
     try {
       Cipher c = formInfo.getCipher();
+      MessageDigest md = MessageDigest.getInstance("MD5");
 
+      // the plaintext is hashed as it is written into the cipher
       OutputStream fout;
       fout = new FileOutputStream(encryptedFile);
       fout = new CipherOutputStream(fout, c);
-      InputStream fin;
-      fin = new ByteArrayInputStream(contents.getBytes(CharEncoding.UTF_8));
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
+      fout = new DigestOutputStream(fout, md);
+      try {
+        contents.writeTo(fout);
+        fout.flush();
+      } finally {
+        fout.close();
       }
-      fin.close();
-      fout.flush();
-      fout.close();
+
+      // add elementSignatureSource for this file...
+      formInfo.appendSubmissionFileSignatureSource(md.digest(), submissionFile);
       WebLogger.getLogger(formInfo.appName).i(t, "Encrpyted: content -> " + encryptedFile.getName());
     } catch (IOException e) {
       WebLogger.getLogger(formInfo.appName).e(t, "Error encrypting: content -> " + encryptedFile.getName());
@@ -462,7 +493,8 @@ public class EncryptionUtils {
     return allSuccessful;
   }
 
-  private static List<MimeFile> encryptSubmissionFiles(FileSet fileSet, String submission,
+  private static List<MimeFile> encryptSubmissionFiles(FileSet fileSet,
+                                                       SubmissionContentWriter submission,
                                                        File submissionXml, File submissionXmlEnc, EncryptedFormInformation formInfo) {
 
     // encrypt files that do not end with ".enc"
@@ -475,22 +507,59 @@ public class EncryptionUtils {
       }
     }
     // encrypt here...
-    for (MimeFile f : filesToProcess) {
-      try {
-        File encryptedFile = new File(f.file.getParentFile(), f.file.getName() + ".enc");
-        encryptFile(f.file, encryptedFile, formInfo);
-        f.file = encryptedFile;
+    //
+    // The ciphers must be obtained in file order (each one advances the
+    // iv) and the file signatures must be appended in that same order.
+    // Only the encryption itself runs concurrently.
+    ExecutorService encryptors = null;
+    try {
+      List<Future<byte[]>> digests = new ArrayList<Future<byte[]>>();
+      if (!filesToProcess.isEmpty()) {
+        encryptors = Executors.newFixedThreadPool(
+            Math.min(MAX_ENCRYPTION_THREADS, filesToProcess.size()));
+      }
+      for (MimeFile f : filesToProcess) {
+        final String appName = formInfo.appName;
+        final File file = f.file;
+        final File encryptedFile = new File(f.file.getParentFile(), f.file.getName() + ".enc");
+        final Cipher c = formInfo.getCipher();
+        digests.add(encryptors.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            return encryptFile(appName, file, encryptedFile, c);
+          }
+        }));
+      }
+      for (int i = 0; i < filesToProcess.size(); ++i) {
+        MimeFile f = filesToProcess.get(i);
+        byte[] md5Digest = digests.get(i).get();
+        // add elementSignatureSource for this file...
+        formInfo.appendSubmissionFileSignatureSource(md5Digest, f.file);
+        f.file = new File(f.file.getParentFile(), f.file.getName() + ".enc");
         f.contentType = APPLICATION_OCTET_STREAM;
-      } catch (IOException e) {
-        return null;
-      } catch (InvalidKeyException e) {
-        return null;
-      } catch (NoSuchAlgorithmException e) {
-        return null;
-      } catch (NoSuchPaddingException e) {
-        return null;
-      } catch (InvalidAlgorithmParameterException e) {
-        return null;
+      }
+    } catch (ExecutionException e) {
+      // already logged by encryptFile
+      return null;
+    } catch (InterruptedException e) {
+      WebLogger.getLogger(formInfo.appName).e(t, "Interrupted while encrypting attachments");
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (InvalidKeyException e) {
+      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      return null;
+    } catch (NoSuchPaddingException e) {
+      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      return null;
+    } catch (InvalidAlgorithmParameterException e) {
+      WebLogger.getLogger(formInfo.appName).printStackTrace(e);
+      return null;
+    } finally {
+      if (encryptors != null) {
+        encryptors.shutdownNow();
       }
     }
 
@@ -522,13 +591,14 @@ public class EncryptionUtils {
    * Does not delete any of the original files.
    *
    * @parma fileSet
-   * @param submission
+   * @param submission writes the plaintext submission; it is encrypted as it is written
    * @param submissionXml
    * @param submissionXmlEnc
    * @param formInfo
    * @return
    */
-  public static boolean generateEncryptedSubmission(FileSet fileSet, String submission,
+  public static boolean generateEncryptedSubmission(FileSet fileSet,
+      SubmissionContentWriter submission,
       File submissionXml, File submissionXmlEnc, EncryptedFormInformation formInfo) {
 
     // Step 1: encrypt the submission and all the media files...
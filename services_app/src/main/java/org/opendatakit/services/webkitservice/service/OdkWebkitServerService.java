@@ -20,6 +20,7 @@ import android.content.Intent;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
+import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.SimpleWebServer;
 import org.opendatakit.consts.WebkitServerConsts;
 import org.opendatakit.utilities.ODKFileUtils;
@@ -41,7 +42,22 @@ public class OdkWebkitServerService extends Service {
     }
   }
 
+  /**
+   * Worker threads serving WebView requests. The WebView opens a handful of
+   * keep-alive connections per page and issues many asset requests on them.
+   */
+  private static final int MAX_WORKER_THREADS = 8;
+  /**
+   * Connections (active plus waiting for a worker) beyond this are closed.
+   */
+  private static final int MAX_CONNECTIONS = 64;
+  /**
+   * Read timeout on a keep-alive connection between requests.
+   */
+  private static final int KEEP_ALIVE_TIMEOUT = 2000;
+
   private SimpleWebServer server = null;
+  private NanoHTTPD.BoundedAsyncRunner asyncRunner = null;
   private volatile Thread webServer = null;
   private WebkitServiceInterface servInterface;
 
@@ -62,6 +78,7 @@ public class OdkWebkitServerService extends Service {
             Thread.sleep(1000);
             if (retryCount % 60 == 0) {
               Log.v(LOGTAG, "Sync.Thread.WebServer -- waking to confirm webserver is working");
+              logServerStatistics();
             }
           } catch (InterruptedException e) {
             e.printStackTrace();
@@ -100,10 +117,16 @@ public class OdkWebkitServerService extends Service {
       stopServer();
       SimpleWebServer testing = new SimpleWebServer(WebkitServerConsts.HOSTNAME, WebkitServerConsts.PORT, new File(ODKFileUtils.getOdkFolder()).getAbsoluteFile(), false);
       //SimpleWebServer testing = new SimpleWebServer();
+      NanoHTTPD.BoundedAsyncRunner runner =
+          new NanoHTTPD.BoundedAsyncRunner(MAX_WORKER_THREADS, MAX_CONNECTIONS);
+      testing.setAsyncRunner(runner);
+      testing.setKeepAliveTimeout(KEEP_ALIVE_TIMEOUT);
       try {
         testing.start();
         server = testing;
+        asyncRunner = runner;
       } catch (IOException e) {
+        runner.shutdown();
         Log.v("Sync.Thread.WebServer", "Exception: " + e.toString());
       }
     }
@@ -116,7 +139,17 @@ public class OdkWebkitServerService extends Service {
       } catch (Exception e) {
         // ignore...
       }
+      if (asyncRunner != null) {
+        asyncRunner.shutdown();
+      }
       server = null;
+      asyncRunner = null;
+    }
+  }
+
+  private synchronized void logServerStatistics() {
+    if (asyncRunner != null) {
+      Log.v(LOGTAG, "Sync.Thread.WebServer -- " + asyncRunner.toString());
     }
   }
 
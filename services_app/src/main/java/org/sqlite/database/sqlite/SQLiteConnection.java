@@ -37,6 +37,7 @@ import org.sqlite.database.DefaultDatabaseErrorHandler;
 import org.sqlite.database.SQLException;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -1920,8 +1921,10 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
          b.append("preparedStatementCache hitCount: ")
              .append(getPreparedStatementCacheHitCount()).append(" missCount: ")
-             .append(getPreparedStatementCacheMissCount()).append(" size: ")
-             .append(getPreparedStatementCacheSize()).append("\n");
+             .append(getPreparedStatementCacheMissCount()).append(" evictionCount: ")
+             .append(getPreparedStatementCacheEvictionCount()).append(" size: ")
+             .append(getPreparedStatementCacheSize()).append(" maxSize: ")
+             .append(mConfiguration.maxSqlCacheSize).append("\n");
          mPreparedStatementCache.dump(b);
       }
    }
@@ -1934,10 +1937,51 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
       return mPreparedStatementCache.missCount();
    }
 
+   public int getPreparedStatementCacheEvictionCount() {
+      return mPreparedStatementCache.evictionCount();
+   }
+
    public int getPreparedStatementCacheSize() {
       return mPreparedStatementCache.size();
    }
 
+   /**
+    * Prepare the given statements and leave them in the prepared-statement cache
+    * so that their first real use does not pay the cost of preparing them.
+    * Statements that are already cached, are not cacheable, or that fail to
+    * prepare are skipped.
+    *
+    * @param sqlStatements
+    * @return the number of statements that were newly prepared
+    */
+   public int warmPreparedStatements(Collection<String> sqlStatements) {
+      if (sqlStatements == null) {
+         throw new IllegalArgumentException("sqlStatements must not be null.");
+      }
+
+      synchronized (mConnectionPtrMutex) {
+         if (mConnectionPtr == 0L) {
+            throw new SQLiteException("connection closed");
+         }
+         final int cookie = mRecentOperations
+             .beginOperation(mSessionQualifier, "warmPreparedStatements", null, null);
+         try {
+            int count = 0;
+            for (String sql : sqlStatements) {
+               if (mPreparedStatementCache.warmPreparedStatement(sql)) {
+                  ++count;
+               }
+            }
+            return count;
+         } catch (Throwable t) {
+            mRecentOperations.failOperation(cookie, t);
+            throw t;
+         } finally {
+            mRecentOperations.endOperation(cookie);
+         }
+      }
+   }
+
    @Override
    public String toString() {
       return "SQLiteConnection: " + mConfiguration.path + " (" + mSessionQualifier + ")";
@@ -1958,7 +2002,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
      }
 
      protected boolean	removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
-       if ( this.size() >= maxCapacity ) {
+       if ( this.size() > maxCapacity ) {
          evictedKey = eldest.getKey();
          evictedStatement = eldest.getValue();
          return true;
@@ -1978,6 +2022,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
 
          private int hitCount;
          private int missCount;
+         private int evictionCount;
 
          /**
           * @param maxSize this is the maximum number of entries in the cache.
@@ -2012,6 +2057,21 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
              return null;
          }
 
+         /**
+          * Returns the value for {@code key} if it exists in the cache, without
+          * affecting the hit and miss counts. If a value was returned, it is
+          * moved to the head of the queue.
+          */
+         public final PreparedStatement peek(String key) {
+             if (key == null) {
+                 throw new NullPointerException("key == null");
+             }
+
+             synchronized (map) {
+                 return map.get(key);
+             }
+         }
+
          /**
           * Caches {@code value} for {@code key}. The value is moved to the head of
           * the queue. During this operation, up to two calls to entryRemoved(...) may be made.
@@ -2040,6 +2100,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
                  if (evictedValue != null) {
                      // hit maxSize -- no size correction
                      --size;
+                     ++evictionCount;
                  }
                  map.evictedKey = null;
                  map.evictedStatement = null;
@@ -2121,6 +2182,15 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
            }
          }
 
+         /**
+          * Returns the number of entries evicted to make space for new entries.
+          */
+         public final int evictionCount() {
+           synchronized (map) {
+             return evictionCount;
+           }
+         }
+
          /**
           * Returns a copy of the current contents of the cache, ordered from least
           * recently accessed to most recently accessed.
@@ -2208,12 +2278,44 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
          }
       }
 
+      int evictionCount() {
+         synchronized (impl) {
+            return impl.evictionCount();
+         }
+      }
+
       int size() {
          synchronized (impl) {
             return impl.size();
          }
       }
 
+      /**
+       * Caller must hold mConnectionPtrMutex before calling this method.
+       *
+       * @param sql
+       * @return true if the statement was prepared and added to the cache.
+       */
+      boolean warmPreparedStatement(String sql) {
+         synchronized (impl) {
+            if (impl.peek(sql) != null || !isCacheable(getSqlStatementType(sql))) {
+               return false;
+            }
+            final PreparedStatement statement;
+            try {
+               statement = acquirePreparedStatement(sql);
+            } catch (SQLiteException e) {
+               // e.g., a column referenced by the statement does not exist in this table
+               getLogger().d(TAG, "Unable to warm prepared statement. SQL: "
+                   + AppNameSharedStateContainer.trimSqlForDisplay(sql));
+               return false;
+            }
+            // returns the statement to the cache
+            releasePreparedStatement(statement);
+            return true;
+         }
+      }
+
       /**
        * Caller must hold mConnectionPtrMutex before calling this method.
        *
@@ -2234,7 +2336,9 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             PreparedStatement statement = null;
             // Either there is an in-use statement in the cache or the
             // statement is not yet in the cache. Create a new statement.
+            final long prepareStartNanos = System.nanoTime();
             final long statementPtr = nativePrepareStatement(mConnectionPtr, sql);
+            mRecentOperations.recordPrepare(prepareStartNanos);
             try {
                final int numParameters = nativeGetParameterCount(mConnectionPtr, statementPtr);
                final int type = getSqlStatementType(sql);
@@ -2254,7 +2358,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
             } catch (RuntimeException ex) {
                // Finalize the statement if an exception occurred and we did not add
                // it to the cache.  If it is already in the cache, then leave it there.
-               PreparedStatement ref = impl.get(sql);
+               PreparedStatement ref = impl.peek(sql);
                if ( ref == statement ) {
                   // remove will trigger releasePreparedStatement()
                   impl.remove(sql);
@@ -2274,7 +2378,7 @@ public final class SQLiteConnection extends SQLiteConnectionBase implements Canc
        */
       void releasePreparedStatement(PreparedStatement statement) {
          synchronized (impl) {
-            PreparedStatement existing = impl.get(statement.mSql);
+            PreparedStatement existing = impl.peek(statement.mSql);
             if (existing == statement) {
                try {
                   if ( mConnectionPtr != 0L && statement.mStatementPtr != 0L ) {
@@ -5,6 +5,7 @@ import android.os.CancellationSignal;
 import org.opendatakit.logging.WebLoggerIf;
 import org.sqlite.database.SQLException;
 
+import java.util.Collection;
 import java.util.Map;
 
 public abstract class SQLiteConnectionBase extends SQLiteClosable {
@@ -210,6 +211,8 @@ public abstract class SQLiteConnectionBase extends SQLiteClosable {
                                 String selection, Object[] selectionArgs, String groupBy,
                                 String having, String orderBy, String limit, CancellationSignal cancellationSignal);
 
+   public abstract int warmPreparedStatements(Collection<String> sqlStatements);
+
    public abstract void dump(StringBuilder b, boolean verbose);
 
 }
@@ -47,7 +47,12 @@ public final class SQLiteDatabaseConfiguration {
    * Each prepared-statement is between 1K - 6K, depending on the complexity of the
    * SQL statement & schema.  A large SQL cache may use a significant amount of memory.
    */
-  private static final int MAX_SQL_CACHE_SIZE = 100;
+  public static final int MAX_SQL_CACHE_SIZE = 100;
+
+  /**
+   * Default size of the prepared-statement cache of each connection.
+   */
+  public static final int DEFAULT_SQL_CACHE_SIZE = 25;
 
   /**
    * ODK appName
@@ -118,7 +123,7 @@ public final class SQLiteDatabaseConfiguration {
       this.openFlags = openFlags;
 
       // Set default values for optional parameters.
-      maxSqlCacheSize = 25;
+      maxSqlCacheSize = DEFAULT_SQL_CACHE_SIZE;
       locale = Locale.getDefault();
     }
 
@@ -114,6 +114,11 @@ public final class SQLiteGlobal {
 
     /**
      * Gets the WAL auto-checkpoint integer in database pages.
+     *
+     * Routine checkpoints are run in the background by the WalCheckpointScheduler
+     * once the WAL outgrows the journal size limit; this threshold is only a backstop
+     * for when they fall behind. It is left at the SQLite default so that the
+     * checkpoint a foreground writer may absorb stays small.
      */
     public static int getWALAutoCheckpoint() {
         int value = 1000;